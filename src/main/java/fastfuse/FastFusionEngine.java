@@ -1,17 +1,31 @@
 package fastfuse;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
+import javax.vecmath.Matrix4f;
+
 import clearcl.ClearCLContext;
 import clearcl.ClearCLImage;
 import clearcl.enums.ImageChannelDataType;
 import coremem.ContiguousMemoryInterface;
+import fastfuse.graph.MemoryPlan;
+import fastfuse.graph.TaskGraph;
+import fastfuse.graph.TaskListOptimizer;
+import fastfuse.tasks.MemoryReleaseTask;
+import fastfuse.tasks.TaskHelper;
 import fastfuse.tasks.TaskInterface;
+import fastfuse.tasks.TransformTask;
+import fastfuse.utils.smoothing.SimpleExponentialSmoothing;
 
 import org.apache.commons.lang3.tuple.MutablePair;
 
@@ -20,9 +34,10 @@ import org.apache.commons.lang3.tuple.MutablePair;
  *
  * @author royer
  */
-public class FastFusionEngine implements FastFusionEngineInterface
+public class FastFusionEngine implements FastFusionEngineInterface, AutoCloseable
 {
   private final ClearCLContext mContext;
+  private final boolean mReadWriteImagesSupported;
 
   private final ConcurrentHashMap<String, MutablePair<Boolean, ClearCLImage>> mImageSlotsMap =
                                                                                              new ConcurrentHashMap<>();
@@ -33,6 +48,48 @@ public class FastFusionEngine implements FastFusionEngineInterface
   private final HashSet<TaskInterface> mExecutedFusionTasks =
                                                             new HashSet<>();
 
+  private final HashMap<TaskInterface, SimpleExponentialSmoothing> mTaskCostsMap =
+                                                                                new HashMap<>();
+
+  private volatile boolean mCriticalPathScheduling = true;
+
+  // graph and critical path priorities of the tasks, computed when first
+  // needed: the graph is invalidated when tasks are added or removed, the
+  // priorities also when a task cost is measured
+  private TaskGraph mTaskGraph;
+  private Map<TaskInterface, Double> mCriticalPathPriorities;
+
+  private volatile boolean mInPlaceExecution = false;
+
+  private volatile long mSlabOffset = 0;
+  private volatile Map<String, Integer> mSlabDepthReductionsMap =
+                                                                new HashMap<>();
+
+  private final ConcurrentHashMap<String, Matrix4f> mImageTransformsMap =
+                                                                     new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, long[]> mImageDimensionsMap =
+                                                                      new ConcurrentHashMap<>();
+  private TransformTask mMaterializationTask;
+
+  // number of slots referencing each image, slots may be set from other
+  // threads than the one executing the tasks, accesses synchronize on it:
+  private final IdentityHashMap<ClearCLImage, Integer> mImageReferenceCounts =
+                                                                             new IdentityHashMap<>();
+  private Map<String, Integer> mPendingConsumersMap;
+  private volatile Set<String> mOutputSlotKeys;
+
+  private ArrayList<MemoryPlan.Lifetime> mMemoryTrace;
+  private final IdentityHashMap<ClearCLImage, MemoryPlan.Lifetime> mTracedImages =
+                                                                                new IdentityHashMap<>();
+  private final ArrayList<TaskInterface> mTracedTaskOrder =
+                                                          new ArrayList<>();
+  private int mMemoryTraceEvent;
+
+  private MemoryPlan mMemoryPlan;
+  private ClearCLImage[] mPlannedImages;
+  private final ArrayList<TaskInterface> mPlannedTaskOrder =
+                                                           new ArrayList<>();
+
   /**
    * Instantiates a StackFusion object given a CLearCL context
    * 
@@ -43,6 +100,8 @@ public class FastFusionEngine implements FastFusionEngineInterface
   {
     super();
     mContext = pContext;
+    mReadWriteImagesSupported =
+                              TaskHelper.supportsReadWriteImages(pContext);
   }
 
   /**
@@ -68,16 +127,38 @@ public class FastFusionEngine implements FastFusionEngineInterface
     for (Entry<String, MutablePair<Boolean, ClearCLImage>> lEntry : mImageSlotsMap.entrySet())
     {
       ClearCLImage lImage = lEntry.getValue().getRight();
-      if (lMemoryPool.isInUse(lImage))
+      if (lMemoryPool.isInUse(lImage) && !isPlannedImage(lImage))
       {
         lMemoryPool.releaseImage(lEntry.getKey(), lImage);
       }
       lEntry.getValue().setRight(null);
       lEntry.getValue().setLeft(false);
     }
+    synchronized (mImageReferenceCounts)
+    {
+      mImageReferenceCounts.clear();
+    }
+    mImageTransformsMap.clear();
+    mImageDimensionsMap.clear();
+    mPendingConsumersMap = null;
     mExecutedFusionTasks.clear();
     if (pCloseImages)
+    {
       lMemoryPool.free();
+      lMemoryPool.freeScratchImages();
+    }
+  }
+
+  /**
+   * Resets this engine, freeing all images, and closes its tasks, releasing the
+   * resources they hold across executions.
+   */
+  @Override
+  public void close()
+  {
+    reset(true);
+    for (TaskInterface lTask : mFusionTasks)
+      lTask.close();
   }
 
   @Override
@@ -87,6 +168,9 @@ public class FastFusionEngine implements FastFusionEngineInterface
   }
 
   /**
+   * Adds a task to this engine. Note that when critical path scheduling is
+   * enabled, the position in the list only matters for tasks that have the
+   * same priority.
    *
    * @param pTask
    *          task to add to the list
@@ -103,6 +187,9 @@ public class FastFusionEngine implements FastFusionEngineInterface
     {
       mFusionTasks.add(pTask);
     }
+    mPendingConsumersMap = null;
+    mTaskGraph = null;
+    mCriticalPathPriorities = null;
   }
 
   @Override
@@ -161,13 +248,44 @@ public class FastFusionEngine implements FastFusionEngineInterface
     FastFusionMemoryPool lMemoryPool = FastFusionMemoryPool.get();
     ClearCLImage lImage = lPair.getRight();
 
+    // the slot receives new content:
+    setImageTransform(pSlotKey, null);
+
+    // an image already in the slot (e.g. donated by an in-place source) is only
+    // kept if it has the requested data type and dimensions:
+    if (lImage != null
+        && (lImage.getChannelDataType() != pImageChannelDataType
+            || !Arrays.equals(lImage.getDimensions(), pDimensions)))
+    {
+      lPair.setRight(null);
+      if (releaseImageReference(lImage))
+        returnImage(pSlotKey, lImage);
+      lImage = null;
+    }
+
     if (lImage == null)
     {
-      lImage = lMemoryPool.requestImage(pSlotKey,
-                                        pImageChannelDataType,
-                                        pDimensions);
+      lImage = getPlannedImage(pSlotKey,
+                               pImageChannelDataType,
+                               pDimensions);
+      if (lImage == null)
+        lImage = lMemoryPool.requestImage(pSlotKey,
+                                          pImageChannelDataType,
+                                          pDimensions);
       lPair.setRight(lImage);
       lPair.setLeft(false);
+      acquireImageReference(lImage);
+
+      if (mMemoryTrace != null)
+      {
+        MemoryPlan.Lifetime lLifetime =
+                                      new MemoryPlan.Lifetime(pSlotKey,
+                                                              pImageChannelDataType,
+                                                              pDimensions,
+                                                              mMemoryTraceEvent++);
+        mMemoryTrace.add(lLifetime);
+        mTracedImages.put(lImage, lLifetime);
+      }
     }
 
     assert lMemoryPool.isInUse(lImage);
@@ -192,8 +310,16 @@ public class FastFusionEngine implements FastFusionEngineInterface
     MutablePair<Boolean, ClearCLImage> lSrcPair =
                                                 getImageSlotsMap().get(pSrcSlotKey);
 
+    // both slots now share the image and its reference count:
+    ClearCLImage lPreviousImage = lDstPair.getRight();
     lDstPair.setRight(lSrcPair.getRight());
     lDstPair.setLeft(lSrcPair.getLeft());
+    acquireImageReference(lSrcPair.getRight());
+    if (lPreviousImage != null && releaseImageReference(lPreviousImage))
+      returnImage(pDstSlotKey, lPreviousImage);
+    setImageTransform(pDstSlotKey,
+                      getImageTransform(pSrcSlotKey),
+                      mImageDimensionsMap.get(pSrcSlotKey));
 
   }
 
@@ -203,18 +329,294 @@ public class FastFusionEngine implements FastFusionEngineInterface
     return getImageSlotsMap().get(pSlotKey).getRight();
   }
 
+  @Override
+  public void setImageTransform(String pSlotKey, Matrix4f pTransform)
+  {
+    setImageTransform(pSlotKey, pTransform, null);
+  }
+
+  @Override
+  public void setImageTransform(String pSlotKey,
+                                Matrix4f pTransform,
+                                long[] pDimensions)
+  {
+    if (pTransform == null)
+      mImageTransformsMap.remove(pSlotKey);
+    else
+      mImageTransformsMap.put(pSlotKey, new Matrix4f(pTransform));
+    if (pTransform == null || pDimensions == null)
+      mImageDimensionsMap.remove(pSlotKey);
+    else
+      mImageDimensionsMap.put(pSlotKey, pDimensions.clone());
+  }
+
+  @Override
+  public long[] getImageDimensions(String pSlotKey)
+  {
+    long[] lDimensions = mImageDimensionsMap.get(pSlotKey);
+    if (lDimensions != null)
+      return lDimensions.clone();
+    MutablePair<Boolean, ClearCLImage> lPair =
+                                             getImageSlotsMap().get(pSlotKey);
+    if (lPair == null || lPair.getRight() == null)
+      return null;
+    return lPair.getRight().getDimensions();
+  }
+
+  @Override
+  public Matrix4f getImageTransform(String pSlotKey)
+  {
+    Matrix4f lTransform = mImageTransformsMap.get(pSlotKey);
+    return lTransform == null ? null : new Matrix4f(lTransform);
+  }
+
+  @Override
+  public void materializeImage(String pSlotKey)
+  {
+    Matrix4f lTransform = mImageTransformsMap.get(pSlotKey);
+    if (lTransform == null)
+      return;
+    long[] lDimensions = getImageDimensions(pSlotKey);
+    setImageTransform(pSlotKey, null);
+
+    MutablePair<Boolean, ClearCLImage> lPair =
+                                             getImageSlotsMap().get(pSlotKey);
+    ClearCLImage lStoredImage = lPair.getRight();
+
+    // the transformed image is requested from the pool directly since the
+    // planned image of this slot may be the stored image:
+    ClearCLImage lTransformedImage =
+                                   FastFusionMemoryPool.get()
+                                                       .requestImage(pSlotKey,
+                                                                     lStoredImage.getChannelDataType(),
+                                                                     lDimensions);
+    if (mMaterializationTask == null)
+      mMaterializationTask = new TransformTask(pSlotKey, pSlotKey);
+    mMaterializationTask.transform(lTransformedImage,
+                                   lStoredImage,
+                                   lTransform,
+                                   true);
+
+    lPair.setRight(lTransformedImage);
+    acquireImageReference(lTransformedImage);
+    if (releaseImageReference(lStoredImage))
+      returnImage(pSlotKey, lStoredImage);
+  }
+
+  /**
+   * Prepares the transformed images required by a task: if they all carry the
+   * same transform and the task commutes with it, the task is applied to the
+   * stored images and the transform is propagated to its outputs. Otherwise,
+   * unless the task accepts image transforms, the images are materialized.
+   *
+   * @param pTask
+   *          task about to be executed
+   * @return transforms to attach to the produced images after execution, or
+   *         null
+   */
+  private Map<String, Matrix4f> prepareImageTransforms(TaskInterface pTask)
+  {
+    if (mImageTransformsMap.isEmpty() || pTask.acceptsImageTransforms())
+      return null;
+
+    Set<String> lRequiredSlotKeys = pTask.getRequiredImagesSlotKeys();
+    Matrix4f lCommonTransform = null;
+    boolean lSameTransform = true, lFirst = true;
+    for (String lSlotKey : lRequiredSlotKeys)
+    {
+      Matrix4f lTransform = mImageTransformsMap.get(lSlotKey);
+      if (lFirst)
+        lCommonTransform = lTransform;
+      else if (!Objects.equals(lTransform, lCommonTransform))
+        lSameTransform = false;
+      lFirst = false;
+    }
+    if (lSameTransform && lCommonTransform == null)
+      return null;
+
+    // views with other dimensions than the stored images (e.g. axis
+    // permutations) are not propagated:
+    for (String lSlotKey : lRequiredSlotKeys)
+      if (mImageDimensionsMap.containsKey(lSlotKey))
+        lSameTransform = false;
+
+    if (lSameTransform)
+    {
+      HashMap<String, Matrix4f> lPropagatedTransforms = new HashMap<>();
+      for (String lSlotKey : pTask.getProducedImagesSlotKeys())
+      {
+        Matrix4f lTransform =
+                            pTask.getPropagatedImageTransform(lSlotKey,
+                                                              new Matrix4f(lCommonTransform));
+        if (lTransform == null)
+        {
+          lPropagatedTransforms = null;
+          break;
+        }
+        lPropagatedTransforms.put(lSlotKey, lTransform);
+      }
+      if (lPropagatedTransforms != null)
+        return lPropagatedTransforms;
+    }
+
+    for (String lSlotKey : lRequiredSlotKeys)
+      materializeImage(lSlotKey);
+    return null;
+  }
+
+  @Override
+  public long getSlabOffset(String pSlotKey)
+  {
+    return mSlabOffset
+           / mSlabDepthReductionsMap.getOrDefault(pSlotKey, 1);
+  }
+
+  /**
+   * Sets the z coordinate, in the whole input stacks, of the first plane of the
+   * images passed to this engine when the stacks are processed slab by slab
+   * (see ZSlabExecutor)
+   *
+   * @param pSlabOffset
+   *          z offset of the current slab, 0 if the stacks are not split
+   * @param pDepthReductionsMap
+   *          number of input planes per plane of the image of each slot, for
+   *          slots whose images have fewer planes than the input stacks
+   */
+  public void setSlabOffset(long pSlabOffset,
+                            Map<String, Integer> pDepthReductionsMap)
+  {
+    mSlabOffset = pSlabOffset;
+    mSlabDepthReductionsMap = new HashMap<>(pDepthReductionsMap);
+  }
+
   @Override
   public void removeImage(String pSlotKey)
   {
+    setImageTransform(pSlotKey, null);
     MutablePair<Boolean, ClearCLImage> lMutablePair =
                                                     getImageSlotsMap().remove(pSlotKey);
-    assert lMutablePair != null;
-    if (lMutablePair != null)
+    if (lMutablePair == null || lMutablePair.getRight() == null)
+      return;
+
+    // images shared between slots (see IdentityTask) go back to the pool only
+    // once the last slot referencing them is removed:
+    if (releaseImageReference(lMutablePair.getRight()))
+      returnImage(pSlotKey, lMutablePair.getRight());
+  }
+
+  private void acquireImageReference(ClearCLImage pImage)
+  {
+    if (pImage == null)
+      return;
+    synchronized (mImageReferenceCounts)
+    {
+      mImageReferenceCounts.merge(pImage, 1, Integer::sum);
+    }
+  }
+
+  /**
+   * Decrements the number of slots referencing an image
+   *
+   * @param pImage
+   *          image
+   * @return true if no slot references the image anymore
+   */
+  private boolean releaseImageReference(ClearCLImage pImage)
+  {
+    synchronized (mImageReferenceCounts)
+    {
+      Integer lCount = mImageReferenceCounts.get(pImage);
+      if (lCount == null || lCount <= 1)
+      {
+        mImageReferenceCounts.remove(pImage);
+        return true;
+      }
+      mImageReferenceCounts.put(pImage, lCount - 1);
+      return false;
+    }
+  }
+
+  private boolean isReferencedBySlot(ClearCLImage pImage)
+  {
+    return getImageReferenceCount(pImage) > 0;
+  }
+
+  private int getImageReferenceCount(ClearCLImage pImage)
+  {
+    synchronized (mImageReferenceCounts)
+    {
+      return mImageReferenceCounts.getOrDefault(pImage, 0);
+    }
+  }
+
+  private void returnImage(String pSlotKey, ClearCLImage pImage)
+  {
+    if (mMemoryTrace != null)
     {
-      FastFusionMemoryPool.get()
-                          .releaseImage(pSlotKey,
-                                        lMutablePair.getRight());
+      MemoryPlan.Lifetime lLifetime = mTracedImages.remove(pImage);
+      if (lLifetime != null)
+        lLifetime.end(mMemoryTraceEvent++);
     }
+
+    if (!isPlannedImage(pImage))
+      FastFusionMemoryPool.get().releaseImage(pSlotKey, pImage);
+  }
+
+  /**
+   * Optimizes the list of tasks of this engine: duplicated computations are
+   * replaced by identity tasks, and tasks that do not contribute to the given
+   * output images are removed.
+   *
+   * @param pOutputSlotKeys
+   *          slot keys of the images that are needed once all tasks are
+   *          executed
+   */
+  public void optimizeTasks(String... pOutputSlotKeys)
+  {
+    List<TaskInterface> lOptimizedTasks =
+                                        TaskListOptimizer.optimize(mFusionTasks,
+                                                                   new HashSet<>(Arrays.asList(pOutputSlotKeys)));
+    mFusionTasks.clear();
+    mFusionTasks.addAll(lOptimizedTasks);
+    mPendingConsumersMap = null;
+    mTaskGraph = null;
+    mCriticalPathPriorities = null;
+  }
+
+  /**
+   * Enables automatic release of images: each slot counts the tasks that still
+   * need its image, and once all of them are executed the slot is removed,
+   * unless it is one of the given output slots. Images shared between slots
+   * (see IdentityTask) are returned to the memory pool once no slot refers to
+   * them anymore. Memory release tasks can still be used, releasing an image
+   * twice has no effect.
+   *
+   * @param pOutputSlotKeys
+   *          slot keys of the images that must be kept once all tasks are
+   *          executed
+   */
+  public void enableAutomaticRelease(String... pOutputSlotKeys)
+  {
+    mOutputSlotKeys = new HashSet<>(Arrays.asList(pOutputSlotKeys));
+  }
+
+  /**
+   * Disables automatic release of images, images are then only released by
+   * memory release tasks.
+   */
+  public void disableAutomaticRelease()
+  {
+    mOutputSlotKeys = null;
+  }
+
+  /**
+   * Returns true if automatic release of images is enabled
+   *
+   * @return true if automatic release is enabled
+   */
+  public boolean isAutomaticRelease()
+  {
+    return mOutputSlotKeys != null;
   }
 
   @Override
@@ -261,25 +663,401 @@ public class FastFusionEngine implements FastFusionEngineInterface
     if (pExecutedNumberOfTasks == pMaxNumberOfTasks)
       return pExecutedNumberOfTasks;
     Set<String> lAvailableImageKeys = getAvailableImagesSlotKeys();
+    TaskInterface lTask = selectNextTask(lAvailableImageKeys);
+    if (lTask == null)
+      return pExecutedNumberOfTasks;
+
+    if (mMemoryTrace != null)
+      mTracedTaskOrder.add(lTask);
+
+    if (mPendingConsumersMap == null)
+      mPendingConsumersMap = countPendingConsumers();
+
+    Map<String, Matrix4f> lPropagatedTransforms =
+                                                prepareImageTransforms(lTask);
+
+    if (mInPlaceExecution && mReadWriteImagesSupported)
+      donateInPlaceSourceImage(lTask);
+
+    long lStartTimeInNanos = System.nanoTime();
+    lTask.enqueue(this, true);
+    recordTaskCost(lTask, System.nanoTime() - lStartTimeInNanos);
+    if (lPropagatedTransforms != null)
+      mImageTransformsMap.putAll(lPropagatedTransforms);
+    mExecutedFusionTasks.add(lTask);
+    releaseConsumedImages(lTask);
+    return executeSeveralTasks(pExecutedNumberOfTasks + 1,
+                               pMaxNumberOfTasks);
+  }
+
+  /**
+   * Selects the next task to execute among the tasks that are ready. Tasks
+   * that are instantaneous (e.g. memory release) are always selected first.
+   * Otherwise, if critical path scheduling is enabled, the ready task with the
+   * longest remaining (cost-weighted) downstream path is selected, ties are
+   * broken by the order of the task list. When a memory plan is applied, the
+   * tasks are executed in the order in which they were traced, as long as
+   * possible.
+   *
+   * @param pAvailableImageKeys
+   *          available images
+   * @return next task to execute or null if none is ready
+   */
+  private TaskInterface selectNextTask(Set<String> pAvailableImageKeys)
+  {
+    int lNumberOfExecutedTasks = mExecutedFusionTasks.size();
+    if (lNumberOfExecutedTasks < mPlannedTaskOrder.size())
+    {
+      TaskInterface lPlannedTask =
+                                 mPlannedTaskOrder.get(lNumberOfExecutedTasks);
+      if (!mExecutedFusionTasks.contains(lPlannedTask)
+          && lPlannedTask.checkIfRequiredImagesAvailable(pAvailableImageKeys))
+        return lPlannedTask;
+    }
+
+    TaskInterface lSelectedTask = null;
+    double lSelectedPriority = Double.NEGATIVE_INFINITY;
     for (TaskInterface lTask : mFusionTasks)
     {
-      if (!mExecutedFusionTasks.contains(lTask))
+      if (mExecutedFusionTasks.contains(lTask)
+          || !lTask.checkIfRequiredImagesAvailable(pAvailableImageKeys))
+        continue;
+
+      if (!mCriticalPathScheduling || lTask.isInstantaneous())
+        return lTask;
+
+      double lPriority = getCriticalPathPriorities().get(lTask);
+      if (lPriority > lSelectedPriority)
       {
-        if (lTask.checkIfRequiredImagesAvailable(lAvailableImageKeys))
-        {
-          lTask.enqueue(this, true);
-          mExecutedFusionTasks.add(lTask);
-          return executeSeveralTasks(pExecutedNumberOfTasks + 1,
-                                     pMaxNumberOfTasks);
-        }
-        else
-        {
-          // System.out.println("Cannot execute " + lTask + " because not the
-          // right available images: " + lAvailableImageKeys );
-        }
+        lSelectedTask = lTask;
+        lSelectedPriority = lPriority;
       }
     }
-    return pExecutedNumberOfTasks;
+    return lSelectedTask;
+  }
+
+  /**
+   * Passes the input image of a task that can run in place as its destination
+   * image, provided that the input image is not needed anymore: no other slot
+   * refers to it, all other tasks reading it have been executed, and it is
+   * eventually released, by a memory release task or automatically (which
+   * otherwise would mean that it is an output image). The source slot keeps
+   * referring to the image until it is released, but the image is then not
+   * returned to the pool since the destination slot still refers to it.
+   *
+   * @param pTask
+   *          task about to be executed
+   */
+  private void donateInPlaceSourceImage(TaskInterface pTask)
+  {
+    String lSrcSlotKey = pTask.getInPlaceSourceSlotKey();
+    if (lSrcSlotKey == null)
+      return;
+
+    List<String> lDstSlotKeys = pTask.getProducedImagesSlotKeys();
+    if (lDstSlotKeys.size() != 1)
+      return;
+    String lDstSlotKey = lDstSlotKeys.get(0);
+
+    MutablePair<Boolean, ClearCLImage> lSrcPair =
+                                                getImageSlotsMap().get(lSrcSlotKey);
+    MutablePair<Boolean, ClearCLImage> lDstPair =
+                                                getImageSlotsMap().get(lDstSlotKey);
+    if (lSrcPair == null || lSrcPair.getRight() == null
+        || (lDstPair != null && lDstPair.getRight() != null))
+      return;
+
+    ClearCLImage lImage = lSrcPair.getRight();
+    if (getImageReferenceCount(lImage) > 1)
+      return;
+
+    Set<String> lOutputSlotKeys = mOutputSlotKeys;
+    boolean lReleased = lOutputSlotKeys != null
+                        && !lOutputSlotKeys.contains(lSrcSlotKey);
+    for (TaskInterface lOtherTask : mFusionTasks)
+    {
+      if (lOtherTask instanceof MemoryReleaseTask)
+        lReleased |= ((MemoryReleaseTask) lOtherTask).getReleasedImagesSlotKeys()
+                                                     .contains(lSrcSlotKey);
+      else if (lOtherTask != pTask
+               && !mExecutedFusionTasks.contains(lOtherTask)
+               && lOtherTask.getRequiredImagesSlotKeys()
+                            .contains(lSrcSlotKey))
+        return;
+    }
+    if (!lReleased)
+      return;
+
+    if (lDstPair == null)
+      getImageSlotsMap().put(lDstSlotKey,
+                             MutablePair.of(false, lImage));
+    else
+    {
+      lDstPair.setRight(lImage);
+      lDstPair.setLeft(false);
+    }
+    acquireImageReference(lImage);
+  }
+
+  /**
+   * Counts for each slot the number of tasks not yet executed that require its
+   * image. Memory release tasks count as well, since they wait for their
+   * required images.
+   *
+   * @return map from slot key to number of pending consumers
+   */
+  private Map<String, Integer> countPendingConsumers()
+  {
+    HashMap<String, Integer> lPendingConsumersMap = new HashMap<>();
+    for (TaskInterface lTask : mFusionTasks)
+      if (!mExecutedFusionTasks.contains(lTask))
+        for (String lSlotKey : lTask.getRequiredImagesSlotKeys())
+          lPendingConsumersMap.merge(lSlotKey, 1, Integer::sum);
+    return lPendingConsumersMap;
+  }
+
+  /**
+   * Updates the pending consumers after a task is executed, and removes the
+   * slots that are not needed anymore when automatic release is enabled. This
+   * includes images produced by the task that no task requires.
+   *
+   * @param pTask
+   *          executed task
+   */
+  private void releaseConsumedImages(TaskInterface pTask)
+  {
+    for (String lSlotKey : pTask.getRequiredImagesSlotKeys())
+      mPendingConsumersMap.merge(lSlotKey, -1, Integer::sum);
+
+    Set<String> lOutputSlotKeys = mOutputSlotKeys;
+    if (lOutputSlotKeys == null)
+      return;
+
+    ArrayList<String> lSlotKeys = new ArrayList<>();
+    lSlotKeys.addAll(pTask.getRequiredImagesSlotKeys());
+    lSlotKeys.addAll(pTask.getProducedImagesSlotKeys());
+    for (String lSlotKey : lSlotKeys)
+      if (mPendingConsumersMap.getOrDefault(lSlotKey, 0) <= 0
+          && !lOutputSlotKeys.contains(lSlotKey))
+        removeImage(lSlotKey);
+  }
+
+  /**
+   * Returns the critical path priorities of the tasks (see
+   * TaskGraph.computeCriticalPathPriorities), computed once for the current
+   * tasks and task costs
+   *
+   * @return map from task to critical path priority
+   */
+  public Map<TaskInterface, Double> getCriticalPathPriorities()
+  {
+    // the task list can also be modified through getTasks():
+    if (mTaskGraph == null
+        || !mTaskGraph.getTasks().equals(mFusionTasks))
+    {
+      mTaskGraph = new TaskGraph(mFusionTasks);
+      mCriticalPathPriorities = null;
+    }
+    if (mCriticalPathPriorities == null)
+      mCriticalPathPriorities =
+                              mTaskGraph.computeCriticalPathPriorities(this::getTaskCost);
+    return mCriticalPathPriorities;
+  }
+
+  private void recordTaskCost(TaskInterface pTask,
+                              long pElapsedTimeInNanos)
+  {
+    SimpleExponentialSmoothing lSmoother = mTaskCostsMap.get(pTask);
+    if (lSmoother == null)
+    {
+      lSmoother = new SimpleExponentialSmoothing(1, 0.5);
+      mTaskCostsMap.put(pTask, lSmoother);
+    }
+    lSmoother.update(new double[]
+    { pElapsedTimeInNanos * 1e-6 });
+    // instantaneous tasks have no cost in the priorities:
+    if (!pTask.isInstantaneous())
+      mCriticalPathPriorities = null;
+  }
+
+  /**
+   * Returns the cost of a task in milliseconds. The cost is measured during
+   * execution and smoothed over time, tasks that have never been executed are
+   * assigned the average cost of all measured tasks.
+   *
+   * @param pTask
+   *          task
+   * @return cost in milliseconds
+   */
+  public double getTaskCost(TaskInterface pTask)
+  {
+    if (pTask.isInstantaneous())
+      return 0;
+
+    SimpleExponentialSmoothing lSmoother = mTaskCostsMap.get(pTask);
+    if (lSmoother != null)
+      return lSmoother.getCurrent()[0];
+
+    if (mTaskCostsMap.isEmpty())
+      return 1;
+
+    double lSumOfCosts = 0;
+    for (SimpleExponentialSmoothing lMeasuredCost : mTaskCostsMap.values())
+      lSumOfCosts += lMeasuredCost.getCurrent()[0];
+    return lSumOfCosts / mTaskCostsMap.size();
+  }
+
+  /**
+   * Enables or disables critical path scheduling. When disabled, the first
+   * ready task in the list is executed.
+   *
+   * @param pCriticalPathScheduling
+   *          true -> critical path scheduling
+   */
+  public void setCriticalPathScheduling(boolean pCriticalPathScheduling)
+  {
+    mCriticalPathScheduling = pCriticalPathScheduling;
+  }
+
+  /**
+   * Returns true if critical path scheduling is enabled
+   *
+   * @return true if critical path scheduling is enabled
+   */
+  public boolean isCriticalPathScheduling()
+  {
+    return mCriticalPathScheduling;
+  }
+
+  /**
+   * Enables or disables in-place execution (disabled by default). When enabled,
+   * tasks that support it write their output into their input image when that
+   * input is not needed anymore. In-place kernels bind the image as read_write,
+   * so this has no effect on devices that do not support OpenCL 2.0.
+   *
+   * @param pInPlaceExecution
+   *          true -> in-place execution
+   */
+  public void setInPlaceExecution(boolean pInPlaceExecution)
+  {
+    mInPlaceExecution = pInPlaceExecution;
+  }
+
+  /**
+   * Returns true if in-place execution is enabled
+   *
+   * @return true if in-place execution is enabled
+   */
+  public boolean isInPlaceExecution()
+  {
+    return mInPlaceExecution;
+  }
+
+  /**
+   * Starts tracing the allocation and release of images. The pipeline should
+   * then be executed once (passing the input images, executing all tasks and
+   * resetting the engine) before calling {@link #applyMemoryPlan()}.
+   */
+  public void startMemoryTrace()
+  {
+    clearMemoryPlan();
+    mMemoryTrace = new ArrayList<>();
+    mTracedImages.clear();
+    mTracedTaskOrder.clear();
+    mMemoryTraceEvent = 0;
+  }
+
+  /**
+   * Stops tracing, and computes and applies a memory plan for the traced
+   * execution: all images are preallocated, and slots are assigned to them
+   * instead of requesting and releasing images from the memory pool. The
+   * traced task order is replayed in subsequent executions. Images that are
+   * still referenced by a slot when they are needed again (e.g. because the
+   * inputs are passed in a different order) are requested from the memory pool
+   * instead.
+   *
+   * @return memory plan
+   */
+  public MemoryPlan applyMemoryPlan()
+  {
+    if (mMemoryTrace == null)
+      throw new FastFusionException("startMemoryTrace() must be called before applyMemoryPlan()");
+
+    MemoryPlan lMemoryPlan = MemoryPlan.compute(mMemoryTrace);
+    mPlannedTaskOrder.clear();
+    mPlannedTaskOrder.addAll(mTracedTaskOrder);
+    mMemoryTrace = null;
+    mTracedImages.clear();
+    mTracedTaskOrder.clear();
+
+    FastFusionMemoryPool lMemoryPool = FastFusionMemoryPool.get();
+    mPlannedImages =
+                   new ClearCLImage[lMemoryPlan.getNumberOfPhysicalImages()];
+    for (int i = 0; i < mPlannedImages.length; i++)
+      mPlannedImages[i] =
+                        lMemoryPool.requestImage("planned" + i,
+                                                 lMemoryPlan.getDataType(i),
+                                                 lMemoryPlan.getDimensions(i));
+    mMemoryPlan = lMemoryPlan;
+    return lMemoryPlan;
+  }
+
+  /**
+   * Clears the current memory plan, preallocated images are returned to the
+   * memory pool once they are not used by any slot.
+   */
+  public void clearMemoryPlan()
+  {
+    mPlannedTaskOrder.clear();
+    if (mMemoryPlan == null)
+      return;
+
+    ClearCLImage[] lPlannedImages = mPlannedImages;
+    mMemoryPlan = null;
+    mPlannedImages = null;
+    for (ClearCLImage lImage : lPlannedImages)
+      if (!isReferencedBySlot(lImage))
+        FastFusionMemoryPool.get().releaseImage(lImage);
+  }
+
+  /**
+   * Returns the memory plan currently applied
+   *
+   * @return memory plan or null if none
+   */
+  public MemoryPlan getMemoryPlan()
+  {
+    return mMemoryPlan;
+  }
+
+  private ClearCLImage getPlannedImage(String pSlotKey,
+                                       ImageChannelDataType pImageChannelDataType,
+                                       long... pDimensions)
+  {
+    if (mMemoryPlan == null)
+      return null;
+
+    int lIndex = mMemoryPlan.getPhysicalImageIndex(pSlotKey);
+    if (lIndex < 0)
+      return null;
+
+    ClearCLImage lImage = mPlannedImages[lIndex];
+    if (lImage.getChannelDataType() != pImageChannelDataType
+        || !Arrays.equals(lImage.getDimensions(), pDimensions)
+        || isReferencedBySlot(lImage))
+      return null;
+
+    return lImage;
+  }
+
+  private boolean isPlannedImage(ClearCLImage pImage)
+  {
+    if (mPlannedImages == null)
+      return false;
+    for (ClearCLImage lPlannedImage : mPlannedImages)
+      if (lPlannedImage == pImage)
+        return true;
+    return false;
   }
 
   /**
@@ -5,6 +5,8 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
 
+import javax.vecmath.Matrix4f;
+
 import clearcl.ClearCLImage;
 import clearcl.enums.ImageChannelDataType;
 import coremem.ContiguousMemoryInterface;
@@ -58,6 +60,79 @@ public interface FastFusionEngineInterface
    */
   ClearCLImage getImage(String pSlotKey);
 
+  /**
+   * Attaches an affine transform to the image of a given slot: the slot then
+   * represents the stored image resampled with this transform, which maps voxel
+   * coordinates of the represented image to voxel coordinates of the stored
+   * image. The stored image is only resampled when a task that does not accept
+   * image transforms requires it, or when the image is materialized.
+   * 
+   * @param pSlotKey
+   *          slot key
+   * @param pTransform
+   *          transform, or null to remove the transform
+   */
+  void setImageTransform(String pSlotKey, Matrix4f pTransform);
+
+  /**
+   * Returns the affine transform attached to the image of a given slot
+   * 
+   * @param pSlotKey
+   *          slot key
+   * @return transform, or null if the stored image is not transformed
+   */
+  Matrix4f getImageTransform(String pSlotKey);
+
+  /**
+   * Attaches an affine transform to the image of a given slot, for transforms
+   * that change the dimensions of the represented image, e.g. axis
+   * permutations.
+   * 
+   * @param pSlotKey
+   *          slot key
+   * @param pTransform
+   *          transform, or null to remove the transform
+   * @param pDimensions
+   *          dimensions of the represented image, or null for the dimensions
+   *          of the stored image
+   */
+  void setImageTransform(String pSlotKey,
+                         Matrix4f pTransform,
+                         long[] pDimensions);
+
+  /**
+   * Returns the dimensions of the image represented by a given slot, which
+   * differ from the dimensions of the stored image if its transform permutes
+   * axes.
+   * 
+   * @param pSlotKey
+   *          slot key
+   * @return dimensions, or null if the slot has no image
+   */
+  long[] getImageDimensions(String pSlotKey);
+
+  /**
+   * Resamples the image of a given slot with its attached transform, if any,
+   * such that getImage returns the transformed image.
+   * 
+   * @param pSlotKey
+   *          slot key
+   */
+  void materializeImage(String pSlotKey);
+
+  /**
+   * Returns the z coordinate, in the whole stack, of the first plane of the
+   * image of a given slot. It is nonzero when the stack is processed slab by
+   * slab (see ZSlabExecutor), in which case transforms given in voxel
+   * coordinates of the whole stack must be converted to voxel coordinates of
+   * the slab.
+   * 
+   * @param pSlotKey
+   *          slot key
+   * @return z offset of the current slab, 0 if the stack is not split
+   */
+  long getSlabOffset(String pSlotKey);
+
   void removeImage(String pSlotKey);
 
   /**
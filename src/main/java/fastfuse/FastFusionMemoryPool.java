@@ -5,6 +5,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -27,6 +28,12 @@ public class FastFusionMemoryPool implements AutoCloseable
 {
   private final static PrintStream cDebugOut = System.err;
 
+  /**
+   * Maximal number of scratch images kept, the least recently requested one is
+   * freed beyond that
+   */
+  private final static int cMaxScratchImages = 2;
+
   private static FastFusionMemoryPool mInstance = null;
 
   private final boolean mDebug;
@@ -36,6 +43,10 @@ public class FastFusionMemoryPool implements AutoCloseable
   private final Map<Pair<ImageChannelDataType, List<Long>>, Stack<ClearCLImage>> mImagesAvailable =
                                                                                                   new HashMap<>();
   private final Set<ClearCLImage> mImagesInUse = new HashSet<>();
+  private final LinkedHashMap<Pair<ImageChannelDataType, List<Long>>, ClearCLImage> mScratchImages =
+                                                                                                  new LinkedHashMap<>(16,
+                                                                                                                      0.75f,
+                                                                                                                      true);
   private final LinkedHashSet<Pair<ImageChannelDataType, List<Long>>> mImageAccess =
                                                                                    new LinkedHashSet<>();
 
@@ -190,6 +201,65 @@ public class FastFusionMemoryPool implements AutoCloseable
     return lImage;
   }
 
+  /**
+   * Returns a scratch image for the given data type and dimensions. There is
+   * only one scratch image per data type and dimensions, it is kept across
+   * requests, and thus can only be used for temporary results within the
+   * enqueueing of a single task (kernels being executed in order). At most
+   * cMaxScratchImages scratch images are kept: when the dimensions change, e.g.
+   * with varying crops, the least recently requested ones are freed.
+   * 
+   * @param pDataType
+   *          data type
+   * @param pDimensions
+   *          dimensions
+   * @return scratch image
+   */
+  public ClearCLImage requestScratchImage(final ImageChannelDataType pDataType,
+                                          final long... pDimensions)
+  {
+    Pair<ImageChannelDataType, List<Long>> lKey = getKey(pDataType,
+                                                         pDimensions);
+    ClearCLImage lImage = mScratchImages.get(lKey);
+    if (lImage == null)
+    {
+      freeLeastRecentlyRequestedScratchImages(cMaxScratchImages - 1);
+      freeMemIfNecessaryAndPossible(getSizeInBytes(pDataType,
+                                                   pDimensions));
+      lImage = allocateImage(pDataType, pDimensions);
+      mScratchImages.put(lKey, lImage);
+      debug("%15s - allocate:  %32s = %3.0f MB  ->  %s\n",
+            "<scratch>",
+            lKey.toString(),
+            getSizeInBytes(pDataType, pDimensions) / (1024d * 1024d),
+            toString());
+    }
+    return lImage;
+  }
+
+  private void freeLeastRecentlyRequestedScratchImages(int pMaxRemaining)
+  {
+    // iteration order of the access ordered map is least recent first:
+    Iterator<ClearCLImage> it = mScratchImages.values().iterator();
+    while (mScratchImages.size() > pMaxRemaining && it.hasNext())
+    {
+      freeImage(it.next());
+      it.remove();
+    }
+  }
+
+  /**
+   * Frees all scratch images, this must only be called when no task is being
+   * enqueued.
+   */
+  public void freeScratchImages()
+  {
+    debug("Freeing all scratch images\n");
+    for (ClearCLImage lImage : mScratchImages.values())
+      freeImage(lImage);
+    mScratchImages.clear();
+  }
+
   public void releaseImage(ClearCLImage pImage)
   {
     releaseImage(null, pImage);
@@ -281,8 +351,9 @@ public class FastFusionMemoryPool implements AutoCloseable
   }
 
   @Override
-  public void close() throws Exception
+  public void close()
   {
+    freeScratchImages();
     free(true);
   }
 
@@ -309,7 +380,7 @@ public class FastFusionMemoryPool implements AutoCloseable
         it.remove();
         freeImage(lImage);
       }
-      assert mCurrentSize == 0;
+      assert mCurrentSize == getScratchImagesSizeInBytes();
     }
   }
 
@@ -371,6 +442,14 @@ public class FastFusionMemoryPool implements AutoCloseable
     return pName.substring(0, pLength - 3) + "...";
   }
 
+  private long getScratchImagesSizeInBytes()
+  {
+    long lSize = 0;
+    for (ClearCLImage lImage : mScratchImages.values())
+      lSize += lImage.getSizeInBytes();
+    return lSize;
+  }
+
   private int getAvailableImagesCount()
   {
     int lNumAvailable = 0;
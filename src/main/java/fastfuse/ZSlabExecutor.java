@@ -0,0 +1,541 @@
+package fastfuse;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import clearcl.ClearCLImage;
+import clearcl.enums.ImageChannelDataType;
+import coremem.ContiguousMemoryInterface;
+import fastfuse.graph.TaskGraph;
+import fastfuse.tasks.TaskInterface;
+
+import org.apache.commons.lang3.tuple.MutablePair;
+
+/**
+ * Executes the tasks of a fast fusion engine slab by slab along z, for stacks
+ * that do not fit in device memory, or to start processing stacks while their
+ * planes are still being acquired. The input stacks, located in host or device
+ * memory, are split in slabs of planes extended by a halo on each side, and
+ * each slab is passed through the task graph of the engine in turn. The planes
+ * of the output images that are not in the halo are then copied back into
+ * output stacks in host or device memory. The halo is the largest sum of the
+ * halo depths of the tasks (see TaskInterface.getHaloDepth) along a path of
+ * the task graph, such that the copied planes are identical to those computed
+ * on the whole stack, up to the truncation of the response of tasks whose
+ * response is infinite (e.g. recursive Gaussian blur, whose halo leaves out
+ * less than 1e-4 of the response). Stacks that are not deeper than one slab
+ * and its halos are processed in a single pass. Tasks that reduce the depth
+ * (e.g. splitting interleaved stacks) are supported by aligning the slabs to
+ * their depth reduction. All slabs have the same depth, such that the images
+ * of the memory pool and of a memory plan are reused from slab to slab. The
+ * tasks of the engine are not modified.
+ *
+ * @author royer
+ */
+public class ZSlabExecutor
+{
+  private final FastFusionEngine mFastFusionEngine;
+  private final int mSlabDepth;
+
+  private final LinkedHashMap<String, ContiguousMemoryInterface> mHostInputsMap =
+                                                                                new LinkedHashMap<>();
+  private final LinkedHashMap<String, MutablePair<ImageChannelDataType, long[]>> mHostInputFormatsMap =
+                                                                                                     new LinkedHashMap<>();
+  private final LinkedHashMap<String, Long> mAvailablePlanesMap =
+                                                                new LinkedHashMap<>();
+  private final LinkedHashMap<String, ClearCLImage> mDeviceInputsMap =
+                                                                     new LinkedHashMap<>();
+  private final LinkedHashMap<String, ContiguousMemoryInterface> mHostOutputsMap =
+                                                                                 new LinkedHashMap<>();
+  private final LinkedHashMap<String, ClearCLImage> mDeviceOutputsMap =
+                                                                      new LinkedHashMap<>();
+
+  // slab geometry, computed before the first slab of the stacks:
+  private long[] mStackDimensions;
+  private int mHaloDepth, mAlignment;
+  private Map<String, Integer> mDepthReductionsMap;
+  private long mNextSlabCoreBegin;
+
+  /**
+   * Instantiates a slab executor for the tasks of a given engine
+   *
+   * @param pFastFusionEngine
+   *          engine, with all tasks added
+   * @param pSlabDepth
+   *          number of planes of the input stacks whose results are computed
+   *          per slab (excluding the halo), rounded up to a multiple of the
+   *          depth reductions of the tasks
+   */
+  public ZSlabExecutor(FastFusionEngine pFastFusionEngine,
+                       int pSlabDepth)
+  {
+    if (pSlabDepth < 1)
+      throw new FastFusionException("Slab depth must be at least one plane, got: %d",
+                                    pSlabDepth);
+    mFastFusionEngine = pFastFusionEngine;
+    mSlabDepth = pSlabDepth;
+  }
+
+  /**
+   * Passes a whole input stack located in host memory
+   *
+   * @param pSlotKey
+   *          slot key
+   * @param pImageData
+   *          image data, planes being contiguous
+   * @param pImageChannelDataType
+   *          image channel data type
+   * @param pDimensions
+   *          dimensions of the whole stack
+   */
+  public synchronized void passImage(String pSlotKey,
+                                     ContiguousMemoryInterface pImageData,
+                                     ImageChannelDataType pImageChannelDataType,
+                                     long... pDimensions)
+  {
+    mHostInputsMap.put(pSlotKey, pImageData);
+    mHostInputFormatsMap.put(pSlotKey,
+                             MutablePair.of(pImageChannelDataType,
+                                            pDimensions.clone()));
+    mAvailablePlanesMap.put(pSlotKey, pDimensions[2]);
+  }
+
+  /**
+   * Starts streaming an input stack located in host memory: its planes are
+   * written into the given memory while they are acquired, and announced with
+   * appendPlanes(...). Slabs are executed as soon as all their planes are
+   * available.
+   *
+   * @param pSlotKey
+   *          slot key
+   * @param pImageData
+   *          memory of the whole stack, planes being contiguous
+   * @param pImageChannelDataType
+   *          image channel data type
+   * @param pDimensions
+   *          dimensions of the whole stack
+   */
+  public synchronized void startImageStream(String pSlotKey,
+                                            ContiguousMemoryInterface pImageData,
+                                            ImageChannelDataType pImageChannelDataType,
+                                            long... pDimensions)
+  {
+    passImage(pSlotKey, pImageData, pImageChannelDataType, pDimensions);
+    mAvailablePlanesMap.put(pSlotKey, 0L);
+  }
+
+  /**
+   * Announces that planes of a streamed input stack have been written, after
+   * the planes already announced, and executes the slabs that are complete.
+   * This call thus blocks while these slabs are executed, it should be made
+   * from a thread other than the acquisition thread.
+   *
+   * @param pSlotKey
+   *          slot key of a streamed input stack
+   * @param pNumberOfPlanes
+   *          number of new planes
+   * @return number of slabs executed
+   */
+  public synchronized int appendPlanes(String pSlotKey,
+                                       long pNumberOfPlanes)
+  {
+    Long lAvailablePlanes = mAvailablePlanesMap.get(pSlotKey);
+    if (lAvailablePlanes == null)
+      throw new FastFusionException("No stream started for slot %s",
+                                    pSlotKey);
+    long lDepth = mHostInputFormatsMap.get(pSlotKey).getRight()[2];
+    if (lAvailablePlanes + pNumberOfPlanes > lDepth)
+      throw new FastFusionException("Stream of slot %s exceeds the %d planes of the stack",
+                                    pSlotKey,
+                                    lDepth);
+    mAvailablePlanesMap.put(pSlotKey, lAvailablePlanes + pNumberOfPlanes);
+    return executeCompleteSlabs();
+  }
+
+  /**
+   * Passes a whole input stack located in device memory, only one slab of it
+   * is copied at a time into the images of the engine
+   *
+   * @param pSlotKey
+   *          slot key
+   * @param pImage
+   *          image
+   */
+  public synchronized void passImage(String pSlotKey, ClearCLImage pImage)
+  {
+    mDeviceInputsMap.put(pSlotKey, pImage);
+  }
+
+  /**
+   * Sets the host memory into which the output stack of a given slot is
+   * stitched
+   *
+   * @param pSlotKey
+   *          slot key of an output image of the engine
+   * @param pOutputData
+   *          host memory large enough for the whole output stack
+   */
+  public synchronized void setOutput(String pSlotKey,
+                                     ContiguousMemoryInterface pOutputData)
+  {
+    mHostOutputsMap.put(pSlotKey, pOutputData);
+  }
+
+  /**
+   * Sets the device image into which the output stack of a given slot is
+   * stitched
+   *
+   * @param pSlotKey
+   *          slot key of an output image of the engine
+   * @param pOutputImage
+   *          image with the dimensions of the whole output stack
+   */
+  public synchronized void setOutput(String pSlotKey,
+                                     ClearCLImage pOutputImage)
+  {
+    mDeviceOutputsMap.put(pSlotKey, pOutputImage);
+  }
+
+  /**
+   * Returns the number of planes of the input stacks that each slab includes
+   * on each side of the planes whose results are copied into the output stacks
+   *
+   * @param pStackDimensions
+   *          dimensions of the whole input stacks
+   * @return halo depth
+   */
+  public synchronized int getHaloDepth(long[] pStackDimensions)
+  {
+    // the geometry of the stacks being processed, if any, is left unchanged:
+    return computeSlabGeometry(pStackDimensions).mHaloDepth;
+  }
+
+  /**
+   * Executes all remaining slabs and stitches the output stacks. All input
+   * stacks must be complete. The engine is reset before each slab, and after
+   * the last one.
+   */
+  public synchronized void execute()
+  {
+    long[] lStackDimensions = getStackDimensions();
+    for (Entry<String, Long> lEntry : mAvailablePlanesMap.entrySet())
+      if (lEntry.getValue() < lStackDimensions[2])
+        throw new FastFusionException("Stream of slot %s is not complete",
+                                      lEntry.getKey());
+    executeCompleteSlabs();
+  }
+
+  private int executeCompleteSlabs()
+  {
+    if (mStackDimensions == null)
+    {
+      SlabGeometry lGeometry = computeSlabGeometry(getStackDimensions());
+      mStackDimensions = lGeometry.mStackDimensions;
+      mAlignment = lGeometry.mAlignment;
+      mHaloDepth = lGeometry.mHaloDepth;
+      mDepthReductionsMap = lGeometry.mDepthReductionsMap;
+    }
+    long lDepth = mStackDimensions[2];
+
+    long lAvailablePlanes = lDepth;
+    for (long lPlanes : mAvailablePlanesMap.values())
+      lAvailablePlanes = Math.min(lAvailablePlanes, lPlanes);
+
+    // all slabs have the same depth, the first and last slabs are shifted
+    // inside the stack (there is no halo beyond the stack)
+    long lSlabDepth = roundUp(mSlabDepth, mAlignment);
+    // slabs spanning the whole stack would compute it once per slab:
+    if (lSlabDepth + 2L * mHaloDepth >= lDepth)
+      lSlabDepth = lDepth;
+    long lExtendedDepth = Math.min(lDepth, lSlabDepth + 2L * mHaloDepth);
+
+    int lNumberOfExecutedSlabs = 0;
+    try
+    {
+      while (mNextSlabCoreBegin < lDepth)
+      {
+        long lCoreBegin = mNextSlabCoreBegin;
+        long lCoreEnd = Math.min(lCoreBegin + lSlabDepth, lDepth);
+        long lSlabBegin = Math.min(Math.max(0, lCoreBegin - mHaloDepth),
+                                   lDepth - lExtendedDepth);
+        if (lSlabBegin + lExtendedDepth > lAvailablePlanes)
+          break;
+
+        mFastFusionEngine.reset(false);
+        mFastFusionEngine.setSlabOffset(lSlabBegin, mDepthReductionsMap);
+        passSlab(lSlabBegin, lExtendedDepth);
+        mFastFusionEngine.executeAllTasks();
+        mFastFusionEngine.waitFusionTasksToComplete();
+        stitchSlab(lSlabBegin, lExtendedDepth, lCoreBegin, lCoreEnd);
+        mNextSlabCoreBegin = lCoreEnd;
+        lNumberOfExecutedSlabs++;
+      }
+    }
+    catch (RuntimeException e)
+    {
+      finish();
+      throw e;
+    }
+    if (mNextSlabCoreBegin >= lDepth)
+      finish();
+    return lNumberOfExecutedSlabs;
+  }
+
+  private void finish()
+  {
+    mFastFusionEngine.reset(false);
+    mFastFusionEngine.setSlabOffset(0, Collections.emptyMap());
+    mStackDimensions = null;
+    mDepthReductionsMap = null;
+    mNextSlabCoreBegin = 0;
+  }
+
+  /**
+   * Depth reduction of each slot, alignment of the slabs and halo for given
+   * stack dimensions
+   */
+  private static class SlabGeometry
+  {
+    private long[] mStackDimensions;
+    private int mAlignment, mHaloDepth;
+    private Map<String, Integer> mDepthReductionsMap;
+  }
+
+  /**
+   * Computes the depth reduction of each slot, the alignment of the slabs and
+   * the halo, which are multiples of all depth reductions
+   */
+  private SlabGeometry computeSlabGeometry(long[] pStackDimensions)
+  {
+    TaskGraph lTaskGraph = new TaskGraph(mFastFusionEngine.getTasks());
+    HashMap<String, Integer> lDepthReductionsMap = new HashMap<>();
+    HashMap<TaskInterface, Integer> lInputDepthReductionsMap =
+                                                             new HashMap<>();
+    int lAlignment = 1;
+    for (TaskInterface lTask : lTaskGraph.getTopologicalOrder())
+    {
+      int lInputDepthReduction = 0;
+      for (String lSlotKey : lTask.getRequiredImagesSlotKeys())
+      {
+        int lDepthReduction = lDepthReductionsMap.getOrDefault(lSlotKey,
+                                                               1);
+        if (lInputDepthReduction > 0
+            && lDepthReduction != lInputDepthReduction
+            && !lTask.isInstantaneous())
+          throw new FastFusionException("Task %s requires images of different depths",
+                                        lTask);
+        lInputDepthReduction = Math.max(lInputDepthReduction,
+                                        lDepthReduction);
+      }
+      lInputDepthReduction = Math.max(1, lInputDepthReduction);
+      lInputDepthReductionsMap.put(lTask, lInputDepthReduction);
+
+      if (lTask.getHaloDepth(getInputDimensions(pStackDimensions,
+                                                lInputDepthReduction)) < 0)
+        throw new FastFusionException("Task %s cannot be executed slab by slab",
+                                      lTask);
+
+      for (String lSlotKey : lTask.getProducedImagesSlotKeys())
+      {
+        int lDepthReduction = lInputDepthReduction
+                              * lTask.getDepthReduction(lSlotKey);
+        lDepthReductionsMap.put(lSlotKey, lDepthReduction);
+        lAlignment = leastCommonMultiple(lAlignment, lDepthReduction);
+      }
+    }
+    if (pStackDimensions[2] % lAlignment != 0)
+      throw new FastFusionException("Stack depth %d is not a multiple of the depth reductions of the tasks (%d)",
+                                    pStackDimensions[2],
+                                    lAlignment);
+
+    // halos of the tasks are counted in planes of the input stacks:
+    Map<TaskInterface, Double> lPathHalos =
+                                          lTaskGraph.computeCriticalPathPriorities(t -> t.getHaloDepth(getInputDimensions(pStackDimensions,
+                                                                                                                          lInputDepthReductionsMap.get(t)))
+                                                                                        * lInputDepthReductionsMap.get(t));
+    double lHaloDepth = 0;
+    for (double lPathHalo : lPathHalos.values())
+      lHaloDepth = Math.max(lHaloDepth, lPathHalo);
+
+    SlabGeometry lGeometry = new SlabGeometry();
+    lGeometry.mStackDimensions = pStackDimensions.clone();
+    lGeometry.mAlignment = lAlignment;
+    lGeometry.mHaloDepth = (int) roundUp((long) lHaloDepth, lAlignment);
+    lGeometry.mDepthReductionsMap = lDepthReductionsMap;
+    return lGeometry;
+  }
+
+  private static long[] getInputDimensions(long[] pStackDimensions,
+                                           int pDepthReduction)
+  {
+    return new long[]
+    { pStackDimensions[0],
+      pStackDimensions[1],
+      pStackDimensions[2] / pDepthReduction };
+  }
+
+  private static int leastCommonMultiple(int a, int b)
+  {
+    int lGreatestCommonDivisor = a, r = b;
+    while (r != 0)
+    {
+      int t = lGreatestCommonDivisor % r;
+      lGreatestCommonDivisor = r;
+      r = t;
+    }
+    return a / lGreatestCommonDivisor * b;
+  }
+
+  private static long roundUp(long pValue, int pMultiple)
+  {
+    return (pValue + pMultiple - 1) / pMultiple * pMultiple;
+  }
+
+  private long[] getStackDimensions()
+  {
+    long[] lStackDimensions = null;
+    for (MutablePair<ImageChannelDataType, long[]> lFormat : mHostInputFormatsMap.values())
+      lStackDimensions = checkDepth(lStackDimensions, lFormat.getRight());
+    for (ClearCLImage lImage : mDeviceInputsMap.values())
+      lStackDimensions = checkDepth(lStackDimensions,
+                                    lImage.getDimensions());
+    if (lStackDimensions == null)
+      throw new FastFusionException("No input stack passed to slab executor");
+    return lStackDimensions;
+  }
+
+  private long[] checkDepth(long[] pStackDimensions, long[] pDimensions)
+  {
+    if (pStackDimensions != null && pStackDimensions[2] != pDimensions[2])
+      throw new FastFusionException("Input stacks of a slab executor must have the same depth, got: %d and %d",
+                                    pStackDimensions[2],
+                                    pDimensions[2]);
+    return pStackDimensions == null ? pDimensions : pStackDimensions;
+  }
+
+  private void passSlab(long pSlabBegin, long pSlabDepth)
+  {
+    for (Entry<String, ContiguousMemoryInterface> lEntry : mHostInputsMap.entrySet())
+    {
+      MutablePair<ImageChannelDataType, long[]> lFormat =
+                                                        mHostInputFormatsMap.get(lEntry.getKey());
+      long[] lDimensions = lFormat.getRight();
+      long lPlaneSizeInBytes = lDimensions[0] * lDimensions[1]
+                               * lFormat.getLeft()
+                                        .getNativeType()
+                                        .getSizeInBytes();
+      ContiguousMemoryInterface lSlabData =
+                                          lEntry.getValue()
+                                                .subRegion(pSlabBegin
+                                                           * lPlaneSizeInBytes,
+                                                           pSlabDepth * lPlaneSizeInBytes);
+      mFastFusionEngine.passImage(lEntry.getKey(),
+                                  lSlabData,
+                                  lFormat.getLeft(),
+                                  lDimensions[0],
+                                  lDimensions[1],
+                                  pSlabDepth);
+    }
+
+    for (Entry<String, ClearCLImage> lEntry : mDeviceInputsMap.entrySet())
+    {
+      ClearCLImage lImage = lEntry.getValue();
+      MutablePair<Boolean, ClearCLImage> lFlagAndSlabImage =
+                                                           mFastFusionEngine.ensureImageAllocated(lEntry.getKey(),
+                                                                                                  lImage.getChannelDataType(),
+                                                                                                  lImage.getWidth(),
+                                                                                                  lImage.getHeight(),
+                                                                                                  pSlabDepth);
+      FastFusionMemoryPool.get()
+                          .freeMemoryIfNecessaryAndRun(() -> lImage.copyTo(lFlagAndSlabImage.getRight(),
+                                                                           new long[]
+                                                                           { 0,
+                                                                             0,
+                                                                             pSlabBegin },
+                                                                           new long[]
+                                                                           { 0,
+                                                                             0,
+                                                                             0 },
+                                                                           new long[]
+                                                                           { lImage.getWidth(),
+                                                                             lImage.getHeight(),
+                                                                             pSlabDepth },
+                                                                           true));
+      lFlagAndSlabImage.setLeft(true);
+    }
+  }
+
+  private void stitchSlab(long pSlabBegin,
+                          long pSlabDepth,
+                          long pCoreBegin,
+                          long pCoreEnd)
+  {
+    for (Entry<String, ContiguousMemoryInterface> lEntry : mHostOutputsMap.entrySet())
+    {
+      int lDepthReduction = getDepthReduction(lEntry.getKey());
+      ClearCLImage lSlabImage = getOutputSlabImage(lEntry.getKey(),
+                                                   pSlabDepth
+                                                                    / lDepthReduction);
+      long lPlaneSizeInBytes = lSlabImage.getSizeInBytes()
+                               / lSlabImage.getDepth();
+      long lCoreBegin = pCoreBegin / lDepthReduction;
+      long lCoreDepth = (pCoreEnd - pCoreBegin) / lDepthReduction;
+      ContiguousMemoryInterface lCoreData =
+                                          lEntry.getValue()
+                                                .subRegion(lCoreBegin
+                                                           * lPlaneSizeInBytes,
+                                                           lCoreDepth * lPlaneSizeInBytes);
+      lSlabImage.writeTo(lCoreData,
+                         new long[]
+                         { 0, 0, (pCoreBegin - pSlabBegin) / lDepthReduction },
+                         new long[]
+                         { lSlabImage.getWidth(),
+                           lSlabImage.getHeight(),
+                           lCoreDepth },
+                         true);
+    }
+
+    for (Entry<String, ClearCLImage> lEntry : mDeviceOutputsMap.entrySet())
+    {
+      int lDepthReduction = getDepthReduction(lEntry.getKey());
+      ClearCLImage lSlabImage = getOutputSlabImage(lEntry.getKey(),
+                                                   pSlabDepth
+                                                                    / lDepthReduction);
+      lSlabImage.copyTo(lEntry.getValue(),
+                        new long[]
+                        { 0, 0, (pCoreBegin - pSlabBegin) / lDepthReduction },
+                        new long[]
+                        { 0, 0, pCoreBegin / lDepthReduction },
+                        new long[]
+                        { lSlabImage.getWidth(),
+                          lSlabImage.getHeight(),
+                          (pCoreEnd - pCoreBegin) / lDepthReduction },
+                        true);
+    }
+  }
+
+  private int getDepthReduction(String pSlotKey)
+  {
+    return mDepthReductionsMap.getOrDefault(pSlotKey, 1);
+  }
+
+  private ClearCLImage getOutputSlabImage(String pSlotKey, long pSlabDepth)
+  {
+    if (!mFastFusionEngine.isImageAvailable(pSlotKey))
+      throw new FastFusionException("Output image %s not available after executing a slab",
+                                    pSlotKey);
+    // outputs carrying a transform are resampled into their own coordinates:
+    mFastFusionEngine.materializeImage(pSlotKey);
+    ClearCLImage lSlabImage = mFastFusionEngine.getImage(pSlotKey);
+    if (lSlabImage.getDepth() != pSlabDepth)
+      throw new FastFusionException("Output image %s has %d planes instead of %d",
+                                    pSlotKey,
+                                    lSlabImage.getDepth(),
+                                    pSlabDepth);
+    return lSlabImage;
+  }
+
+}
@@ -0,0 +1,265 @@
+package fastfuse.graph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import clearcl.enums.ImageChannelDataType;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.math3.util.Pair;
+
+/**
+ * Static memory plan for a fixed pipeline. Given the live interval of each
+ * image allocated during one execution of the pipeline, slots are assigned to
+ * physical images such that images whose lifetimes do not overlap share the
+ * same physical image. Since images can only be shared if they have the same
+ * data type and dimensions, slots are partitioned in classes, and within each
+ * class intervals are assigned greedily by start time, which uses the minimal
+ * number of physical images for the given execution order. A slot allocated
+ * several times during one execution is assigned a single physical image
+ * covering all its lifetimes.
+ *
+ * @author royer
+ */
+public class MemoryPlan
+{
+  /**
+   * Live interval of an image, between the event at which it is allocated and
+   * the event at which it is released.
+   */
+  public static class Lifetime
+  {
+    private final String mSlotKey;
+    private final ImageChannelDataType mDataType;
+    private final long[] mDimensions;
+    private final int mStart;
+    private int mEnd = Integer.MAX_VALUE;
+
+    /**
+     * Instantiates a lifetime for an image allocated for a given slot at a
+     * given event. The lifetime is open until it is ended.
+     *
+     * @param pSlotKey
+     *          slot key for which the image was allocated
+     * @param pDataType
+     *          image data type
+     * @param pDimensions
+     *          image dimensions
+     * @param pStart
+     *          allocation event
+     */
+    public Lifetime(String pSlotKey,
+                    ImageChannelDataType pDataType,
+                    long[] pDimensions,
+                    int pStart)
+    {
+      mSlotKey = pSlotKey;
+      mDataType = pDataType;
+      mDimensions = pDimensions.clone();
+      mStart = pStart;
+    }
+
+    /**
+     * Ends this lifetime at a given event
+     *
+     * @param pEnd
+     *          release event
+     */
+    public void end(int pEnd)
+    {
+      mEnd = pEnd;
+    }
+
+    public String getSlotKey()
+    {
+      return mSlotKey;
+    }
+
+    public int getStart()
+    {
+      return mStart;
+    }
+
+    public int getEnd()
+    {
+      return mEnd;
+    }
+
+    private Pair<ImageChannelDataType, List<Long>> getClassKey()
+    {
+      return Pair.create(mDataType,
+                         Arrays.asList(ArrayUtils.toObject(mDimensions)));
+    }
+  }
+
+  private final Map<String, Integer> mSlotAssignments =
+                                                      new LinkedHashMap<>();
+  private final ArrayList<ImageChannelDataType> mDataTypes =
+                                                           new ArrayList<>();
+  private final ArrayList<long[]> mDimensions = new ArrayList<>();
+
+  private MemoryPlan()
+  {
+  }
+
+  /**
+   * Computes a memory plan from the lifetimes of the images of one execution
+   *
+   * @param pLifetimes
+   *          lifetimes
+   * @return memory plan
+   */
+  public static MemoryPlan compute(List<Lifetime> pLifetimes)
+  {
+    MemoryPlan lMemoryPlan = new MemoryPlan();
+
+    ArrayList<Lifetime> lLifetimes = mergeLifetimesOfSameSlot(pLifetimes);
+    Collections.sort(lLifetimes,
+                     Comparator.comparingInt(Lifetime::getStart));
+
+    // for each class, the physical images and the event at which they are
+    // free again:
+    Map<Pair<ImageChannelDataType, List<Long>>, List<int[]>> lPhysicalImagesPerClass =
+                                                                                      new HashMap<>();
+
+    for (Lifetime lLifetime : lLifetimes)
+    {
+      List<int[]> lPhysicalImages =
+                                  lPhysicalImagesPerClass.computeIfAbsent(lLifetime.getClassKey(),
+                                                                          k -> new ArrayList<>());
+
+      // index and end of the physical images of this class:
+      int[] lAssigned = null;
+      for (int[] lPhysicalImage : lPhysicalImages)
+        if (lPhysicalImage[1] <= lLifetime.getStart())
+        {
+          lAssigned = lPhysicalImage;
+          break;
+        }
+
+      if (lAssigned == null)
+      {
+        lAssigned = new int[]
+        { lMemoryPlan.mDataTypes.size(), 0 };
+        lPhysicalImages.add(lAssigned);
+        lMemoryPlan.mDataTypes.add(lLifetime.mDataType);
+        lMemoryPlan.mDimensions.add(lLifetime.mDimensions);
+      }
+      lAssigned[1] = lLifetime.getEnd();
+      lMemoryPlan.mSlotAssignments.put(lLifetime.getSlotKey(),
+                                       lAssigned[0]);
+    }
+
+    return lMemoryPlan;
+  }
+
+  /**
+   * Merges the lifetimes of each slot into one lifetime from the first
+   * allocation to the last release. Lifetimes of a slot with another data type
+   * or other dimensions than its first lifetime are not planned, such images
+   * are requested from the memory pool.
+   */
+  private static ArrayList<Lifetime> mergeLifetimesOfSameSlot(List<Lifetime> pLifetimes)
+  {
+    Map<String, Lifetime> lMergedLifetimes = new LinkedHashMap<>();
+    for (Lifetime lLifetime : pLifetimes)
+    {
+      Lifetime lMerged = lMergedLifetimes.get(lLifetime.getSlotKey());
+      if (lMerged == null)
+        lMergedLifetimes.put(lLifetime.getSlotKey(), lLifetime);
+      else if (lMerged.getClassKey().equals(lLifetime.getClassKey()))
+      {
+        Lifetime lUnion = new Lifetime(lLifetime.getSlotKey(),
+                                       lLifetime.mDataType,
+                                       lLifetime.mDimensions,
+                                       Math.min(lMerged.getStart(),
+                                                lLifetime.getStart()));
+        lUnion.end(Math.max(lMerged.getEnd(), lLifetime.getEnd()));
+        lMergedLifetimes.put(lLifetime.getSlotKey(), lUnion);
+      }
+    }
+    return new ArrayList<>(lMergedLifetimes.values());
+  }
+
+  /**
+   * Returns the index of the physical image assigned to a given slot
+   *
+   * @param pSlotKey
+   *          slot key
+   * @return index of physical image or -1 if the slot is not planned
+   */
+  public int getPhysicalImageIndex(String pSlotKey)
+  {
+    Integer lIndex = mSlotAssignments.get(pSlotKey);
+    return lIndex == null ? -1 : lIndex;
+  }
+
+  /**
+   * Returns the number of physical images required by this plan
+   *
+   * @return number of physical images
+   */
+  public int getNumberOfPhysicalImages()
+  {
+    return mDataTypes.size();
+  }
+
+  /**
+   * Returns the data type of a given physical image
+   *
+   * @param pIndex
+   *          index of physical image
+   * @return data type
+   */
+  public ImageChannelDataType getDataType(int pIndex)
+  {
+    return mDataTypes.get(pIndex);
+  }
+
+  /**
+   * Returns the dimensions of a given physical image
+   *
+   * @param pIndex
+   *          index of physical image
+   * @return dimensions
+   */
+  public long[] getDimensions(int pIndex)
+  {
+    return mDimensions.get(pIndex).clone();
+  }
+
+  /**
+   * Returns the total size of all physical images required by this plan
+   *
+   * @return footprint in bytes
+   */
+  public long getFootprintInBytes()
+  {
+    long lFootprint = 0;
+    for (int i = 0; i < getNumberOfPhysicalImages(); i++)
+    {
+      long lVolume = 1;
+      for (long lDimension : mDimensions.get(i))
+        lVolume *= lDimension;
+      lFootprint += lVolume
+                    * mDataTypes.get(i).getNativeType().getSizeInBytes();
+    }
+    return lFootprint;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("MemoryPlan(slots = %d, images = %d, memory = %.0f MB)",
+                         mSlotAssignments.size(),
+                         getNumberOfPhysicalImages(),
+                         getFootprintInBytes() / (1024d * 1024d));
+  }
+
+}
@@ -0,0 +1,226 @@
+package fastfuse.graph;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToDoubleFunction;
+
+import fastfuse.tasks.TaskInterface;
+
+/**
+ * Dependency graph of a list of tasks. Two tasks are connected if one of them
+ * requires an image that the other one produces.
+ *
+ * @author royer
+ */
+public class TaskGraph
+{
+  private final List<TaskInterface> mTasks;
+  private final Map<String, List<TaskInterface>> mProducersMap =
+                                                               new HashMap<>();
+  private final Map<String, List<TaskInterface>> mConsumersMap =
+                                                               new HashMap<>();
+
+  /**
+   * Instantiates a task graph for the given list of tasks
+   *
+   * @param pTasks
+   *          list of tasks
+   */
+  public TaskGraph(List<TaskInterface> pTasks)
+  {
+    mTasks = new ArrayList<>(pTasks);
+    for (TaskInterface lTask : mTasks)
+    {
+      for (String lSlotKey : lTask.getProducedImagesSlotKeys())
+        mProducersMap.computeIfAbsent(lSlotKey, k -> new ArrayList<>())
+                     .add(lTask);
+      for (String lSlotKey : lTask.getRequiredImagesSlotKeys())
+        mConsumersMap.computeIfAbsent(lSlotKey, k -> new ArrayList<>())
+                     .add(lTask);
+    }
+  }
+
+  /**
+   * Returns the tasks of this graph in their original order
+   *
+   * @return list of tasks
+   */
+  public List<TaskInterface> getTasks()
+  {
+    return Collections.unmodifiableList(mTasks);
+  }
+
+  /**
+   * Returns the tasks that produce the image for a given slot key
+   *
+   * @param pSlotKey
+   *          slot key
+   * @return producing tasks (typically at most one)
+   */
+  public List<TaskInterface> getProducers(String pSlotKey)
+  {
+    List<TaskInterface> lProducers = mProducersMap.get(pSlotKey);
+    return lProducers == null ? Collections.emptyList() : lProducers;
+  }
+
+  /**
+   * Returns the tasks that require the image for a given slot key
+   *
+   * @param pSlotKey
+   *          slot key
+   * @return consuming tasks
+   */
+  public List<TaskInterface> getConsumers(String pSlotKey)
+  {
+    List<TaskInterface> lConsumers = mConsumersMap.get(pSlotKey);
+    return lConsumers == null ? Collections.emptyList() : lConsumers;
+  }
+
+  /**
+   * Returns the tasks that require at least one image produced by the given
+   * task
+   *
+   * @param pTask
+   *          task
+   * @return successor tasks
+   */
+  public Set<TaskInterface> getSuccessors(TaskInterface pTask)
+  {
+    LinkedHashSet<TaskInterface> lSuccessors = new LinkedHashSet<>();
+    for (String lSlotKey : pTask.getProducedImagesSlotKeys())
+      lSuccessors.addAll(getConsumers(lSlotKey));
+    lSuccessors.remove(pTask);
+    return lSuccessors;
+  }
+
+  /**
+   * Returns the tasks that produce at least one image required by the given
+   * task
+   *
+   * @param pTask
+   *          task
+   * @return predecessor tasks
+   */
+  public Set<TaskInterface> getPredecessors(TaskInterface pTask)
+  {
+    LinkedHashSet<TaskInterface> lPredecessors = new LinkedHashSet<>();
+    for (String lSlotKey : pTask.getRequiredImagesSlotKeys())
+      lPredecessors.addAll(getProducers(lSlotKey));
+    lPredecessors.remove(pTask);
+    return lPredecessors;
+  }
+
+  /**
+   * Returns true if the image for the given slot key is not produced by any
+   * task of this graph, and thus must be passed to the engine from outside.
+   *
+   * @param pSlotKey
+   *          slot key
+   * @return true if external input
+   */
+  public boolean isExternalInput(String pSlotKey)
+  {
+    return getProducers(pSlotKey).isEmpty();
+  }
+
+  /**
+   * Returns the tasks ordered such that each task comes after the tasks
+   * producing its required images. The original order is preserved as much as
+   * possible. Tasks that can never become ready (cyclic dependencies) are
+   * appended at the end.
+   *
+   * @return tasks in topological order
+   */
+  public List<TaskInterface> getTopologicalOrder()
+  {
+    ArrayList<TaskInterface> lOrderedTasks = new ArrayList<>();
+    LinkedHashSet<TaskInterface> lRemainingTasks =
+                                                 new LinkedHashSet<>(mTasks);
+    Set<String> lProducedKeys = new HashSet<>();
+
+    boolean lProgress = true;
+    while (lProgress && !lRemainingTasks.isEmpty())
+    {
+      lProgress = false;
+      for (TaskInterface lTask : new ArrayList<>(lRemainingTasks))
+      {
+        boolean lReady = true;
+        for (String lSlotKey : lTask.getRequiredImagesSlotKeys())
+          if (!isExternalInput(lSlotKey)
+              && !lProducedKeys.contains(lSlotKey))
+          {
+            lReady = false;
+            break;
+          }
+
+        if (lReady)
+        {
+          lOrderedTasks.add(lTask);
+          lRemainingTasks.remove(lTask);
+          lProducedKeys.addAll(lTask.getProducedImagesSlotKeys());
+          lProgress = true;
+        }
+      }
+    }
+    lOrderedTasks.addAll(lRemainingTasks);
+    return lOrderedTasks;
+  }
+
+  /**
+   * Computes for each task the cost of the longest path that starts with this
+   * task and goes down to the end of the graph (so called 'bottom level').
+   * Tasks with the highest value are on the critical path and should be
+   * executed first.
+   *
+   * @param pCostFunction
+   *          cost of each individual task
+   * @return map from task to critical path priority
+   */
+  public Map<TaskInterface, Double> computeCriticalPathPriorities(ToDoubleFunction<TaskInterface> pCostFunction)
+  {
+    Map<TaskInterface, Double> lPriorities = new HashMap<>();
+    Set<TaskInterface> lVisiting = new HashSet<>();
+    for (TaskInterface lTask : mTasks)
+      computeCriticalPathPriority(lTask,
+                                  pCostFunction,
+                                  lPriorities,
+                                  lVisiting);
+    return lPriorities;
+  }
+
+  private double computeCriticalPathPriority(TaskInterface pTask,
+                                             ToDoubleFunction<TaskInterface> pCostFunction,
+                                             Map<TaskInterface, Double> pPriorities,
+                                             Set<TaskInterface> pVisiting)
+  {
+    Double lPriority = pPriorities.get(pTask);
+    if (lPriority != null)
+      return lPriority;
+
+    // guard against cyclic dependencies, they would never execute anyway:
+    if (!pVisiting.add(pTask))
+      return 0;
+
+    double lMaxSuccessorPriority = 0;
+    for (TaskInterface lSuccessor : getSuccessors(pTask))
+      lMaxSuccessorPriority =
+                            Math.max(lMaxSuccessorPriority,
+                                     computeCriticalPathPriority(lSuccessor,
+                                                                 pCostFunction,
+                                                                 pPriorities,
+                                                                 pVisiting));
+    pVisiting.remove(pTask);
+
+    double lTaskPriority = pCostFunction.applyAsDouble(pTask)
+                           + lMaxSuccessorPriority;
+    pPriorities.put(pTask, lTaskPriority);
+    return lTaskPriority;
+  }
+
+}
@@ -0,0 +1,277 @@
+package fastfuse.graph;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import fastfuse.tasks.IdentityTask;
+import fastfuse.tasks.MemoryReleaseTask;
+import fastfuse.tasks.TaskInterface;
+
+/**
+ * Optimizer for task lists. Identical tasks applied to identical images are
+ * merged (common subexpression elimination), and tasks whose images are not
+ * needed to compute the requested outputs are dropped (dead task pruning).
+ *
+ * @author royer
+ */
+public class TaskListOptimizer
+{
+
+  /**
+   * Optimizes the given task list: first eliminates common subexpressions, and
+   * then prunes dead tasks.
+   *
+   * @param pTasks
+   *          list of tasks
+   * @param pOutputSlotKeys
+   *          slot keys of the images that are needed once all tasks are
+   *          executed
+   * @return optimized list of tasks
+   */
+  public static List<TaskInterface> optimize(List<TaskInterface> pTasks,
+                                             Set<String> pOutputSlotKeys)
+  {
+    return pruneDeadTasks(eliminateCommonSubexpressions(pTasks),
+                          pOutputSlotKeys);
+  }
+
+  /**
+   * Replaces tasks that repeat the computation of a previous task (same class,
+   * same signature, same input images) by identity tasks that simply pass the
+   * images already computed to the slots expected by the downstream tasks. The
+   * identity tasks read the images of the original task, memory release tasks
+   * releasing these images are therefore adjusted to also wait for the
+   * identity tasks.
+   *
+   * @param pTasks
+   *          list of tasks
+   * @return list of tasks with duplicated computations replaced
+   */
+  public static List<TaskInterface> eliminateCommonSubexpressions(List<TaskInterface> pTasks)
+  {
+    TaskGraph lTaskGraph = new TaskGraph(pTasks);
+
+    // slot key -> key of the slot holding the same image content
+    Map<String, String> lCanonicalKeys = new HashMap<>();
+    // computation -> task that first performed it
+    Map<List<String>, TaskInterface> lComputations = new HashMap<>();
+    // duplicated task -> replacement tasks
+    Map<TaskInterface, List<TaskInterface>> lReplacements =
+                                                          new HashMap<>();
+    // original slot key -> slot keys of the identity tasks reading it
+    Map<String, List<String>> lAliasKeys = new HashMap<>();
+
+    for (TaskInterface lTask : lTaskGraph.getTopologicalOrder())
+    {
+      if (lTask instanceof IdentityTask)
+      {
+        String lSrcKey = lTask.getRequiredImagesSlotKeys()
+                              .iterator()
+                              .next();
+        for (String lDstKey : lTask.getProducedImagesSlotKeys())
+          lCanonicalKeys.put(lDstKey,
+                             getCanonicalKey(lCanonicalKeys, lSrcKey));
+        continue;
+      }
+
+      String lSignature = lTask.getSignature();
+      if (lSignature == null || lTask.isInstantaneous())
+        continue;
+
+      ArrayList<String> lComputation = new ArrayList<>();
+      lComputation.add(lTask.getClass().getName());
+      lComputation.add(lSignature);
+      for (String lSlotKey : lTask.getRequiredImagesSlotKeys())
+        lComputation.add(getCanonicalKey(lCanonicalKeys, lSlotKey));
+
+      TaskInterface lOriginalTask = lComputations.get(lComputation);
+      if (lOriginalTask == null)
+      {
+        lComputations.put(lComputation, lTask);
+        continue;
+      }
+
+      List<String> lOriginalKeys =
+                                 lOriginalTask.getProducedImagesSlotKeys();
+      List<String> lDuplicateKeys = lTask.getProducedImagesSlotKeys();
+      if (lOriginalKeys.size() != lDuplicateKeys.size())
+        continue;
+
+      ArrayList<TaskInterface> lIdentityTasks = new ArrayList<>();
+      for (int i = 0; i < lDuplicateKeys.size(); i++)
+      {
+        lIdentityTasks.add(new IdentityTask(lOriginalKeys.get(i),
+                                            lDuplicateKeys.get(i)));
+        lAliasKeys.computeIfAbsent(lOriginalKeys.get(i),
+                                   k -> new ArrayList<>())
+                  .add(lDuplicateKeys.get(i));
+        lCanonicalKeys.put(lDuplicateKeys.get(i),
+                           getCanonicalKey(lCanonicalKeys,
+                                           lOriginalKeys.get(i)));
+      }
+      lReplacements.put(lTask, lIdentityTasks);
+    }
+
+    ArrayList<TaskInterface> lOptimizedTasks = new ArrayList<>();
+    for (TaskInterface lTask : pTasks)
+    {
+      List<TaskInterface> lReplacement = lReplacements.get(lTask);
+      if (lTask instanceof MemoryReleaseTask)
+        lOptimizedTasks.add(extendMemoryReleaseTask((MemoryReleaseTask) lTask,
+                                                    lAliasKeys));
+      else if (lReplacement == null)
+        lOptimizedTasks.add(lTask);
+      else
+        lOptimizedTasks.addAll(lReplacement);
+    }
+    return lOptimizedTasks;
+  }
+
+  /**
+   * Removes the tasks that do not contribute to the given output images.
+   * Tasks that produce no image but do compute something (e.g. tasks notifying
+   * listeners) are always kept. Memory release tasks are kept as long as they
+   * release an image that is still computed, their conditions are adjusted if
+   * they depend on images that are not computed anymore.
+   *
+   * @param pTasks
+   *          list of tasks
+   * @param pOutputSlotKeys
+   *          slot keys of the images that are needed once all tasks are
+   *          executed
+   * @return list of tasks without dead tasks
+   */
+  public static List<TaskInterface> pruneDeadTasks(List<TaskInterface> pTasks,
+                                                   Set<String> pOutputSlotKeys)
+  {
+    TaskGraph lTaskGraph = new TaskGraph(pTasks);
+
+    // propagate liveness backwards, starting from the outputs and the tasks
+    // that have side effects:
+    Set<TaskInterface> lLiveTasks = new HashSet<>();
+    Set<String> lLiveKeys = new HashSet<>(pOutputSlotKeys);
+    ArrayList<TaskInterface> lWorkList = new ArrayList<>();
+    for (TaskInterface lTask : pTasks)
+      if (!lTask.isInstantaneous()
+          && lTask.getProducedImagesSlotKeys().isEmpty())
+        lWorkList.add(lTask);
+    for (String lSlotKey : pOutputSlotKeys)
+      lWorkList.addAll(lTaskGraph.getProducers(lSlotKey));
+
+    while (!lWorkList.isEmpty())
+    {
+      TaskInterface lTask = lWorkList.remove(lWorkList.size() - 1);
+      if (!lLiveTasks.add(lTask))
+        continue;
+      for (String lSlotKey : lTask.getRequiredImagesSlotKeys())
+        if (lLiveKeys.add(lSlotKey))
+          lWorkList.addAll(lTaskGraph.getProducers(lSlotKey));
+    }
+
+    ArrayList<TaskInterface> lOptimizedTasks = new ArrayList<>();
+    for (TaskInterface lTask : pTasks)
+    {
+      if (lTask instanceof MemoryReleaseTask)
+      {
+        MemoryReleaseTask lReleaseTask =
+                                       adjustMemoryReleaseTask((MemoryReleaseTask) lTask,
+                                                               lTaskGraph,
+                                                               lLiveTasks);
+        if (lReleaseTask != null)
+          lOptimizedTasks.add(lReleaseTask);
+      }
+      else if (lLiveTasks.contains(lTask))
+        lOptimizedTasks.add(lTask);
+    }
+    return lOptimizedTasks;
+  }
+
+  /**
+   * Returns a memory release task that also waits for the identity tasks that
+   * read the released images, or the given task if none does
+   */
+  private static MemoryReleaseTask extendMemoryReleaseTask(MemoryReleaseTask pReleaseTask,
+                                                           Map<String, List<String>> pAliasKeys)
+  {
+    LinkedHashSet<String> lRequiredKeys =
+                                        new LinkedHashSet<>(pReleaseTask.getRequiredImagesSlotKeys());
+    boolean lExtended = false;
+    for (String lSlotKey : pReleaseTask.getReleasedImagesSlotKeys())
+      for (String lAliasKey : pAliasKeys.getOrDefault(lSlotKey,
+                                                      new ArrayList<>()))
+        lExtended |= lRequiredKeys.add(lAliasKey);
+    if (!lExtended)
+      return pReleaseTask;
+
+    List<String> lReleasedKeys = pReleaseTask.getReleasedImagesSlotKeys();
+    return new MemoryReleaseTask(new ArrayList<>(lRequiredKeys),
+                                 lReleasedKeys.toArray(new String[lReleasedKeys.size()]));
+  }
+
+  private static MemoryReleaseTask adjustMemoryReleaseTask(MemoryReleaseTask pReleaseTask,
+                                                           TaskGraph pTaskGraph,
+                                                           Set<TaskInterface> pLiveTasks)
+  {
+    // only release images that are still computed or passed from outside:
+    ArrayList<String> lKeysToRelease = new ArrayList<>();
+    for (String lSlotKey : pReleaseTask.getReleasedImagesSlotKeys())
+      if (pTaskGraph.isExternalInput(lSlotKey)
+          || isComputed(lSlotKey, pTaskGraph, pLiveTasks))
+        lKeysToRelease.add(lSlotKey);
+    if (lKeysToRelease.isEmpty())
+      return null;
+
+    Set<String> lRequiredKeys = pReleaseTask.getRequiredImagesSlotKeys();
+    boolean lAllRequiredKeysComputed = true;
+    for (String lSlotKey : lRequiredKeys)
+      if (!pTaskGraph.isExternalInput(lSlotKey)
+          && !isComputed(lSlotKey, pTaskGraph, pLiveTasks))
+        lAllRequiredKeysComputed = false;
+
+    if (lAllRequiredKeysComputed
+        && lKeysToRelease.size() == pReleaseTask.getReleasedImagesSlotKeys()
+                                                .size())
+      return pReleaseTask;
+
+    // the release must now wait for the images that are still computed, and for
+    // the remaining consumers of the released images:
+    LinkedHashSet<String> lNewRequiredKeys = new LinkedHashSet<>();
+    for (String lSlotKey : lRequiredKeys)
+      if (pTaskGraph.isExternalInput(lSlotKey)
+          || isComputed(lSlotKey, pTaskGraph, pLiveTasks))
+        lNewRequiredKeys.add(lSlotKey);
+    if (!lAllRequiredKeysComputed)
+      for (String lSlotKey : lKeysToRelease)
+        for (TaskInterface lConsumer : pTaskGraph.getConsumers(lSlotKey))
+          if (pLiveTasks.contains(lConsumer))
+            lNewRequiredKeys.addAll(lConsumer.getProducedImagesSlotKeys());
+    if (lNewRequiredKeys.isEmpty())
+      lNewRequiredKeys.addAll(lKeysToRelease);
+
+    return new MemoryReleaseTask(new ArrayList<>(lNewRequiredKeys),
+                                 lKeysToRelease.toArray(new String[lKeysToRelease.size()]));
+  }
+
+  private static boolean isComputed(String pSlotKey,
+                                    TaskGraph pTaskGraph,
+                                    Set<TaskInterface> pLiveTasks)
+  {
+    for (TaskInterface lProducer : pTaskGraph.getProducers(pSlotKey))
+      if (pLiveTasks.contains(lProducer))
+        return true;
+    return false;
+  }
+
+  private static String getCanonicalKey(Map<String, String> pCanonicalKeys,
+                                        String pSlotKey)
+  {
+    String lCanonicalKey = pCanonicalKeys.get(pSlotKey);
+    return lCanonicalKey == null ? pSlotKey : lCanonicalKey;
+  }
+
+}
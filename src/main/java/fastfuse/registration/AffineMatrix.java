@@ -75,6 +75,76 @@ public class AffineMatrix
     return multiply(Rz, Ry, Rx);
   }
 
+  /**
+   * Returns the derivative of the rotation matrix (see
+   * {@link #rotation(float...)}) with respect to the angle around one axis, per
+   * degree
+   * 
+   * @param pAxis
+   *          axis: 0, 1 or 2 for X, Y or Z
+   * @param pXYZRotationAnglesInDegrees
+   *          rotation angles in degrees along the X, Y and Z axis.
+   * @return derivative of the rotation matrix
+   */
+  public static Matrix4f rotationDerivative(int pAxis,
+                                            float... pXYZRotationAnglesInDegrees)
+  {
+    Matrix4f[] lRotations = new Matrix4f[3];
+    for (int d = 0; d < 3; d++)
+    {
+      // the derivative of a rotation by a is the rotation by a + 90 degrees
+      // without its constant part (axis and homogeneous coordinate)
+      double lAngle = Math.toRadians(pXYZRotationAnglesInDegrees[d]
+                                     + (d == pAxis ? 90 : 0));
+      lRotations[d] = new Matrix4f();
+      if (d == 0)
+        lRotations[d].rotX((float) lAngle);
+      else if (d == 1)
+        lRotations[d].rotY((float) lAngle);
+      else
+        lRotations[d].rotZ((float) lAngle);
+      if (d == pAxis)
+      {
+        lRotations[d].setElement(d, d, 0);
+        lRotations[d].setElement(3, 3, 0);
+        lRotations[d].mul((float) Math.toRadians(1));
+      }
+    }
+    return multiply(lRotations[2], lRotations[1], lRotations[0]);
+  }
+
+  /**
+   * Returns the matrix mapping voxel coordinates of an oriented image to voxel
+   * coordinates of the source image, given a permutation and flips of the axes.
+   * Axis d of the oriented image is axis pAxisPermutation[d] of the source
+   * image, mirrored if pFlips[d] is true.
+   * 
+   * @param pAxisPermutation
+   *          source axis of each axis of the oriented image
+   * @param pFlips
+   *          flips of the axes of the oriented image
+   * @param pSrcDimensions
+   *          dimensions of the source image
+   * @return orientation matrix
+   */
+  public static Matrix4f orientation(int[] pAxisPermutation,
+                                     boolean[] pFlips,
+                                     long[] pSrcDimensions)
+  {
+    assert pAxisPermutation.length == 3 && pFlips.length == 3;
+    Matrix4f lMatrix = new Matrix4f();
+    for (int d = 0; d < 3; d++)
+    {
+      int lSrcAxis = pAxisPermutation[d];
+      lMatrix.setElement(lSrcAxis, d, pFlips[d] ? -1 : 1);
+      lMatrix.setElement(lSrcAxis,
+                         3,
+                         pFlips[d] ? pSrcDimensions[lSrcAxis] - 1 : 0);
+    }
+    lMatrix.setElement(3, 3, 1);
+    return lMatrix;
+  }
+
   /**
    * Multiples the given matrices
    * 
@@ -0,0 +1,263 @@
+package fastfuse.registration;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * Minimizer of smooth functions with box constraints: limited-memory BFGS
+ * (L-BFGS) directions restricted to the variables not held at a bound,
+ * followed by a backtracking line search along the projection of the
+ * direction onto the box.
+ *
+ * @author uschmidt, royer
+ */
+public class BoundedLBFGSOptimizer
+{
+  /**
+   * Function to minimize, with its gradient
+   */
+  public interface Objective
+  {
+    /**
+     * Returns the value of the function at x and sets its gradient
+     *
+     * @param x
+     *          point
+     * @param pGradient
+     *          gradient at x, set by the function
+     * @return value at x
+     */
+    double value(double[] x, double[] pGradient);
+  }
+
+  // sufficient decrease constant of the line search
+  private static final double cArmijo = 1e-4;
+  // smallest step of the line search relative to the full step
+  private static final double cMinStep = 1e-6;
+
+  private final int mMemory;
+  private final double mInitialStep;
+  private final double mTolerance;
+
+  private int mEvaluations;
+
+  /**
+   * Instantiates an optimizer
+   *
+   * @param pMemory
+   *          number of past steps kept to approximate the inverse Hessian
+   * @param pInitialStep
+   *          length (max norm) of the first step, along the negative gradient
+   * @param pTolerance
+   *          the optimization stops when the max norm of the projected
+   *          gradient or the relative decrease of the function are below this
+   *          tolerance
+   */
+  public BoundedLBFGSOptimizer(int pMemory,
+                               double pInitialStep,
+                               double pTolerance)
+  {
+    assert pMemory > 0 && pInitialStep > 0 && pTolerance >= 0;
+    mMemory = pMemory;
+    mInitialStep = pInitialStep;
+    mTolerance = pTolerance;
+  }
+
+  /**
+   * Returns the number of evaluations of the last optimization
+   *
+   * @return number of evaluations
+   */
+  public int getEvaluations()
+  {
+    return mEvaluations;
+  }
+
+  /**
+   * Minimizes a function within bounds
+   *
+   * @param pObjective
+   *          function to minimize
+   * @param pInitialGuess
+   *          starting point, projected onto the bounds
+   * @param pLowerBounds
+   *          lower bounds
+   * @param pUpperBounds
+   *          upper bounds
+   * @param pMaxEvaluations
+   *          maximal number of evaluations
+   * @return best point found
+   */
+  public double[] minimize(Objective pObjective,
+                           double[] pInitialGuess,
+                           double[] pLowerBounds,
+                           double[] pUpperBounds,
+                           int pMaxEvaluations)
+  {
+    int n = pInitialGuess.length;
+    Deque<double[][]> lHistory = new ArrayDeque<>();
+
+    double[] x = project(pInitialGuess, pLowerBounds, pUpperBounds);
+    double[] g = new double[n];
+    double f = pObjective.value(x, g);
+    mEvaluations = 1;
+
+    while (mEvaluations < pMaxEvaluations)
+    {
+      // variables held at a bound by the gradient are fixed
+      boolean[] lFree = new boolean[n];
+      double lProjectedGradientNorm = 0;
+      for (int i = 0; i < n; i++)
+      {
+        lFree[i] = !(x[i] <= pLowerBounds[i] && g[i] > 0)
+                   && !(x[i] >= pUpperBounds[i] && g[i] < 0);
+        if (lFree[i])
+          lProjectedGradientNorm = Math.max(lProjectedGradientNorm,
+                                            Math.abs(g[i]));
+      }
+      if (lProjectedGradientNorm <= mTolerance)
+        break;
+
+      double[] d = getDirection(g, lFree, lHistory);
+      double lSlope = dot(d, g);
+      double lStep = 1;
+      if (lHistory.isEmpty() || lSlope >= 0)
+      {
+        // steepest descent, scaled to the initial step
+        for (int i = 0; i < n; i++)
+          d[i] = lFree[i] ? -g[i] : 0;
+        lStep = mInitialStep / lProjectedGradientNorm;
+      }
+
+      // backtracking along the projected path
+      double[] xn = null, gn = new double[n];
+      double fn = Double.POSITIVE_INFINITY;
+      boolean lDecrease = false;
+      double lMinStep = lStep * cMinStep;
+      while (lStep >= lMinStep && mEvaluations < pMaxEvaluations)
+      {
+        xn = new double[n];
+        for (int i = 0; i < n; i++)
+          xn[i] = x[i] + lStep * d[i];
+        xn = project(xn, pLowerBounds, pUpperBounds);
+        fn = pObjective.value(xn, gn);
+        mEvaluations++;
+        double lExpectedDecrease = 0;
+        for (int i = 0; i < n; i++)
+          lExpectedDecrease += g[i] * (xn[i] - x[i]);
+        if (fn <= f + cArmijo * lExpectedDecrease)
+        {
+          lDecrease = true;
+          break;
+        }
+        lStep *= 0.5;
+      }
+      if (!lDecrease)
+        break;
+
+      double[] s = new double[n], y = new double[n];
+      for (int i = 0; i < n; i++)
+      {
+        s[i] = xn[i] - x[i];
+        y[i] = gn[i] - g[i];
+      }
+      // curvature condition, otherwise the approximation would not be
+      // positive definite:
+      if (dot(s, y) > 1e-12 * dot(y, y))
+      {
+        lHistory.addFirst(new double[][]
+        { s, y });
+        if (lHistory.size() > mMemory)
+          lHistory.removeLast();
+      }
+
+      boolean lConverged = f - fn <= mTolerance * Math.max(1,
+                                                           Math.abs(f));
+      x = xn;
+      f = fn;
+      g = gn.clone();
+      if (lConverged)
+        break;
+    }
+    return x;
+  }
+
+  private static double[] getDirection(double[] g,
+                                       boolean[] pFree,
+                                       Deque<double[][]> pHistory)
+  {
+    // two-loop recursion on the free variables
+    int n = g.length;
+    double[] q = new double[n];
+    for (int i = 0; i < n; i++)
+      q[i] = pFree[i] ? g[i] : 0;
+
+    double[] lAlphas = new double[pHistory.size()];
+    int k = 0;
+    for (double[][] lSY : pHistory)
+    {
+      double[] s = restrict(lSY[0], pFree), y = restrict(lSY[1], pFree);
+      double sy = dot(s, y);
+      lAlphas[k] = sy > 0 ? dot(s, q) / sy : 0;
+      for (int i = 0; i < n; i++)
+        q[i] -= lAlphas[k] * y[i];
+      k++;
+    }
+
+    if (!pHistory.isEmpty())
+    {
+      double[] s = restrict(pHistory.peekFirst()[0], pFree),
+          y = restrict(pHistory.peekFirst()[1], pFree);
+      double yy = dot(y, y);
+      double lScale = yy > 0 ? dot(s, y) / yy : 1;
+      for (int i = 0; i < n; i++)
+        q[i] *= lScale;
+    }
+
+    Iterator<double[][]> lIterator = pHistory.descendingIterator();
+    k = pHistory.size() - 1;
+    while (lIterator.hasNext())
+    {
+      double[][] lSY = lIterator.next();
+      double[] s = restrict(lSY[0], pFree), y = restrict(lSY[1], pFree);
+      double sy = dot(s, y);
+      double lBeta = sy > 0 ? dot(y, q) / sy : 0;
+      for (int i = 0; i < n; i++)
+        q[i] += (lAlphas[k] - lBeta) * s[i];
+      k--;
+    }
+
+    for (int i = 0; i < n; i++)
+      q[i] = -q[i];
+    return q;
+  }
+
+  private static double[] restrict(double[] v, boolean[] pFree)
+  {
+    double[] r = new double[v.length];
+    for (int i = 0; i < v.length; i++)
+      r[i] = pFree[i] ? v[i] : 0;
+    return r;
+  }
+
+  private static double[] project(double[] x,
+                                  double[] pLowerBounds,
+                                  double[] pUpperBounds)
+  {
+    double[] p = Arrays.copyOf(x, x.length);
+    for (int i = 0; i < p.length; i++)
+      p[i] = Math.min(Math.max(p[i], pLowerBounds[i]), pUpperBounds[i]);
+    return p;
+  }
+
+  private static double dot(double[] a, double[] b)
+  {
+    double lSum = 0;
+    for (int i = 0; i < a.length; i++)
+      lSum += a[i] * b[i];
+    return lSum;
+  }
+
+}
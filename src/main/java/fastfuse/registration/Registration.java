@@ -2,12 +2,14 @@ package fastfuse.registration;
 
 import java.io.IOException;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
+import java.util.function.Function;
 import java.util.stream.LongStream;
 
 import javax.vecmath.Matrix4f;
@@ -51,7 +53,42 @@ public class Registration
                                                                "reduce_mean_2imagef",
                                                                "reduce_var_1imagef",
                                                                "affine_transform",
-                                                               "reduce_ncc_affine");
+                                                               "reduce_ncc_affine",
+                                                               "reduce_ncc_affine_batch",
+                                                               "reduce_ncc_affine_gradient",
+                                                               "reduce_ncc_affine_samples",
+                                                               "reduce_gradient_1imagef",
+                                                               "select_samples",
+                                                               "downsample_mean");
+
+  // largest number of transforms scored by one launch of the batched kernel,
+  // which bounds the size of its reduction buffers
+  private static final int cMaxBatchSize = 16;
+
+  // number of partial sums of the gradient kernel: 3 for the NCC and 3 for
+  // each of the 6 transform parameters, which fit in the batch buffers
+  private static final int cNumGradientSums = 21;
+
+  // largest number of voxels summed by each work item of the batched and
+  // gradient kernels (MAX_VOXELS_PER_ITEM of registration.cl): the batch
+  // buffers hold 3 * cMaxBatchSize partial sums per work group, about a fifth
+  // of the image pair for work groups of 128 voxels with one voxel per work
+  // item
+  private static final int cMaxBatchVoxelsPerItem = 4;
+
+  // voxel sampling: smallest number of samples worth sampling, and room for
+  // the random excess of selected voxels over the expected number
+  private static final long cMinNumberOfSamples = 4096;
+  private static final double cSampleCapacityFactor = 1.25;
+
+  // trust region radii of BOBYQA in units of the transform parameters (voxels
+  // and degrees), defaults of BOBYQAOptimizer
+  private static final double cInitialTrustRegionRadius = 10;
+  private static final double cStoppingTrustRegionRadius = 1e-8;
+
+  // L-BFGS: number of past steps kept and stopping tolerance
+  private static final int cLBFGSMemory = 5;
+  private static final double cLBFGSTolerance = 1e-6;
 
   private final RandomDataGenerator mRNG = new RandomDataGenerator();
 
@@ -59,16 +96,66 @@ public class Registration
   private final Map<String, ClearCLKernel> mKernels;
   private final RegistrationParameters mParameters;
 
+  // sizes, buffers and images of the current pyramid level:
   private long[] mGlobalSize, mLocalSize;
   private final int mGroupSize;
-  private final Stack<Long> mBufferSizes = new Stack<>();
+  private Stack<Long> mBufferSizes;
 
   private ClearCLImage mImageA, mImageB;
   private ClearCLBuffer[][] mBuffers;
+  private Level mLevel;
   private Map<Integer, FloatBuffer> mHostBuffers = new HashMap<>();
+  private Matrix4f mLevelMatrix, mLevelMatrixInverse;
+  private int mLevelFactor;
+
+  private ClearCLImage mFullImageA, mFullImageB;
+  private long[] mFullSize;
+  private final Map<Integer, Level> mLevels = new HashMap<>();
 
   private Matrix4f mMatCenterAndScale, mMatCenterAndScaleInverse;
   private ClearCLBuffer mTransformMatrixBuffer;
+  private ClearCLBuffer mBatchMatricesBuffer;
+  private ClearCLBuffer mSampleCountBuffer;
+  private final FloatBuffer mBatchMatrices =
+                                           FloatBuffer.allocate(16 * cMaxBatchSize);
+
+  /**
+   * Level of the registration pyramid: images downsampled by a factor in all
+   * dimensions (factor 1: the given images), with their sizes and reduction
+   * buffers
+   */
+  private static class Level
+  {
+    private final int mFactor;
+    private long[] mGlobalSize, mLocalSize;
+    private final Stack<Long> mBufferSizes = new Stack<>();
+    private ClearCLBuffer[][] mBuffers;
+    // reduction buffers of the batched and gradient kernels, allocated when
+    // first used, with their global size and buffer sizes: each work item
+    // sums several voxels along z
+    private ClearCLBuffer[] mBatchBuffers;
+    private int mBatchVoxelsPerItem;
+    private long[] mBatchGlobalSize;
+    private final Stack<Long> mBatchBufferSizes = new Stack<>();
+    // voxel samples (linear indices) and their reduction buffers, allocated
+    // when first used
+    private ClearCLBuffer mSamples;
+    private final Stack<Long> mSampleBufferSizes = new Stack<>();
+    private ClearCLBuffer[] mSampleBuffers;
+    private int mNumberOfSamples;
+    private boolean mSamplesUpToDate;
+    private ClearCLImage mImageA, mImageB;
+    // maps voxel coordinates of the level to voxel coordinates of the given
+    // images, null for factor 1
+    private Matrix4f mLevelMatrix, mLevelMatrixInverse;
+    private long[] mOffset;
+    private boolean mUpToDate;
+
+    private Level(int pFactor)
+    {
+      mFactor = pFactor;
+    }
+  }
 
   /**
    * Instantiates a stack registration class given two images
@@ -88,7 +175,6 @@ public class Registration
     mContext = pImageA.getContext();
     mGroupSize = mParameters.getOpenCLGroupSize();
     mKernels = getKernels(mGroupSize);
-    setSizeAndPrepare(pImageA.getDimensions());
     setImages(pImageA, pImageB);
   }
 
@@ -112,55 +198,60 @@ public class Registration
    */
   public void setImages(ClearCLImage pImageA, ClearCLImage pImageB)
   {
-    assert pImageA.getChannelDataType() == ImageChannelDataType.Float;
-    assert pImageB.getChannelDataType() == ImageChannelDataType.Float;
+    // (blurred) images to register can be stored as half float:
+    assert pImageA.getChannelDataType() == ImageChannelDataType.Float
+           || pImageA.getChannelDataType() == ImageChannelDataType.HalfFloat;
+    assert pImageB.getChannelDataType() == ImageChannelDataType.Float
+           || pImageB.getChannelDataType() == ImageChannelDataType.HalfFloat;
     assert Arrays.equals(pImageA.getDimensions(),
                          pImageB.getDimensions());
-    mImageA = pImageA;
-    mImageB = pImageB;
-    if (!hasDimensions(mImageA.getDimensions()))
-      setSizeAndPrepare(mImageA.getDimensions());
+    mFullImageA = pImageA;
+    mFullImageB = pImageB;
+    if (!hasDimensions(pImageA.getDimensions()))
+      setSizeAndPrepare(pImageA.getDimensions());
+    // downsampled images must be recomputed:
+    for (Level lLevel : mLevels.values())
+    {
+      lLevel.mUpToDate = false;
+      lLevel.mSamplesUpToDate = false;
+    }
+    useLevel(1);
   }
 
-  private void setSizeAndPrepare(final long... pGlobalSize)
+  private void setSizeAndPrepare(final long... pFullSize)
   {
-    // set opencl size parameters
-    assert 3 == pGlobalSize.length;
-    mGlobalSize = pGlobalSize;
-    mLocalSize = computeLocalSize(mGroupSize, mGlobalSize);
+    assert 3 == pFullSize.length;
+    mFullSize = pFullSize;
 
-    // determine buffer sizes
-    mBufferSizes.clear();
-    mBufferSizes.push(mGlobalSize[0] * mGlobalSize[1]
-                      * mGlobalSize[2]);
-    mBufferSizes.push(mBufferSizes.peek() / mGroupSize);
-    while (mBufferSizes.peek() % mGroupSize == 0
-           && mBufferSizes.peek() > mParameters.getOpenCLReductionThreshold())
-      mBufferSizes.push(mBufferSizes.peek() / mGroupSize);
-
-    // close existing buffers if necessary
-    if (mBuffers != null)
+    // close buffers and images of all levels
+    for (Level lLevel : mLevels.values())
     {
-      for (int i = 0; i < mBuffers.length; i++)
-        for (int j = 0; j < mBuffers[i].length; j++)
-          mBuffers[i][j].close();
+      for (int i = 0; i < lLevel.mBuffers.length; i++)
+        for (int j = 0; j < lLevel.mBuffers[i].length; j++)
+          lLevel.mBuffers[i][j].close();
+      if (lLevel.mBatchBuffers != null)
+        for (ClearCLBuffer lBuffer : lLevel.mBatchBuffers)
+          lBuffer.close();
+      if (lLevel.mSamples != null)
+      {
+        lLevel.mSamples.close();
+        for (ClearCLBuffer lBuffer : lLevel.mSampleBuffers)
+          lBuffer.close();
+      }
+      if (lLevel.mFactor > 1)
+      {
+        lLevel.mImageA.close();
+        lLevel.mImageB.close();
+      }
     }
-
-    // create new buffers
-    int lNumReductions = mBufferSizes.size() - 1;
-    mBuffers = new ClearCLBuffer[lNumReductions][3];
-    for (int i = 0; i < lNumReductions; i++)
-      for (int j = 0; j < mBuffers[i].length; j++)
-        mBuffers[i][j] =
-                       mContext.createBuffer(NativeTypeEnum.Float,
-                                             mBufferSizes.get(1 + i));
+    mLevels.clear();
 
     // forget host buffers
     mHostBuffers.clear();
 
     // create fixed matrices for transformations
-    long cx = mGlobalSize[0] / 2, cy = mGlobalSize[1] / 2,
-        cz = mGlobalSize[2] / 2;
+    long cx = mFullSize[0] / 2, cy = mFullSize[1] / 2,
+        cz = mFullSize[2] / 2;
     float sz = mParameters.getScaleZ();
     mMatCenterAndScale =
                        AffineMatrix.multiply(AffineMatrix.scaling(1,
@@ -173,6 +264,147 @@ public class Registration
     mMatCenterAndScaleInverse.invert(mMatCenterAndScale);
   }
 
+  /**
+   * Makes the given pyramid level current, creating it and downsampling the
+   * images if necessary
+   * 
+   * @param pFactor
+   *          downsampling factor of the level
+   * @return false if the images are too small for this factor
+   */
+  private boolean useLevel(int pFactor)
+  {
+    Level lLevel = mLevels.get(pFactor);
+    if (lLevel == null)
+    {
+      lLevel = createLevel(pFactor);
+      if (lLevel == null)
+        return false;
+      mLevels.put(pFactor, lLevel);
+    }
+
+    if (pFactor == 1)
+    {
+      lLevel.mImageA = mFullImageA;
+      lLevel.mImageB = mFullImageB;
+    }
+    else if (!lLevel.mUpToDate)
+    {
+      downsample(lLevel, lLevel.mImageA, mFullImageA);
+      downsample(lLevel, lLevel.mImageB, mFullImageB);
+      lLevel.mUpToDate = true;
+    }
+
+    mGlobalSize = lLevel.mGlobalSize;
+    mLocalSize = lLevel.mLocalSize;
+    mBufferSizes = lLevel.mBufferSizes;
+    mBuffers = lLevel.mBuffers;
+    mImageA = lLevel.mImageA;
+    mImageB = lLevel.mImageB;
+    mLevelMatrix = lLevel.mLevelMatrix;
+    mLevelMatrixInverse = lLevel.mLevelMatrixInverse;
+    mLevelFactor = pFactor;
+    mLevel = lLevel;
+    return true;
+  }
+
+  private Level createLevel(int pFactor)
+  {
+    Level lLevel = new Level(pFactor);
+    long[] lOffset = new long[3];
+    if (pFactor == 1)
+      lLevel.mGlobalSize = mFullSize;
+    else
+    {
+      // downsampled sizes are rounded down to multiples of the ideal local
+      // sizes, such that the number of voxels is divisible by the group size;
+      // the remaining voxels are cropped evenly on both sides
+      long[] lLocalSize = computeLocalSize(mGroupSize, new long[]
+      { mGroupSize, mGroupSize, mGroupSize });
+      lLevel.mGlobalSize = new long[3];
+      for (int d = 0; d < 3; d++)
+      {
+        long lSize = mFullSize[d] / pFactor / lLocalSize[d]
+                     * lLocalSize[d];
+        if (lSize == 0)
+          return null;
+        lLevel.mGlobalSize[d] = lSize;
+        lOffset[d] = (mFullSize[d] - lSize * pFactor) / 2;
+      }
+    }
+
+    // set opencl size parameters
+    lLevel.mLocalSize = computeLocalSize(mGroupSize, lLevel.mGlobalSize);
+
+    // determine buffer sizes
+    Stack<Long> lBufferSizes = lLevel.mBufferSizes;
+    pushBufferSizes(lBufferSizes,
+                    lLevel.mGlobalSize[0] * lLevel.mGlobalSize[1]
+                                  * lLevel.mGlobalSize[2]);
+
+    // create buffers
+    int lNumReductions = lBufferSizes.size() - 1;
+    lLevel.mBuffers = new ClearCLBuffer[lNumReductions][3];
+    for (int i = 0; i < lNumReductions; i++)
+      for (int j = 0; j < lLevel.mBuffers[i].length; j++)
+        lLevel.mBuffers[i][j] =
+                              mContext.createBuffer(NativeTypeEnum.Float,
+                                                    lBufferSizes.get(1 + i));
+
+    if (pFactor > 1)
+    {
+      lLevel.mImageA =
+                     mContext.createSingleChannelImage(ImageChannelDataType.Float,
+                                                       lLevel.mGlobalSize);
+      lLevel.mImageB =
+                     mContext.createSingleChannelImage(ImageChannelDataType.Float,
+                                                       lLevel.mGlobalSize);
+      // the center of voxel i of the level is at f*i + (f-1)/2 + offset in the
+      // given images:
+      float lShift = (pFactor - 1) / 2f;
+      lLevel.mLevelMatrix =
+                          AffineMatrix.multiply(AffineMatrix.translation(lOffset[0] + lShift,
+                                                                         lOffset[1] + lShift,
+                                                                         lOffset[2] + lShift),
+                                                AffineMatrix.scaling(pFactor,
+                                                                     pFactor,
+                                                                     pFactor));
+      lLevel.mLevelMatrixInverse = new Matrix4f();
+      lLevel.mLevelMatrixInverse.invert(lLevel.mLevelMatrix);
+      lLevel.mOffset = lOffset;
+    }
+    return lLevel;
+  }
+
+  /**
+   * Pushes the sizes of the reduction buffers of a given number of values:
+   * the number of values, followed by the number of partial sums after each
+   * reduction by the group size
+   */
+  private void pushBufferSizes(Stack<Long> pBufferSizes, long pSize)
+  {
+    pBufferSizes.push(pSize);
+    pBufferSizes.push(pBufferSizes.peek() / mGroupSize);
+    while (pBufferSizes.peek() % mGroupSize == 0
+           && pBufferSizes.peek() > mParameters.getOpenCLReductionThreshold())
+      pBufferSizes.push(pBufferSizes.peek() / mGroupSize);
+  }
+
+  private void downsample(Level pLevel,
+                          ClearCLImage pImageTarget,
+                          ClearCLImage pImageSource)
+  {
+    ClearCLKernel lKernel = mKernels.get("downsample_mean");
+    lKernel.setArguments(pImageTarget,
+                         pImageSource,
+                         pLevel.mFactor,
+                         (int) pLevel.mOffset[0],
+                         (int) pLevel.mOffset[1],
+                         (int) pLevel.mOffset[2]);
+    lKernel.setGlobalSizes(pLevel.mGlobalSize);
+    runKernel(lKernel, mParameters.getWaitToFinish());
+  }
+
   private static long[] computeLocalSize(final int pGroupSize,
                                          final long... pGlobalSize)
   {
@@ -238,24 +470,94 @@ public class Registration
     return localSize;
   }
 
+  /**
+   * Finds the transform registering image B to image A, successively on each
+   * level of the registration pyramid (see
+   * {@link RegistrationParameters#setPyramidFactors(int...)}): with random
+   * restarts on the coarsest level, and refining the best transform of the
+   * previous level on the finer levels
+   * 
+   * @return best transform
+   */
   public double[] register()
+  {
+    int[] lFactors = mParameters.getPyramidFactors();
+    double[] lTheta = mParameters.getInitialTransformation();
+    int lPreviousFactor = 0;
+    for (int lFactor : lFactors)
+    {
+      // skip levels of too small images
+      if (!useLevel(lFactor))
+        continue;
+      if (lPreviousFactor == 0)
+        lTheta = registerOnCurrentLevel(lTheta,
+                                        1 + mParameters.getNumberOfRestarts(),
+                                        cInitialTrustRegionRadius);
+      else
+        // the optimum of the previous level is accurate up to about one of its
+        // voxels:
+        lTheta = registerOnCurrentLevel(lTheta, 1, lPreviousFactor);
+      lPreviousFactor = lFactor;
+    }
+    useLevel(1);
+    return lTheta;
+  }
+
+  private double[] registerOnCurrentLevel(double[] pInitTheta,
+                                          int pNumberOfRuns,
+                                          double pInitialTrustRegionRadius)
   {
     final float[] meansAB = reduceImageMeans();
     final float varA = reduceImageVar(mImageA, meansAB[0]);
     // System.out.println(Arrays.toString(meansAB));
     // System.out.println(varA);
 
+    boolean lUseLBFGS =
+                      mParameters.getOptimizer() == RegistrationParameters.Optimizer.LBFGS;
+    // BOBYQA evaluates the NCC on a subset of the voxels if requested:
+    final boolean lUseSamples = !lUseLBFGS && isVoxelSamplingUsed();
+
+    // NCC of all voxels, to compare the runs:
+    MultivariateFunction lFullJ = theta -> 1 - reduceNCCAffine(floatArray(theta),
+                                                               meansAB[0],
+                                                               varA,
+                                                               meansAB[1]);
+
+    // scores of transforms evaluated in advance by the batched kernel:
+    final Map<List<Double>, Double> lScoreCache = new HashMap<>();
     MultivariateFunction J = new MultivariateFunction()
     {
       @Override
       public double value(double[] theta)
       {
-        float ncc = reduceNCCAffine(floatArray(theta),
-                                    meansAB[0],
-                                    varA,
-                                    meansAB[1]);
-        return 1 - ncc;
+        Double lCachedScore = lScoreCache.remove(getCacheKey(theta));
+        if (lCachedScore != null)
+          return lCachedScore;
+        if (lUseSamples)
+          return 1 - reduceNCCAffineSamples(floatArray(theta),
+                                            meansAB[0],
+                                            meansAB[1]);
+        return lFullJ.value(theta);
+      }
+    };
+    Function<List<double[]>, double[]> lBatchJ = thetas -> {
+      double[] j = new double[thetas.size()];
+      if (lUseSamples)
+      {
+        // few samples, scored one transform after the other
+        for (int k = 0; k < j.length; k++)
+          j[k] = 1 - reduceNCCAffineSamples(floatArray(thetas.get(k)),
+                                            meansAB[0],
+                                            meansAB[1]);
+        return j;
       }
+      float[] ncc = reduceNCCAffineBatch(thetas,
+                                         meansAB[0],
+                                         varA,
+                                         meansAB[1]);
+      for (int k = 0; k < ncc.length; k++)
+        j[k] = 1 - ncc[k];
+      return j;
     };
 
     // NLopt.NLopt_func Jnlopt = new NLopt.NLopt_func() {
@@ -272,22 +574,51 @@ public class Registration
     // optimizer.setMinObjective(Jnlopt);
     // optimizer.setMaxEval(mParams.getMaxNumberOfEvaluations());
 
-    BOBYQAOptimizer lOptimizer = new BOBYQAOptimizer(2 * 6 + 1);
+    // objective with its analytic gradient:
+    BoundedLBFGSOptimizer.Objective lGradientJ = (theta, gradient) -> {
+      float ncc = reduceNCCAffineGradient(floatArray(theta),
+                                          meansAB[0],
+                                          varA,
+                                          meansAB[1],
+                                          gradient);
+      for (int k = 0; k < gradient.length; k++)
+        gradient[k] = -gradient[k];
+      return 1 - ncc;
+    };
+    // the first step has the length of the initial trust region radius:
+    BoundedLBFGSOptimizer lLBFGSOptimizer =
+                                          new BoundedLBFGSOptimizer(cLBFGSMemory,
+                                                                    pInitialTrustRegionRadius,
+                                                                    cLBFGSTolerance);
+
+    BOBYQAOptimizer lOptimizer =
+                               new BOBYQAOptimizer(2 * 6 + 1,
+                                                   pInitialTrustRegionRadius,
+                                                   cStoppingTrustRegionRadius);
     SimpleBounds lBounds =
                          new SimpleBounds(mParameters.getLowerBounds(),
                                           mParameters.getUpperBounds());
 
     // current best solution is initialization
-    double[] initTheta = mParameters.getInitialTransformation();
+    double[] initTheta = pInitTheta;
     double[] bestTheta = initTheta;
-    double bestJ = J.value(bestTheta);
+    double bestJ = lFullJ.value(bestTheta);
 
     // find better registration
-    for (int i = 0; i < 1 + mParameters.getNumberOfRestarts(); i++)
+    for (int i = 0; i < pNumberOfRuns; i++)
     {
+      if (lUseSamples
+          && (!mLevel.mSamplesUpToDate || mParameters.getVoxelResampling()))
+      {
+        int lSeed = mParameters.getVoxelResampling() ? mRNG.nextInt(0,
+                                                                    Integer.MAX_VALUE)
+                                                     : 0;
+        selectSamples(lSeed);
+      }
+
       // start for optimization
       double[] theta = 0 == i ? initTheta
-                              : randomSearch(J, initTheta, 30);
+                              : randomSearch(lBatchJ, initTheta, 30);
       // mParams.perturbTransformation(initTheta);
 
       // System.out.printf("init ## %.6f: %s\n", J.value(theta),
@@ -298,77 +629,109 @@ public class Registration
       // System.out.printf("nlopt - %.6f: %s\n", minf.minValue(),
       // Arrays.toString(theta_nlopt));
 
-      /////////////////
-      try
-      {
-        lOptimizer.optimize(new MaxEval(mParameters.getMaxNumberOfEvaluations()),
-                            new ObjectiveFunction(J),
-                            GoalType.MINIMIZE,
-                            lBounds,
-                            new InitialGuess(theta));
-      }
-      catch (NumberIsTooLargeException | NumberIsTooSmallException e)
-      {
-      }
-      catch (TooManyEvaluationsException e)
-      {
-      }
-
       double[] currentTheta = initTheta;
-      try
+      int lEvaluations;
+      if (lUseLBFGS)
       {
         currentTheta =
-                     ((ArrayRealVector) FieldUtils.readField(lOptimizer,
-                                                             "currentBest",
-                                                             true)).toArray();
+                     lLBFGSOptimizer.minimize(lGradientJ,
+                                              theta,
+                                              mParameters.getLowerBounds(),
+                                              mParameters.getUpperBounds(),
+                                              mParameters.getMaxNumberOfEvaluations());
+        lEvaluations = lLBFGSOptimizer.getEvaluations();
       }
-      catch (NullPointerException e)
+      else
       {
+        // the initial interpolation points of BOBYQA are scored in one batch:
+        List<double[]> lInitialPoints =
+                                      getInitialInterpolationPoints(theta,
+                                                                    pInitialTrustRegionRadius,
+                                                                    mParameters.getLowerBounds(),
+                                                                    mParameters.getUpperBounds());
+        double[] lInitialScores = lBatchJ.apply(lInitialPoints);
+        lScoreCache.clear();
+        for (int k = 0; k < lInitialPoints.size(); k++)
+          lScoreCache.put(getCacheKey(lInitialPoints.get(k)),
+                          lInitialScores[k]);
 
+        /////////////////
+        try
+        {
+          lOptimizer.optimize(new MaxEval(mParameters.getMaxNumberOfEvaluations()),
+                              new ObjectiveFunction(J),
+                              GoalType.MINIMIZE,
+                              lBounds,
+                              new InitialGuess(theta));
+        }
+        catch (NumberIsTooLargeException | NumberIsTooSmallException e)
+        {
+        }
+        catch (TooManyEvaluationsException e)
+        {
+        }
+
+        try
+        {
+          currentTheta =
+                       ((ArrayRealVector) FieldUtils.readField(lOptimizer,
+                                                               "currentBest",
+                                                               true)).toArray();
+        }
+        catch (NullPointerException e)
+        {
+
+        }
+        catch (Throwable e)
+        {
+          e.printStackTrace();
+        }
+        /////////////////
+        lScoreCache.clear();
+        lEvaluations = lOptimizer.getEvaluations();
       }
-      catch (Throwable e)
-      {
-        e.printStackTrace();
-      }
-      /////////////////
 
-      double currentJ = J.value(currentTheta);
+      double currentJ = lFullJ.value(currentTheta);
       if (currentJ < bestJ)
       {
         bestJ = currentJ;
         bestTheta = currentTheta.clone();
       }
 
-      System.out.printf("run %d - %.6f: %s, iters = %d\n",
-                        i + 1,
-                        currentJ,
-                        Arrays.toString(currentTheta),
-                        lOptimizer.getEvaluations());
+      if (mParameters.getDebug())
+        System.out.printf("level %d, run %d - %.6f: %s, iters = %d\n",
+                          mLevelFactor,
+                          i + 1,
+                          currentJ,
+                          Arrays.toString(currentTheta),
+                          lEvaluations);
     }
-    System.out.printf("best  = %.6f: %s\n",
-                      bestJ,
-                      Arrays.toString(bestTheta));
+    if (mParameters.getDebug())
+      System.out.printf("best  = %.6f: %s\n",
+                        bestJ,
+                        Arrays.toString(bestTheta));
     return bestTheta;
   }
 
-  private double[] randomSearch(MultivariateFunction J,
+  private double[] randomSearch(Function<List<double[]>, double[]> pBatchJ,
                                 double[] pInitTheta,
                                 int pNumberOfSamples)
   {
+    List<double[]> lThetas = new ArrayList<>();
+    for (int i = 0; i < pNumberOfSamples; i++)
+      lThetas.add(perturbTransformation(getParameters().getTranslationSearchRadius(),
+                                        getParameters().getRotationSearchRadius(),
+                                        pInitTheta));
+    double[] j = pBatchJ.apply(lThetas);
+
     double lBestJ = Double.POSITIVE_INFINITY;
     double[] lBestTheta = pInitTheta;
     for (int i = 0; i < pNumberOfSamples; i++)
     {
-      // System.out.println(i);
-      double[] lTheta =
-                      perturbTransformation(getParameters().getTranslationSearchRadius(),
-                                            getParameters().getRotationSearchRadius(),
-                                            pInitTheta);
-      double j = J.value(lTheta);
-      if (j < lBestJ)
+      if (j[i] < lBestJ)
       {
-        lBestTheta = lTheta;
-        lBestJ = j;
+        lBestTheta = lThetas.get(i);
+        lBestJ = j[i];
         // System.out.println(lBestJ);
       }
     }
@@ -376,6 +739,107 @@ public class Registration
     return lBestTheta;
   }
 
+  /**
+   * Returns the 2n+1 points at which BOBYQA (with 2n+1 interpolation points)
+   * first evaluates the objective function, in the order of evaluation: the
+   * initial guess, moved away from the bounds by the initial trust region
+   * radius if needed, and steps of the radius along each dimension (steps of
+   * twice the radius at the bounds).
+   * 
+   * @param pInitialGuess
+   *          initial guess
+   * @param pInitialTrustRegionRadius
+   *          initial trust region radius
+   * @param pLowerBounds
+   *          lower bounds
+   * @param pUpperBounds
+   *          upper bounds
+   * @return initial interpolation points
+   */
+  public static List<double[]> getInitialInterpolationPoints(double[] pInitialGuess,
+                                                             double pInitialTrustRegionRadius,
+                                                             double[] pLowerBounds,
+                                                             double[] pUpperBounds)
+  {
+    int n = pInitialGuess.length;
+    double rho = pInitialTrustRegionRadius;
+    double[] x0 = pInitialGuess.clone();
+    double[] sl = new double[n], su = new double[n];
+    for (int i = 0; i < n; i++)
+    {
+      sl[i] = pLowerBounds[i] - x0[i];
+      su[i] = pUpperBounds[i] - x0[i];
+      if (sl[i] >= -rho)
+      {
+        if (sl[i] >= 0)
+        {
+          x0[i] = pLowerBounds[i];
+          sl[i] = 0;
+          su[i] = pUpperBounds[i] - pLowerBounds[i];
+        }
+        else
+        {
+          x0[i] = pLowerBounds[i] + rho;
+          sl[i] = -rho;
+          su[i] = Math.max(pUpperBounds[i] - x0[i], rho);
+        }
+      }
+      else if (su[i] <= rho)
+      {
+        if (su[i] <= 0)
+        {
+          x0[i] = pUpperBounds[i];
+          sl[i] = -(pUpperBounds[i] - pLowerBounds[i]);
+          su[i] = 0;
+        }
+        else
+        {
+          x0[i] = pUpperBounds[i] - rho;
+          sl[i] = Math.min(pLowerBounds[i] - x0[i], -rho);
+          su[i] = rho;
+        }
+      }
+    }
+
+    List<double[]> lPoints = new ArrayList<>();
+    double[] lSteps = new double[2 * n + 1];
+    for (int i = 0; i < n; i++)
+    {
+      lSteps[1 + i] = su[i] == 0 ? -rho : rho;
+      double lStep = -rho;
+      if (sl[i] == 0)
+        lStep = Math.min(2 * rho, su[i]);
+      if (su[i] == 0)
+        lStep = Math.max(-2 * rho, sl[i]);
+      lSteps[1 + n + i] = lStep;
+    }
+    for (int k = 0; k < 2 * n + 1; k++)
+    {
+      double[] lPoint = new double[n];
+      int lDimension = k == 0 ? -1 : (k - 1) % n;
+      for (int i = 0; i < n; i++)
+      {
+        double lStep = i == lDimension ? lSteps[k] : 0;
+        lPoint[i] = Math.min(Math.max(pLowerBounds[i], x0[i] + lStep),
+                             pUpperBounds[i]);
+        if (lStep == sl[i])
+          lPoint[i] = pLowerBounds[i];
+        if (lStep == su[i])
+          lPoint[i] = pUpperBounds[i];
+      }
+      lPoints.add(lPoint);
+    }
+    return lPoints;
+  }
+
+  private static List<Double> getCacheKey(double[] theta)
+  {
+    List<Double> lKey = new ArrayList<>(theta.length);
+    for (double v : theta)
+      lKey.add(v);
+    return lKey;
+  }
+
   /**
    * Perturbes a given transformation theta by a given amounts for the
    * translation and rotation components
@@ -422,6 +886,7 @@ public class Registration
   {
     assert pImageSource.getChannelDataType() == ImageChannelDataType.Float;
     assert pImageTarget.getChannelDataType() == ImageChannelDataType.Float;
+    useLevel(1);
     ClearCLKernel lKernel = mKernels.get("affine_transform");
     lKernel.setArguments(pImageTarget,
                          pImageSource,
@@ -430,7 +895,52 @@ public class Registration
     runKernel(lKernel, mParameters.getWaitToFinish());
   }
 
-  private ClearCLBuffer getTransformMatrixBuffer(float... theta)
+  /**
+   * Returns the matrix of a given transform, which maps voxel coordinates of
+   * the transformed image to voxel coordinates of the source image
+   * 
+   * @param theta
+   *          transform
+   * @return transform matrix
+   */
+  public Matrix4f getTransformMatrix(double... theta)
+  {
+    return computeTransformMatrix(floatArray(theta));
+  }
+
+  private Matrix4f computeTransformMatrix(float... theta)
+  {
+    assert theta.length == 6;
+    Matrix4f lMatTranslate = AffineMatrix.translation(theta[0],
+                                                      theta[1],
+                                                      theta[2]);
+    Matrix4f lMatRotate = AffineMatrix.rotation(theta[3],
+                                                theta[4],
+                                                theta[5]);
+    return AffineMatrix.multiply(mMatCenterAndScaleInverse,
+                                 mParameters.getZeroTransformMatrix(),
+                                 lMatTranslate,
+                                 lMatRotate,
+                                 mMatCenterAndScale);
+  }
+
+  private Matrix4f computeLevelTransformMatrix(float... theta)
+  {
+    Matrix4f lMatFinal = computeTransformMatrix(theta);
+    // transform in voxel coordinates of the current level:
+    if (mLevelMatrix != null)
+      lMatFinal = AffineMatrix.multiply(mLevelMatrixInverse,
+                                        lMatFinal,
+                                        mLevelMatrix);
+    return lMatFinal;
+  }
+
+  /**
+   * Returns the transform matrix in voxel coordinates of the current level
+   * (see {@link #computeLevelTransformMatrix(float...)}), followed by its
+   * derivatives with respect to the 6 transform parameters
+   */
+  private Matrix4f[] computeLevelTransformMatrixAndDerivatives(float... theta)
   {
     assert theta.length == 6;
     Matrix4f lMatTranslate = AffineMatrix.translation(theta[0],
@@ -439,12 +949,44 @@ public class Registration
     Matrix4f lMatRotate = AffineMatrix.rotation(theta[3],
                                                 theta[4],
                                                 theta[5]);
-    Matrix4f lMatFinal =
-                       AffineMatrix.multiply(mMatCenterAndScaleInverse,
-                                             mParameters.getZeroTransformMatrix(),
+    // the matrix is P * T * R * Q:
+    Matrix4f lMatP = AffineMatrix.multiply(mMatCenterAndScaleInverse,
+                                           mParameters.getZeroTransformMatrix());
+    Matrix4f lMatQ = mMatCenterAndScale;
+    if (mLevelMatrix != null)
+    {
+      lMatP = AffineMatrix.multiply(mLevelMatrixInverse, lMatP);
+      lMatQ = AffineMatrix.multiply(lMatQ, mLevelMatrix);
+    }
+
+    Matrix4f[] lMatrices = new Matrix4f[7];
+    lMatrices[0] = AffineMatrix.multiply(lMatP,
+                                         lMatTranslate,
+                                         lMatRotate,
+                                         lMatQ);
+    for (int d = 0; d < 3; d++)
+    {
+      Matrix4f lMatTranslateDerivative = new Matrix4f();
+      lMatTranslateDerivative.setElement(d, 3, 1);
+      lMatrices[1 + d] = AffineMatrix.multiply(lMatP,
+                                               lMatTranslateDerivative,
+                                               lMatRotate,
+                                               lMatQ);
+      lMatrices[4 + d] =
+                       AffineMatrix.multiply(lMatP,
                                              lMatTranslate,
-                                             lMatRotate,
-                                             mMatCenterAndScale);
+                                             AffineMatrix.rotationDerivative(d,
+                                                                             theta[3],
+                                                                             theta[4],
+                                                                             theta[5]),
+                                             lMatQ);
+    }
+    return lMatrices;
+  }
+
+  private ClearCLBuffer getTransformMatrixBuffer(float... theta)
+  {
+    Matrix4f lMatFinal = computeLevelTransformMatrix(theta);
     // lMatFinal.invert();
     mTransformMatrixBuffer = MatrixUtils.matrixToBuffer(mContext,
                                                         mTransformMatrixBuffer,
@@ -607,15 +1149,331 @@ public class Registration
     float[] reds = reduceMean(mBuffers[0][0],
                               mBuffers[0][1],
                               mBuffers[0][2]);
-    float meanB = reds[0], meanBB = reds[1], meanAB = reds[2];
+    return computeNCC(meanA, varA, reds[0], reds[1], reds[2]);
+  }
+
+  private static float computeNCC(float meanA,
+                                  float varA,
+                                  float meanB,
+                                  float meanBB,
+                                  float meanAB)
+  {
     float varB = meanBB - meanB * meanB;
     float covAB = meanAB - meanA * meanB;
     float ncc = (float) (covAB / (Math.sqrt(varA) * Math.sqrt(varB)));
     return ncc;
   }
 
+  /**
+   * Computes the NCC of several transforms, scoring up to
+   * {@link #cMaxBatchSize} transforms per sweep over the images: the voxels of
+   * image A are read once per batch, and the partial sums of all transforms
+   * are reduced together and downloaded at once.
+   */
+  private float[] reduceNCCAffineBatch(List<double[]> thetas,
+                                       float meanA,
+                                       float varA,
+                                       float meanBapprox)
+  {
+    ClearCLBuffer[] lBuffers = ensureBatchBuffers();
+
+    float[] lNCC = new float[thetas.size()];
+    for (int lBegin = 0; lBegin < thetas.size(); lBegin += cMaxBatchSize)
+    {
+      int lCount = Math.min(cMaxBatchSize, thetas.size() - lBegin);
+
+      // matrices of the batch, row by row
+      mBatchMatrices.clear();
+      for (int t = 0; t < lCount; t++)
+      {
+        double[] lTheta = thetas.get(lBegin + t);
+        Matrix4f lMatrix = computeLevelTransformMatrix(floatArray(lTheta));
+        for (int r = 0; r < 4; r++)
+          for (int c = 0; c < 4; c++)
+            mBatchMatrices.put(lMatrix.getElement(r, c));
+      }
+      while (mBatchMatrices.hasRemaining())
+        mBatchMatrices.put(0);
+      mBatchMatrices.rewind();
+      mBatchMatricesBuffer.readFrom(mBatchMatrices, true);
+
+      ClearCLKernel lKernel = mKernels.get("reduce_ncc_affine_batch");
+      lKernel.setArguments(lBuffers[0],
+                           mImageA,
+                           mImageB,
+                           mBatchMatricesBuffer,
+                           lCount,
+                           meanBapprox,
+                           mLevel.mBatchVoxelsPerItem);
+      lKernel.setGlobalSizes(mLevel.mBatchGlobalSize);
+      lKernel.setLocalSizes(mLocalSize);
+      runKernel(lKernel, mParameters.getWaitToFinish());
+
+      double[] lMeans = new double[3 * lCount];
+      reduceSegmentMeans(lBuffers, mLevel.mBatchBufferSizes, lMeans);
+      for (int t = 0; t < lCount; t++)
+        lNCC[lBegin + t] = computeNCC(meanA,
+                                      varA,
+                                      (float) lMeans[3 * t],
+                                      (float) lMeans[3 * t + 1],
+                                      (float) lMeans[3 * t + 2]);
+    }
+    return lNCC;
+  }
+
+  /**
+   * Computes the NCC of a transform and its gradient with respect to the
+   * transform parameters, in one sweep over the images: the derivative of the
+   * transformed image B along each parameter is the gradient of B times the
+   * derivative of the sampled points, whose sums are reduced together with the
+   * sums of the NCC.
+   */
+  private float reduceNCCAffineGradient(float[] theta,
+                                        float meanA,
+                                        float varA,
+                                        float meanBapprox,
+                                        double[] pGradient)
+  {
+    assert pGradient.length == 6;
+    ClearCLBuffer[] lBuffers = ensureBatchBuffers();
+
+    // matrix and its derivatives, row by row
+    mBatchMatrices.clear();
+    for (Matrix4f lMatrix : computeLevelTransformMatrixAndDerivatives(theta))
+      for (int r = 0; r < 4; r++)
+        for (int c = 0; c < 4; c++)
+          mBatchMatrices.put(lMatrix.getElement(r, c));
+    while (mBatchMatrices.hasRemaining())
+      mBatchMatrices.put(0);
+    mBatchMatrices.rewind();
+    mBatchMatricesBuffer.readFrom(mBatchMatrices, true);
+
+    ClearCLKernel lKernel = mKernels.get("reduce_ncc_affine_gradient");
+    lKernel.setArguments(lBuffers[0],
+                         mImageA,
+                         mImageB,
+                         mBatchMatricesBuffer,
+                         meanBapprox,
+                         mLevel.mBatchVoxelsPerItem);
+    lKernel.setGlobalSizes(mLevel.mBatchGlobalSize);
+    lKernel.setLocalSizes(mLocalSize);
+    runKernel(lKernel, mParameters.getWaitToFinish());
+
+    // means of B, B*B, A*B, then dB, B*dB and A*dB for each parameter
+    double[] m = new double[cNumGradientSums];
+    reduceSegmentMeans(lBuffers, mLevel.mBatchBufferSizes, m);
+    float ncc = computeNCC(meanA,
+                           varA,
+                           (float) m[0],
+                           (float) m[1],
+                           (float) m[2]);
+    double varB = m[1] - m[0] * m[0];
+    double lNorm = Math.sqrt(varA * varB);
+    for (int p = 0; p < 6; p++)
+    {
+      double dVarB = 2 * (m[9 + p] - m[0] * m[3 + p]);
+      double dCovAB = m[15 + p] - meanA * m[3 + p];
+      pGradient[p] = dCovAB / lNorm - 0.5 * ncc * dVarB / varB;
+    }
+    return ncc;
+  }
+
+  private ClearCLBuffer[] ensureBatchBuffers()
+  {
+    Level lLevel = mLevel;
+    if (lLevel.mBatchBuffers == null)
+    {
+      // as many voxels per work item as the work groups along z allow:
+      int lVoxelsPerItem = cMaxBatchVoxelsPerItem;
+      while ((mGlobalSize[2] / mLocalSize[2]) % lVoxelsPerItem != 0)
+        lVoxelsPerItem /= 2;
+      lLevel.mBatchVoxelsPerItem = lVoxelsPerItem;
+      lLevel.mBatchGlobalSize = new long[]
+      { mGlobalSize[0], mGlobalSize[1], mGlobalSize[2] / lVoxelsPerItem };
+      pushBufferSizes(lLevel.mBatchBufferSizes,
+                      mBufferSizes.get(0) / lVoxelsPerItem);
+
+      int lNumReductions = lLevel.mBatchBufferSizes.size() - 1;
+      lLevel.mBatchBuffers = new ClearCLBuffer[lNumReductions];
+      for (int i = 0; i < lNumReductions; i++)
+      {
+        long lSize = 3 * cMaxBatchSize
+                     * lLevel.mBatchBufferSizes.get(1 + i);
+        lLevel.mBatchBuffers[i] = mContext.createBuffer(NativeTypeEnum.Float,
+                                                        lSize);
+      }
+    }
+    if (mBatchMatricesBuffer == null)
+      mBatchMatricesBuffer = mContext.createBuffer(NativeTypeEnum.Float,
+                                                   16 * cMaxBatchSize);
+    return lLevel.mBatchBuffers;
+  }
+
+  /**
+   * Reduces the partial sums written to the first batch buffer by a kernel
+   * into the means of pMeans.length quantities: the partial sums of each
+   * quantity are contiguous and their number a multiple of the group size,
+   * such that they can be reduced together
+   */
+  private void reduceSegmentMeans(ClearCLBuffer[] pBuffers,
+                                  List<Long> pBufferSizes,
+                                  double[] pMeans)
+  {
+    int lNumReductions = pBufferSizes.size() - 1;
+    ClearCLKernel lKernel = mKernels.get("reduce_mean_1buffer");
+    lKernel.setLocalSizes(mGroupSize);
+    for (int i = 1; i < lNumReductions; i++)
+    {
+      lKernel.setArguments(pBuffers[i], pBuffers[i - 1]);
+      lKernel.setGlobalSizes(pMeans.length * pBufferSizes.get(i));
+      runKernel(lKernel, mParameters.getWaitToFinish());
+    }
+
+    // final reduction on host
+    ClearCLBuffer lBuffer = pBuffers[lNumReductions - 1];
+    int lBufferSize = (int) lBuffer.getLength();
+    FloatBuffer lHostBuffer = mHostBuffers.get(lBufferSize);
+    if (lHostBuffer == null)
+    {
+      lHostBuffer = FloatBuffer.allocate(lBufferSize);
+      mHostBuffers.put(lBufferSize, lHostBuffer);
+    }
+    lHostBuffer.clear();
+    lBuffer.writeTo(lHostBuffer, true);
+    int lSegmentSize = (int) (long) pBufferSizes.get(lNumReductions);
+    for (int q = 0; q < pMeans.length; q++)
+    {
+      double lSum = 0;
+      int lOffset = q * lSegmentSize;
+      for (int i = 0; i < lSegmentSize; i++)
+        lSum += lHostBuffer.get(lOffset + i);
+      pMeans[q] = lSum / lSegmentSize;
+    }
+  }
+
+  private boolean isVoxelSamplingUsed()
+  {
+    float lFraction = mParameters.getVoxelSamplingFraction();
+    return lFraction < 1
+           && lFraction * mBufferSizes.get(0) >= cMinNumberOfSamples;
+  }
+
+  /**
+   * Selects a random subset of the voxels of the current level, with
+   * probabilities proportional to the gradient magnitude of image A, such that
+   * the expected number of samples is the sampling fraction of the voxels (less
+   * if the probabilities of the voxels with the largest gradients are capped
+   * at 1)
+   */
+  private void selectSamples(int pSeed)
+  {
+    Level lLevel = mLevel;
+    long lNumberOfVoxels = mBufferSizes.get(0);
+    float lFraction = mParameters.getVoxelSamplingFraction();
+    if (lLevel.mSamples == null)
+    {
+      // capacity of whole work groups, and of whole reductions when large:
+      long lExpected = (long) Math.ceil(cSampleCapacityFactor * lFraction
+                                        * lNumberOfVoxels);
+      long lUnit = mGroupSize;
+      if (lExpected > lUnit * mGroupSize)
+        lUnit *= mGroupSize;
+      long lCapacity = Math.min((lExpected + lUnit - 1) / lUnit * lUnit,
+                                lNumberOfVoxels);
+      lLevel.mSamples = mContext.createBuffer(NativeTypeEnum.UnsignedInt,
+                                              lCapacity);
+      pushBufferSizes(lLevel.mSampleBufferSizes, lCapacity);
+      int lNumReductions = lLevel.mSampleBufferSizes.size() - 1;
+      lLevel.mSampleBuffers = new ClearCLBuffer[lNumReductions];
+      for (int i = 0; i < lNumReductions; i++)
+      {
+        long lSize = 5 * lLevel.mSampleBufferSizes.get(1 + i);
+        lLevel.mSampleBuffers[i] = mContext.createBuffer(NativeTypeEnum.Float,
+                                                         lSize);
+      }
+    }
+    if (mSampleCountBuffer == null)
+      mSampleCountBuffer = mContext.createBuffer(NativeTypeEnum.UnsignedInt,
+                                                 1);
+
+    // mean gradient magnitude of image A
+    ClearCLKernel lKernel = mKernels.get("reduce_gradient_1imagef");
+    lKernel.setArguments(mBuffers[0][0], mImageA);
+    lKernel.setGlobalSizes(mGlobalSize);
+    lKernel.setLocalSizes(mLocalSize);
+    runKernel(lKernel, mParameters.getWaitToFinish());
+    float lMeanGradient = reduceMean(mBuffers[0][0])[0];
+
+    IntBuffer lCount = IntBuffer.allocate(1);
+    mSampleCountBuffer.readFrom(lCount, true);
+    long lCapacity = lLevel.mSamples.getLength();
+    lKernel = mKernels.get("select_samples");
+    lKernel.setArguments(lLevel.mSamples,
+                         mSampleCountBuffer,
+                         mImageA,
+                         lMeanGradient > 0 ? lFraction / lMeanGradient
+                                           : 0f,
+                         pSeed,
+                         (int) lCapacity);
+    lKernel.setGlobalSizes(mGlobalSize);
+    runKernel(lKernel, mParameters.getWaitToFinish());
+    mSampleCountBuffer.writeTo(lCount, true);
+
+    // counted as unsigned, may exceed the capacity:
+    long lNumberOfSamples = lCount.get(0) & 0xffffffffL;
+    lLevel.mNumberOfSamples = (int) Math.min(lNumberOfSamples, lCapacity);
+    lLevel.mSamplesUpToDate = true;
+  }
+
+  /**
+   * Computes the NCC of a transform on the voxel samples of the current level
+   * (see {@link #selectSamples(int)}), or on all voxels if no voxel has been
+   * selected (e.g. constant image A). Mean and variance of A are also those of
+   * the samples.
+   */
+  private float reduceNCCAffineSamples(float[] theta,
+                                       float meanAapprox,
+                                       float meanBapprox)
+  {
+    Level lLevel = mLevel;
+    if (lLevel.mNumberOfSamples == 0)
+      return reduceNCCAffine(theta,
+                             meanAapprox,
+                             reduceImageVar(mImageA, meanAapprox),
+                             meanBapprox);
+
+    ClearCLKernel lKernel = mKernels.get("reduce_ncc_affine_samples");
+    lKernel.setArguments(lLevel.mSampleBuffers[0],
+                         mImageA,
+                         mImageB,
+                         lLevel.mSamples,
+                         lLevel.mNumberOfSamples,
+                         getTransformMatrixBuffer(theta),
+                         meanAapprox,
+                         meanBapprox);
+    lKernel.setGlobalSizes(lLevel.mSampleBufferSizes.get(0));
+    lKernel.setLocalSizes(mGroupSize);
+    runKernel(lKernel, mParameters.getWaitToFinish());
+
+    // means of A, A*A, B, B*B and A*B over all work items, then over the
+    // samples only (the other work items add zeros)
+    double[] m = new double[5];
+    reduceSegmentMeans(lLevel.mSampleBuffers, lLevel.mSampleBufferSizes, m);
+    double lScale = (double) lLevel.mSampleBufferSizes.get(0)
+                    / lLevel.mNumberOfSamples;
+    for (int q = 0; q < m.length; q++)
+      m[q] *= lScale;
+    float varA = (float) (m[1] - m[0] * m[0]);
+    return computeNCC((float) m[0],
+                      varA,
+                      (float) m[2],
+                      (float) m[3],
+                      (float) m[4]);
+  }
+
   public double computeScore(double[] theta)
   {
+    useLevel(1);
     float[] meansAB = reduceImageMeans();
     float varA = reduceImageVar(mImageA, meansAB[0]);
     return 1 - reduceNCCAffine(floatArray(theta),
@@ -664,11 +1522,12 @@ public class Registration
 
   private boolean hasDimensions(long... dims)
   {
-    if (mGlobalSize == null || dims == null)
+    if (mFullSize == null || dims == null)
       return false;
-    return Arrays.equals(mGlobalSize, dims);
+    return Arrays.equals(mFullSize, dims);
   }
 
+
   @Override
   public String toString()
   {
@@ -35,6 +35,35 @@ public class RegistrationParameters
 
   private boolean mWaitToFinish = true;
 
+  private boolean mDebug = false;
+
+  /**
+   * Optimizers of the registration
+   */
+  public enum Optimizer
+  {
+   /**
+    * derivative-free BOBYQA
+    */
+   BOBYQA,
+   /**
+    * bounded L-BFGS using the analytic gradient of the NCC
+    */
+   LBFGS
+  }
+
+  private Optimizer mOptimizer = Optimizer.BOBYQA;
+
+  // fraction of the voxels on which the NCC is evaluated during the
+  // optimization, 1 for all voxels
+  private float mVoxelSamplingFraction = 1;
+  // draw a new subset of voxels for each optimization run
+  private boolean mVoxelResampling = false;
+
+  // downsampling factors of the registration pyramid, from coarse to fine
+  private int[] mPyramidFactors = new int[]
+  { 1 };
+
   public void setMaxNumberOfEvaluations(int pMaxNumberOfEvaluations)
   {
     assert pMaxNumberOfEvaluations > 0;
@@ -131,6 +160,78 @@ public class RegistrationParameters
     mNumberOfRestarts = pRestarts;
   }
 
+  public Optimizer getOptimizer()
+  {
+    return mOptimizer;
+  }
+
+  public void setOptimizer(Optimizer pOptimizer)
+  {
+    mOptimizer = pOptimizer;
+  }
+
+  public float getVoxelSamplingFraction()
+  {
+    return mVoxelSamplingFraction;
+  }
+
+  /**
+   * Sets the fraction of the voxels on which the NCC is evaluated by BOBYQA,
+   * e.g. 0.01 to 0.05. The voxels are drawn at random with a probability
+   * proportional to the gradient magnitude of image A, such that the subset
+   * favors edges and structures over the background. The runs are compared,
+   * and the final transform scored, with the NCC of all voxels. The default
+   * (1) evaluates all voxels.
+   * 
+   * @param pFraction
+   *          fraction of the voxels, in (0, 1]
+   */
+  public void setVoxelSamplingFraction(float pFraction)
+  {
+    assert pFraction > 0 && pFraction <= 1;
+    mVoxelSamplingFraction = pFraction;
+  }
+
+  public boolean getVoxelResampling()
+  {
+    return mVoxelResampling;
+  }
+
+  /**
+   * Sets whether a new subset of voxels is drawn for each optimization run
+   * (see {@link #setVoxelSamplingFraction(float)}), otherwise the subset is
+   * drawn once per images and pyramid level.
+   * 
+   * @param pVoxelResampling
+   *          true to draw a new subset for each run
+   */
+  public void setVoxelResampling(boolean pVoxelResampling)
+  {
+    mVoxelResampling = pVoxelResampling;
+  }
+
+  public int[] getPyramidFactors()
+  {
+    return mPyramidFactors;
+  }
+
+  /**
+   * Sets the downsampling factors of the registration pyramid, from coarse to
+   * fine, e.g. 4, 2, 1. Random restarts are only done on the coarsest level,
+   * finer levels refine the best transform found on the previous level. The
+   * default (1) registers the images at full resolution only.
+   * 
+   * @param pFactors
+   *          decreasing downsampling factors
+   */
+  public void setPyramidFactors(int... pFactors)
+  {
+    assert pFactors.length > 0;
+    for (int i = 0; i < pFactors.length; i++)
+      assert pFactors[i] >= 1 && (i == 0 || pFactors[i] < pFactors[i - 1]);
+    mPyramidFactors = pFactors.clone();
+  }
+
   public int getOpenCLGroupSize()
   {
     return mGroupSize;
@@ -151,4 +252,20 @@ public class RegistrationParameters
     mWaitToFinish = pWaitToFinish;
   }
 
+  public boolean getDebug()
+  {
+    return mDebug;
+  }
+
+  /**
+   * Sets whether the result of each optimization run is printed
+   * 
+   * @param pDebug
+   *          true -> results are printed
+   */
+  public void setDebug(boolean pDebug)
+  {
+    mDebug = pDebug;
+  }
+
 }
@@ -164,6 +164,254 @@ __kernel void reduce_ncc_affine(
 }
 
 
+// NCC partial sums of several transforms in one sweep: each voxel of image A is
+// read once, and the work group reduces the sums of each transform in turn.
+// Each work item sums voxels_per_item voxels, spaced by the global size along
+// z, such that there are fewer work groups and partial sums.
+// mats: num_transforms matrices of 16 floats (row-major)
+// partials: per transform, the partial sums of B, B*B and A*B of all work
+// groups, one after the other
+#define MAX_VOXELS_PER_ITEM 4
+
+__kernel void reduce_ncc_affine_batch(
+  __global float* partials,
+  __read_only image3d_t imageA, __read_only image3d_t imageB, __global const float* mats,
+  const int num_transforms, const float meanB_assumed, const int voxels_per_item) {
+
+  const uint i = get_global_id(0), j = get_global_id(1), k0 = get_global_id(2);
+  const uint depth_stride = get_global_size(2);
+
+  float pixA[MAX_VOXELS_PER_ITEM];
+  for (int v = 0; v < voxels_per_item; v++)
+    pixA[v] = read_imagef(imageA,sampler_nearest,(int4)(i,j,k0+v*depth_stride,0)).x;
+
+  const uint4 lsz = (uint4)(get_local_size(0),get_local_size(1),get_local_size(2),0);
+  const uint  group_size = lsz.x * lsz.y * lsz.z;
+  const int lid = get_local_id(0) + lsz.x*get_local_id(1) + lsz.x*lsz.y*get_local_id(2);
+
+  const uint2 osz = (uint2)(get_num_groups(0),get_num_groups(1));
+  const uint  oid = get_group_id(0) + osz.x*get_group_id(1) + (osz.x*osz.y)*get_group_id(2);
+  const uint  num_groups = osz.x*osz.y*get_num_groups(2);
+
+  __local float smeanB[MAX_GROUP_SIZE]; // shared local memory of work group
+  __local float smeanBB[MAX_GROUP_SIZE]; // shared local memory of work group
+  __local float smeanAB[MAX_GROUP_SIZE]; // shared local memory of work group
+
+  for (int t = 0; t < num_transforms; t++) {
+    __global const float* mat = mats + 16*t;
+    float sumB = 0, sumBB = 0, sumAB = 0;
+    for (int v = 0; v < voxels_per_item; v++) {
+      const uint k = k0 + v*depth_stride;
+      const float x = i*mat[0] + j*mat[1] + k*mat[2]  + mat[3];
+      const float y = i*mat[4] + j*mat[5] + k*mat[6]  + mat[7];
+      const float z = i*mat[8] + j*mat[9] + k*mat[10] + mat[11];
+
+      const float pixB = -meanB_assumed + read_imagef(imageB,sampler_linear,(float4)(0.5f+x,0.5f+y,0.5f+z,0)).x;
+      sumB  += pixB;
+      sumBB += pixB*pixB;
+      sumAB += pixA[v]*pixB;
+    }
+
+    smeanB[lid]  = sumB;
+    smeanBB[lid] = sumBB;
+    smeanAB[lid] = sumAB;
+    barrier(CLK_LOCAL_MEM_FENCE);
+
+    // tree-based averaging all values in the work group
+    for(int offset=group_size/2;  offset > 0;  offset /= 2) {
+      if (lid < offset) {
+        smeanB[lid]  += smeanB[lid+offset];
+        smeanBB[lid] += smeanBB[lid+offset];
+        smeanAB[lid] += smeanAB[lid+offset];
+      }
+      barrier(CLK_LOCAL_MEM_FENCE);
+    }
+
+    // write result for this work group and transform
+    if (lid == 0) {
+      const float count = group_size*voxels_per_item;
+      partials[(3*t+0)*num_groups+oid] = smeanB[0]  / count;
+      partials[(3*t+1)*num_groups+oid] = smeanBB[0] / count;
+      partials[(3*t+2)*num_groups+oid] = smeanAB[0] / count;
+    }
+    // local memory is reused by the next transform
+    barrier(CLK_LOCAL_MEM_FENCE);
+  }
+}
+
+
+// NCC partial sums and their derivatives with respect to the 6 transform
+// parameters: with dB the change of B along a parameter, i.e. the gradient of
+// B (central differences) times the derivative of the sampled point, sums of
+// B, B*B, A*B, then dB, B*dB and A*dB for each parameter. Each work item sums
+// voxels_per_item voxels, as reduce_ncc_affine_batch.
+// mats: the transform matrix followed by its 6 derivatives (16 floats each,
+// row-major)
+// partials: partial sums of all work groups, one quantity after the other
+#define NUM_GRADIENT_SUMS 21
+
+__kernel void reduce_ncc_affine_gradient(
+  __global float* partials,
+  __read_only image3d_t imageA, __read_only image3d_t imageB, __global const float* mats,
+  const float meanB_assumed, const int voxels_per_item) {
+
+  const uint i = get_global_id(0), j = get_global_id(1), k0 = get_global_id(2);
+  const uint depth_stride = get_global_size(2);
+
+  float sums[NUM_GRADIENT_SUMS];
+  for (int s = 0; s < NUM_GRADIENT_SUMS; s++)
+    sums[s] = 0;
+
+  for (int v = 0; v < voxels_per_item; v++) {
+    const uint k = k0 + v*depth_stride;
+    const float4 p = (float4)(i,j,k,1);
+
+    const float x = dot(vload4(0,mats),p);
+    const float y = dot(vload4(1,mats),p);
+    const float z = dot(vload4(2,mats),p);
+    const float4 q = (float4)(0.5f+x,0.5f+y,0.5f+z,0);
+
+    const float pixA =                  read_imagef(imageA,sampler_nearest,(int4)(i,j,k,0)).x;
+    const float pixB = -meanB_assumed + read_imagef(imageB,sampler_linear,q).x;
+    const float4 grad = 0.5f*(float4)(
+      read_imagef(imageB,sampler_linear,q+(float4)(1,0,0,0)).x - read_imagef(imageB,sampler_linear,q-(float4)(1,0,0,0)).x,
+      read_imagef(imageB,sampler_linear,q+(float4)(0,1,0,0)).x - read_imagef(imageB,sampler_linear,q-(float4)(0,1,0,0)).x,
+      read_imagef(imageB,sampler_linear,q+(float4)(0,0,1,0)).x - read_imagef(imageB,sampler_linear,q-(float4)(0,0,1,0)).x,
+      0);
+
+    sums[0] += pixB;
+    sums[1] += pixB*pixB;
+    sums[2] += pixA*pixB;
+    for (int m = 0; m < 6; m++) {
+      const int o = 16*(m+1);
+      // change of the sampled point along parameter m
+      const float4 dq = (float4)(dot(vload4(0,mats+o),p),dot(vload4(1,mats+o),p),dot(vload4(2,mats+o),p),0);
+      const float dB = dot(grad,dq);
+      sums[3+m]  += dB;
+      sums[9+m]  += pixB*dB;
+      sums[15+m] += pixA*dB;
+    }
+  }
+
+  const uint4 lsz = (uint4)(get_local_size(0),get_local_size(1),get_local_size(2),0);
+  const uint  group_size = lsz.x * lsz.y * lsz.z;
+  const int lid = get_local_id(0) + lsz.x*get_local_id(1) + lsz.x*lsz.y*get_local_id(2);
+
+  __local float sdata[NUM_GRADIENT_SUMS*MAX_GROUP_SIZE]; // shared local memory of work group
+
+  for (int s = 0; s < NUM_GRADIENT_SUMS; s++)
+    sdata[s*MAX_GROUP_SIZE+lid] = sums[s];
+  barrier(CLK_LOCAL_MEM_FENCE);
+
+  // tree-based averaging all values in the work group
+  for(int offset=group_size/2;  offset > 0;  offset /= 2) {
+    if (lid < offset) {
+      for (int s = 0; s < NUM_GRADIENT_SUMS; s++)
+        sdata[s*MAX_GROUP_SIZE+lid] += sdata[s*MAX_GROUP_SIZE+lid+offset];
+    }
+    barrier(CLK_LOCAL_MEM_FENCE);
+  }
+
+  // write result for this work group
+  if (lid == 0) {
+    const uint2 osz = (uint2)(get_num_groups(0),get_num_groups(1));
+    const uint  oid = get_group_id(0) + osz.x*get_group_id(1) + (osz.x*osz.y)*get_group_id(2);
+    const uint  num_groups = osz.x*osz.y*get_num_groups(2);
+    const float count = group_size*voxels_per_item;
+    for (int s = 0; s < NUM_GRADIENT_SUMS; s++)
+      partials[s*num_groups+oid] = sdata[s*MAX_GROUP_SIZE] / count;
+  }
+}
+
+
+// NCC partial sums over a subset of the voxels of image A (see
+// select_samples), one work item per sample: sums of A, A*A, B, B*B and A*B,
+// with A and B shifted by their assumed means; work items beyond the number of
+// samples add zeros.
+// samples: linear indices of the voxels
+// partials: partial sums of all work groups, one quantity after the other
+__kernel void reduce_ncc_affine_samples(
+  __global float* partials,
+  __read_only image3d_t imageA, __read_only image3d_t imageB, __global const uint* samples,
+  const uint num_samples, __constant float* mat,
+  const float meanA_assumed, const float meanB_assumed) {
+
+  const uint gid = get_global_id(0), lid = get_local_id(0);
+  const uint group_size = get_local_size(0);
+
+  float pixA = 0, pixB = 0;
+  if (gid < num_samples) {
+    const uint w = get_image_width(imageA), h = get_image_height(imageA);
+    const uint idx = samples[gid];
+    const uint i = idx % w, j = (idx / w) % h, k = idx / (w*h);
+
+    const float x = i*mat[0] + j*mat[1] + k*mat[2]  + mat[3];
+    const float y = i*mat[4] + j*mat[5] + k*mat[6]  + mat[7];
+    const float z = i*mat[8] + j*mat[9] + k*mat[10] + mat[11];
+
+    pixA = -meanA_assumed + read_imagef(imageA,sampler_nearest,(int4)(i,j,k,0)).x;
+    pixB = -meanB_assumed + read_imagef(imageB,sampler_linear,(float4)(0.5f+x,0.5f+y,0.5f+z,0)).x;
+  }
+
+  __local float sdata[5*MAX_GROUP_SIZE]; // shared local memory of work group
+
+  sdata[0*MAX_GROUP_SIZE+lid] = pixA;
+  sdata[1*MAX_GROUP_SIZE+lid] = pixA*pixA;
+  sdata[2*MAX_GROUP_SIZE+lid] = pixB;
+  sdata[3*MAX_GROUP_SIZE+lid] = pixB*pixB;
+  sdata[4*MAX_GROUP_SIZE+lid] = pixA*pixB;
+  barrier(CLK_LOCAL_MEM_FENCE);
+
+  // tree-based averaging all values in the work group
+  for(int offset=group_size/2;  offset > 0;  offset /= 2) {
+    if (lid < offset) {
+      for (int s = 0; s < 5; s++)
+        sdata[s*MAX_GROUP_SIZE+lid] += sdata[s*MAX_GROUP_SIZE+lid+offset];
+    }
+    barrier(CLK_LOCAL_MEM_FENCE);
+  }
+
+  // write result for this work group
+  if (lid == 0) {
+    const uint oid = get_group_id(0), num_groups = get_num_groups(0);
+    for (int s = 0; s < 5; s++)
+      partials[s*num_groups+oid] = sdata[s*MAX_GROUP_SIZE] / group_size;
+  }
+}
+
+
+inline float gradient_magnitude(read_only image3d_t src, const int4 p) {
+  const float dx = read_imagef(src,sampler_nearest,p+(int4)(1,0,0,0)).x - read_imagef(src,sampler_nearest,p-(int4)(1,0,0,0)).x;
+  const float dy = read_imagef(src,sampler_nearest,p+(int4)(0,1,0,0)).x - read_imagef(src,sampler_nearest,p-(int4)(0,1,0,0)).x;
+  const float dz = read_imagef(src,sampler_nearest,p+(int4)(0,0,1,0)).x - read_imagef(src,sampler_nearest,p-(int4)(0,0,1,0)).x;
+  return 0.5f*sqrt(dx*dx+dy*dy+dz*dz);
+}
+
+
+// selects voxels at random with a probability proportional to the gradient
+// magnitude of the image: min(1, scale * gradient magnitude); the linear
+// indices of the selected voxels are appended to samples, up to the capacity,
+// and count is the number of selected voxels (initialized to 0 on the host)
+__kernel void select_samples(__global uint* samples, volatile __global uint* count, read_only image3d_t src, const float scale, const uint seed, const uint capacity) {
+
+  const int4 gid = (int4)(get_global_id(0),get_global_id(1),get_global_id(2),0);
+  const uint idx = gid.x + get_global_size(0)*(gid.y + get_global_size(1)*gid.z);
+
+  // uniform random number in [0,1) from a hash of index and seed
+  uint h = idx + seed*0x9e3779b9u;
+  h ^= h >> 16; h *= 0x7feb352du;
+  h ^= h >> 15; h *= 0x846ca68bu;
+  h ^= h >> 16;
+  const float u = (h >> 8) * (1.0f/16777216.0f);
+
+  if (u < scale*gradient_magnitude(src,gid)) {
+    const uint n = atomic_inc(count);
+    if (n < capacity)
+      samples[n] = idx;
+  }
+}
+
+
 __kernel void affine_transform(__write_only image3d_t dst, __read_only image3d_t src, __constant float* mat) {
 
   const uint i = get_global_id(0), j = get_global_id(1), k = get_global_id(2);
@@ -255,4 +503,52 @@ __kernel void reduce_var_1imagef(__global float* dst, read_only image3d_t src, c
     const uint  oid = get_group_id(0) + osz.x*get_group_id(1) + (osz.x*osz.y)*get_group_id(2);
     dst[oid] = svar[0] / group_size;
   }
-}
\ No newline at end of file
+}
+
+
+__kernel void reduce_gradient_1imagef(__global float* dst, read_only image3d_t src)  {
+
+  const uint4 lsz = (uint4)(get_local_size(0),get_local_size(1),get_local_size(2),0);
+  const uint  group_size = lsz.x * lsz.y * lsz.z;
+
+  const int4 gid = (int4)(get_global_id(0),get_global_id(1),get_global_id(2),0);
+  const int  lid = get_local_id(0) + lsz.x*get_local_id(1) + lsz.x*lsz.y*get_local_id(2);
+
+  __local float sgrad[MAX_GROUP_SIZE]; // shared local memory of work group
+
+  // copy from global to local memory, wait until all work items done
+  sgrad[lid] = gradient_magnitude(src,gid);
+  barrier(CLK_LOCAL_MEM_FENCE);
+
+  // tree-based averaging all values in the work group
+  for(int offset=group_size/2;  offset > 0;  offset /= 2) {
+    if (lid < offset) {
+      sgrad[lid] += sgrad[lid+offset];
+    }
+    barrier(CLK_LOCAL_MEM_FENCE);
+  }
+
+  // write result for this work group
+  if (lid == 0) {
+    const uint2 osz = (uint2)(get_num_groups(0),get_num_groups(1));
+    const uint  oid = get_group_id(0) + osz.x*get_group_id(1) + (osz.x*osz.y)*get_group_id(2);
+    dst[oid] = sgrad[0] / group_size;
+  }
+}
+
+
+// downsamples by averaging blocks of factor^3 voxels, starting at the given
+// offset in the source image
+__kernel void downsample_mean(__write_only image3d_t dst, __read_only image3d_t src, const int factor, const int ox, const int oy, const int oz) {
+
+  const int i = get_global_id(0), j = get_global_id(1), k = get_global_id(2);
+  const int4 origin = (int4)(ox+factor*i,oy+factor*j,oz+factor*k,0);
+
+  float sum = 0;
+  for (int dk = 0; dk < factor; dk++)
+    for (int dj = 0; dj < factor; dj++)
+      for (int di = 0; di < factor; di++)
+        sum += read_imagef(src,sampler_nearest,origin+(int4)(di,dj,dk,0)).x;
+
+  write_imagef(dst,(int4)(i,j,k,0),(float4)(sum/(factor*factor*factor),0,0,0));
+}
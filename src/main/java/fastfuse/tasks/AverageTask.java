@@ -6,7 +6,7 @@ import clearcl.ClearCLKernel;
 import org.apache.commons.lang3.tuple.MutablePair;
 
 /**
- * Fuses two stacks using the average method.
+ * Fuses stacks using the average method.
  *
  * @author royer
  */
@@ -61,11 +61,36 @@ public class AverageTask extends FusionTaskBase
     setupProgram(FusionTaskBase.class, "./kernels/fuseavg.cl");
   }
 
+  /**
+   * Instantiates an average fusion task given the keys for any number of input
+   * images and destination image. For other numbers of images than 2 or 4 the
+   * kernel is generated.
+   *
+   * @param pInputImagesSlotKeys
+   *          input images keys
+   * @param pDestImageSlotKey
+   *          destination image key
+   */
+  public AverageTask(String[] pInputImagesSlotKeys,
+                     String pDestImageSlotKey)
+  {
+    super(pInputImagesSlotKeys, pDestImageSlotKey);
+    int lNumberOfImages = pInputImagesSlotKeys.length;
+    setupProgram(FusionTaskBase.class,
+                 "./kernels/fuseavg.cl",
+                 lNumberOfImages == 2 || lNumberOfImages == 4 ? null
+                                                              : KernelSourceGenerator.getAverageFusionSource(lNumberOfImages));
+  }
+
   @Override
-  public boolean fuse(ClearCLImage lImageA,
-                      ClearCLImage lImageB,
-                      ClearCLImage lImageC,
-                      ClearCLImage lImageD,
+  public int getHaloDepth(long[] pStackDimensions)
+  {
+    // pointwise operation
+    return 0;
+  }
+
+  @Override
+  public boolean fuse(ClearCLImage[] pImages,
                       MutablePair<Boolean, ClearCLImage> pImageAndFlag,
                       boolean pWaitToFinish)
   {
@@ -75,10 +100,9 @@ public class AverageTask extends FusionTaskBase
 
     try
     {
-      if (mInputImagesSlotKeys.length == 2)
-        lKernel = getKernel(lImageFused.getContext(), "fuseavg2");
-      else if (mInputImagesSlotKeys.length == 4)
-        lKernel = getKernel(lImageFused.getContext(), "fuseavg4");
+      lKernel =
+              getKernel(lImageFused.getContext(),
+                        KernelSourceGenerator.getAverageFusionKernelName(pImages.length));
     }
     catch (Exception e)
     {
@@ -86,14 +110,10 @@ public class AverageTask extends FusionTaskBase
       return false;
     }
 
-    lKernel.setArgument("imagea", lImageA);
-    lKernel.setArgument("imageb", lImageB);
-    if (mInputImagesSlotKeys.length == 4)
-    {
-      lKernel.setArgument("imagec", lImageC);
-      lKernel.setArgument("imaged", lImageD);
-    }
-    lKernel.setArgument("imagedest", lImageFused);
+    // images first, destination last:
+    for (int i = 0; i < pImages.length; i++)
+      lKernel.setArgument(i, pImages[i]);
+    lKernel.setArgument(pImages.length, lImageFused);
 
     lKernel.setGlobalSizes(lImageFused);
 
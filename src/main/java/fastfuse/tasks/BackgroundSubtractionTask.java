@@ -0,0 +1,314 @@
+package fastfuse.tasks;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Map;
+
+import clearcl.ClearCLBuffer;
+import clearcl.ClearCLContext;
+import clearcl.ClearCLImage;
+import clearcl.ClearCLKernel;
+import clearcl.enums.ImageChannelDataType;
+import coremem.enums.NativeTypeEnum;
+import fastfuse.FastFusionEngineInterface;
+import fastfuse.FastFusionException;
+import fastfuse.FastFusionMemoryPool;
+
+import org.apache.commons.lang3.tuple.MutablePair;
+
+/**
+ * Subtracts an estimated background from an image, clamping at zero. The image
+ * is divided in slabs of planes along z and the background of each slab is
+ * estimated as a low percentile of its voxel values, computed from histograms
+ * accumulated on the device. Only the histograms are downloaded, and the
+ * background, interpolated along z between slab centers, is subtracted in a
+ * single pass, without any temporary image unless the image is subtracted in
+ * place on a device without read_write images. This is much cheaper than
+ * subtracting a blurred copy of the image.
+ *
+ * @author royer
+ */
+public class BackgroundSubtractionTask extends TaskBase
+                                       implements TaskInterface
+{
+  private static final int cGroupSize = 128;
+  private static final int cNumberOfGroups = 256;
+  private static final int cNumberOfBins = 1024;
+
+  private final String mSrcImageKey, mDstImageKey;
+  private final float mPercentile;
+  private final int mSlabDepth;
+  private final ImageChannelDataType mDstDataType;
+
+  // min and max of the image give the range of the histograms
+  private final ImageStatisticsTask mRangeTask;
+
+  private ClearCLBuffer mHistogramsBuffer, mBackgroundBuffer;
+  private IntBuffer mHistograms;
+  private volatile float[] mLastBackground;
+
+  /**
+   * Instantiates a background subtraction task
+   *
+   * @param pSrcImageKey
+   *          source image key
+   * @param pDstImageKey
+   *          destination image key, can be the same as the source image key
+   * @param pPercentile
+   *          percentile of the voxel values of each slab taken as background,
+   *          between 0 and 100
+   * @param pSlabDepth
+   *          number of planes of each slab, 1 estimates the background of each
+   *          plane
+   */
+  public BackgroundSubtractionTask(String pSrcImageKey,
+                                   String pDstImageKey,
+                                   float pPercentile,
+                                   int pSlabDepth)
+  {
+    this(pSrcImageKey, pDstImageKey, pPercentile, pSlabDepth, null);
+  }
+
+  /**
+   * Instantiates a background subtraction task
+   *
+   * @param pSrcImageKey
+   *          source image key
+   * @param pDstImageKey
+   *          destination image key, can be the same as the source image key
+   * @param pPercentile
+   *          percentile of the voxel values of each slab taken as background,
+   *          between 0 and 100
+   * @param pSlabDepth
+   *          number of planes of each slab, 1 estimates the background of each
+   *          plane
+   * @param pDstDataType
+   *          destination data type, null for the data type of the source image
+   */
+  public BackgroundSubtractionTask(String pSrcImageKey,
+                                   String pDstImageKey,
+                                   float pPercentile,
+                                   int pSlabDepth,
+                                   ImageChannelDataType pDstDataType)
+  {
+    super(pSrcImageKey);
+    if (pPercentile < 0 || pPercentile > 100)
+      throw new FastFusionException("Background percentile must be between 0 and 100, got: %g",
+                                    pPercentile);
+    if (pSlabDepth < 1)
+      throw new FastFusionException("Slab depth must be at least one plane, got: %d",
+                                    pSlabDepth);
+    setupProgram(BackgroundSubtractionTask.class,
+                 "./kernels/background.cl");
+    mSrcImageKey = pSrcImageKey;
+    mDstImageKey = pDstImageKey;
+    mPercentile = pPercentile;
+    mSlabDepth = pSlabDepth;
+    mDstDataType = pDstDataType;
+    mRangeTask = new ImageStatisticsTask(pSrcImageKey, 1);
+    addProducedImages(pDstImageKey);
+  }
+
+  /**
+   * Returns the background of each slab estimated by the last execution of
+   * this task
+   *
+   * @return background per slab, or null if none estimated yet
+   */
+  public float[] getLastBackground()
+  {
+    float[] lLastBackground = mLastBackground;
+    return lLastBackground == null ? null : lLastBackground.clone();
+  }
+
+  @Override
+  public String getSignature()
+  {
+    return String.format("percentile=%s, slab=%d, dtype=%s",
+                         mPercentile,
+                         mSlabDepth,
+                         mDstDataType);
+  }
+
+  @Override
+  public String getInPlaceSourceSlotKey()
+  {
+    // histograms are computed before the subtraction, which reads each voxel
+    // before writing it (in place, with the read_write kernel of background.cl
+    // or from a scratch copy of the image):
+    return mSrcImageKey;
+  }
+
+  @Override
+  public boolean enqueue(FastFusionEngineInterface pFastFusionEngine,
+                         boolean pWaitToFinish)
+  {
+    ClearCLImage lSrcImage = pFastFusionEngine.getImage(mSrcImageKey);
+    if (lSrcImage == null)
+      throw new FastFusionException("Background subtraction task %s received a null image",
+                                    this);
+
+    ImageChannelDataType lDstDataType = mDstDataType;
+    if (lDstDataType == null)
+      lDstDataType = lSrcImage.getChannelDataType();
+
+    try
+    {
+      float[] lBackground = estimateBackground(lSrcImage);
+      mLastBackground = lBackground;
+      mBackgroundBuffer.readFrom(FloatBuffer.wrap(lBackground), true);
+
+      MutablePair<Boolean, ClearCLImage> lFlagAndDstImage =
+                                                          pFastFusionEngine.ensureImageAllocated(mDstImageKey,
+                                                                                                 lDstDataType,
+                                                                                                 lSrcImage.getDimensions());
+      ClearCLImage lDstImage = lFlagAndDstImage.getRight();
+      assert TaskHelper.allowedDataType(lSrcImage, lDstImage);
+
+      ClearCLKernel lKernel;
+      if (lSrcImage == lDstImage
+          && TaskHelper.supportsReadWriteImages(lSrcImage.getContext()))
+      {
+        lKernel =
+                getKernel(lSrcImage.getContext(),
+                          "subtract_background_inplace",
+                          TaskHelper.getInPlaceOpenCLDefines(lDstImage));
+        lKernel.setArguments(lDstImage,
+                             mBackgroundBuffer,
+                             mSlabDepth,
+                             lBackground.length,
+                             0f);
+      }
+      else
+      {
+        ClearCLImage lReadImage = lSrcImage;
+        if (lSrcImage == lDstImage)
+        {
+          // without read_write images, the subtraction reads a scratch copy:
+          lReadImage =
+                     FastFusionMemoryPool.get()
+                                         .requestScratchImage(lSrcImage.getChannelDataType(),
+                                                              lSrcImage.getDimensions());
+          lSrcImage.copyTo(lReadImage, false);
+        }
+        lKernel = getKernel(lSrcImage.getContext(),
+                            "subtract_background",
+                            TaskHelper.getOpenCLDefines(lReadImage,
+                                                        lDstImage));
+        lKernel.setArguments(lDstImage,
+                             lReadImage,
+                             mBackgroundBuffer,
+                             mSlabDepth,
+                             lBackground.length,
+                             0f);
+      }
+      lKernel.setGlobalSizes(lDstImage.getDimensions());
+      runKernel(lKernel, pWaitToFinish);
+      lFlagAndDstImage.setLeft(true);
+      return true;
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  private float[] estimateBackground(ClearCLImage pSrcImage) throws IOException
+  {
+    ClearCLContext lContext = pSrcImage.getContext();
+    int lDepth = (int) pSrcImage.getDepth();
+    int lNumberOfSlabs = (lDepth + mSlabDepth - 1) / mSlabDepth;
+    ensureBuffersAllocated(lContext, lNumberOfSlabs);
+
+    double[] lMinMaxMean = mRangeTask.computeMinMaxMean(pSrcImage);
+    double lMin = lMinMaxMean[0], lMax = lMinMaxMean[1];
+    float lBinScale = lMax > lMin ? (float) (cNumberOfBins / (lMax - lMin))
+                                  : 0;
+
+    Map<String, Object> lDefines = TaskHelper.getOpenCLDefines(pSrcImage,
+                                                               pSrcImage);
+    lDefines.put("GROUP_SIZE", cGroupSize);
+    lDefines.put("NUM_BINS", cNumberOfBins);
+
+    ClearCLKernel lClearKernel = getKernel(lContext,
+                                           "clear_histograms",
+                                           lDefines);
+    lClearKernel.setGlobalSizes(lNumberOfSlabs * cNumberOfBins);
+    lClearKernel.setArguments(mHistogramsBuffer);
+    runKernel(lClearKernel, false);
+
+    // spread about the same number of work groups over all slabs
+    int lGroupsPerSlab = Math.max(1, cNumberOfGroups / lNumberOfSlabs);
+    ClearCLKernel lKernel = getKernel(lContext, "slab_histograms", lDefines);
+    lKernel.setGlobalSizes(cGroupSize * lGroupsPerSlab, lNumberOfSlabs);
+    lKernel.setLocalSizes(cGroupSize, 1);
+    lKernel.setArguments(mHistogramsBuffer,
+                         pSrcImage,
+                         mSlabDepth,
+                         (float) lMin,
+                         lBinScale);
+    runKernel(lKernel, false);
+
+    mHistograms.clear();
+    mHistogramsBuffer.writeTo(mHistograms, true);
+
+    long lPlaneVolume = pSrcImage.getWidth() * pSrcImage.getHeight();
+    float[] lBackground = new float[lNumberOfSlabs];
+    long[] lHistogram = new long[cNumberOfBins];
+    for (int s = 0; s < lNumberOfSlabs; s++)
+    {
+      for (int b = 0; b < cNumberOfBins; b++)
+        lHistogram[b] =
+                      Integer.toUnsignedLong(mHistograms.get(s * cNumberOfBins
+                                                             + b));
+      int lSlabDepth = Math.min(mSlabDepth, lDepth - s * mSlabDepth);
+      ImageStatistics lSlabStatistics =
+                                      new ImageStatistics(lPlaneVolume
+                                                          * lSlabDepth,
+                                                          lMin,
+                                                          lMax,
+                                                          Double.NaN,
+                                                          Double.NaN,
+                                                          lHistogram);
+      lBackground[s] = (float) lSlabStatistics.getPercentile(mPercentile);
+    }
+    return lBackground;
+  }
+
+  private void ensureBuffersAllocated(ClearCLContext pContext,
+                                      int pNumberOfSlabs)
+  {
+    if (mBackgroundBuffer == null
+        || mBackgroundBuffer.getLength() != pNumberOfSlabs)
+    {
+      if (mBackgroundBuffer != null)
+      {
+        mBackgroundBuffer.close();
+        mHistogramsBuffer.close();
+      }
+      mBackgroundBuffer = pContext.createBuffer(NativeTypeEnum.Float,
+                                                pNumberOfSlabs);
+      mHistogramsBuffer =
+                        pContext.createBuffer(NativeTypeEnum.UnsignedInt,
+                                              pNumberOfSlabs
+                                                                * cNumberOfBins);
+      mHistograms = IntBuffer.allocate(pNumberOfSlabs * cNumberOfBins);
+    }
+  }
+
+  @Override
+  public void close()
+  {
+    mRangeTask.close();
+    if (mBackgroundBuffer != null)
+    {
+      mBackgroundBuffer.close();
+      mHistogramsBuffer.close();
+      mBackgroundBuffer = null;
+      mHistogramsBuffer = null;
+    }
+  }
+
+}
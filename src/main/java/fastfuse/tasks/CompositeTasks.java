@@ -8,7 +8,7 @@ import java.util.UUID;
 import javax.vecmath.Matrix4f;
 
 import clearcl.enums.ImageChannelDataType;
-import fastfuse.tasks.DownsampleXYbyHalfTask.Type;
+import fastfuse.FastFusionException;
 
 import org.apache.commons.lang3.ArrayUtils;
 
@@ -21,8 +21,57 @@ public class CompositeTasks
                                                                      float[] pKernelSigmas,
                                                                      boolean pReleaseSrcImages,
                                                                      String... pSrcImageKeys)
+  {
+    return fuseWithSmoothDownsampledWeights(pDstImageKey,
+                                            pDstImageDataType,
+                                            ImageChannelDataType.Float,
+                                            ImageChannelDataType.Float,
+                                            pNumDownsample,
+                                            pKernelSigmas,
+                                            pReleaseSrcImages,
+                                            pSrcImageKeys);
+  }
+
+  /**
+   * Fuses images with smoothed Tenengrad weights, downsampled in XY by 2^n
+   * 
+   * @param pDstImageKey
+   *          fused image key
+   * @param pDstImageDataType
+   *          fused image data type
+   * @param pWeightDataType
+   *          data type of raw and smoothed weights: Float or HalfFloat
+   * @param pDownsampledWeightDataType
+   *          data type of the downsampled weights used for fusion: Float,
+   *          HalfFloat, or UnsignedNormalizedInt8 (weights are then normalized
+   *          across views before quantization, also if n = 0)
+   * @param pNumDownsample
+   *          n
+   * @param pKernelSigmas
+   *          sigmas of weight smoothing
+   * @param pReleaseSrcImages
+   *          true -> source images are released after fusion
+   * @param pSrcImageKeys
+   *          source image keys
+   * @return task list
+   */
+  public static List<TaskInterface> fuseWithSmoothDownsampledWeights(String pDstImageKey,
+                                                                     ImageChannelDataType pDstImageDataType,
+                                                                     ImageChannelDataType pWeightDataType,
+                                                                     ImageChannelDataType pDownsampledWeightDataType,
+                                                                     int pNumDownsample,
+                                                                     float[] pKernelSigmas,
+                                                                     boolean pReleaseSrcImages,
+                                                                     String... pSrcImageKeys)
   {
     assert pNumDownsample >= 0;
+    // weights with an arbitrary range only fit in 8 bits once normalized:
+    boolean lNormalizeWeights =
+                              pDownsampledWeightDataType == ImageChannelDataType.UnsignedNormalizedInt8;
+    // weights are sampled with linear interpolation:
+    if (!TaskHelper.isAccessedAsFloat(pDownsampledWeightDataType))
+      throw new FastFusionException("Fusion weights cannot be stored as %s",
+                                    pDownsampledWeightDataType);
     String lRandomSuffix = UUID.randomUUID().toString();
     List<TaskInterface> lTaskList = new ArrayList<>();
 
@@ -51,33 +100,56 @@ public class CompositeTasks
                                                                       pNumDownsample);
       // compute unnormalized weight from src image
       lTaskList.add(new TenengradWeightTask(pSrcImageKeys[i],
-                                            lWeightRawKey));
+                                            lWeightRawKey,
+                                            pWeightDataType));
       // blur raw weight to obtain smooth weight
       lTaskList.add(new GaussianBlurTask(lWeightRawKey,
                                          lWeightSmoothKey,
                                          pKernelSigmas,
                                          null,
-                                         true));
+                                         GaussianBlurTask.Mode.Recursive,
+                                         null));
       // release raw weight
       lTaskList.add(new MemoryReleaseTask(lWeightSmoothKey,
                                           lWeightRawKey));
-      // downsample
-      for (int j = 0; j < pNumDownsample; j++)
+      // downsample in one pass, averaging over 2^n x 2^n blocks is the same
+      // as averaging n times over 2 x 2 blocks
+      if (pNumDownsample > 0)
       {
-        String lInputImage = j == 0 ? lWeightSmoothKey
-                                    : String.format(lWeightSmoothDownsampledKey,
-                                                    j);
-        String lOutputImage =
-                            String.format(lWeightSmoothDownsampledKey,
-                                          j + 1);
-        lTaskList.add(new DownsampleXYbyHalfTask(lInputImage,
-                                                 lOutputImage,
-                                                 Type.Average));
-        lTaskList.add(new MemoryReleaseTask(lOutputImage,
-                                            lInputImage));
+        DownsamplePyramidTask lDownsampleTask =
+                                              new DownsamplePyramidTask(lWeightSmoothKey,
+                                                                        new String[]
+                                                                        { String.format(lWeightSmoothDownsampledKey,
+                                                                                        pNumDownsample) },
+                                                                        new int[]
+                                                                        { 1 << pNumDownsample,
+                                                                          1 << pNumDownsample,
+                                                                          1 },
+                                                                        DownsamplePyramidTask.Type.Average,
+                                                                        lNormalizeWeights ? null
+                                                                                          : pDownsampledWeightDataType);
+        lTaskList.add(lDownsampleTask);
+        lTaskList.add(new MemoryReleaseTask(lDownsampleTask.getProducedImagesSlotKeys(),
+                                            lWeightSmoothKey));
       }
     }
 
+    if (lNormalizeWeights)
+    {
+      String[] lWeightKeys = ArrayUtils.subarray(lSrcImageAndWeightKeys,
+                                                 lNumImages,
+                                                 2 * lNumImages);
+      String[] lNormalizedWeightKeys = new String[lNumImages];
+      for (int i = 0; i < lNumImages; i++)
+      {
+        lNormalizedWeightKeys[i] = lWeightKeys[i] + " n";
+        lSrcImageAndWeightKeys[lNumImages + i] = lNormalizedWeightKeys[i];
+      }
+      lTaskList.addAll(WeightNormalizationTask.applyAndReleaseInputs(pDownsampledWeightDataType,
+                                                                     lWeightKeys,
+                                                                     lNormalizedWeightKeys));
+    }
+
     // fuse images with smooth and potentially downsampled weights
     lTaskList.add(new TenengradAdvancedFusionTask(pDstImageKey,
                                                   pDstImageDataType,
@@ -115,6 +187,47 @@ public class CompositeTasks
                                                                   int[] pKernelSizes,
                                                                   Matrix4f pZeroTransformMatrix,
                                                                   boolean pReleaseImageToRegister)
+  {
+    return registerWithBlurPreprocessing(pImageReferenceKey,
+                                         pImageToRegisterKey,
+                                         pImageTransformedKey,
+                                         pKernelSigmas,
+                                         pKernelSizes,
+                                         pZeroTransformMatrix,
+                                         pReleaseImageToRegister,
+                                         null);
+  }
+
+  /**
+   * Registers an image to a reference image, both blurred beforehand
+   * 
+   * @param pImageReferenceKey
+   *          reference image key
+   * @param pImageToRegisterKey
+   *          key of image to register
+   * @param pImageTransformedKey
+   *          registered image key
+   * @param pKernelSigmas
+   *          blur sigmas
+   * @param pKernelSizes
+   *          blur kernel sizes
+   * @param pZeroTransformMatrix
+   *          zero transform matrix
+   * @param pReleaseImageToRegister
+   *          true -> image to register is released after registration
+   * @param pBlurredDataType
+   *          data type of the blurred images (e.g. HalfFloat), or null for the
+   *          data type of the images
+   * @return task list
+   */
+  public static List<TaskInterface> registerWithBlurPreprocessing(String pImageReferenceKey,
+                                                                  String pImageToRegisterKey,
+                                                                  String pImageTransformedKey,
+                                                                  float[] pKernelSigmas,
+                                                                  int[] pKernelSizes,
+                                                                  Matrix4f pZeroTransformMatrix,
+                                                                  boolean pReleaseImageToRegister,
+                                                                  ImageChannelDataType pBlurredDataType)
   {
     // TODO: have a task that checks the data type of the input image (must be
     // Float here)
@@ -142,11 +255,15 @@ public class CompositeTasks
     return Arrays.asList(new GaussianBlurTask(pImageReferenceKey,
                                               lImageReferenceBlurredKey,
                                               pKernelSigmas,
-                                              pKernelSizes),
+                                              pKernelSizes,
+                                              null,
+                                              pBlurredDataType),
                          new GaussianBlurTask(pImageToRegisterKey,
                                               lImageToRegisterBlurredKey,
                                               pKernelSigmas,
-                                              pKernelSizes),
+                                              pKernelSizes,
+                                              null,
+                                              pBlurredDataType),
                          lRegistrationTask,
                          new MemoryReleaseTask(pImageTransformedKey,
                                                lImageKeysToRelease));
@@ -192,4 +309,87 @@ public class CompositeTasks
                                                lImageKeysToRelease));
   }
 
+  public static List<TaskInterface> subtractPercentileBackground(String pSrcImageKey,
+                                                                 String pDstImageKey,
+                                                                 float pPercentile,
+                                                                 int pSlabDepth,
+                                                                 boolean pReleaseSrcImage)
+  {
+    TaskInterface lTask = new BackgroundSubtractionTask(pSrcImageKey,
+                                                        pDstImageKey,
+                                                        pPercentile,
+                                                        pSlabDepth);
+    if (!pReleaseSrcImage || pSrcImageKey.equals(pDstImageKey))
+      return Arrays.asList(lTask);
+    return Arrays.asList(lTask,
+                         new MemoryReleaseTask(pDstImageKey, pSrcImageKey));
+  }
+
+  /**
+   * Crops images to the bounding box of their common foreground, such that
+   * subsequent tasks only process the region of interest
+   * 
+   * @param pSuffix
+   *          suffix appended to the source image keys to obtain the cropped
+   *          image keys
+   * @param pThreshold
+   *          foreground threshold between 0 (mean of the image) and 1 (max of
+   *          the image)
+   * @param pMargin
+   *          margin around the bounding box, in voxels
+   * @param pDownsamplingFactor
+   *          size of the blocks averaged before thresholding, in voxels
+   * @param pAlignment
+   *          alignment of width and height of the cropped images
+   * @param pReleaseSrcImages
+   *          true -> source images are released after cropping
+   * @param pSrcImageKeys
+   *          source image keys
+   * @return task list
+   */
+  public static List<TaskInterface> cropToForeground(String pSuffix,
+                                                     float pThreshold,
+                                                     int pMargin,
+                                                     int pDownsamplingFactor,
+                                                     int pAlignment,
+                                                     boolean pReleaseSrcImages,
+                                                     String... pSrcImageKeys)
+  {
+    String[] lDstImageKeys = new String[pSrcImageKeys.length];
+    for (int i = 0; i < pSrcImageKeys.length; i++)
+      lDstImageKeys[i] = pSrcImageKeys[i] + pSuffix;
+
+    List<TaskInterface> lTaskList = new ArrayList<>();
+    lTaskList.add(new CropTask(pSrcImageKeys,
+                               lDstImageKeys,
+                               pThreshold,
+                               pMargin,
+                               pDownsamplingFactor,
+                               pAlignment));
+    if (pReleaseSrcImages)
+      lTaskList.add(new MemoryReleaseTask(lDstImageKeys[0],
+                                          pSrcImageKeys));
+    return lTaskList;
+  }
+
+  /**
+   * Compresses the final image on the device, in place of downloading it:
+   * append to the fusion tasks, only the compressed image is downloaded and
+   * passed to the listener. The image is not released, since the compression
+   * produces no image that could order a release after it.
+   * 
+   * @param pImageKey
+   *          key of the final (fused) image, unsigned 8 or 16 bit
+   * @param pCompressedImageListener
+   *          listener receiving the compressed image
+   * @return task list
+   */
+  public static List<TaskInterface> compressFinalImage(String pImageKey,
+                                                       CompressedImageListener pCompressedImageListener)
+  {
+    CompressionTask lCompressionTask = new CompressionTask(pImageKey);
+    lCompressionTask.addListener(pCompressedImageListener);
+    return Arrays.asList(lCompressionTask);
+  }
+
 }
@@ -0,0 +1,377 @@
+package fastfuse.tasks;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.function.LongToIntFunction;
+
+import clearcl.enums.ImageChannelDataType;
+import fastfuse.FastFusionException;
+
+/**
+ * Losslessly compressed integer image. Voxels are taken in linear order (x
+ * fastest) and split into blocks of {@link #cBlockLength} values. Each voxel
+ * is replaced by the zigzag coded difference to the previous voxel (the first
+ * voxel to zero), and the values of each block are packed with the number of
+ * bits of the largest one, least significant bits first. The compressed data
+ * consists of the bit width of each block (one byte per block) followed by the
+ * packed blocks, a block of bit width b taking b * {@link #cBlockLength} / 8
+ * bytes. This is the format produced on the device by the compression task
+ * (see compression.cl). The packed blocks are stored in segments of whole
+ * blocks of at most {@link #cMaxSegmentSize} bytes, such that the compressed
+ * size is not limited by the size of an array: the packed data is the
+ * concatenation of the segments.
+ *
+ * @author royer
+ */
+public class CompressedImage
+{
+  /**
+   * Number of values per block
+   */
+  public static final int cBlockLength = 128;
+
+  /**
+   * Maximal size of a segment of packed blocks in bytes
+   */
+  public static final int cMaxSegmentSize = 1 << 30;
+
+  private final long[] mDimensions;
+  private final ImageChannelDataType mDataType;
+  private final byte[] mBitWidths;
+  private final byte[][] mPackedSegments;
+
+  /**
+   * Instantiates a compressed image
+   *
+   * @param pDimensions
+   *          image dimensions
+   * @param pDataType
+   *          data type of the image, unsigned 8 or 16 bit integers
+   * @param pBitWidths
+   *          bit width of each block
+   * @param pPackedSegments
+   *          packed blocks, in segments of whole blocks
+   */
+  public CompressedImage(long[] pDimensions,
+                         ImageChannelDataType pDataType,
+                         byte[] pBitWidths,
+                         byte[][] pPackedSegments)
+  {
+    mDimensions = pDimensions;
+    mDataType = pDataType;
+    mBitWidths = pBitWidths;
+    mPackedSegments = pPackedSegments;
+    if (getMaxBitWidth(pDataType) < 0)
+      throw new FastFusionException("Compression not supported for data type %s",
+                                    pDataType);
+    if (pBitWidths.length != getNumberOfBlocks(getNumberOfValues()))
+      throw new FastFusionException("Expected %d blocks for dimensions %s, got %d",
+                                    getNumberOfBlocks(getNumberOfValues()),
+                                    Arrays.toString(pDimensions),
+                                    pBitWidths.length);
+  }
+
+  /**
+   * Compresses an unsigned 16 bit image on the host
+   *
+   * @param pDimensions
+   *          image dimensions
+   * @param pBuffer
+   *          voxels, read from the current position of the buffer
+   * @return compressed image
+   */
+  public static CompressedImage compress(long[] pDimensions,
+                                         ShortBuffer pBuffer)
+  {
+    int lPosition = pBuffer.position();
+    return compress(pDimensions,
+                    ImageChannelDataType.UnsignedInt16,
+                    t -> pBuffer.get(lPosition + (int) t) & 0xFFFF);
+  }
+
+  /**
+   * Compresses an unsigned 8 bit image on the host
+   *
+   * @param pDimensions
+   *          image dimensions
+   * @param pBuffer
+   *          voxels, read from the current position of the buffer
+   * @return compressed image
+   */
+  public static CompressedImage compress(long[] pDimensions,
+                                         ByteBuffer pBuffer)
+  {
+    int lPosition = pBuffer.position();
+    return compress(pDimensions,
+                    ImageChannelDataType.UnsignedInt8,
+                    t -> pBuffer.get(lPosition + (int) t) & 0xFF);
+  }
+
+  private static CompressedImage compress(long[] pDimensions,
+                                          ImageChannelDataType pDataType,
+                                          LongToIntFunction pVoxels)
+  {
+    long lNumberOfValues = getNumberOfValues(pDimensions);
+    int lNumberOfBlocks = getNumberOfBlocks(lNumberOfValues);
+    byte[] lBitWidths = new byte[lNumberOfBlocks];
+
+    ArrayList<Integer> lSegmentSizes = new ArrayList<>();
+    int lSegmentSize = 0;
+    int lPrevious = 0;
+    for (int b = 0; b < lNumberOfBlocks; b++)
+    {
+      int lBits = 0;
+      long lEnd = Math.min((b + 1L) * cBlockLength, lNumberOfValues);
+      for (long t = (long) b * cBlockLength; t < lEnd; t++)
+      {
+        int lValue = pVoxels.applyAsInt(t);
+        lBits |= zigzag(lValue - lPrevious);
+        lPrevious = lValue;
+      }
+      lBitWidths[b] = (byte) (32 - Integer.numberOfLeadingZeros(lBits));
+      int lBlockSize = getBlockSize(lBitWidths[b]);
+      if (lSegmentSize + lBlockSize > cMaxSegmentSize)
+      {
+        lSegmentSizes.add(lSegmentSize);
+        lSegmentSize = 0;
+      }
+      lSegmentSize += lBlockSize;
+    }
+    if (lSegmentSize > 0)
+      lSegmentSizes.add(lSegmentSize);
+
+    byte[][] lPackedSegments = new byte[lSegmentSizes.size()][];
+    for (int i = 0; i < lPackedSegments.length; i++)
+      lPackedSegments[i] = new byte[lSegmentSizes.get(i)];
+    int lSegment = -1;
+    byte[] lPackedBlocks = null;
+    int lOffset = 0;
+    lPrevious = 0;
+    for (int b = 0; b < lNumberOfBlocks; b++)
+    {
+      long lBegin = (long) b * cBlockLength;
+      long lEnd = Math.min(lBegin + cBlockLength, lNumberOfValues);
+      int lBitWidth = lBitWidths[b];
+      // all values equal to the previous voxel:
+      if (lBitWidth == 0)
+        continue;
+      if (lPackedBlocks == null || lOffset == lPackedBlocks.length)
+      {
+        lPackedBlocks = lPackedSegments[++lSegment];
+        lOffset = 0;
+      }
+      long lPending = 0;
+      int lNumberOfPendingBits = 0;
+      for (long t = lBegin; t < lBegin + cBlockLength; t++)
+      {
+        int lZigzag = 0;
+        if (t < lEnd)
+        {
+          int lValue = pVoxels.applyAsInt(t);
+          lZigzag = zigzag(lValue - lPrevious);
+          lPrevious = lValue;
+        }
+        lPending |= (lZigzag & 0xFFFFFFFFL) << lNumberOfPendingBits;
+        lNumberOfPendingBits += lBitWidth;
+        while (lNumberOfPendingBits >= 8)
+        {
+          lPackedBlocks[lOffset++] = (byte) lPending;
+          lPending >>>= 8;
+          lNumberOfPendingBits -= 8;
+        }
+      }
+    }
+
+    return new CompressedImage(pDimensions,
+                               pDataType,
+                               lBitWidths,
+                               lPackedSegments);
+  }
+
+  /**
+   * Decompresses an unsigned 16 bit image
+   *
+   * @param pBuffer
+   *          buffer receiving the voxels, from its current position
+   */
+  public void decompress(ShortBuffer pBuffer)
+  {
+    if (mDataType != ImageChannelDataType.UnsignedInt16)
+      throw new FastFusionException("Cannot decompress image of data type %s to 16 bit values",
+                                    mDataType);
+    decompress(v -> pBuffer.put((short) v));
+  }
+
+  /**
+   * Decompresses an unsigned 8 bit image
+   *
+   * @param pBuffer
+   *          buffer receiving the voxels, from its current position
+   */
+  public void decompress(ByteBuffer pBuffer)
+  {
+    if (mDataType != ImageChannelDataType.UnsignedInt8)
+      throw new FastFusionException("Cannot decompress image of data type %s to 8 bit values",
+                                    mDataType);
+    decompress(v -> pBuffer.put((byte) v));
+  }
+
+  private void decompress(IntConsumer pVoxels)
+  {
+    long lNumberOfValues = getNumberOfValues();
+    int lMaxBitWidth = getMaxBitWidth(mDataType);
+
+    int lSegment = -1;
+    byte[] lPackedBlocks = new byte[0];
+    int lOffset = 0;
+    int lPrevious = 0;
+    for (int b = 0; b < mBitWidths.length; b++)
+    {
+      int lBitWidth = mBitWidths[b];
+      if (lBitWidth < 0 || lBitWidth > lMaxBitWidth)
+        throw new FastFusionException("Corrupt compressed image: block %d has bit width %d",
+                                      b,
+                                      lBitWidth);
+      // segments hold whole blocks:
+      while (lBitWidth > 0 && lOffset == lPackedBlocks.length
+             && lSegment + 1 < mPackedSegments.length)
+      {
+        lPackedBlocks = mPackedSegments[++lSegment];
+        lOffset = 0;
+      }
+      int lBlockEnd = lOffset + getBlockSize(lBitWidth);
+      if (lBlockEnd > lPackedBlocks.length)
+        throw new FastFusionException("Corrupt compressed image: block %d exceeds the data",
+                                      b);
+      long lEnd = Math.min((b + 1L) * cBlockLength, lNumberOfValues);
+      long lMask = (1L << lBitWidth) - 1;
+      long lPending = 0;
+      int lNumberOfPendingBits = 0;
+      for (long t = (long) b * cBlockLength; t < lEnd; t++)
+      {
+        while (lNumberOfPendingBits < lBitWidth)
+        {
+          lPending |= (lPackedBlocks[lOffset++] & 0xFFL) << lNumberOfPendingBits;
+          lNumberOfPendingBits += 8;
+        }
+        int lZigzag = (int) (lPending & lMask);
+        lPending >>>= lBitWidth;
+        lNumberOfPendingBits -= lBitWidth;
+        lPrevious += (lZigzag >>> 1) ^ -(lZigzag & 1);
+        pVoxels.accept(lPrevious);
+      }
+      // the last block is padded to a full block:
+      lOffset = lBlockEnd;
+    }
+  }
+
+  /**
+   * Returns the size of a packed block
+   *
+   * @param pBitWidth
+   *          bit width of the block
+   * @return size in bytes
+   */
+  static int getBlockSize(int pBitWidth)
+  {
+    return pBitWidth * (cBlockLength / 8);
+  }
+
+  private static int zigzag(int pValue)
+  {
+    return (pValue << 1) ^ (pValue >> 31);
+  }
+
+  private static int getMaxBitWidth(ImageChannelDataType pDataType)
+  {
+    // zigzag coded differences have one more bit than the values:
+    switch (pDataType)
+    {
+    case UnsignedInt16:
+      return 17;
+    case UnsignedInt8:
+      return 9;
+    default:
+      return -1;
+    }
+  }
+
+  private static long getNumberOfValues(long[] pDimensions)
+  {
+    long lNumberOfValues = 1;
+    for (long lDimension : pDimensions)
+      lNumberOfValues *= lDimension;
+    return lNumberOfValues;
+  }
+
+  static int getNumberOfBlocks(long pNumberOfValues)
+  {
+    return Math.toIntExact((pNumberOfValues + cBlockLength - 1)
+                           / cBlockLength);
+  }
+
+  public long[] getDimensions()
+  {
+    return mDimensions;
+  }
+
+  public ImageChannelDataType getDataType()
+  {
+    return mDataType;
+  }
+
+  public long getNumberOfValues()
+  {
+    return getNumberOfValues(mDimensions);
+  }
+
+  public byte[] getBitWidths()
+  {
+    return mBitWidths;
+  }
+
+  public byte[][] getPackedSegments()
+  {
+    return mPackedSegments;
+  }
+
+  /**
+   * Returns the size of the compressed data: bit widths and packed blocks
+   *
+   * @return size in bytes
+   */
+  public long getSizeInBytes()
+  {
+    long lSize = mBitWidths.length;
+    for (byte[] lPackedSegment : mPackedSegments)
+      lSize += lPackedSegment.length;
+    return lSize;
+  }
+
+  /**
+   * Returns the ratio between the uncompressed and compressed sizes
+   *
+   * @return compression ratio
+   */
+  public double getCompressionRatio()
+  {
+    long lUncompressedSize = getNumberOfValues()
+                             * mDataType.getNativeType()
+                                        .getSizeInBytes();
+    return (double) lUncompressedSize / getSizeInBytes();
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("CompressedImage(dimensions = %s, type = %s, size = %d, ratio = %.2f)",
+                         Arrays.toString(mDimensions),
+                         mDataType,
+                         getSizeInBytes(),
+                         getCompressionRatio());
+  }
+
+}
@@ -0,0 +1,23 @@
+package fastfuse.tasks;
+
+/**
+ * Compressed image listener interface. Listeners are notified of the images
+ * compressed by a compression task, e.g. to write them to disk
+ *
+ * @author royer
+ */
+public interface CompressedImageListener
+{
+
+  /**
+   * Called to notify of a new compressed image
+   *
+   * @param pSlotKey
+   *          slot key of image
+   * @param pCompressedImage
+   *          compressed image
+   */
+  void newCompressedImage(String pSlotKey,
+                          CompressedImage pCompressedImage);
+
+}
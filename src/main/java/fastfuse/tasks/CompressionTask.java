@@ -0,0 +1,285 @@
+package fastfuse.tasks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import clearcl.ClearCLBuffer;
+import clearcl.ClearCLContext;
+import clearcl.ClearCLImage;
+import clearcl.ClearCLKernel;
+import clearcl.enums.ImageChannelDataType;
+import coremem.enums.NativeTypeEnum;
+import fastfuse.FastFusionEngineInterface;
+import fastfuse.FastFusionException;
+
+/**
+ * Compresses an unsigned 8 or 16 bit image losslessly on the device, by delta
+ * coding and bit packing (see {@link CompressedImage}), such that only the
+ * compressed data is downloaded. The compressed image is passed to the
+ * listeners and kept as last compressed image. This task produces no image,
+ * it must thus run before the image is released, typically after the final
+ * fusion in place of downloading the fused image (see
+ * {@link CompositeTasks#compressFinalImage}).
+ *
+ * @author royer
+ */
+public class CompressionTask extends TaskBase implements TaskInterface
+{
+  // number of blocks per chunk, the offsets of the chunks are summed on the
+  // host (see compression.cl)
+  private static final int cChunkLength = 256;
+
+  private final String mSrcImageKey;
+
+  private ClearCLBuffer mBitWidthsBuffer, mOffsetsBuffer,
+      mChunkSizesBuffer, mChunkOffsetsBuffer, mPackedBuffer;
+
+  private volatile CompressedImage mLastCompressedImage;
+  private final CopyOnWriteArrayList<CompressedImageListener> mListenerList =
+                                                                            new CopyOnWriteArrayList<>();
+
+  /**
+   * Instantiates a compression task
+   *
+   * @param pSrcImageKey
+   *          image key
+   */
+  public CompressionTask(String pSrcImageKey)
+  {
+    super(pSrcImageKey);
+    setupProgram(CompressionTask.class, "./kernels/compression.cl");
+    mSrcImageKey = pSrcImageKey;
+  }
+
+  /**
+   * Adds a listener
+   *
+   * @param pCompressedImageListener
+   *          listener
+   */
+  public void addListener(CompressedImageListener pCompressedImageListener)
+  {
+    if (!mListenerList.contains(pCompressedImageListener))
+      mListenerList.add(pCompressedImageListener);
+  }
+
+  /**
+   * Removes a listener
+   *
+   * @param pCompressedImageListener
+   *          listener
+   */
+  public void removeListener(CompressedImageListener pCompressedImageListener)
+  {
+    mListenerList.remove(pCompressedImageListener);
+  }
+
+  /**
+   * Returns the image compressed by the last execution of this task
+   *
+   * @return last compressed image, or null if none compressed yet
+   */
+  public CompressedImage getLastCompressedImage()
+  {
+    return mLastCompressedImage;
+  }
+
+  @Override
+  public boolean enqueue(FastFusionEngineInterface pFastFusionEngine,
+                         boolean pWaitToFinish)
+  {
+    ClearCLImage lSrcImage = pFastFusionEngine.getImage(mSrcImageKey);
+    if (lSrcImage == null)
+      throw new FastFusionException("Compression task %s received a null image",
+                                    this);
+
+    try
+    {
+      CompressedImage lCompressedImage = compress(lSrcImage);
+      mLastCompressedImage = lCompressedImage;
+      for (CompressedImageListener lListener : mListenerList)
+        lListener.newCompressedImage(mSrcImageKey, lCompressedImage);
+      return true;
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  /**
+   * Compresses a given image, waiting for the compression to finish
+   *
+   * @param pImage
+   *          unsigned 8 or 16 bit image
+   * @return compressed image
+   * @throws IOException
+   *           if the kernels cannot be loaded
+   */
+  public CompressedImage compress(ClearCLImage pImage) throws IOException
+  {
+    ImageChannelDataType lDataType = pImage.getChannelDataType();
+    if (lDataType != ImageChannelDataType.UnsignedInt16
+        && lDataType != ImageChannelDataType.UnsignedInt8)
+      throw new FastFusionException("Compression task %s: data type %s not supported, only unsigned 8 and 16 bit integers",
+                                    this,
+                                    lDataType);
+    ClearCLContext lContext = pImage.getContext();
+    long lNumberOfValues = pImage.getWidth() * pImage.getHeight()
+                           * pImage.getDepth();
+    int lNumberOfBlocks =
+                        CompressedImage.getNumberOfBlocks(lNumberOfValues);
+    int lNumberOfChunks = (lNumberOfBlocks + cChunkLength - 1)
+                          / cChunkLength;
+    ensureBuffers(lContext, lNumberOfBlocks, lNumberOfChunks);
+
+    Map<String, Object> lDefines = TaskHelper.getOpenCLDefines(pImage,
+                                                               pImage);
+    ClearCLKernel lWidthsKernel = getKernel(lContext,
+                                            "block_widths",
+                                            lDefines);
+    lWidthsKernel.setArguments(mBitWidthsBuffer, pImage);
+    lWidthsKernel.setGlobalSizes(lNumberOfBlocks);
+    runKernel(lWidthsKernel, false);
+
+    ClearCLKernel lOffsetsKernel = getKernel(lContext,
+                                             "chunk_offsets",
+                                             lDefines);
+    lOffsetsKernel.setArguments(mOffsetsBuffer,
+                                mChunkSizesBuffer,
+                                mBitWidthsBuffer,
+                                lNumberOfBlocks);
+    lOffsetsKernel.setGlobalSizes(lNumberOfChunks);
+    runKernel(lOffsetsKernel, false);
+
+    // the packed data is split in segments of whole chunks (see
+    // CompressedImage), offsets of the chunks are relative to their segment:
+    IntBuffer lChunkSizes = IntBuffer.allocate(lNumberOfChunks);
+    mChunkSizesBuffer.writeTo(lChunkSizes, true);
+    LongBuffer lChunkOffsets = LongBuffer.allocate(lNumberOfChunks);
+    ArrayList<Integer> lSegmentFirstChunks = new ArrayList<>();
+    ArrayList<Integer> lSegmentSizes = new ArrayList<>();
+    long lSegmentSize = 0;
+    for (int c = 0; c < lNumberOfChunks; c++)
+    {
+      long lChunkSize = lChunkSizes.get(c) & 0xFFFFFFFFL;
+      if (c == 0 || lSegmentSize + lChunkSize > CompressedImage.cMaxSegmentSize)
+      {
+        if (c > 0)
+          lSegmentSizes.add((int) lSegmentSize);
+        lSegmentFirstChunks.add(c);
+        lSegmentSize = 0;
+      }
+      lChunkOffsets.put(c, lSegmentSize);
+      lSegmentSize += lChunkSize;
+    }
+    lSegmentSizes.add((int) lSegmentSize);
+
+    byte[] lBitWidths = new byte[lNumberOfBlocks];
+    mBitWidthsBuffer.writeTo(ByteBuffer.wrap(lBitWidths), true);
+    mChunkOffsetsBuffer.readFrom(lChunkOffsets, true);
+    // the compressed size varies from image to image, the packed buffer is
+    // kept at the size of the largest segment and only the packed prefix is
+    // downloaded:
+    ensurePackedBuffer(lContext,
+                       lSegmentSizes.stream()
+                                    .mapToInt(Integer::intValue)
+                                    .max()
+                                    .getAsInt());
+    ArrayList<byte[]> lPackedSegments = new ArrayList<>();
+    for (int i = 0; i < lSegmentSizes.size(); i++)
+    {
+      int lSize = lSegmentSizes.get(i);
+      if (lSize == 0)
+        continue;
+      int lFirstBlock = lSegmentFirstChunks.get(i) * cChunkLength;
+      int lEndBlock = lNumberOfBlocks;
+      if (i + 1 < lSegmentFirstChunks.size())
+        lEndBlock = lSegmentFirstChunks.get(i + 1) * cChunkLength;
+      byte[] lPackedSegment = new byte[lSize];
+      ClearCLKernel lPackKernel = getKernel(lContext,
+                                            "pack_blocks",
+                                            lDefines);
+      lPackKernel.setArguments(mPackedBuffer,
+                               mBitWidthsBuffer,
+                               mOffsetsBuffer,
+                               mChunkOffsetsBuffer,
+                               pImage,
+                               lFirstBlock);
+      lPackKernel.setGlobalSizes(lEndBlock - lFirstBlock);
+      runKernel(lPackKernel, false);
+      mPackedBuffer.writeTo(ByteBuffer.wrap(lPackedSegment), 0, lSize, true);
+      lPackedSegments.add(lPackedSegment);
+    }
+
+    return new CompressedImage(pImage.getDimensions(),
+                               lDataType,
+                               lBitWidths,
+                               lPackedSegments.toArray(new byte[0][]));
+  }
+
+  private void ensureBuffers(ClearCLContext pContext,
+                             int pNumberOfBlocks,
+                             int pNumberOfChunks)
+  {
+    if (mBitWidthsBuffer == null
+        || mBitWidthsBuffer.getLength() != pNumberOfBlocks)
+    {
+      if (mBitWidthsBuffer != null)
+      {
+        mBitWidthsBuffer.close();
+        mOffsetsBuffer.close();
+        mChunkSizesBuffer.close();
+        mChunkOffsetsBuffer.close();
+      }
+      mBitWidthsBuffer = pContext.createBuffer(NativeTypeEnum.UnsignedByte,
+                                               pNumberOfBlocks);
+      mOffsetsBuffer = pContext.createBuffer(NativeTypeEnum.UnsignedInt,
+                                             pNumberOfBlocks);
+      mChunkSizesBuffer = pContext.createBuffer(NativeTypeEnum.UnsignedInt,
+                                                pNumberOfChunks);
+      mChunkOffsetsBuffer =
+                          pContext.createBuffer(NativeTypeEnum.UnsignedLong,
+                                                pNumberOfChunks);
+    }
+  }
+
+  private void ensurePackedBuffer(ClearCLContext pContext, int pSize)
+  {
+    if (mPackedBuffer == null || mPackedBuffer.getLength() < pSize)
+    {
+      if (mPackedBuffer != null)
+        mPackedBuffer.close();
+      mPackedBuffer = pContext.createBuffer(NativeTypeEnum.UnsignedByte,
+                                            Math.max(1, pSize));
+    }
+  }
+
+  @Override
+  public void close()
+  {
+    if (mBitWidthsBuffer != null)
+    {
+      mBitWidthsBuffer.close();
+      mOffsetsBuffer.close();
+      mChunkSizesBuffer.close();
+      mChunkOffsetsBuffer.close();
+      mBitWidthsBuffer = null;
+      mOffsetsBuffer = null;
+      mChunkSizesBuffer = null;
+      mChunkOffsetsBuffer = null;
+    }
+    if (mPackedBuffer != null)
+    {
+      mPackedBuffer.close();
+      mPackedBuffer = null;
+    }
+  }
+
+}
@@ -0,0 +1,378 @@
+package fastfuse.tasks;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import javax.vecmath.Matrix4f;
+
+import clearcl.ClearCLBuffer;
+import clearcl.ClearCLContext;
+import clearcl.ClearCLImage;
+import clearcl.ClearCLKernel;
+import coremem.enums.NativeTypeEnum;
+import fastfuse.FastFusionEngineInterface;
+import fastfuse.FastFusionException;
+import fastfuse.registration.AffineMatrix;
+
+import org.apache.commons.lang3.tuple.MutablePair;
+
+/**
+ * Crops images to the bounding box of their foreground, such that subsequent
+ * tasks only process the region of interest. The foreground consists of the
+ * voxels of a downsampled copy of the images (block means) above a threshold
+ * between the mean and the max of each image. The bounding box is the union
+ * over all source images, extended by a margin, such that the cropped images
+ * of different views keep the same dimensions and can be registered and
+ * fused. Only the bounding box is downloaded. If no foreground is found, the
+ * images are copied whole. Unless the cropped images are materialized, no voxel
+ * is copied: the destination slots refer to the source images with the
+ * translation to the origin of the box attached as image transform. To keep
+ * the dimensions of the cropped images from changing from stack to stack, the
+ * last box can be reused as long as it contains the foreground.
+ *
+ * @author royer
+ */
+public class CropTask extends TaskBase implements TaskInterface
+{
+  private final String[] mSrcImageKeys, mDstImageKeys;
+  private final float mThreshold;
+  private final int mMargin;
+  private final int mDownsamplingFactor;
+  private final int mAlignment;
+
+  private final ImageStatisticsTask mRangeTask;
+  private ClearCLBuffer mBoundsBuffer;
+  private volatile long[] mLastOrigin, mLastDimensions;
+  private volatile long[] mLastSrcDimensions;
+
+  private volatile boolean mMaterializeCroppedImages = true;
+  private volatile boolean mReuseBox = false;
+
+  /**
+   * Instantiates a crop task with a threshold of 0.1, a margin of 16 voxels
+   * and a downsampling factor of 4
+   *
+   * @param pSrcImageKeys
+   *          source image keys
+   * @param pDstImageKeys
+   *          destination image keys, cropped images of the source images
+   */
+  public CropTask(String[] pSrcImageKeys, String[] pDstImageKeys)
+  {
+    this(pSrcImageKeys, pDstImageKeys, 0.1f, 16, 4, 1);
+  }
+
+  /**
+   * Instantiates a crop task
+   *
+   * @param pSrcImageKeys
+   *          source image keys
+   * @param pDstImageKeys
+   *          destination image keys, cropped images of the source images
+   * @param pThreshold
+   *          foreground threshold between 0 (mean of the image) and 1 (max of
+   *          the image)
+   * @param pMargin
+   *          margin added around the bounding box, in voxels
+   * @param pDownsamplingFactor
+   *          size of the blocks averaged before thresholding, in voxels
+   * @param pAlignment
+   *          the width and height of the cropped images are multiples of this
+   *          alignment (if the images are large enough), e.g. 2^n for
+   *          subsequent downsampling by 2^n in XY
+   */
+  public CropTask(String[] pSrcImageKeys,
+                  String[] pDstImageKeys,
+                  float pThreshold,
+                  int pMargin,
+                  int pDownsamplingFactor,
+                  int pAlignment)
+  {
+    super(pSrcImageKeys);
+    if (pSrcImageKeys.length != pDstImageKeys.length)
+      throw new FastFusionException("Crop task needs as many destination as source images, got %d and %d",
+                                    pSrcImageKeys.length,
+                                    pDstImageKeys.length);
+    if (pMargin < 0 || pDownsamplingFactor < 1 || pAlignment < 1)
+      throw new FastFusionException("Invalid crop parameters: margin = %d, downsampling factor = %d, alignment = %d",
+                                    pMargin,
+                                    pDownsamplingFactor,
+                                    pAlignment);
+    setupProgram(CropTask.class, "./kernels/crop.cl");
+    mSrcImageKeys = pSrcImageKeys;
+    mDstImageKeys = pDstImageKeys;
+    addProducedImages(pDstImageKeys);
+    mThreshold = pThreshold;
+    mMargin = pMargin;
+    mDownsamplingFactor = pDownsamplingFactor;
+    mAlignment = pAlignment;
+    mRangeTask = new ImageStatisticsTask(pSrcImageKeys[0], 1);
+  }
+
+  @Override
+  public String getSignature()
+  {
+    return String.format("threshold=%g, margin=%d, factor=%d, alignment=%d",
+                         mThreshold,
+                         mMargin,
+                         mDownsamplingFactor,
+                         mAlignment);
+  }
+
+  /**
+   * Returns the origin of the last bounding box in the source images
+   *
+   * @return origin (x, y, z), or null if no image cropped yet
+   */
+  public long[] getLastOrigin()
+  {
+    long[] lLastOrigin = mLastOrigin;
+    return lLastOrigin == null ? null : lLastOrigin.clone();
+  }
+
+  /**
+   * Returns the dimensions of the last bounding box, i.e. of the cropped
+   * images
+   *
+   * @return dimensions (x, y, z), or null if no image cropped yet
+   */
+  public long[] getLastDimensions()
+  {
+    long[] lLastDimensions = mLastDimensions;
+    return lLastDimensions == null ? null : lLastDimensions.clone();
+  }
+
+  /**
+   * Sets whether the cropped images are copied (true), or the destination
+   * slots refer to the source images with the translation to the origin of the
+   * box attached to them (false).
+   * 
+   * @param pMaterializeCroppedImages
+   *          true -> cropped images are copied
+   */
+  public void setMaterializeCroppedImages(boolean pMaterializeCroppedImages)
+  {
+    mMaterializeCroppedImages = pMaterializeCroppedImages;
+  }
+
+  public boolean isMaterializeCroppedImages()
+  {
+    return mMaterializeCroppedImages;
+  }
+
+  /**
+   * Sets whether the last box is reused as long as it contains the box of the
+   * current foreground (and the source dimensions do not change), such that
+   * the images of subsequent tasks keep the same dimensions from stack to
+   * stack.
+   * 
+   * @param pReuseBox
+   *          true -> last box is reused if possible
+   */
+  public void setReuseBox(boolean pReuseBox)
+  {
+    mReuseBox = pReuseBox;
+  }
+
+  public boolean isReuseBox()
+  {
+    return mReuseBox;
+  }
+
+  @Override
+  public boolean enqueue(FastFusionEngineInterface pFastFusionEngine,
+                         boolean pWaitToFinish)
+  {
+    ClearCLImage[] lSrcImages = new ClearCLImage[mSrcImageKeys.length];
+    for (int i = 0; i < lSrcImages.length; i++)
+      lSrcImages[i] = pFastFusionEngine.getImage(mSrcImageKeys[i]);
+    if (!TaskHelper.allSameDimensions(lSrcImages))
+      throw new FastFusionException("Crop task %s: source images must have the same dimensions",
+                                    this);
+    long[] lSrcDimensions = lSrcImages[0].getDimensions();
+
+    try
+    {
+      int[] lBounds = computeForegroundBounds(lSrcImages);
+      long[][] lBox = getCropBox(lBounds,
+                                 lSrcDimensions,
+                                 mMargin,
+                                 mAlignment);
+      if (mReuseBox && mLastOrigin != null
+          && Arrays.equals(lSrcDimensions, mLastSrcDimensions))
+        lBox = getReusedCropBox(new long[][]
+        { mLastOrigin, mLastDimensions }, lBox);
+      mLastOrigin = lBox[0];
+      mLastDimensions = lBox[1];
+      mLastSrcDimensions = lSrcDimensions;
+
+      if (!mMaterializeCroppedImages)
+      {
+        Matrix4f lTranslation = AffineMatrix.translation(lBox[0][0],
+                                                         lBox[0][1],
+                                                         lBox[0][2]);
+        for (int i = 0; i < lSrcImages.length; i++)
+        {
+          pFastFusionEngine.assignImageToAnotherSlotKey(mSrcImageKeys[i],
+                                                        mDstImageKeys[i]);
+          pFastFusionEngine.setImageTransform(mDstImageKeys[i],
+                                              lTranslation,
+                                              lBox[1]);
+        }
+        return true;
+      }
+
+      for (int i = 0; i < lSrcImages.length; i++)
+      {
+        MutablePair<Boolean, ClearCLImage> lFlagAndDstImage =
+                                                            pFastFusionEngine.ensureImageAllocated(mDstImageKeys[i],
+                                                                                                   lSrcImages[i].getChannelDataType(),
+                                                                                                   lBox[1]);
+        lSrcImages[i].copyTo(lFlagAndDstImage.getRight(),
+                             lBox[0],
+                             new long[]
+                             { 0, 0, 0 },
+                             lBox[1],
+                             pWaitToFinish && i == lSrcImages.length - 1);
+        lFlagAndDstImage.setLeft(true);
+      }
+      return true;
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  @Override
+  public void close()
+  {
+    mRangeTask.close();
+    if (mBoundsBuffer != null)
+    {
+      mBoundsBuffer.close();
+      mBoundsBuffer = null;
+    }
+  }
+
+  private int[] computeForegroundBounds(ClearCLImage[] pImages) throws IOException
+  {
+    ClearCLContext lContext = pImages[0].getContext();
+    long[] lDimensions = pImages[0].getDimensions();
+    if (mBoundsBuffer == null)
+      mBoundsBuffer = lContext.createBuffer(NativeTypeEnum.Int, 6);
+
+    // one work item per block:
+    long[] lBlocks = new long[3];
+    for (int d = 0; d < 3; d++)
+      lBlocks[d] = (lDimensions[d] + mDownsamplingFactor - 1)
+                   / mDownsamplingFactor;
+
+    // empty box:
+    IntBuffer lBounds = IntBuffer.wrap(new int[]
+    { (int) lDimensions[0],
+      (int) lDimensions[1],
+      (int) lDimensions[2],
+      0,
+      0,
+      0 });
+    mBoundsBuffer.readFrom(lBounds, true);
+
+    for (ClearCLImage lImage : pImages)
+    {
+      double[] lMinMaxMean = mRangeTask.computeMinMaxMean(lImage);
+      float lThreshold = (float) (lMinMaxMean[2]
+                                  + mThreshold * (lMinMaxMean[1]
+                                                  - lMinMaxMean[2]));
+      ClearCLKernel lKernel =
+                            getKernel(lContext,
+                                      "foreground_bounds",
+                                      TaskHelper.getOpenCLDefines(lImage,
+                                                                  lImage));
+      lKernel.setGlobalSizes(lBlocks);
+      lKernel.setArguments(mBoundsBuffer,
+                           lImage,
+                           mDownsamplingFactor,
+                           lThreshold);
+      runKernel(lKernel, false);
+    }
+
+    mBoundsBuffer.writeTo(lBounds, true);
+    return lBounds.array();
+  }
+
+  /**
+   * Returns the last crop box if it contains the given crop box, and the given
+   * crop box otherwise
+   *
+   * @param pLastBox
+   *          origin and dimensions of the last crop box
+   * @param pBox
+   *          origin and dimensions of the crop box of the current foreground
+   * @return origin and dimensions of the crop box to use
+   */
+  public static long[][] getReusedCropBox(long[][] pLastBox,
+                                          long[][] pBox)
+  {
+    for (int d = 0; d < 3; d++)
+      if (pBox[0][d] < pLastBox[0][d]
+          || pBox[0][d] + pBox[1][d] > pLastBox[0][d] + pLastBox[1][d])
+        return pBox;
+    return pLastBox;
+  }
+
+  /**
+   * Returns the crop box for given foreground bounds: the bounds extended by
+   * the margin, with width and height rounded up to multiples of the
+   * alignment, and clamped to the image. The whole image is returned if the
+   * bounds are empty.
+   *
+   * @param pBounds
+   *          begin x, y, z (inclusive) and end x, y, z (exclusive) of the
+   *          foreground
+   * @param pDimensions
+   *          image dimensions
+   * @param pMargin
+   *          margin in voxels
+   * @param pAlignment
+   *          alignment of width and height
+   * @return origin and dimensions of the crop box
+   */
+  public static long[][] getCropBox(int[] pBounds,
+                                    long[] pDimensions,
+                                    int pMargin,
+                                    int pAlignment)
+  {
+    long[] lOrigin = new long[3];
+    long[] lDimensions = Arrays.copyOf(pDimensions, 3);
+    if (pBounds[3] <= pBounds[0] || pBounds[4] <= pBounds[1]
+        || pBounds[5] <= pBounds[2])
+      return new long[][]
+      { lOrigin, lDimensions };
+
+    for (int d = 0; d < 3; d++)
+    {
+      long lBegin = Math.max(0, pBounds[d] - pMargin);
+      long lEnd = Math.min(pDimensions[d], pBounds[d + 3] + pMargin);
+      long lSize = lEnd - lBegin;
+      if (d < 2)
+      {
+        // grow on both sides, shifting back into the image if needed:
+        long lAlignedSize = Math.min((lSize + pAlignment - 1)
+                                     / pAlignment
+                                     * pAlignment,
+                                     pDimensions[d]);
+        lBegin = Math.max(0, lBegin - (lAlignedSize - lSize) / 2);
+        lBegin = Math.min(lBegin, pDimensions[d] - lAlignedSize);
+        lSize = lAlignedSize;
+      }
+      lOrigin[d] = lBegin;
+      lDimensions[d] = lSize;
+    }
+    return new long[][]
+    { lOrigin, lDimensions };
+  }
+
+}
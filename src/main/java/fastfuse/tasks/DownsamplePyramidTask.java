@@ -0,0 +1,285 @@
+package fastfuse.tasks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.vecmath.Matrix4f;
+
+import clearcl.ClearCLImage;
+import clearcl.ClearCLKernel;
+import clearcl.enums.ImageChannelDataType;
+import fastfuse.FastFusionEngineInterface;
+import fastfuse.FastFusionException;
+import fastfuse.registration.AffineMatrix;
+
+import org.apache.commons.lang3.tuple.MutablePair;
+
+/**
+ * Computes several levels of a downsampling pyramid in a single kernel launch.
+ * Each level is downsampled from the previous one by integer factors along X,
+ * Y and Z, and only the levels that have a slot key are written, so that e.g.
+ * downsampling by 8 only allocates and writes the last level.
+ *
+ * @author royer
+ */
+public class DownsamplePyramidTask extends TaskBase
+                                   implements TaskInterface
+{
+  /**
+   * Maximal number of levels computed by one task
+   */
+  public static final int cMaxLevels = 4;
+
+  private final String mSrcImageKey;
+  private final String[] mLevelImageKeys;
+  private final int[] mFactors;
+  private final Type mType;
+  private final ImageChannelDataType mDstDataType;
+
+  public enum Type
+  {
+   Nearest, Average
+  }
+
+  public static List<TaskInterface> applyAndReleaseInputs(Type pType,
+                                                          int[] pFactors,
+                                                          String pSrcImageKey,
+                                                          String... pLevelImageKeys)
+  {
+    return apply(true, pType, pFactors, pSrcImageKey, pLevelImageKeys);
+  }
+
+  public static List<TaskInterface> apply(boolean pReleaseInput,
+                                          Type pType,
+                                          int[] pFactors,
+                                          String pSrcImageKey,
+                                          String... pLevelImageKeys)
+  {
+    List<TaskInterface> lTaskList = new ArrayList<>();
+    DownsamplePyramidTask lTask = new DownsamplePyramidTask(pSrcImageKey,
+                                                            pLevelImageKeys,
+                                                            pFactors,
+                                                            pType,
+                                                            null);
+    lTaskList.add(lTask);
+    if (pReleaseInput)
+      lTaskList.add(new MemoryReleaseTask(lTask.getProducedImagesSlotKeys(),
+                                          pSrcImageKey));
+    return lTaskList;
+  }
+
+  /**
+   * Instantiates a pyramid downsampling task
+   *
+   * @param pSrcImageKey
+   *          source image key
+   * @param pLevelImageKeys
+   *          keys of the levels 1, 2, ... of the pyramid, null for levels that
+   *          are not needed
+   * @param pFactors
+   *          downsampling factors between consecutive levels along X, Y and Z
+   * @param pType
+   *          downsampling type
+   * @param pDstDataType
+   *          data type of the levels, or null for the source data type
+   */
+  public DownsamplePyramidTask(String pSrcImageKey,
+                               String[] pLevelImageKeys,
+                               int[] pFactors,
+                               Type pType,
+                               ImageChannelDataType pDstDataType)
+  {
+    super(pSrcImageKey);
+    setupProgram(DownsamplePyramidTask.class,
+                 "./kernels/downsampling.cl");
+
+    int lNumberOfLevels = 0;
+    for (int l = 0; l < pLevelImageKeys.length; l++)
+      if (pLevelImageKeys[l] != null)
+        lNumberOfLevels = l + 1;
+    if (lNumberOfLevels == 0 || lNumberOfLevels > cMaxLevels)
+      throw new FastFusionException("Pyramid must have between 1 and %d levels, got: %s",
+                                    cMaxLevels,
+                                    Arrays.toString(pLevelImageKeys));
+    if (pFactors.length != 3 || pFactors[0] < 1
+        || pFactors[1] < 1
+        || pFactors[2] < 1)
+      throw new FastFusionException("Invalid pyramid downsampling factors: %s",
+                                    Arrays.toString(pFactors));
+
+    mSrcImageKey = pSrcImageKey;
+    mLevelImageKeys = Arrays.copyOf(pLevelImageKeys, lNumberOfLevels);
+    for (String lLevelImageKey : mLevelImageKeys)
+      if (lLevelImageKey != null)
+        addProducedImages(lLevelImageKey);
+    mFactors = pFactors.clone();
+    mType = pType;
+    mDstDataType = pDstDataType;
+  }
+
+  @Override
+  public String getSignature()
+  {
+    return String.format("type=%s, factors=%s, mask=%d, dtype=%s",
+                         mType,
+                         Arrays.toString(mFactors),
+                         getWriteMask(),
+                         mDstDataType);
+  }
+
+  @Override
+  public Matrix4f getPropagatedImageTransform(String pProducedSlotKey,
+                                              Matrix4f pTransform)
+  {
+    // a level voxel v corresponds to the source position L v = D v + c, where
+    // c = (D-1)/2 is the center of the averaged block (0 when the first voxel
+    // of the block is sampled), the transform of the level is thus L^-1 T L:
+    int lLevel = Arrays.asList(mLevelImageKeys).indexOf(pProducedSlotKey)
+                 + 1;
+    float[] lScaling = new float[3];
+    float[] lShift = new float[3];
+    for (int d = 0; d < 3; d++)
+    {
+      lScaling[d] = (float) Math.pow(mFactors[d], lLevel);
+      lShift[d] = mType == Type.Average ? (lScaling[d] - 1) / 2 : 0;
+    }
+    Matrix4f lLevelMatrix =
+                          AffineMatrix.multiply(AffineMatrix.translation(lShift),
+                                                AffineMatrix.scaling(lScaling));
+    Matrix4f lLevelMatrixInverse = new Matrix4f();
+    lLevelMatrixInverse.invert(lLevelMatrix);
+    return AffineMatrix.multiply(lLevelMatrixInverse,
+                                 pTransform,
+                                 lLevelMatrix);
+  }
+
+  private int getWriteMask()
+  {
+    int lWriteMask = 0;
+    for (int l = 0; l < mLevelImageKeys.length; l++)
+      if (mLevelImageKeys[l] != null)
+        lWriteMask |= 1 << l;
+    return lWriteMask;
+  }
+
+  /**
+   * Returns the dimensions of a given pyramid level, floored at each level when
+   * not divisible by the factors
+   *
+   * @param pSrcDimensions
+   *          source image dimensions
+   * @param pFactors
+   *          downsampling factors between consecutive levels
+   * @param pLevel
+   *          level (0 being the source)
+   * @return level dimensions
+   */
+  public static long[] getLevelDimensions(long[] pSrcDimensions,
+                                          int[] pFactors,
+                                          int pLevel)
+  {
+    long[] lDimensions = pSrcDimensions.clone();
+    for (int l = 0; l < pLevel; l++)
+      for (int d = 0; d < 3; d++)
+        lDimensions[d] /= pFactors[d];
+    return lDimensions;
+  }
+
+  @Override
+  public int getHaloDepth(long[] pStackDimensions)
+  {
+    // each level voxel only depends on the source voxels it covers
+    return 0;
+  }
+
+  @Override
+  public int getDepthReduction(String pProducedSlotKey)
+  {
+    int lLevel = Arrays.asList(mLevelImageKeys).indexOf(pProducedSlotKey)
+                 + 1;
+    return (int) Math.pow(mFactors[2], lLevel);
+  }
+
+  @Override
+  public boolean enqueue(FastFusionEngineInterface pFastFusionEngine,
+                         boolean pWaitToFinish)
+  {
+    ClearCLImage lSrcImage = pFastFusionEngine.getImage(mSrcImageKey);
+    if (lSrcImage == null)
+      throw new FastFusionException("Pyramid task %s received a null image",
+                                    this);
+
+    int lNumberOfLevels = mLevelImageKeys.length;
+    long[] lSrcDims = lSrcImage.getDimensions();
+
+    // level dimensions are floored, like when downsampling level by level:
+    // one work item per coarsest voxel, plus the ones covering the remaining
+    // level 1 voxels
+    long[] lLevel1Dims = getLevelDimensions(lSrcDims, mFactors, 1);
+    long[] lGlobalSizes = new long[3];
+    for (int d = 0; d < 3; d++)
+    {
+      long lSpan = (long) Math.pow(mFactors[d], lNumberOfLevels - 1);
+      lGlobalSizes[d] = (lLevel1Dims[d] + lSpan - 1) / lSpan;
+    }
+
+    ImageChannelDataType lDstDataType = mDstDataType;
+    if (lDstDataType == null)
+      lDstDataType = lSrcImage.getChannelDataType();
+
+    ArrayList<MutablePair<Boolean, ClearCLImage>> lFlagAndDstImages =
+                                                                    new ArrayList<>();
+    ClearCLImage[] lDstImages = new ClearCLImage[cMaxLevels];
+    for (int l = 0; l < lNumberOfLevels; l++)
+      if (mLevelImageKeys[l] != null)
+      {
+        MutablePair<Boolean, ClearCLImage> lFlagAndDstImage =
+                                                            pFastFusionEngine.ensureImageAllocated(mLevelImageKeys[l],
+                                                                                                   lDstDataType,
+                                                                                                   getLevelDimensions(lSrcDims,
+                                                                                                                      mFactors,
+                                                                                                                      l + 1));
+        lFlagAndDstImages.add(lFlagAndDstImage);
+        lDstImages[l] = lFlagAndDstImage.getRight();
+      }
+
+    // levels that are not written still need a valid kernel argument:
+    ClearCLImage lCoarsestImage = lDstImages[lNumberOfLevels - 1];
+    for (int l = 0; l < cMaxLevels; l++)
+      if (lDstImages[l] == null)
+        lDstImages[l] = lCoarsestImage;
+
+    assert TaskHelper.allowedDataType(lSrcImage, lCoarsestImage);
+
+    try
+    {
+      ClearCLKernel lKernel = getKernel(lSrcImage.getContext(),
+                                        "downsample_pyramid",
+                                        TaskHelper.getOpenCLDefines(lSrcImage,
+                                                                    lCoarsestImage));
+      int i = 0;
+      for (ClearCLImage lDstImage : lDstImages)
+        lKernel.setArgument(i++, lDstImage);
+      lKernel.setArgument(i++, lSrcImage);
+      for (int lFactor : mFactors)
+        lKernel.setArgument(i++, lFactor);
+      lKernel.setArgument(i++, lNumberOfLevels);
+      lKernel.setArgument(i++, getWriteMask());
+      lKernel.setArgument(i++, mType == Type.Average ? 1 : 0);
+
+      lKernel.setGlobalSizes(lGlobalSizes);
+      runKernel(lKernel, pWaitToFinish);
+      for (MutablePair<Boolean, ClearCLImage> lFlagAndDstImage : lFlagAndDstImages)
+        lFlagAndDstImage.setLeft(true);
+      return true;
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+}
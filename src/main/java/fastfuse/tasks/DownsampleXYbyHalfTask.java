@@ -94,10 +94,24 @@ public class DownsampleXYbyHalfTask extends TaskBase
                  "./kernels/downsampling.cl");
     mSrcImageKey = pSrcImageKey;
     mDstImageKey = pDstImageKey;
+    addProducedImages(pDstImageKey);
     mDstDataType = pDstDataType;
     mType = pType;
   }
 
+  @Override
+  public String getSignature()
+  {
+    return String.format("type=%s, dtype=%s", mType, mDstDataType);
+  }
+
+  @Override
+  public int getHaloDepth(long[] pStackDimensions)
+  {
+    // planes are downsampled independently
+    return 0;
+  }
+
   @Override
   public boolean enqueue(FastFusionEngineInterface pFastFusionEngine,
                          boolean pWaitToFinish)
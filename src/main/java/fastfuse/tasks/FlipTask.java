@@ -1,13 +1,23 @@
 package fastfuse.tasks;
 
+import java.util.Arrays;
+
+import javax.vecmath.Matrix4f;
+
 import clearcl.ClearCLImage;
 import clearcl.ClearCLKernel;
 import fastfuse.FastFusionEngineInterface;
 import fastfuse.FastFusionException;
+import fastfuse.registration.AffineMatrix;
 
 import org.apache.commons.lang3.tuple.MutablePair;
 
 /**
+ * Flips and permutes the axes of a stack. Unless the flipped image is
+ * materialized, no voxel is copied: the destination slot refers to the input
+ * image with the corresponding orientation attached as image transform, which
+ * downstream tasks honor when computing their read coordinates (or the engine
+ * resamples the image for tasks that do not accept image transforms).
  *
  * @author royer
  */
@@ -17,6 +27,11 @@ public class FlipTask extends TaskBase implements TaskInterface
 
   private boolean mFlipX, mFlipY, mFlipZ;
 
+  private int[] mAxisPermutation = new int[]
+  { 0, 1, 2 };
+
+  private volatile boolean mMaterializeFlippedImage = true;
+
   /**
    * Instantiates stack X axis flip task given the keys for two input images and
    * destination image
@@ -89,13 +104,58 @@ public class FlipTask extends TaskBase implements TaskInterface
     super(pInputImageSlotKey);
     mInputImageSlotKey = pInputImageSlotKey;
     mDestImageSlotKey = pDestImageSlotKey;
+    addProducedImages(pDestImageSlotKey);
     setupProgram(FusionTaskBase.class, "./kernels/flip.cl");
   }
 
+  @Override
+  public String getSignature()
+  {
+    return String.format("flipx=%s, flipy=%s, flipz=%s, axes=%s, materialize=%s",
+                         isFlipX(),
+                         isFlipY(),
+                         isFlipZ(),
+                         Arrays.toString(mAxisPermutation),
+                         isMaterializeFlippedImage());
+  }
+
+  @Override
+  public String getInPlaceSourceSlotKey()
+  {
+    return isFlipOnly() ? mInputImageSlotKey : null;
+  }
+
+  @Override
+  public boolean acceptsImageTransforms()
+  {
+    return !isFlipOnly();
+  }
+
+  private boolean isFlipOnly()
+  {
+    return mMaterializeFlippedImage && !isPermuted();
+  }
+
+  private boolean isPermuted()
+  {
+    return mAxisPermutation[0] != 0 || mAxisPermutation[1] != 1
+           || mAxisPermutation[2] != 2;
+  }
+
+  @Override
+  public int getHaloDepth(long[] pStackDimensions)
+  {
+    // flips along z and permutations of z reverse or change the planes
+    return isFlipZ() || mAxisPermutation[2] != 2 ? -1 : 0;
+  }
+
   @Override
   public boolean enqueue(FastFusionEngineInterface pFastFusionEngine,
                          boolean pWaitToFinish)
   {
+    if (!isFlipOnly())
+      return enqueueView(pFastFusionEngine);
+
     // First we prepare the images
 
     ClearCLImage lInputImage =
@@ -114,14 +174,22 @@ public class FlipTask extends TaskBase implements TaskInterface
 
     ClearCLImage lDestImage = lDestImageAndFlag.getValue();
 
+    // in place, voxels are swapped pairwise and only half of the volume along
+    // the slowest flipped axis needs to be processed:
+    boolean lInPlace = lInputImage == lDestImage;
+
     ClearCLKernel lKernel = null;
 
     try
     {
-      if (lInputImage.isFloat())
-        lKernel = getKernel(lDestImage.getContext(), "flip_f");
-      else if (lInputImage.isInteger())
-        lKernel = getKernel(lDestImage.getContext(), "flip_ui");
+      String lKernelName = lInPlace ? "flip_inplace" : "flip";
+      lKernelName +=
+                  TaskHelper.isAccessedAsFloat(lInputImage.getChannelDataType()) ? "_f"
+                                                                                 : "_ui";
+      lKernel = getKernel(lDestImage.getContext(),
+                          lKernelName,
+                          lInPlace ? TaskHelper.getInPlaceOpenCLDefines(lDestImage)
+                                   : null);
     }
     catch (Exception e)
     {
@@ -132,10 +200,21 @@ public class FlipTask extends TaskBase implements TaskInterface
     lKernel.setArgument("flipx", isFlipX() ? 1 : 0);
     lKernel.setArgument("flipy", isFlipY() ? 1 : 0);
     lKernel.setArgument("flipz", isFlipZ() ? 1 : 0);
-    lKernel.setArgument("imagein", lInputImage);
-    lKernel.setArgument("imageout", lDestImage);
 
-    lKernel.setGlobalSizes(lDestImage);
+    if (lInPlace)
+    {
+      lKernel.setArgument("image", lDestImage);
+      long[] lGlobalSizes = lDestImage.getDimensions().clone();
+      int lHalvedAxis = isFlipZ() ? 2 : isFlipY() ? 1 : 0;
+      lGlobalSizes[lHalvedAxis] = (lGlobalSizes[lHalvedAxis] + 1) / 2;
+      lKernel.setGlobalSizes(lGlobalSizes);
+    }
+    else
+    {
+      lKernel.setArgument("imagein", lInputImage);
+      lKernel.setArgument("imageout", lDestImage);
+      lKernel.setGlobalSizes(lDestImage);
+    }
 
     // System.out.println("running kernel");
     runKernel(lKernel, pWaitToFinish);
@@ -145,6 +224,97 @@ public class FlipTask extends TaskBase implements TaskInterface
 
   }
 
+  /**
+   * Attaches the orientation to the input image instead of copying it, and
+   * materializes it only if requested or if the axes are permuted, since the
+   * flip kernels do not permute axes.
+   */
+  private boolean enqueueView(FastFusionEngineInterface pFastFusionEngine)
+  {
+    long[] lSrcDimensions =
+                          pFastFusionEngine.getImageDimensions(mInputImageSlotKey);
+    if (lSrcDimensions == null)
+      throw new FastFusionException("Fusion task %s received a null image",
+                                    this);
+
+    long[] lDstDimensions = new long[3];
+    for (int d = 0; d < 3; d++)
+      lDstDimensions[d] = lSrcDimensions[mAxisPermutation[d]];
+
+    Matrix4f lTransform = AffineMatrix.orientation(mAxisPermutation,
+                                                   new boolean[]
+                                                   { isFlipX(),
+                                                     isFlipY(),
+                                                     isFlipZ() },
+                                                   lSrcDimensions);
+    Matrix4f lSrcTransform =
+                           pFastFusionEngine.getImageTransform(mInputImageSlotKey);
+    if (lSrcTransform != null)
+      lTransform = AffineMatrix.multiply(lSrcTransform, lTransform);
+
+    pFastFusionEngine.assignImageToAnotherSlotKey(mInputImageSlotKey,
+                                                  mDestImageSlotKey);
+    long[] lStoredDimensions =
+                             pFastFusionEngine.getImage(mDestImageSlotKey)
+                                              .getDimensions();
+    pFastFusionEngine.setImageTransform(mDestImageSlotKey,
+                                        lTransform,
+                                        Arrays.equals(lDstDimensions,
+                                                      lStoredDimensions) ? null
+                                                                         : lDstDimensions);
+    if (mMaterializeFlippedImage)
+      pFastFusionEngine.materializeImage(mDestImageSlotKey);
+    return true;
+  }
+
+  /**
+   * Sets the permutation of the axes: axis d of the destination image is axis
+   * pAxisPermutation[d] of the input image. Flips apply to the axes of the
+   * destination image.
+   * 
+   * @param pAxisPermutation
+   *          permutation of (0, 1, 2)
+   */
+  public void setAxisPermutation(int... pAxisPermutation)
+  {
+    int[] lSorted = pAxisPermutation.clone();
+    Arrays.sort(lSorted);
+    if (!Arrays.equals(lSorted, new int[]
+    { 0, 1, 2 }))
+      throw new FastFusionException("Invalid axis permutation: %s",
+                                    Arrays.toString(pAxisPermutation));
+    mAxisPermutation = pAxisPermutation.clone();
+  }
+
+  public int[] getAxisPermutation()
+  {
+    return mAxisPermutation.clone();
+  }
+
+  /**
+   * Sets whether the flipped image is computed (true), or the destination slot
+   * refers to the input image with the orientation attached to it (false).
+   * Views of integer images are materialized by the consuming task, since they
+   * cannot be sampled with interpolation.
+   * 
+   * @param pMaterializeFlippedImage
+   *          true -> flipped image is computed
+   */
+  public void setMaterializeFlippedImage(boolean pMaterializeFlippedImage)
+  {
+    mMaterializeFlippedImage = pMaterializeFlippedImage;
+  }
+
+  /**
+   * Returns whether the flipped image is computed
+   * 
+   * @return true if the flipped image is computed
+   */
+  public boolean isMaterializeFlippedImage()
+  {
+    return mMaterializeFlippedImage;
+  }
+
   public boolean isFlipX()
   {
     return mFlipX;
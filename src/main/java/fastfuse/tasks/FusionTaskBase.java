@@ -11,7 +11,8 @@ import fastfuse.FastFusionException;
 import org.apache.commons.lang3.tuple.MutablePair;
 
 /**
- * Base class providing common machinery for fusing 2 or 4 stacks together.
+ * Base class providing common machinery for fusing any number of stacks
+ * together.
  *
  * @author royer
  */
@@ -43,6 +44,7 @@ public abstract class FusionTaskBase extends TaskBase
     mInputImagesSlotKeys = new String[]
     { pImageASlotKey, pImageBSlotKey };
     mDestImageSlotKey = pDestImageKey;
+    addProducedImages(pDestImageKey);
 
     mDestinationImageDataType = ImageChannelDataType.UnsignedInt16;
   }
@@ -78,55 +80,76 @@ public abstract class FusionTaskBase extends TaskBase
       pImageCSlotKey,
       pImageDSlotKey };
     mDestImageSlotKey = pDestImageSlotKey;
+    addProducedImages(pDestImageSlotKey);
 
     mDestinationImageDataType = ImageChannelDataType.UnsignedInt16;
   }
 
+  /**
+   * Instantiates a fusion task given the keys for any number of input images
+   * and destination image.
+   *
+   * @param pInputImagesSlotKeys
+   *          input images keys
+   * @param pDestImageSlotKey
+   *          destination image key
+   */
+  public FusionTaskBase(String[] pInputImagesSlotKeys,
+                        String pDestImageSlotKey)
+  {
+    super(pInputImagesSlotKeys);
+    if (pInputImagesSlotKeys.length < 2)
+      throw new FastFusionException("Fusion task requires at least two input images, got: %s",
+                                    Arrays.toString(pInputImagesSlotKeys));
+    mInputImagesSlotKeys = pInputImagesSlotKeys.clone();
+    mDestImageSlotKey = pDestImageSlotKey;
+    addProducedImages(pDestImageSlotKey);
+
+    mDestinationImageDataType = ImageChannelDataType.UnsignedInt16;
+  }
+
+  /**
+   * Returns the number of images fused by this task
+   *
+   * @return number of input images
+   */
+  public int getNumberOfInputImages()
+  {
+    return mInputImagesSlotKeys.length;
+  }
+
+  @Override
+  public String getSignature()
+  {
+    return String.format("dtype=%s", mDestinationImageDataType);
+  }
+
   @Override
   public boolean enqueue(FastFusionEngineInterface pFastFusionEngine,
                          boolean pWaitToFinish)
   {
     // First we prepare the images
 
-    ClearCLImage lImageA, lImageB, lImageC = null, lImageD = null;
-
-    lImageA = pFastFusionEngine.getImage(mInputImagesSlotKeys[0]);
-    lImageB = pFastFusionEngine.getImage(mInputImagesSlotKeys[1]);
+    int lNumberOfImages = mInputImagesSlotKeys.length;
+    ClearCLImage[] lImages = new ClearCLImage[lNumberOfImages];
 
-    if (lImageA == null || lImageB == null)
-      throw new FastFusionException("Fusion task %s received a null image",
-                                    this);
-
-    if (!Arrays.equals(lImageA.getDimensions(),
-                       lImageB.getDimensions()))
-      throw new FastFusionException("Fusion task %s received two images of incompatible dimensions: %s and %s",
-                                    this,
-                                    Arrays.toString(lImageA.getDimensions()),
-                                    Arrays.toString(lImageB.getDimensions()));
-
-    if (mInputImagesSlotKeys.length == 4)
+    for (int i = 0; i < lNumberOfImages; i++)
     {
-      lImageC = pFastFusionEngine.getImage(mInputImagesSlotKeys[2]);
-      lImageD = pFastFusionEngine.getImage(mInputImagesSlotKeys[3]);
-
-      if (lImageC == null || lImageD == null)
+      lImages[i] = pFastFusionEngine.getImage(mInputImagesSlotKeys[i]);
+      if (lImages[i] == null)
         throw new FastFusionException("Fusion task %s received a null image",
                                       this);
+    }
 
-      if (!Arrays.equals(lImageC.getDimensions(),
-                         lImageD.getDimensions()))
-        throw new FastFusionException("Fusion task %s received two images of incompatible dimensions: %s and %s",
-                                      this,
-                                      Arrays.toString(lImageC.getDimensions()),
-                                      Arrays.toString(lImageD.getDimensions()));
+    ClearCLImage lImageA = lImages[0], lImageB = lImages[1];
 
+    for (int i = 1; i < lNumberOfImages; i++)
       if (!Arrays.equals(lImageA.getDimensions(),
-                         lImageC.getDimensions()))
+                         lImages[i].getDimensions()))
         throw new FastFusionException("Fusion task %s received two images of incompatible dimensions: %s and %s",
                                       this,
                                       Arrays.toString(lImageA.getDimensions()),
-                                      Arrays.toString(lImageC.getDimensions()));
-    }
+                                      Arrays.toString(lImages[i].getDimensions()));
 
     MutablePair<Boolean, ClearCLImage> lImageAndFlag =
                                                      pFastFusionEngine.ensureImageAllocated(mDestImageSlotKey,
@@ -134,12 +157,7 @@ public abstract class FusionTaskBase extends TaskBase
                                                                                             lImageA.getDimensions());
     // Then we do the actual work:
 
-    boolean lResult = fuse(lImageA,
-                           lImageB,
-                           lImageC,
-                           lImageD,
-                           lImageAndFlag,
-                           pWaitToFinish);
+    boolean lResult = fuse(lImages, lImageAndFlag, pWaitToFinish);
 
     // Debug display:
 
@@ -188,26 +206,17 @@ public abstract class FusionTaskBase extends TaskBase
   }
 
   /**
-   * Given the 2 or 4 input images, this method runs the actual fusion
+   * Given the input images, this method runs the actual fusion
    * 
-   * @param pImageA
-   *          input image A
-   * @param pImageB
-   *          input image B
-   * @param pImageC
-   *          input image C
-   * @param pImageD
-   *          input image D
+   * @param pImages
+   *          input images, in the order of the input slot keys
    * @param pImageAndFlag
    *          Destination image and 'ready' flag.
    * @param pWaitToFinish
    *          true -> waits to finish
    * @return true for success, false otherwise.
    */
-  public abstract boolean fuse(ClearCLImage pImageA,
-                               ClearCLImage pImageB,
-                               ClearCLImage pImageC,
-                               ClearCLImage pImageD,
+  public abstract boolean fuse(ClearCLImage[] pImages,
                                MutablePair<Boolean, ClearCLImage> pImageAndFlag,
                                boolean pWaitToFinish);
 
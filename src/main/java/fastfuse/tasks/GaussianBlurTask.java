@@ -1,11 +1,19 @@
 package fastfuse.tasks;
 
 import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.stream.IntStream;
 
+import javax.vecmath.Matrix4f;
+
+import clearcl.ClearCLBuffer;
+import clearcl.ClearCLContext;
 import clearcl.ClearCLImage;
 import clearcl.ClearCLKernel;
 import clearcl.enums.ImageChannelDataType;
+import coremem.enums.NativeTypeEnum;
 import fastfuse.FastFusionEngineInterface;
 import fastfuse.FastFusionMemoryPool;
 
@@ -17,18 +25,107 @@ public class GaussianBlurTask extends TaskBase
   private final String mSrcImageKey, mDstImageKey;
   private final int[] mKernelSizes;
   private final float[] mKernelSigmas;
-  private final Boolean mSeparable;
+  private final Mode mMode;
+  private final ImageChannelDataType mDstDataType;
+  private ClearCLBuffer[] mWeightsBuffers;
+
+  private static final int cBlockSize = 64;
+
+  /**
+   * Blur implementations
+   */
+  public enum Mode
+  {
+   /**
+    * 3D convolution
+    */
+   Direct,
+   /**
+    * three 1D convolutions (float and half float images only)
+    */
+   Separable,
+   /**
+    * three 1D recursive filters approximating the Gaussian (Young - van Vliet),
+    * whose cost does not depend on sigma (float and half float images only)
+    */
+   Recursive;
+  }
 
   public GaussianBlurTask(String pSrcImageKey,
                           String pDstImageKey,
                           float[] pKernelSigmas,
                           int[] pKernelSizes,
                           Boolean pSeparable)
+  {
+    this(pSrcImageKey,
+         pDstImageKey,
+         pKernelSigmas,
+         pKernelSizes,
+         pSeparable == null ? null
+                            : pSeparable ? Mode.Separable : Mode.Direct);
+  }
+
+  /**
+   * Instantiates a Gaussian blur task
+   * 
+   * @param pSrcImageKey
+   *          source image slot key
+   * @param pDstImageKey
+   *          destination image slot key
+   * @param pKernelSigmas
+   *          sigmas along x, y and z
+   * @param pKernelSizes
+   *          kernel sizes along x, y and z (odd), or null to derive them from
+   *          the sigmas (not used by the recursive mode)
+   * @param pMode
+   *          blur implementation, or null to choose between direct and
+   *          separable based on data type and kernel size
+   */
+  public GaussianBlurTask(String pSrcImageKey,
+                          String pDstImageKey,
+                          float[] pKernelSigmas,
+                          int[] pKernelSizes,
+                          Mode pMode)
+  {
+    this(pSrcImageKey,
+         pDstImageKey,
+         pKernelSigmas,
+         pKernelSizes,
+         pMode,
+         null);
+  }
+
+  /**
+   * Instantiates a Gaussian blur task
+   * 
+   * @param pSrcImageKey
+   *          source image slot key
+   * @param pDstImageKey
+   *          destination image slot key
+   * @param pKernelSigmas
+   *          sigmas along x, y and z
+   * @param pKernelSizes
+   *          kernel sizes along x, y and z (odd), or null to derive them from
+   *          the sigmas (not used by the recursive mode)
+   * @param pMode
+   *          blur implementation, or null to choose between direct and
+   *          separable based on data type and kernel size
+   * @param pDstDataType
+   *          destination data type (e.g. HalfFloat for intermediates), or null
+   *          for the source data type
+   */
+  public GaussianBlurTask(String pSrcImageKey,
+                          String pDstImageKey,
+                          float[] pKernelSigmas,
+                          int[] pKernelSizes,
+                          Mode pMode,
+                          ImageChannelDataType pDstDataType)
   {
     super(pSrcImageKey);
     setupProgram(GaussianBlurTask.class, "./kernels/blur.cl");
     mSrcImageKey = pSrcImageKey;
     mDstImageKey = pDstImageKey;
+    addProducedImages(pDstImageKey);
     assert pKernelSigmas != null && pKernelSigmas.length == 3;
     assert pKernelSizes == null || pKernelSizes.length == 3;
     if (pKernelSizes == null)
@@ -42,7 +139,8 @@ public class GaussianBlurTask extends TaskBase
     }
     mKernelSizes = pKernelSizes;
     mKernelSigmas = pKernelSigmas;
-    mSeparable = pSeparable;
+    mMode = pMode;
+    mDstDataType = pDstDataType;
   }
 
   public GaussianBlurTask(String pSrcImageKey,
@@ -54,14 +152,51 @@ public class GaussianBlurTask extends TaskBase
          pDstImageKey,
          pKernelSigmas,
          pKernelSizes,
-         null);
+         (Mode) null);
   }
 
   public GaussianBlurTask(String pSrcImageKey,
                           String pDstImageKey,
                           float[] pKernelSigmas)
   {
-    this(pSrcImageKey, pDstImageKey, pKernelSigmas, null, null);
+    this(pSrcImageKey,
+         pDstImageKey,
+         pKernelSigmas,
+         null,
+         (Mode) null);
+  }
+
+  public GaussianBlurTask(String pSrcImageKey,
+                          String pDstImageKey,
+                          float[] pKernelSigmas,
+                          Mode pMode)
+  {
+    this(pSrcImageKey, pDstImageKey, pKernelSigmas, null, pMode);
+  }
+
+  @Override
+  public String getSignature()
+  {
+    return String.format("sigmas=%s, sizes=%s, mode=%s, dtype=%s",
+                         Arrays.toString(mKernelSigmas),
+                         Arrays.toString(mKernelSizes),
+                         mMode,
+                         mDstDataType);
+  }
+
+  @Override
+  public Matrix4f getPropagatedImageTransform(String pProducedSlotKey,
+                                              Matrix4f pTransform)
+  {
+    // blurring only commutes with flips and with permutations of axes that
+    // have the same sigma:
+    int[] lAxisPermutation = TaskHelper.getFlipAxisPermutation(pTransform);
+    if (lAxisPermutation == null)
+      return null;
+    for (int d = 0; d < 3; d++)
+      if (mKernelSigmas[d] != mKernelSigmas[lAxisPermutation[d]])
+        return null;
+    return pTransform;
   }
 
   private int getKernelSize(float sigma)
@@ -70,6 +205,97 @@ public class GaussianBlurTask extends TaskBase
     return (lSize % 2 == 1) ? lSize : lSize + 1;
   }
 
+  /**
+   * Computes normalized 1D Gaussian weights
+   * 
+   * @param pSigma
+   *          sigma
+   * @param pSize
+   *          kernel size (odd)
+   * @return weights
+   */
+  public static float[] computeWeights(float pSigma, int pSize)
+  {
+    int lCenter = (pSize - 1) / 2;
+    double[] lWeights = new double[pSize];
+    double lSum = 0;
+    for (int v = -lCenter; v <= lCenter; v++)
+    {
+      lWeights[v + lCenter] = Math.exp(-(v * v) / (2.0 * pSigma * pSigma));
+      lSum += lWeights[v + lCenter];
+    }
+    float[] lNormalizedWeights = new float[pSize];
+    for (int i = 0; i < pSize; i++)
+      lNormalizedWeights[i] = (float) (lWeights[i] / lSum);
+    return lNormalizedWeights;
+  }
+
+  /**
+   * Computes the coefficients of the recursive Gaussian filter of Young and van
+   * Vliet (Signal Processing 44, 1995): {B, b1/b0, b2/b0, b3/b0}. Each pass
+   * computes w[n] = B x[n] + (b1 w[n-1] + b2 w[n-2] + b3 w[n-3]) / b0, once
+   * forward and once backward. Sigmas below 0.5 are clamped.
+   * 
+   * @param pSigma
+   *          sigma
+   * @return coefficients
+   */
+  public static float[] computeRecursiveCoefficients(float pSigma)
+  {
+    double lSigma = Math.max(0.5, pSigma);
+    double q = lSigma >= 2.5 ? 0.98711 * lSigma - 0.96330
+                             : 3.97156 - 4.14554
+                                         * Math.sqrt(1 - 0.26891 * lSigma);
+    double q2 = q * q, q3 = q2 * q;
+    double b0 = 1.57825 + 2.44413 * q + 1.4281 * q2 + 0.422205 * q3;
+    double b1 = 2.44413 * q + 2.85619 * q2 + 1.26661 * q3;
+    double b2 = -(1.4281 * q2 + 1.26661 * q3);
+    double b3 = 0.422205 * q3;
+    double B = 1 - (b1 + b2 + b3) / b0;
+    return new float[]
+    { (float) B, (float) (b1 / b0), (float) (b2 / b0), (float) (b3 / b0) };
+  }
+
+  private ClearCLBuffer[] getWeightsBuffers(ClearCLContext pContext)
+  {
+    // weights only depend on the (immutable) sigmas and kernel sizes:
+    if (mWeightsBuffers == null)
+    {
+      ClearCLBuffer[] lWeightsBuffers = new ClearCLBuffer[3];
+      for (int i = 0; i < 3; i++)
+      {
+        float[] lWeights = computeWeights(mKernelSigmas[i],
+                                          mKernelSizes[i]);
+        lWeightsBuffers[i] = pContext.createBuffer(NativeTypeEnum.Float,
+                                                   lWeights.length);
+        lWeightsBuffers[i].readFrom(FloatBuffer.wrap(lWeights), true);
+      }
+      mWeightsBuffers = lWeightsBuffers;
+    }
+    return mWeightsBuffers;
+  }
+
+  @Override
+  public void close()
+  {
+    ClearCLBuffer[] lWeightsBuffers = mWeightsBuffers;
+    mWeightsBuffers = null;
+    if (lWeightsBuffers != null)
+      for (ClearCLBuffer lWeightsBuffer : lWeightsBuffers)
+        lWeightsBuffer.close();
+  }
+
+  @Override
+  public int getHaloDepth(long[] pStackDimensions)
+  {
+    if (mMode == Mode.Recursive)
+      // the recursive filter has an infinite response with heavier tails than
+      // the Gaussian, less than 1e-4 of it lies beyond seven sigmas (results
+      // of slabs differ by that much):
+      return (int) Math.ceil(7 * mKernelSigmas[2]);
+    return (mKernelSizes[2] - 1) / 2;
+  }
+
   @Override
   public boolean enqueue(FastFusionEngineInterface pFastFusionEngine,
                          boolean pWaitToFinish)
@@ -79,65 +305,131 @@ public class GaussianBlurTask extends TaskBase
     lSrcImage = pFastFusionEngine.getImage(mSrcImageKey);
     assert TaskHelper.allowedDataType(lSrcImage);
 
-    boolean lSeparable;
-    if (mSeparable != null)
-                           // specifically requested
-                           lSeparable = mSeparable;
+    ImageChannelDataType lDstDataType = mDstDataType;
+    if (lDstDataType == null)
+      lDstDataType = lSrcImage.getChannelDataType();
+
+    Mode lMode;
+    if (mMode != null)
+      // specifically requested
+      lMode = mMode;
     else
     {
       // check requirements for separable
-      lSeparable =
-                 lSrcImage.getChannelDataType() == ImageChannelDataType.Float
-                   && (mKernelSizes[0] * mKernelSizes[1]
-                       * mKernelSizes[2] > 100);
+      boolean lSeparable =
+                         TaskHelper.isAccessedAsFloat(lSrcImage.getChannelDataType())
+                           && TaskHelper.isAccessedAsFloat(lDstDataType)
+                           && (mKernelSizes[0] * mKernelSizes[1]
+                               * mKernelSizes[2] > 100);
+      lMode = lSeparable ? Mode.Separable : Mode.Direct;
     }
+    boolean lSeparable = lMode != Mode.Direct;
+
+    MutablePair<Boolean, ClearCLImage> lFlagAndDstImage =
+                                                        pFastFusionEngine.ensureImageAllocated(mDstImageKey,
+                                                                                               lDstDataType,
+                                                                                               lSrcImage.getDimensions());
+    lDstImage = lFlagAndDstImage.getRight();
 
     if (lSeparable)
     {
-      assert lSrcImage.getChannelDataType() == ImageChannelDataType.Float;
-      // get temporary image
+      // the passes read and write the source, destination and temporary
+      // images with the same defines:
+      assert TaskHelper.allAccessedAsFloat(lSrcImage, lDstImage);
+      // get temporary image (shared by all tasks, only used during this call)
       lTmpImage =
                 FastFusionMemoryPool.get()
-                                    .requestImage(ImageChannelDataType.Float,
-                                                  lSrcImage.getDimensions());
+                                    .requestScratchImage(ImageChannelDataType.Float,
+                                                         lSrcImage.getDimensions());
     }
 
-    MutablePair<Boolean, ClearCLImage> lFlagAndDstImage =
-                                                        pFastFusionEngine.ensureImageAllocated(mDstImageKey,
-                                                                                               lSrcImage.getChannelDataType(),
-                                                                                               lSrcImage.getDimensions());
-    lDstImage = lFlagAndDstImage.getRight();
-
     try
     {
-      // TODO: test
       ClearCLKernel lKernel;
-      if (lSeparable)
+      if (lMode == Mode.Recursive)
       {
         lKernel = getKernel(lSrcImage.getContext(),
-                            "gaussian_blur_sep_image3d",
+                            "gaussian_blur_iir_image3d",
                             TaskHelper.getOpenCLDefines(lSrcImage,
                                                         lDstImage));
-        lKernel.setGlobalSizes(lSrcImage.getDimensions());
-        lKernel.setArguments(lDstImage,
-                             lSrcImage,
-                             0,
-                             mKernelSizes[0],
-                             mKernelSigmas[0]);
-        runKernel(lKernel, pWaitToFinish);
-        lKernel.setArguments(lTmpImage,
-                             lDstImage,
-                             1,
-                             mKernelSizes[1],
-                             mKernelSigmas[1]);
-        runKernel(lKernel, pWaitToFinish);
-        lKernel.setArguments(lDstImage,
-                             lTmpImage,
-                             2,
-                             mKernelSizes[2],
-                             mKernelSigmas[2]);
-        runKernel(lKernel, pWaitToFinish);
-        FastFusionMemoryPool.get().releaseImage(lTmpImage);
+
+        // per axis: forward pass into tmp, backward pass into dst
+        long[] lDimensions = lSrcImage.getDimensions();
+        for (int d = 0; d < 3; d++)
+        {
+          float[] lCoefficients =
+                                computeRecursiveCoefficients(mKernelSigmas[d]);
+          // one work item per line, x varies fastest whenever possible
+          long[] lGlobalSizes = d == 0 ? new long[]
+          { lDimensions[1], lDimensions[2] }
+                                       : d == 1 ? new long[]
+                                       { lDimensions[0], lDimensions[2] }
+                                                : new long[]
+                                                { lDimensions[0],
+                                                  lDimensions[1] };
+          lKernel.setGlobalSizes(lGlobalSizes);
+          for (int lBackward = 0; lBackward <= 1; lBackward++)
+          {
+            ClearCLImage lPassSrcImage = lBackward == 1 ? lTmpImage
+                                                        : d == 0 ? lSrcImage
+                                                                 : lDstImage;
+            ClearCLImage lPassDstImage = lBackward == 1 ? lDstImage
+                                                        : lTmpImage;
+            lKernel.setArguments(lPassDstImage,
+                                 lPassSrcImage,
+                                 d,
+                                 lBackward,
+                                 lCoefficients[0],
+                                 lCoefficients[1],
+                                 lCoefficients[2],
+                                 lCoefficients[3]);
+            runKernel(lKernel, pWaitToFinish);
+          }
+        }
+        lFlagAndDstImage.setLeft(true);
+        return true;
+      }
+
+      ClearCLBuffer[] lWeightsBuffers =
+                                      getWeightsBuffers(lSrcImage.getContext());
+      if (lSeparable)
+      {
+        int lMaxRadius = 0;
+        for (int lKernelSize : mKernelSizes)
+          lMaxRadius = Math.max(lMaxRadius, (lKernelSize - 1) / 2);
+
+        Map<String, Object> lDefines =
+                                     TaskHelper.getOpenCLDefines(lSrcImage,
+                                                                 lDstImage);
+        lDefines.put("BLOCK_SIZE", cBlockSize);
+        lDefines.put("MAX_RADIUS", lMaxRadius);
+        lKernel = getKernel(lSrcImage.getContext(),
+                            "gaussian_blur_sep_tiled_image3d",
+                            lDefines);
+
+        // src -> dst (x), dst -> tmp (y), tmp -> dst (z)
+        ClearCLImage[] lPassSrcImages = new ClearCLImage[]
+        { lSrcImage, lDstImage, lTmpImage };
+        ClearCLImage[] lPassDstImages = new ClearCLImage[]
+        { lDstImage, lTmpImage, lDstImage };
+        for (int d = 0; d < 3; d++)
+        {
+          long[] lGlobalSizes = lSrcImage.getDimensions().clone();
+          long[] lLocalSizes = new long[]
+          { 1, 1, 1 };
+          lGlobalSizes[d] = ((lGlobalSizes[d] + cBlockSize - 1)
+                             / cBlockSize)
+                            * cBlockSize;
+          lLocalSizes[d] = cBlockSize;
+          lKernel.setGlobalSizes(lGlobalSizes);
+          lKernel.setLocalSizes(lLocalSizes);
+          lKernel.setArguments(lPassDstImages[d],
+                               lPassSrcImages[d],
+                               d,
+                               (mKernelSizes[d] - 1) / 2,
+                               lWeightsBuffers[d]);
+          runKernel(lKernel, pWaitToFinish);
+        }
         lFlagAndDstImage.setLeft(true);
         return true;
       }
@@ -153,9 +445,9 @@ public class GaussianBlurTask extends TaskBase
                              mKernelSizes[0],
                              mKernelSizes[1],
                              mKernelSizes[2],
-                             mKernelSigmas[0],
-                             mKernelSigmas[1],
-                             mKernelSigmas[2]);
+                             lWeightsBuffers[0],
+                             lWeightsBuffers[1],
+                             lWeightsBuffers[2]);
         runKernel(lKernel, pWaitToFinish);
         lFlagAndDstImage.setLeft(true);
         return true;
@@ -39,10 +39,18 @@ public class IdentityTask extends TaskBase implements TaskInterface
   public IdentityTask(String pSrcImageSlotKey,
                       String pDstImageSlotKey)
   {
+    super(pSrcImageSlotKey);
+    addProducedImages(pDstImageSlotKey);
     mSrcImageSlotKey = pSrcImageSlotKey;
     mDstImageSlotKey = pDstImageSlotKey;
   }
 
+  @Override
+  public int getHaloDepth(long[] pStackDimensions)
+  {
+    return 0;
+  }
+
   @Override
   public boolean enqueue(FastFusionEngineInterface pFastFusionEngine,
                          boolean pWaitToFinish)
@@ -52,4 +60,17 @@ public class IdentityTask extends TaskBase implements TaskInterface
     return true;
   }
 
+  @Override
+  public boolean isInstantaneous()
+  {
+    return true;
+  }
+
+  @Override
+  public boolean acceptsImageTransforms()
+  {
+    // the transform is passed along with the image
+    return true;
+  }
+
 }
@@ -0,0 +1,87 @@
+package fastfuse.tasks;
+
+/**
+ * XY, XZ and YZ projections of a stack, possibly downsampled. Each projection
+ * is stored row by row: the XY projection has width x and height y, the XZ
+ * projection width x and height z, and the YZ projection width y and height z.
+ * Projections are immutable, their getters return copies since the same
+ * instance is passed to all listeners.
+ *
+ * @author royer
+ */
+public class ImageProjections
+{
+  private final long mWidth, mHeight, mDepth;
+  private final float[] mXY, mXZ, mYZ;
+
+  /**
+   * Instantiates projections
+   *
+   * @param pWidth
+   *          width of the projections along x
+   * @param pHeight
+   *          height of the projections along y
+   * @param pDepth
+   *          depth of the projections along z
+   * @param pXY
+   *          XY projection
+   * @param pXZ
+   *          XZ projection
+   * @param pYZ
+   *          YZ projection
+   */
+  public ImageProjections(long pWidth,
+                          long pHeight,
+                          long pDepth,
+                          float[] pXY,
+                          float[] pXZ,
+                          float[] pYZ)
+  {
+    mWidth = pWidth;
+    mHeight = pHeight;
+    mDepth = pDepth;
+    mXY = pXY;
+    mXZ = pXZ;
+    mYZ = pYZ;
+  }
+
+  public long getWidth()
+  {
+    return mWidth;
+  }
+
+  public long getHeight()
+  {
+    return mHeight;
+  }
+
+  public long getDepth()
+  {
+    return mDepth;
+  }
+
+  public float[] getXY()
+  {
+    return mXY.clone();
+  }
+
+  public float[] getXZ()
+  {
+    return mXZ.clone();
+  }
+
+  public float[] getYZ()
+  {
+    return mYZ.clone();
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("ImageProjections(width = %d, height = %d, depth = %d)",
+                         mWidth,
+                         mHeight,
+                         mDepth);
+  }
+
+}
@@ -0,0 +1,25 @@
+package fastfuse.tasks;
+
+/**
+ * Image projections listener interface. Listeners are notified of the
+ * projections computed by a projection task, from a thread of the task, such
+ * that slow listeners (e.g. displays) do not delay the execution of the
+ * engine.
+ *
+ * @author royer
+ */
+public interface ImageProjectionsListener
+{
+
+  /**
+   * Called to notify of new projections computed for an image
+   *
+   * @param pSlotKey
+   *          slot key of image
+   * @param pImageProjections
+   *          projections
+   */
+  void newImageProjections(String pSlotKey,
+                           ImageProjections pImageProjections);
+
+}
@@ -0,0 +1,139 @@
+package fastfuse.tasks;
+
+/**
+ * Statistics of the voxel values of an image: min, max, mean, variance and a
+ * histogram with bins of equal width between min and max, from which
+ * percentiles are approximated.
+ *
+ * @author royer
+ */
+public class ImageStatistics
+{
+  private final long mNumberOfVoxels;
+  private final double mMin, mMax, mMean, mVariance;
+  private final long[] mHistogram;
+
+  /**
+   * Instantiates image statistics
+   *
+   * @param pNumberOfVoxels
+   *          number of voxels
+   * @param pMin
+   *          min value
+   * @param pMax
+   *          max value
+   * @param pMean
+   *          mean value
+   * @param pVariance
+   *          variance (population variance)
+   * @param pHistogram
+   *          histogram with bins of equal width between min and max, the max
+   *          value being counted in the last bin
+   */
+  public ImageStatistics(long pNumberOfVoxels,
+                         double pMin,
+                         double pMax,
+                         double pMean,
+                         double pVariance,
+                         long[] pHistogram)
+  {
+    mNumberOfVoxels = pNumberOfVoxels;
+    mMin = pMin;
+    mMax = pMax;
+    mMean = pMean;
+    mVariance = pVariance;
+    mHistogram = pHistogram.clone();
+  }
+
+  public long getNumberOfVoxels()
+  {
+    return mNumberOfVoxels;
+  }
+
+  public double getMin()
+  {
+    return mMin;
+  }
+
+  public double getMax()
+  {
+    return mMax;
+  }
+
+  public double getMean()
+  {
+    return mMean;
+  }
+
+  public double getVariance()
+  {
+    return mVariance;
+  }
+
+  public double getStandardDeviation()
+  {
+    return Math.sqrt(mVariance);
+  }
+
+  /**
+   * Returns the histogram, with bins of equal width between min and max
+   *
+   * @return histogram
+   */
+  public long[] getHistogram()
+  {
+    return mHistogram.clone();
+  }
+
+  /**
+   * Returns the width of the histogram bins
+   *
+   * @return bin width
+   */
+  public double getBinWidth()
+  {
+    return (mMax - mMin) / mHistogram.length;
+  }
+
+  /**
+   * Returns an approximate percentile, interpolated linearly within the
+   * histogram bin that contains it. The error is thus at most one bin width.
+   *
+   * @param pPercentile
+   *          percentile between 0 and 100
+   * @return value below which the given percentage of voxels lie
+   */
+  public double getPercentile(double pPercentile)
+  {
+    if (pPercentile <= 0)
+      return mMin;
+    if (pPercentile >= 100)
+      return mMax;
+
+    double lRank = pPercentile / 100 * mNumberOfVoxels;
+    long lCumulativeCount = 0;
+    for (int b = 0; b < mHistogram.length; b++)
+    {
+      if (mHistogram[b] > 0 && lCumulativeCount + mHistogram[b] >= lRank)
+      {
+        double lFraction = (lRank - lCumulativeCount) / mHistogram[b];
+        return mMin + (b + lFraction) * getBinWidth();
+      }
+      lCumulativeCount += mHistogram[b];
+    }
+    return mMax;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("ImageStatistics(voxels = %d, min = %g, max = %g, mean = %g, stddev = %g, bins = %d)",
+                         mNumberOfVoxels,
+                         mMin,
+                         mMax,
+                         mMean,
+                         getStandardDeviation(),
+                         mHistogram.length);
+  }
+
+}
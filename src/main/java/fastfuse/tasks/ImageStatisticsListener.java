@@ -0,0 +1,23 @@
+package fastfuse.tasks;
+
+/**
+ * Image statistics listener interface. Listeners are notified of the
+ * statistics computed by an image statistics task
+ *
+ * @author royer
+ */
+public interface ImageStatisticsListener
+{
+
+  /**
+   * Called to notify of new statistics computed for an image
+   *
+   * @param pSlotKey
+   *          slot key of image
+   * @param pImageStatistics
+   *          statistics
+   */
+  void newImageStatistics(String pSlotKey,
+                          ImageStatistics pImageStatistics);
+
+}
@@ -0,0 +1,270 @@
+package fastfuse.tasks;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import clearcl.ClearCLBuffer;
+import clearcl.ClearCLContext;
+import clearcl.ClearCLImage;
+import clearcl.ClearCLKernel;
+import coremem.enums.NativeTypeEnum;
+import fastfuse.FastFusionEngineInterface;
+import fastfuse.FastFusionException;
+
+/**
+ * Computes the statistics of an image on the device: min, max and mean in a
+ * first pass, variance and histogram in a second pass. Only the partial results
+ * of each work group are downloaded, and the statistics are passed to the
+ * listeners and kept as last statistics. This task produces no image, it
+ * must thus run before the image is released.
+ *
+ * @author royer
+ */
+public class ImageStatisticsTask extends TaskBase
+                                 implements TaskInterface
+{
+  /**
+   * Maximal number of histogram bins, each work group keeps a histogram in
+   * local memory
+   */
+  public static final int cMaxNumberOfBins = 4096;
+
+  private static final int cGroupSize = 128;
+  private static final int cNumberOfGroups = 128;
+
+  private final String mSrcImageKey;
+  private final int mNumberOfBins;
+
+  private ClearCLBuffer mPartialsBuffer, mHistogramsBuffer;
+  private final FloatBuffer mPartials =
+                                      FloatBuffer.allocate(3 * cNumberOfGroups);
+  private final IntBuffer mHistograms;
+
+  private volatile ImageStatistics mLastStatistics;
+  private final CopyOnWriteArrayList<ImageStatisticsListener> mListenerList =
+                                                                            new CopyOnWriteArrayList<>();
+
+  /**
+   * Instantiates an image statistics task with a 256 bins histogram
+   *
+   * @param pSrcImageKey
+   *          image key
+   */
+  public ImageStatisticsTask(String pSrcImageKey)
+  {
+    this(pSrcImageKey, 256);
+  }
+
+  /**
+   * Instantiates an image statistics task
+   *
+   * @param pSrcImageKey
+   *          image key
+   * @param pNumberOfBins
+   *          number of histogram bins
+   */
+  public ImageStatisticsTask(String pSrcImageKey, int pNumberOfBins)
+  {
+    super(pSrcImageKey);
+    if (pNumberOfBins < 1 || pNumberOfBins > cMaxNumberOfBins)
+      throw new FastFusionException("Number of histogram bins must be between 1 and %d, got: %d",
+                                    cMaxNumberOfBins,
+                                    pNumberOfBins);
+    setupProgram(ImageStatisticsTask.class, "./kernels/statistics.cl");
+    mSrcImageKey = pSrcImageKey;
+    mNumberOfBins = pNumberOfBins;
+    mHistograms = IntBuffer.allocate(cNumberOfGroups * pNumberOfBins);
+  }
+
+  /**
+   * Adds a listener
+   *
+   * @param pImageStatisticsListener
+   *          listener
+   */
+  public void addListener(ImageStatisticsListener pImageStatisticsListener)
+  {
+    if (!mListenerList.contains(pImageStatisticsListener))
+      mListenerList.add(pImageStatisticsListener);
+  }
+
+  /**
+   * Removes a listener
+   *
+   * @param pImageStatisticsListener
+   *          listener
+   */
+  public void removeListener(ImageStatisticsListener pImageStatisticsListener)
+  {
+    mListenerList.remove(pImageStatisticsListener);
+  }
+
+  /**
+   * Returns the statistics computed by the last execution of this task
+   *
+   * @return last statistics, or null if none computed yet
+   */
+  public ImageStatistics getLastStatistics()
+  {
+    return mLastStatistics;
+  }
+
+  @Override
+  public boolean enqueue(FastFusionEngineInterface pFastFusionEngine,
+                         boolean pWaitToFinish)
+  {
+    ClearCLImage lSrcImage = pFastFusionEngine.getImage(mSrcImageKey);
+    if (lSrcImage == null)
+      throw new FastFusionException("Statistics task %s received a null image",
+                                    this);
+
+    try
+    {
+      ImageStatistics lStatistics = computeStatistics(lSrcImage);
+      mLastStatistics = lStatistics;
+      for (ImageStatisticsListener lListener : mListenerList)
+        lListener.newImageStatistics(mSrcImageKey, lStatistics);
+      return true;
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  /**
+   * Computes the statistics of a given image, waiting for the computation to
+   * finish
+   *
+   * @param pImage
+   *          image
+   * @return statistics
+   * @throws IOException
+   *           if the kernels cannot be loaded
+   */
+  public ImageStatistics computeStatistics(ClearCLImage pImage) throws IOException
+  {
+    // first pass: min, max and mean
+    double[] lMinMaxMean = computeMinMaxMean(pImage);
+    double lMin = lMinMaxMean[0], lMax = lMinMaxMean[1],
+        lMean = lMinMaxMean[2];
+    long lNumberOfVoxels = pImage.getVolume();
+    ClearCLContext lContext = pImage.getContext();
+
+    // second pass: variance and histogram
+    float lBinScale = lMax > lMin ? (float) (mNumberOfBins
+                                             / (lMax - lMin))
+                                  : 0;
+    ClearCLKernel lKernel = getKernel(lContext,
+                                      "statistics_variance_histogram",
+                                      getDefines(pImage));
+    lKernel.setGlobalSizes(cGroupSize * cNumberOfGroups);
+    lKernel.setLocalSizes(cGroupSize);
+    lKernel.setArguments(mPartialsBuffer,
+                         mHistogramsBuffer,
+                         pImage,
+                         (float) lMean,
+                         (float) lMin,
+                         lBinScale);
+    runKernel(lKernel, false);
+
+    mPartials.clear();
+    mPartialsBuffer.writeTo(mPartials, true);
+    mHistograms.clear();
+    mHistogramsBuffer.writeTo(mHistograms, true);
+    double lSumOfSquares = 0;
+    long[] lHistogram = new long[mNumberOfBins];
+    for (int g = 0; g < cNumberOfGroups; g++)
+    {
+      lSumOfSquares += mPartials.get(g);
+      for (int b = 0; b < mNumberOfBins; b++)
+        lHistogram[b] +=
+                      Integer.toUnsignedLong(mHistograms.get(g * mNumberOfBins
+                                                             + b));
+    }
+
+    return new ImageStatistics(lNumberOfVoxels,
+                               lMin,
+                               lMax,
+                               lMean,
+                               lSumOfSquares / lNumberOfVoxels,
+                               lHistogram);
+  }
+
+  /**
+   * Computes min, max and mean of a given image in a single pass, waiting for
+   * the computation to finish
+   *
+   * @param pImage
+   *          image
+   * @return min, max and mean
+   * @throws IOException
+   *           if the kernels cannot be loaded
+   */
+  public double[] computeMinMaxMean(ClearCLImage pImage) throws IOException
+  {
+    assert TaskHelper.allowedDataType(pImage);
+    ClearCLContext lContext = pImage.getContext();
+    ensureBuffersAllocated(lContext);
+
+    ClearCLKernel lKernel = getKernel(lContext,
+                                      "statistics_min_max_sum",
+                                      getDefines(pImage));
+    lKernel.setGlobalSizes(cGroupSize * cNumberOfGroups);
+    lKernel.setLocalSizes(cGroupSize);
+    lKernel.setArguments(mPartialsBuffer, pImage);
+    runKernel(lKernel, false);
+
+    mPartials.clear();
+    mPartialsBuffer.writeTo(mPartials, true);
+    double lMin = Double.POSITIVE_INFINITY,
+        lMax = Double.NEGATIVE_INFINITY, lSum = 0;
+    for (int g = 0; g < cNumberOfGroups; g++)
+    {
+      lMin = Math.min(lMin, mPartials.get(3 * g));
+      lMax = Math.max(lMax, mPartials.get(3 * g + 1));
+      lSum += mPartials.get(3 * g + 2);
+    }
+    return new double[]
+    { lMin, lMax, lSum / pImage.getVolume() };
+  }
+
+  private Map<String, Object> getDefines(ClearCLImage pImage)
+  {
+    Map<String, Object> lDefines = TaskHelper.getOpenCLDefines(pImage,
+                                                               pImage);
+    lDefines.put("GROUP_SIZE", cGroupSize);
+    lDefines.put("NUM_BINS", mNumberOfBins);
+    return lDefines;
+  }
+
+  private void ensureBuffersAllocated(ClearCLContext pContext)
+  {
+    if (mPartialsBuffer == null)
+    {
+      mPartialsBuffer = pContext.createBuffer(NativeTypeEnum.Float,
+                                              3 * cNumberOfGroups);
+      mHistogramsBuffer =
+                        pContext.createBuffer(NativeTypeEnum.UnsignedInt,
+                                              cNumberOfGroups
+                                                                * mNumberOfBins);
+    }
+  }
+
+  @Override
+  public void close()
+  {
+    if (mPartialsBuffer != null)
+    {
+      mPartialsBuffer.close();
+      mHistogramsBuffer.close();
+      mPartialsBuffer = null;
+      mHistogramsBuffer = null;
+    }
+  }
+
+}
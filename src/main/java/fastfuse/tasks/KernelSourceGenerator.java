@@ -0,0 +1,570 @@
+package fastfuse.tasks;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+
+/**
+ * Generates the OpenCL source code of kernels that take a variable number of
+ * images (e.g. one per view), since OpenCL kernels cannot take arrays of
+ * images. The generated kernels follow the naming and argument conventions of
+ * the hand-written kernels for 2 or 4 images, and rely on the same defines
+ * (DTYPE_IN, DTYPE_OUT, READ_IMAGE, WRITE_IMAGE) and helper functions of the
+ * program they are added to. Generated sources are cached per kernel name.
+ *
+ * @author royer
+ */
+public class KernelSourceGenerator
+{
+  private static final ConcurrentHashMap<String, String> cSourceCache =
+                                                                      new ConcurrentHashMap<>();
+
+  /**
+   * Returns the name of the average fusion kernel for a given number of images
+   * (see fuseavg.cl)
+   *
+   * @param pNumberOfImages
+   *          number of images
+   * @return kernel name
+   */
+  public static String getAverageFusionKernelName(int pNumberOfImages)
+  {
+    return "fuseavg" + pNumberOfImages;
+  }
+
+  /**
+   * Returns the source of the average fusion kernel for a given number of
+   * images, arguments: image1, ..., imageN, imagedest
+   *
+   * @param pNumberOfImages
+   *          number of images
+   * @return kernel source
+   */
+  public static String getAverageFusionSource(int pNumberOfImages)
+  {
+    String lKernelName = getAverageFusionKernelName(pNumberOfImages);
+    return cSourceCache.computeIfAbsent(lKernelName, k -> {
+      StringBuilder lSource = new StringBuilder();
+      lSource.append(String.format("\n__kernel void %s(", lKernelName));
+      lSource.append(list(pNumberOfImages,
+                          i -> "__read_only image3d_t image" + i));
+      lSource.append(", __write_only image3d_t imagedest)\n{\n");
+      lSource.append("  const sampler_t intsampler  = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_NONE | CLK_FILTER_NEAREST;\n");
+      lSource.append("  const int4 pos = (int4){get_global_id(0),get_global_id(1),get_global_id(2),0};\n");
+      lSource.append("  const int value = (");
+      lSource.append(join(" + ",
+                          pNumberOfImages,
+                          i -> "(int)read_imageui(image" + i
+                               + ", intsampler, pos).x"));
+      lSource.append(String.format(")/%d;\n", pNumberOfImages));
+      lSource.append("  write_imageui (imagedest, pos, (uint4){(uint)value,0,0,0});\n");
+      lSource.append("}\n");
+      return lSource.toString();
+    });
+  }
+
+  /**
+   * Returns the name of the tiled Tenengrad fusion kernel for a given number of
+   * images (see fusion.cl)
+   *
+   * @param pNumberOfImages
+   *          number of images
+   * @return kernel name
+   */
+  public static String getTenengradFusionKernelName(int pNumberOfImages)
+  {
+    return String.format("tenengrad_fusion_tiled_%d_images",
+                         pNumberOfImages);
+  }
+
+  /**
+   * Returns the source of the tiled Tenengrad fusion kernel for a given number
+   * of images, arguments: dst, src1, ..., srcN. Requires the helper functions
+   * of fusion.cl.
+   *
+   * @param pNumberOfImages
+   *          number of images
+   * @return kernel source
+   */
+  public static String getTenengradFusionSource(int pNumberOfImages)
+  {
+    String lKernelName = getTenengradFusionKernelName(pNumberOfImages);
+    return cSourceCache.computeIfAbsent(lKernelName, k -> {
+      StringBuilder lSource = new StringBuilder();
+      lSource.append(String.format("\n__kernel void %s(write_only image3d_t dst, ",
+                                   lKernelName));
+      lSource.append(list(pNumberOfImages,
+                          i -> "read_only image3d_t src" + i));
+      lSource.append(") {\n");
+      lSource.append("  __local float ");
+      lSource.append(list(pNumberOfImages,
+                          i -> "tile" + i + "[HALO_VOLUME]"));
+      lSource.append(";\n");
+      for (int i = 1; i <= pNumberOfImages; i++)
+        lSource.append(String.format("  load_tile(tile%d,src%d);\n",
+                                     i,
+                                     i));
+      lSource.append("  barrier(CLK_LOCAL_MEM_FENCE);\n");
+      lSource.append("  const int4 coord = (int4)(get_global_id(0),get_global_id(1),get_global_id(2),0);\n");
+      lSource.append("  if (!inside_image(dst,coord))\n    return;\n");
+      lSource.append("  const int x = get_local_id(0)+1, y = get_local_id(1)+1, z = get_local_id(2)+1;\n");
+      for (int i = 1; i <= pNumberOfImages; i++)
+        lSource.append(String.format("  const float w%d = tile_sobel_magnitude_squared(tile%d,x,y,z);\n",
+                                     i,
+                                     i));
+      lSource.append("  const float wsum = ");
+      lSource.append(join(" + ", pNumberOfImages, i -> "w" + i));
+      lSource.append(" + 1e-30f; // add small epsilon to avoid wsum = 0\n");
+      lSource.append("  const int c = TILE_INDEX(x,y,z);\n");
+      lSource.append("  const float res = (");
+      lSource.append(join(" + ",
+                          pNumberOfImages,
+                          i -> "w" + i + "*tile" + i + "[c]"));
+      lSource.append(") / wsum;\n");
+      lSource.append("  WRITE_IMAGE(dst,coord,(DTYPE_OUT)res);\n");
+      lSource.append("}\n");
+      return lSource.toString();
+    });
+  }
+
+  /**
+   * Returns the name of the untiled Tenengrad fusion kernel for a given number
+   * of images (see fusion.cl)
+   *
+   * @param pNumberOfImages
+   *          number of images
+   * @return kernel name
+   */
+  public static String getTenengradFusionUntiledKernelName(int pNumberOfImages)
+  {
+    return String.format("tenengrad_fusion_%d_images", pNumberOfImages);
+  }
+
+  /**
+   * Returns the source of the untiled Tenengrad fusion kernel for a given
+   * number of images, used when the tiles of all images do not fit in local
+   * memory, arguments: dst, src1, ..., srcN. Requires the helper functions of
+   * fusion.cl.
+   *
+   * @param pNumberOfImages
+   *          number of images
+   * @return kernel source
+   */
+  public static String getTenengradFusionUntiledSource(int pNumberOfImages)
+  {
+    String lKernelName =
+                       getTenengradFusionUntiledKernelName(pNumberOfImages);
+    return cSourceCache.computeIfAbsent(lKernelName, k -> {
+      StringBuilder lSource = new StringBuilder();
+      lSource.append(String.format("\n__kernel void %s(write_only image3d_t dst, ",
+                                   lKernelName));
+      lSource.append(list(pNumberOfImages,
+                          i -> "read_only image3d_t src" + i));
+      lSource.append(") {\n");
+      lSource.append("  const int i = get_global_id(0), j = get_global_id(1), k = get_global_id(2);\n");
+      lSource.append("  const int4 coord = (int4)(i,j,k,0);\n");
+      for (int i = 1; i <= pNumberOfImages; i++)
+        lSource.append(String.format("  const float w%d = sobel_magnitude_squared(src%d,i,j,k);\n",
+                                     i,
+                                     i));
+      lSource.append("  const float wsum = ");
+      lSource.append(join(" + ", pNumberOfImages, i -> "w" + i));
+      lSource.append(" + 1e-30f; // add small epsilon to avoid wsum = 0\n");
+      lSource.append("  const float res = (");
+      lSource.append(join(" + ",
+                          pNumberOfImages,
+                          i -> "w" + i
+                               + "*(float)READ_IMAGE(src"
+                               + i
+                               + ",sampler,coord).x"));
+      lSource.append(") / wsum;\n");
+      lSource.append("  WRITE_IMAGE(dst,coord,(DTYPE_OUT)res);\n");
+      lSource.append("}\n");
+      return lSource.toString();
+    });
+  }
+
+  /**
+   * Returns the name of the Tenengrad fusion kernel with provided weights for a
+   * given number of images (see fusion.cl)
+   *
+   * @param pNumberOfImages
+   *          number of images
+   * @return kernel name
+   */
+  public static String getTenengradFusionWithProvidedWeightsKernelName(int pNumberOfImages)
+  {
+    return String.format("tenengrad_fusion_with_provided_weights_%d_images",
+                         pNumberOfImages);
+  }
+
+  /**
+   * Returns the source of the Tenengrad fusion kernel with provided weights for
+   * a given number of images, arguments: dst, factor, src1, ..., srcN,
+   * weight1, ..., weightN
+   *
+   * @param pNumberOfImages
+   *          number of images
+   * @return kernel source
+   */
+  public static String getTenengradFusionWithProvidedWeightsSource(int pNumberOfImages)
+  {
+    String lKernelName =
+                       getTenengradFusionWithProvidedWeightsKernelName(pNumberOfImages);
+    return cSourceCache.computeIfAbsent(lKernelName, k -> {
+      StringBuilder lSource = new StringBuilder();
+      lSource.append(String.format("\n__kernel void %s(write_only image3d_t dst, const int factor, ",
+                                   lKernelName));
+      lSource.append(list(pNumberOfImages,
+                          i -> "read_only image3d_t src" + i));
+      lSource.append(", ");
+      lSource.append(list(pNumberOfImages,
+                          i -> "read_only image3d_t weight" + i));
+      lSource.append(")\n{\n");
+      lSource.append("  const int i = get_global_id(0), j = get_global_id(1), k = get_global_id(2);\n");
+      lSource.append("  const int4 coord = (int4)(i,j,k,0);\n");
+      lSource.append("  const float4 coord_weight = (float4)((i+0.5f)/factor,(j+0.5f)/factor,k+0.5f,0);\n");
+      lSource.append("  const sampler_t sampler_weight = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_LINEAR;\n");
+      for (int i = 1; i <= pNumberOfImages; i++)
+        lSource.append(String.format("  const float w%d = read_imagef(weight%d,sampler_weight,coord_weight).x;\n",
+                                     i,
+                                     i));
+      lSource.append("  const float wsum = ");
+      lSource.append(join(" + ", pNumberOfImages, i -> "w" + i));
+      lSource.append(" + 1e-30f; // add small epsilon to avoid wsum = 0\n");
+      lSource.append("  const float res = (");
+      lSource.append(join(" + ",
+                          pNumberOfImages,
+                          i -> "w" + i
+                               + "*(float)READ_IMAGE(src"
+                               + i
+                               + ",sampler,coord).x"));
+      lSource.append(") / wsum;\n");
+      lSource.append("  WRITE_IMAGE(dst,coord,(DTYPE_OUT)res);\n");
+      lSource.append("}\n");
+      return lSource.toString();
+    });
+  }
+
+  /**
+   * Returns the name of the Tenengrad fusion kernel with provided weights and
+   * affine transforms for a given number of images
+   *
+   * @param pNumberOfImages
+   *          number of images
+   * @return kernel name
+   */
+  public static String getTenengradFusionWithProvidedWeightsAffineKernelName(int pNumberOfImages)
+  {
+    return String.format("tenengrad_fusion_with_provided_weights_affine_%d_images",
+                         pNumberOfImages);
+  }
+
+  /**
+   * Returns the source of the Tenengrad fusion kernel with provided weights for
+   * a given number of images, where images and weights are sampled with
+   * trilinear interpolation through affine transforms, arguments: dst, factor,
+   * mats, src1, ..., srcN, weight1, ..., weightN. The buffer mats holds the
+   * first three rows of 2N row-major matrices, first for the images and then
+   * for the weights, mapping voxel coordinates of the fused image (resp. of the
+   * downsampled weights) to voxel coordinates of the stored images (resp.
+   * weights). Images must be float images.
+   *
+   * @param pNumberOfImages
+   *          number of images
+   * @return kernel source
+   */
+  public static String getTenengradFusionWithProvidedWeightsAffineSource(int pNumberOfImages)
+  {
+    String lKernelName =
+                       getTenengradFusionWithProvidedWeightsAffineKernelName(pNumberOfImages);
+    return cSourceCache.computeIfAbsent(lKernelName, k -> {
+      StringBuilder lSource = new StringBuilder();
+      lSource.append("\ninline float4 affine_sampling_coordinates(__constant float* m, const float x, const float y, const float z)\n{\n");
+      lSource.append("  return (float4)(m[0]*x+m[1]*y+m[2]*z+m[3]+0.5f, m[4]*x+m[5]*y+m[6]*z+m[7]+0.5f, m[8]*x+m[9]*y+m[10]*z+m[11]+0.5f, 0);\n");
+      lSource.append("}\n");
+      lSource.append(String.format("\n__kernel void %s(write_only image3d_t dst, const int factor, __constant float* mats, ",
+                                   lKernelName));
+      lSource.append(list(pNumberOfImages,
+                          i -> "read_only image3d_t src" + i));
+      lSource.append(", ");
+      lSource.append(list(pNumberOfImages,
+                          i -> "read_only image3d_t weight" + i));
+      lSource.append(")\n{\n");
+      lSource.append("  const int i = get_global_id(0), j = get_global_id(1), k = get_global_id(2);\n");
+      lSource.append("  const int4 coord = (int4)(i,j,k,0);\n");
+      lSource.append("  const float xw = (i+0.5f)/factor-0.5f, yw = (j+0.5f)/factor-0.5f;\n");
+      lSource.append("  const sampler_t sampler_linear = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_LINEAR;\n");
+      for (int i = 1; i <= pNumberOfImages; i++)
+        lSource.append(String.format("  const float w%d = read_imagef(weight%d,sampler_linear,affine_sampling_coordinates(mats+%d,xw,yw,k)).x;\n",
+                                     i,
+                                     i,
+                                     12 * (pNumberOfImages + i - 1)));
+      lSource.append("  const float wsum = ");
+      lSource.append(join(" + ", pNumberOfImages, i -> "w" + i));
+      lSource.append(" + 1e-30f; // add small epsilon to avoid wsum = 0\n");
+      lSource.append("  const float res = (");
+      lSource.append(join(" + ",
+                          pNumberOfImages,
+                          i -> "w" + i
+                               + "*read_imagef(src"
+                               + i
+                               + ",sampler_linear,affine_sampling_coordinates(mats+"
+                               + 12 * (i - 1)
+                               + ",i,j,k)).x"));
+      lSource.append(") / wsum;\n");
+      lSource.append("  WRITE_IMAGE(dst,coord,(DTYPE_OUT)res);\n");
+      lSource.append("}\n");
+      return lSource.toString();
+    });
+  }
+
+  /**
+   * Returns the name of the weight normalization kernel for a given number of
+   * weight images
+   *
+   * @param pNumberOfImages
+   *          number of weight images
+   * @return kernel name
+   */
+  public static String getWeightNormalizationKernelName(int pNumberOfImages)
+  {
+    return String.format("normalize_weights_%d_images",
+                         pNumberOfImages);
+  }
+
+  /**
+   * Returns the source of the weight normalization kernel for a given number of
+   * weight images, which divides each weight by the sum of the weights of all
+   * images, arguments: dst1, ..., dstN, src1, ..., srcN. Requires the sampler
+   * of fusion.cl.
+   *
+   * @param pNumberOfImages
+   *          number of weight images
+   * @return kernel source
+   */
+  public static String getWeightNormalizationSource(int pNumberOfImages)
+  {
+    String lKernelName =
+                       getWeightNormalizationKernelName(pNumberOfImages);
+    return cSourceCache.computeIfAbsent(lKernelName, k -> {
+      StringBuilder lSource = new StringBuilder();
+      lSource.append(String.format("\n__kernel void %s(", lKernelName));
+      lSource.append(list(pNumberOfImages,
+                          i -> "write_only image3d_t dst" + i));
+      lSource.append(", ");
+      lSource.append(list(pNumberOfImages,
+                          i -> "read_only image3d_t src" + i));
+      lSource.append(")\n{\n");
+      lSource.append("  const int4 coord = (int4)(get_global_id(0),get_global_id(1),get_global_id(2),0);\n");
+      for (int i = 1; i <= pNumberOfImages; i++)
+        lSource.append(String.format("  const float w%d = (float)READ_IMAGE(src%d,sampler,coord).x;\n",
+                                     i,
+                                     i));
+      lSource.append("  const float wsum = ");
+      lSource.append(join(" + ", pNumberOfImages, i -> "w" + i));
+      lSource.append(" + 1e-30f; // add small epsilon to avoid wsum = 0\n");
+      for (int i = 1; i <= pNumberOfImages; i++)
+        lSource.append(String.format("  WRITE_IMAGE(dst%d,coord,(DTYPE_OUT)(w%d/wsum));\n",
+                                     i,
+                                     i));
+      lSource.append("}\n");
+      return lSource.toString();
+    });
+  }
+
+  /**
+   * Returns the name of the stack splitting kernel for a given number of stacks
+   * (see stacksplitting.cl)
+   *
+   * @param pNumberOfStacks
+   *          number of stacks
+   * @param pDownsampleXYByHalf
+   *          true -> downsample in XY by half (nearest)
+   * @return kernel name
+   */
+  public static String getStackSplitKernelName(int pNumberOfStacks,
+                                               boolean pDownsampleXYByHalf)
+  {
+    return getStackSplitKernelName(pNumberOfStacks,
+                                   getStackSplitFactors(pDownsampleXYByHalf),
+                                   DownsamplePyramidTask.Type.Nearest,
+                                   null);
+  }
+
+  /**
+   * Returns the name of the stack splitting kernel for a given number of stacks
+   * and given downsampling and flipping. Configurations supported by the
+   * kernels of stacksplitting.cl keep their names.
+   *
+   * @param pNumberOfStacks
+   *          number of stacks
+   * @param pFactors
+   *          downsampling factors along X, Y and Z
+   * @param pType
+   *          downsampling filter
+   * @param pFlips
+   *          for each stack, flips along X, Y and Z, or null for no flips
+   * @return kernel name
+   */
+  public static String getStackSplitKernelName(int pNumberOfStacks,
+                                               int[] pFactors,
+                                               DownsamplePyramidTask.Type pType,
+                                               boolean[][] pFlips)
+  {
+    boolean lFlips = pFlips != null;
+    boolean lNoDownsampling = Arrays.equals(pFactors,
+                                            getStackSplitFactors(false));
+    boolean lHalfXYNearest =
+                           Arrays.equals(pFactors,
+                                         getStackSplitFactors(true))
+                             && pType == DownsamplePyramidTask.Type.Nearest;
+    if (!lFlips && (lNoDownsampling || lHalfXYNearest))
+      return "convert_interleaved_to_stacks_" + pNumberOfStacks
+             + (lHalfXYNearest ? "_and_downsample_xy_by_half_nearest"
+                               : "");
+
+    StringBuilder lName = new StringBuilder();
+    lName.append(String.format("split_interleaved_to_stacks_%d_%dx%dx%d",
+                               pNumberOfStacks,
+                               pFactors[0],
+                               pFactors[1],
+                               pFactors[2]));
+    if (!lNoDownsampling)
+      lName.append("_" + pType.name().toLowerCase());
+    if (lFlips)
+    {
+      lName.append("_flip");
+      for (boolean[] lStackFlips : pFlips)
+        lName.append((lStackFlips[0] ? 1 : 0) + (lStackFlips[1] ? 2 : 0)
+                     + (lStackFlips[2] ? 4 : 0));
+    }
+    return lName.toString();
+  }
+
+  /**
+   * Returns the source of the stack splitting kernel for a given number of
+   * stacks, arguments: src, dst0, ..., dst(N-1)
+   *
+   * @param pNumberOfStacks
+   *          number of stacks
+   * @param pDownsampleXYByHalf
+   *          true -> downsample in XY by half (nearest)
+   * @return kernel source
+   */
+  public static String getStackSplitSource(int pNumberOfStacks,
+                                           boolean pDownsampleXYByHalf)
+  {
+    return getStackSplitSource(pNumberOfStacks,
+                               getStackSplitFactors(pDownsampleXYByHalf),
+                               DownsamplePyramidTask.Type.Nearest,
+                               null);
+  }
+
+  /**
+   * Returns the source of the stack splitting kernel for a given number of
+   * stacks and given downsampling and flipping, arguments: src, dst0, ...,
+   * dst(N-1). Each stack is read once, converted to the destination type by
+   * the DTYPE_OUT define, downsampled, and written flipped. Averages are
+   * rounded by adding the ROUNDING define (0.5f for integer types) before the
+   * conversion.
+   *
+   * @param pNumberOfStacks
+   *          number of stacks
+   * @param pFactors
+   *          downsampling factors along X, Y and Z
+   * @param pType
+   *          downsampling filter
+   * @param pFlips
+   *          for each stack, flips along X, Y and Z, or null for no flips
+   * @return kernel source
+   */
+  public static String getStackSplitSource(int pNumberOfStacks,
+                                           int[] pFactors,
+                                           DownsamplePyramidTask.Type pType,
+                                           boolean[][] pFlips)
+  {
+    String lKernelName = getStackSplitKernelName(pNumberOfStacks,
+                                                 pFactors,
+                                                 pType,
+                                                 pFlips);
+    return cSourceCache.computeIfAbsent(lKernelName, k -> {
+      int lFactorX = pFactors[0], lFactorY = pFactors[1],
+          lFactorZ = pFactors[2];
+      boolean lAverage = pType == DownsamplePyramidTask.Type.Average
+                         && lFactorX * lFactorY * lFactorZ > 1;
+
+      StringBuilder lSource = new StringBuilder();
+      lSource.append(String.format("\n__kernel void %s(read_only image3d_t src, ",
+                                   lKernelName));
+      lSource.append(list(pNumberOfStacks,
+                          i -> "write_only image3d_t dst" + (i - 1)));
+      lSource.append(")\n{\n");
+      lSource.append("  const int i = get_global_id(0), j = get_global_id(1), k = get_global_id(2);\n");
+      lSource.append(String.format("  const int i2 = %d*i, j2 = %d*j, k2 = %d*k;\n",
+                                   lFactorX,
+                                   lFactorY,
+                                   pNumberOfStacks * lFactorZ));
+      if (pFlips != null)
+        lSource.append("  const int w = get_image_width(dst0)-1, h = get_image_height(dst0)-1, d = get_image_depth(dst0)-1;\n");
+      for (int i = 0; i < pNumberOfStacks; i++)
+      {
+        boolean[] lFlips = pFlips == null ? new boolean[3]
+                                          : pFlips[i];
+        String lCoord = String.format("(int4)(%s,%s,%s,0)",
+                                      lFlips[0] ? "w-i" : "i",
+                                      lFlips[1] ? "h-j" : "j",
+                                      lFlips[2] ? "d-k" : "k");
+        if (lAverage)
+        {
+          lSource.append("  {\n    float sum = 0;\n");
+          lSource.append(String.format("    for (int dz = 0; dz < %d; dz++)\n      for (int dy = 0; dy < %d; dy++)\n        for (int dx = 0; dx < %d; dx++)\n",
+                                       lFactorZ,
+                                       lFactorY,
+                                       lFactorX));
+          lSource.append(String.format("          sum += READ_IMAGE(src,sampler,(int4)(i2+dx,j2+dy,k2+%d*dz+%d,0)).x;\n",
+                                       pNumberOfStacks,
+                                       i));
+          lSource.append(String.format("    WRITE_IMAGE(dst%d,%s,(DTYPE_OUT)(sum/%d+ROUNDING));\n  }\n",
+                                       i,
+                                       lCoord,
+                                       lFactorX * lFactorY * lFactorZ));
+        }
+        else
+          lSource.append(String.format("  WRITE_IMAGE(dst%d,%s,(DTYPE_OUT)READ_IMAGE(src,sampler,(int4)(i2,j2,k2+%d,0)).x);\n",
+                                       i,
+                                       lCoord,
+                                       i));
+      }
+      lSource.append("}\n");
+      return lSource.toString();
+    });
+  }
+
+  private static int[] getStackSplitFactors(boolean pDownsampleXYByHalf)
+  {
+    return pDownsampleXYByHalf ? new int[]
+    { 2, 2, 1 } : new int[]
+    { 1, 1, 1 };
+  }
+
+  private static String list(int pCount, IntFunction<String> pItem)
+  {
+    return join(", ", pCount, pItem);
+  }
+
+  private static String join(String pSeparator,
+                             int pCount,
+                             IntFunction<String> pItem)
+  {
+    StringBuilder lBuilder = new StringBuilder();
+    for (int i = 1; i <= pCount; i++)
+    {
+      if (i > 1)
+        lBuilder.append(pSeparator);
+      lBuilder.append(pItem.apply(i));
+    }
+    return lBuilder.toString();
+  }
+
+}
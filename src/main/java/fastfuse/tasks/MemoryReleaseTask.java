@@ -21,10 +21,26 @@ public class MemoryReleaseTask extends TaskBase
   public MemoryReleaseTask(List<String> pImageKeysRequired,
                            String... pImageKeysToRelease)
   {
-    super((String[]) pImageKeysRequired.toArray());
+    super(pImageKeysRequired.toArray(new String[pImageKeysRequired.size()]));
     mImageKeysToRelease = pImageKeysToRelease;
   }
 
+  /**
+   * Returns the slot keys of the images released by this task
+   * 
+   * @return released slot keys
+   */
+  public List<String> getReleasedImagesSlotKeys()
+  {
+    return Arrays.asList(mImageKeysToRelease);
+  }
+
+  @Override
+  public int getHaloDepth(long[] pStackDimensions)
+  {
+    return 0;
+  }
+
   @Override
   public boolean enqueue(FastFusionEngineInterface pFastFusionEngine,
                          boolean pWaitToFinish)
@@ -35,4 +51,17 @@ public class MemoryReleaseTask extends TaskBase
     return true;
   }
 
+  @Override
+  public boolean isInstantaneous()
+  {
+    return true;
+  }
+
+  @Override
+  public boolean acceptsImageTransforms()
+  {
+    // required images are not read
+    return true;
+  }
+
 }
@@ -2,6 +2,8 @@ package fastfuse.tasks;
 
 import java.io.IOException;
 
+import javax.vecmath.Matrix4f;
+
 import clearcl.ClearCLImage;
 import clearcl.ClearCLKernel;
 import clearcl.enums.ImageChannelDataType;
@@ -36,6 +38,7 @@ public class NonnegativeSubtractionTask extends TaskBase
     mSrc2ImageKey = null;
     mSrc2Number = pSrc2Number;
     mDstImageKey = pDstImageKey;
+    addProducedImages(pDstImageKey);
     mDstDataType = pDstDataType;
   }
 
@@ -58,9 +61,41 @@ public class NonnegativeSubtractionTask extends TaskBase
     mSrc2ImageKey = pSrc2ImageKey;
     mSrc2Number = null;
     mDstImageKey = pDstImageKey;
+    addProducedImages(pDstImageKey);
     mDstDataType = pDstDataType;
   }
 
+  @Override
+  public String getSignature()
+  {
+    return String.format("subtrahend=%s, dtype=%s",
+                         mSrc2Number,
+                         mDstDataType);
+  }
+
+  @Override
+  public Matrix4f getPropagatedImageTransform(String pProducedSlotKey,
+                                              Matrix4f pTransform)
+  {
+    // pointwise operation
+    return pTransform;
+  }
+
+  @Override
+  public String getInPlaceSourceSlotKey()
+  {
+    // elementwise operation, each voxel is read before being written (by the
+    // read_write kernels of arithmetic.cl):
+    return mSrc1ImageKey;
+  }
+
+  @Override
+  public int getHaloDepth(long[] pStackDimensions)
+  {
+    // pointwise operation
+    return 0;
+  }
+
   @Override
   public boolean enqueue(FastFusionEngineInterface pFastFusionEngine,
                          boolean pWaitToFinish)
@@ -80,6 +115,9 @@ public class NonnegativeSubtractionTask extends TaskBase
     lDstImage = lFlagAndDstImage.getRight();
     assert TaskHelper.allowedDataType(lSrc1Image, lDstImage);
 
+    // the destination is the first source when executed in place:
+    boolean lInPlace = lSrc1Image == lDstImage;
+
     try
     {
       if (mSrc2ImageKey == null)
@@ -87,13 +125,24 @@ public class NonnegativeSubtractionTask extends TaskBase
         assert mSrc2Number != null;
         float lConstant = mSrc2Number.floatValue();
 
-        ClearCLKernel lKernel =
-                              getKernel(lSrc1Image.getContext(),
-                                        "subtract_constant",
-                                        TaskHelper.getOpenCLDefines(lSrc1Image,
-                                                                    lDstImage));
+        ClearCLKernel lKernel;
+        if (lInPlace)
+        {
+          lKernel =
+                  getKernel(lSrc1Image.getContext(),
+                            "subtract_constant_inplace",
+                            TaskHelper.getInPlaceOpenCLDefines(lDstImage));
+          lKernel.setArguments(lDstImage, lConstant, 0f);
+        }
+        else
+        {
+          lKernel = getKernel(lSrc1Image.getContext(),
+                              "subtract_constant",
+                              TaskHelper.getOpenCLDefines(lSrc1Image,
+                                                          lDstImage));
+          lKernel.setArguments(lDstImage, lSrc1Image, lConstant, 0f);
+        }
         lKernel.setGlobalSizes(lDstImage.getDimensions());
-        lKernel.setArguments(lDstImage, lSrc1Image, lConstant, 0f);
         runKernel(lKernel, pWaitToFinish);
         lFlagAndDstImage.setLeft(true);
         return true;
@@ -106,13 +155,24 @@ public class NonnegativeSubtractionTask extends TaskBase
                                 pFastFusionEngine.getImage(mSrc2ImageKey);
         assert lSrc2Image.getChannelDataType() == lSrc1Image.getChannelDataType();
 
-        ClearCLKernel lKernel =
-                              getKernel(lSrc1Image.getContext(),
-                                        "subtract_image",
-                                        TaskHelper.getOpenCLDefines(lSrc1Image,
-                                                                    lDstImage));
+        ClearCLKernel lKernel;
+        if (lInPlace)
+        {
+          lKernel =
+                  getKernel(lSrc1Image.getContext(),
+                            "subtract_image_inplace",
+                            TaskHelper.getInPlaceOpenCLDefines(lDstImage));
+          lKernel.setArguments(lDstImage, lSrc2Image, 0f);
+        }
+        else
+        {
+          lKernel = getKernel(lSrc1Image.getContext(),
+                              "subtract_image",
+                              TaskHelper.getOpenCLDefines(lSrc1Image,
+                                                          lDstImage));
+          lKernel.setArguments(lDstImage, lSrc1Image, lSrc2Image, 0f);
+        }
         lKernel.setGlobalSizes(lDstImage.getDimensions());
-        lKernel.setArguments(lDstImage, lSrc1Image, lSrc2Image, 0f);
         runKernel(lKernel, pWaitToFinish);
         lFlagAndDstImage.setLeft(true);
         return true;
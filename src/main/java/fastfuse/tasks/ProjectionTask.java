@@ -0,0 +1,241 @@
+package fastfuse.tasks;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import clearcl.ClearCLBuffer;
+import clearcl.ClearCLContext;
+import clearcl.ClearCLImage;
+import clearcl.ClearCLKernel;
+import coremem.enums.NativeTypeEnum;
+import fastfuse.FastFusionEngineInterface;
+import fastfuse.FastFusionException;
+
+/**
+ * Computes the XY, XZ and YZ max or mean projections of an image on the
+ * device, optionally downsampled, e.g. for live display. Only the projections
+ * are downloaded, and the listeners are notified from a separate thread such
+ * that they do not delay the engine. This task produces no image, it must
+ * thus run before the image is released.
+ *
+ * @author royer
+ */
+public class ProjectionTask extends TaskBase implements TaskInterface
+{
+  private final String mSrcImageKey;
+  private final Mode mMode;
+  private final int mDownsamplingFactor;
+
+  private final ClearCLBuffer[] mProjectionBuffers = new ClearCLBuffer[3];
+
+  private volatile ImageProjections mLastProjections;
+  private final CopyOnWriteArrayList<ImageProjectionsListener> mListenerList =
+                                                                              new CopyOnWriteArrayList<>();
+  private ExecutorService mNotificationExecutor;
+
+  /**
+   * Projection modes
+   */
+  public enum Mode
+  {
+   Max, Mean
+  }
+
+  /**
+   * Instantiates a max projection task without downsampling
+   *
+   * @param pSrcImageKey
+   *          image key
+   */
+  public ProjectionTask(String pSrcImageKey)
+  {
+    this(pSrcImageKey, Mode.Max, 1);
+  }
+
+  /**
+   * Instantiates a projection task
+   *
+   * @param pSrcImageKey
+   *          image key
+   * @param pMode
+   *          projection mode
+   * @param pDownsamplingFactor
+   *          downsampling factor of the projections, pixels of the
+   *          projections are the max or mean over blocks of this size
+   */
+  public ProjectionTask(String pSrcImageKey,
+                        Mode pMode,
+                        int pDownsamplingFactor)
+  {
+    super(pSrcImageKey);
+    if (pDownsamplingFactor < 1)
+      throw new FastFusionException("Downsampling factor must be at least 1, got: %d",
+                                    pDownsamplingFactor);
+    setupProgram(ProjectionTask.class, "./kernels/projection.cl");
+    mSrcImageKey = pSrcImageKey;
+    mMode = pMode;
+    mDownsamplingFactor = pDownsamplingFactor;
+  }
+
+  /**
+   * Adds a listener
+   *
+   * @param pImageProjectionsListener
+   *          listener
+   */
+  public void addListener(ImageProjectionsListener pImageProjectionsListener)
+  {
+    if (!mListenerList.contains(pImageProjectionsListener))
+      mListenerList.add(pImageProjectionsListener);
+  }
+
+  /**
+   * Removes a listener
+   *
+   * @param pImageProjectionsListener
+   *          listener
+   */
+  public void removeListener(ImageProjectionsListener pImageProjectionsListener)
+  {
+    mListenerList.remove(pImageProjectionsListener);
+  }
+
+  /**
+   * Returns the projections computed by the last execution of this task
+   *
+   * @return last projections, or null if none computed yet
+   */
+  public ImageProjections getLastProjections()
+  {
+    return mLastProjections;
+  }
+
+  @Override
+  public boolean enqueue(FastFusionEngineInterface pFastFusionEngine,
+                         boolean pWaitToFinish)
+  {
+    ClearCLImage lSrcImage = pFastFusionEngine.getImage(mSrcImageKey);
+    if (lSrcImage == null)
+      throw new FastFusionException("Projection task %s received a null image",
+                                    this);
+
+    try
+    {
+      ImageProjections lProjections = computeProjections(lSrcImage);
+      mLastProjections = lProjections;
+      if (!mListenerList.isEmpty())
+        getNotificationExecutor().execute(() -> {
+          for (ImageProjectionsListener lListener : mListenerList)
+            lListener.newImageProjections(mSrcImageKey, lProjections);
+        });
+      return true;
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+  /**
+   * Computes the projections of a given image, waiting for the computation to
+   * finish
+   *
+   * @param pImage
+   *          image
+   * @return projections
+   * @throws IOException
+   *           if the kernels cannot be loaded
+   */
+  public ImageProjections computeProjections(ClearCLImage pImage) throws IOException
+  {
+    assert TaskHelper.allowedDataType(pImage);
+    ClearCLContext lContext = pImage.getContext();
+    long lWidth = pImage.getWidth() / mDownsamplingFactor;
+    long lHeight = pImage.getHeight() / mDownsamplingFactor;
+    long lDepth = pImage.getDepth() / mDownsamplingFactor;
+    if (lWidth == 0 || lHeight == 0 || lDepth == 0)
+      throw new FastFusionException("Projection task %s: image too small for downsampling by %d",
+                                    this,
+                                    mDownsamplingFactor);
+
+    // projection sizes along the first and second axis, for axes z, y and x:
+    long[][] lSizes = new long[][]
+    { { lWidth, lHeight }, { lWidth, lDepth }, { lHeight, lDepth } };
+    int[] lAxes = new int[]
+    { 2, 1, 0 };
+
+    ClearCLKernel lKernel = getKernel(lContext,
+                                      "project",
+                                      TaskHelper.getOpenCLDefines(pImage,
+                                                                  pImage));
+    float[][] lProjections = new float[3][];
+    for (int p = 0; p < 3; p++)
+    {
+      int lLength = (int) (lSizes[p][0] * lSizes[p][1]);
+      if (mProjectionBuffers[p] == null
+          || mProjectionBuffers[p].getLength() != lLength)
+      {
+        if (mProjectionBuffers[p] != null)
+          mProjectionBuffers[p].close();
+        mProjectionBuffers[p] = lContext.createBuffer(NativeTypeEnum.Float,
+                                                      lLength);
+      }
+      lKernel.setGlobalSizes(lSizes[p][0], lSizes[p][1]);
+      lKernel.setArguments(mProjectionBuffers[p],
+                           pImage,
+                           lAxes[p],
+                           mDownsamplingFactor,
+                           mMode == Mode.Mean ? 1 : 0);
+      runKernel(lKernel, false);
+    }
+    for (int p = 0; p < 3; p++)
+    {
+      lProjections[p] = new float[(int) mProjectionBuffers[p].getLength()];
+      mProjectionBuffers[p].writeTo(FloatBuffer.wrap(lProjections[p]),
+                                    true);
+    }
+
+    return new ImageProjections(lWidth,
+                                lHeight,
+                                lDepth,
+                                lProjections[0],
+                                lProjections[1],
+                                lProjections[2]);
+  }
+
+  /**
+   * Shuts down the notification thread, after the pending notifications, and
+   * releases the projection buffers
+   */
+  @Override
+  public synchronized void close()
+  {
+    if (mNotificationExecutor != null)
+    {
+      mNotificationExecutor.shutdown();
+      mNotificationExecutor = null;
+    }
+    for (int p = 0; p < 3; p++)
+      if (mProjectionBuffers[p] != null)
+      {
+        mProjectionBuffers[p].close();
+        mProjectionBuffers[p] = null;
+      }
+  }
+
+  private synchronized ExecutorService getNotificationExecutor()
+  {
+    if (mNotificationExecutor == null)
+      mNotificationExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread lThread = new Thread(r, "ProjectionTask-" + mSrcImageKey);
+        lThread.setDaemon(true);
+        return lThread;
+      });
+    return mNotificationExecutor;
+  }
+
+}
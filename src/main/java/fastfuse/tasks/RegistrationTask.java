@@ -15,7 +15,9 @@ import org.apache.commons.lang3.tuple.MutablePair;
 /**
  * Stack registration. This task takes two images, and applies an affine
  * transform to the second in order to register it to the first. The output is
- * the transformed (second) image.
+ * the transformed (second) image. Instead of resampling the second image, the
+ * transform can be attached to the output slot, tasks that accept image
+ * transforms (e.g. fusion) then sample the second image directly.
  *
  * @author royer, uschmidt
  */
@@ -36,6 +38,7 @@ public class RegistrationTask extends TaskBase
   private RegistrationParameters mRegistrationParameters =
                                                          new RegistrationParameters();
   private Registration mRegistration;
+  private volatile boolean mMaterializeTransformedImage = true;
 
   /**
    * Instantiates a registered fusion task
@@ -68,6 +71,7 @@ public class RegistrationTask extends TaskBase
       pImageOriginalReferenceSlotKey,
       pImageOriginalToRegisterSlotKey };
     mTransformedImageSlotKey = pImageOriginalToRegisterTransformedKey;
+    addProducedImages(pImageOriginalToRegisterTransformedKey);
 
   }
 
@@ -92,6 +96,29 @@ public class RegistrationTask extends TaskBase
     mSmoother.setAlpha(pSmoothingConstant);
   }
 
+  /**
+   * Sets whether the transformed image is computed (true, default), or whether
+   * the output slot refers to the image to register with the transform
+   * attached to it (false).
+   * 
+   * @param pMaterializeTransformedImage
+   *          true -> transformed image is computed
+   */
+  public void setMaterializeTransformedImage(boolean pMaterializeTransformedImage)
+  {
+    mMaterializeTransformedImage = pMaterializeTransformedImage;
+  }
+
+  /**
+   * Returns whether the transformed image is computed
+   * 
+   * @return true if the transformed image is computed
+   */
+  public boolean isMaterializeTransformedImage()
+  {
+    return mMaterializeTransformedImage;
+  }
+
   @Override
   public boolean enqueue(FastFusionEngineInterface pFastFusionEngine,
                          boolean pWaitToFinish)
@@ -103,9 +130,10 @@ public class RegistrationTask extends TaskBase
     lImageC = pFastFusionEngine.getImage(mInputImagesSlotKeys[2]);
     lImageD = pFastFusionEngine.getImage(mInputImagesSlotKeys[3]);
 
+    // the (blurred) images to register can be stored as half float:
+    assert TaskHelper.allSameDataType(lImageA, lImageB)
+           && TaskHelper.allAccessedAsFloat(lImageA, lImageB);
     assert TaskHelper.allSameDataType(ImageChannelDataType.Float,
-                                      lImageA,
-                                      lImageB,
                                       lImageC,
                                       lImageD);
     assert TaskHelper.allSameDimensions(lImageA,
@@ -162,6 +190,17 @@ public class RegistrationTask extends TaskBase
       e.printStackTrace();
     }
 
+    if (!mMaterializeTransformedImage)
+    {
+      pFastFusionEngine.assignImageToAnotherSlotKey(mInputImagesSlotKeys[3],
+                                                    mTransformedImageSlotKey);
+      pFastFusionEngine.setImageTransform(mTransformedImageSlotKey,
+                                          mRegistration.getTransformMatrix(lBestTransform));
+      // notify listeners
+      notifyListenersOfNewUsedTheta(lBestTransform);
+      return true;
+    }
+
     MutablePair<Boolean, ClearCLImage> lFlagAndRegisteredImage =
                                                                pFastFusionEngine.ensureImageAllocated(mTransformedImageSlotKey,
                                                                                                       lImageA.getChannelDataType(),
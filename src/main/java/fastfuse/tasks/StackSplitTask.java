@@ -6,6 +6,7 @@ import java.util.Map;
 
 import clearcl.ClearCLImage;
 import clearcl.ClearCLKernel;
+import clearcl.enums.ImageChannelDataType;
 import fastfuse.FastFusionEngineInterface;
 import fastfuse.FastFusionException;
 
@@ -14,7 +15,10 @@ import org.apache.commons.lang3.tuple.MutablePair;
 /**
  * This Task allows to split a stack with slices (0,1,2,3,4,5,6,7) into four
  * stacks with slices (0,4), (1,5), (2,6) and (3,7) This is necessary for
- * interleaved image acquisition in clearcontrol-lightsheet
+ * interleaved image acquisition in clearcontrol-lightsheet. Any number of
+ * stacks is supported, and each stack can be converted to another data type,
+ * downsampled and flipped while it is split, in a single pass over the
+ * interleaved stack. Kernels not found in stacksplitting.cl are generated.
  * <p>
  * Author: Robert Haase (http://haesleinhuepf.net) at MPI CBG
  * (http://mpi-cbg.de) February 2018
@@ -24,7 +28,10 @@ public class StackSplitTask extends TaskBase implements TaskInterface
 
   private final String mInputImageSlotKey;
   private final String[] mDestImageSlotKeys;
-  private boolean mDownsampleXYByHalf;
+  private final int[] mDownsampleFactors;
+  private final DownsamplePyramidTask.Type mDownsampleType;
+  private final boolean[][] mFlips;
+  private final ImageChannelDataType mDestDataType;
 
   public static ArrayList<TaskInterface> splitStackAndReleaseInputs(String pInputImageSlotKey,
                                                                     String[] pDestImageSlotKeys,
@@ -41,6 +48,27 @@ public class StackSplitTask extends TaskBase implements TaskInterface
     return lList;
   }
 
+  public static ArrayList<TaskInterface> splitStackAndReleaseInputs(String pInputImageSlotKey,
+                                                                    String[] pDestImageSlotKeys,
+                                                                    int[] pDownsampleFactors,
+                                                                    DownsamplePyramidTask.Type pDownsampleType,
+                                                                    boolean[][] pFlips,
+                                                                    ImageChannelDataType pDestDataType)
+  {
+    ArrayList<TaskInterface> lList = new ArrayList<TaskInterface>();
+
+    lList.add(new StackSplitTask(pInputImageSlotKey,
+                                 pDestImageSlotKeys,
+                                 pDownsampleFactors,
+                                 pDownsampleType,
+                                 pFlips,
+                                 pDestDataType));
+    lList.add(new MemoryReleaseTask(Arrays.asList(pDestImageSlotKeys),
+                                    pInputImageSlotKey));
+
+    return lList;
+  }
+
   public StackSplitTask(String pInputImageSlotKey,
                         String[] pDestImageSlotKeys)
   {
@@ -51,12 +79,116 @@ public class StackSplitTask extends TaskBase implements TaskInterface
                         String[] pDestImageSlotKeys,
                         boolean pDownsampleXYByHalf)
   {
+    this(pInputImageSlotKey,
+         pDestImageSlotKeys,
+         new int[]
+         { pDownsampleXYByHalf ? 2 : 1, pDownsampleXYByHalf ? 2 : 1, 1 },
+         DownsamplePyramidTask.Type.Nearest,
+         null,
+         null);
+  }
 
+  /**
+   * Instantiates a stack splitting task
+   *
+   * @param pInputImageSlotKey
+   *          interleaved stack key
+   * @param pDestImageSlotKeys
+   *          keys of the split stacks, one per interleaved plane
+   * @param pDownsampleFactors
+   *          downsampling factors along X, Y and Z of the split stacks
+   * @param pDownsampleType
+   *          downsampling filter
+   * @param pFlips
+   *          for each split stack, flips along X, Y and Z (null for no flips
+   *          of that stack), or null for no flips
+   * @param pDestDataType
+   *          data type of the split stacks, or null for the input data type
+   */
+  public StackSplitTask(String pInputImageSlotKey,
+                        String[] pDestImageSlotKeys,
+                        int[] pDownsampleFactors,
+                        DownsamplePyramidTask.Type pDownsampleType,
+                        boolean[][] pFlips,
+                        ImageChannelDataType pDestDataType)
+  {
     super(pInputImageSlotKey);
+    int lNumberOfStacks = pDestImageSlotKeys.length;
+    if (pDownsampleFactors.length != 3 || pDownsampleFactors[0] < 1
+        || pDownsampleFactors[1] < 1
+        || pDownsampleFactors[2] < 1)
+      throw new FastFusionException("Invalid downsampling factors: %s",
+                                    Arrays.toString(pDownsampleFactors));
+    if (pFlips != null && pFlips.length != lNumberOfStacks)
+      throw new FastFusionException("Flips must be given for each of the %d stacks",
+                                    lNumberOfStacks);
+    if (pFlips != null)
+      for (boolean[] lFlips : pFlips)
+        if (lFlips != null && lFlips.length != 3)
+          throw new FastFusionException("Flips must be given along X, Y and Z, got: %s",
+                                        Arrays.toString(lFlips));
+
     mInputImageSlotKey = pInputImageSlotKey;
     mDestImageSlotKeys = pDestImageSlotKeys;
-    mDownsampleXYByHalf = pDownsampleXYByHalf;
-    setupProgram(FusionTaskBase.class, "./kernels/stacksplitting.cl");
+    addProducedImages(pDestImageSlotKeys);
+    mDownsampleFactors = pDownsampleFactors.clone();
+    mDownsampleType = pDownsampleType;
+    if (pFlips == null)
+      mFlips = null;
+    else
+    {
+      mFlips = new boolean[lNumberOfStacks][];
+      for (int i = 0; i < lNumberOfStacks; i++)
+        mFlips[i] = pFlips[i] == null ? new boolean[3]
+                                      : pFlips[i].clone();
+    }
+    mDestDataType = pDestDataType;
+
+    String lKernelName = getKernelName();
+    boolean lHandWritten = lKernelName.startsWith("convert_")
+                           && (lNumberOfStacks == 4
+                               || lNumberOfStacks == 5);
+    setupProgram(FusionTaskBase.class,
+                 "./kernels/stacksplitting.cl",
+                 lHandWritten ? null
+                              : KernelSourceGenerator.getStackSplitSource(lNumberOfStacks,
+                                                                          mDownsampleFactors,
+                                                                          mDownsampleType,
+                                                                          mFlips));
+  }
+
+  private String getKernelName()
+  {
+    return KernelSourceGenerator.getStackSplitKernelName(mDestImageSlotKeys.length,
+                                                         mDownsampleFactors,
+                                                         mDownsampleType,
+                                                         mFlips);
+  }
+
+  @Override
+  public String getSignature()
+  {
+    return String.format("kernel=%s, dtype=%s",
+                         getKernelName(),
+                         mDestDataType);
+  }
+
+  @Override
+  public int getHaloDepth(long[] pStackDimensions)
+  {
+    // flips along z reverse the order of the planes:
+    if (mFlips != null)
+      for (boolean[] lFlips : mFlips)
+        if (lFlips[2])
+          return -1;
+    return 0;
+  }
+
+  @Override
+  public int getDepthReduction(String pProducedSlotKey)
+  {
+    // one plane of each split stack per block of interleaved planes:
+    return mDestImageSlotKeys.length * mDownsampleFactors[2];
   }
 
   @Override
@@ -76,29 +208,41 @@ public class StackSplitTask extends TaskBase implements TaskInterface
     ArrayList<MutablePair<Boolean, ClearCLImage>> lResultImagesAndFlags =
                                                                         new ArrayList<>();
 
+    long[] lSrcDims = lInputImage.getDimensions();
+    assert lSrcDims.length == 3;
+    long[] lDstDims = new long[]
+    { lSrcDims[0] / mDownsampleFactors[0],
+      lSrcDims[1] / mDownsampleFactors[1],
+      lSrcDims[2] / mDestImageSlotKeys.length
+                    / mDownsampleFactors[2] };
+
+    ImageChannelDataType lDestDataType = mDestDataType;
+    if (lDestDataType == null)
+      lDestDataType = lInputImage.getChannelDataType();
+
+    for (String lDestImageSlotKey : mDestImageSlotKeys)
+      lResultImagesAndFlags.add(pFastFusionEngine.ensureImageAllocated(lDestImageSlotKey,
+                                                                        lDestDataType,
+                                                                        lDstDims));
+    ClearCLImage lFirstDestImage = lResultImagesAndFlags.get(0)
+                                                        .getValue();
+    assert TaskHelper.allowedDataType(lFirstDestImage);
+
     ClearCLKernel lKernel = null;
 
     Map<String, Object> lDefines =
                                  TaskHelper.getOpenCLDefines(lInputImage,
-                                                             lInputImage);
+                                                             lFirstDestImage);
+    // averages are rounded to integer types:
+    lDefines.put("ROUNDING",
+                 TaskHelper.isAccessedAsFloat(lDestDataType) ? "0.0f"
+                                                             : "0.5f");
 
     try
     {
-      if (!mDownsampleXYByHalf)
-      {
-        lKernel = getKernel(lInputImage.getContext(),
-                            "convert_interleaved_to_stacks_"
-                                                      + mDestImageSlotKeys.length,
-                            lDefines);
-      }
-      else
-      {
-        lKernel = getKernel(lInputImage.getContext(),
-                            "convert_interleaved_to_stacks_"
-                                                      + mDestImageSlotKeys.length
-                                                      + "_and_downsample_xy_by_half_nearest",
-                            lDefines);
-      }
+      lKernel = getKernel(lInputImage.getContext(),
+                          getKernelName(),
+                          lDefines);
     }
     catch (Exception e)
     {
@@ -107,32 +251,10 @@ public class StackSplitTask extends TaskBase implements TaskInterface
     }
 
     lKernel.setArgument("src", lInputImage);
-
-    long[] lSrcDims = lInputImage.getDimensions();
-    assert lSrcDims.length == 3;
-    assert lSrcDims[0] % 2 == 0 && lSrcDims[1] % 2 == 0;
-    long[] lDstDims = new long[]
-    { lSrcDims[0], lSrcDims[1], lSrcDims[2] / 4 };
-    if (mDownsampleXYByHalf)
-    {
-      lDstDims[0] = lDstDims[0] / 2;
-      lDstDims[1] = lDstDims[1] / 2;
-    }
-
-    int lDestCount = 0;
-    for (String lDestImageSlotKey : mDestImageSlotKeys)
-    {
-      MutablePair<Boolean, ClearCLImage> lDestImageAndFlag =
-                                                           pFastFusionEngine.ensureImageAllocated(lDestImageSlotKey,
-                                                                                                  lInputImage.getChannelDataType(),
-                                                                                                  lDstDims);
-      lResultImagesAndFlags.add(lDestImageAndFlag);
-
-      ClearCLImage lDestImage = lDestImageAndFlag.getValue();
-      lKernel.setArgument("dst" + lDestCount, lDestImage);
-      lKernel.setGlobalSizes(lDestImage);
-      lDestCount++;
-    }
+    for (int i = 0; i < mDestImageSlotKeys.length; i++)
+      lKernel.setArgument("dst" + i,
+                          lResultImagesAndFlags.get(i).getValue());
+    lKernel.setGlobalSizes(lFirstDestImage);
 
     // System.out.println("running kernel");
     runKernel(lKernel, pWaitToFinish);
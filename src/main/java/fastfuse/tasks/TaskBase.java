@@ -1,8 +1,11 @@
 package fastfuse.tasks;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -21,11 +24,14 @@ import fastfuse.FastFusionMemoryPool;
 public abstract class TaskBase implements TaskInterface
 {
 
-  private final HashSet<String> mRequiredImagesSlotKeysSet =
-                                                           new HashSet<>();
+  private final LinkedHashSet<String> mRequiredImagesSlotKeysSet =
+                                                                 new LinkedHashSet<>();
+  private final ArrayList<String> mProducedImagesSlotKeysList =
+                                                             new ArrayList<>();
 
   private Class<?> mClass;
   private String mSourceFile;
+  private String mGeneratedSource;
   private ClearCLProgram mProgram;
   private HashMap<String, ClearCLKernel> mKernelMap =
                                                     new HashMap<String, ClearCLKernel>();
@@ -48,12 +54,39 @@ public abstract class TaskBase implements TaskInterface
       mRequiredImagesSlotKeysSet.add(lSlotKey);
   }
 
+  protected void addProducedImages(String... pSlotKeys)
+  {
+    for (String lSlotKey : pSlotKeys)
+      if (!mProducedImagesSlotKeysList.contains(lSlotKey))
+        mProducedImagesSlotKeysList.add(lSlotKey);
+  }
+
   protected void setupProgram(Class<?> pClass, String pSourceFile)
   {
     mClass = pClass;
     mSourceFile = pSourceFile;
   }
 
+  /**
+   * Sets up the program from a source file, with additional generated source
+   * code appended to it (e.g. kernels specialized for a given number of images,
+   * see {@link KernelSourceGenerator})
+   *
+   * @param pClass
+   *          class relative to which the source file is located
+   * @param pSourceFile
+   *          source file
+   * @param pGeneratedSource
+   *          generated source code, or null
+   */
+  protected void setupProgram(Class<?> pClass,
+                              String pSourceFile,
+                              String pGeneratedSource)
+  {
+    setupProgram(pClass, pSourceFile);
+    mGeneratedSource = pGeneratedSource;
+  }
+
   protected ClearCLKernel getKernel(ClearCLContext pContext,
                                     String pKernelName) throws IOException
   {
@@ -67,6 +100,8 @@ public abstract class TaskBase implements TaskInterface
     if (mKernelMap.get(pKernelName) != null)
       return mKernelMap.get(pKernelName);
     mProgram = pContext.createProgram(mClass, mSourceFile);
+    if (mGeneratedSource != null)
+      mProgram.addSource(mGeneratedSource);
     if (pDefines != null)
     {
       for (Entry<String, Object> entry : pDefines.entrySet())
@@ -81,6 +116,10 @@ public abstract class TaskBase implements TaskInterface
           mProgram.addDefine(entry.getKey());
       }
     }
+    // read_write images of the in-place kernels require OpenCL C 2.0:
+    if (pDefines != null
+        && pDefines.containsKey(TaskHelper.cReadWriteImagesDefine))
+      mProgram.addBuildOption("-cl-std=CL2.0");
     mProgram.addBuildOptionAllMathOpt();
     mProgram.buildAndLog();
     ClearCLKernel lKernel = mProgram.createKernel(pKernelName);
@@ -106,6 +145,18 @@ public abstract class TaskBase implements TaskInterface
     return lAllRequiredImagesAvailable;
   }
 
+  @Override
+  public Set<String> getRequiredImagesSlotKeys()
+  {
+    return Collections.unmodifiableSet(mRequiredImagesSlotKeysSet);
+  }
+
+  @Override
+  public List<String> getProducedImagesSlotKeys()
+  {
+    return Collections.unmodifiableList(mProducedImagesSlotKeysList);
+  }
+
   @Override
   public abstract boolean enqueue(FastFusionEngineInterface pFastFusionEngine,
                                   boolean pWaitToFinish);
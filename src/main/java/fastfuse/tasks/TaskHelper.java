@@ -5,15 +5,117 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.stream.Stream;
 
+import javax.vecmath.Matrix4f;
+
+import clearcl.ClearCLContext;
 import clearcl.ClearCLImage;
 import clearcl.enums.ImageChannelDataType;
+import fastfuse.registration.AffineMatrix;
 
 public class TaskHelper
 {
+  /**
+   * Local sizes of the tiled Tenengrad kernels (see fusion.cl)
+   */
+  public static final long[] cTenengradTileSizes = new long[]
+  { 16, 4, 4 };
+
+  /**
+   * Smallest number of voxels of the tiles of the tiled Tenengrad kernels
+   */
+  public static final long cMinTenengradTileVolume = 32;
+
+  /**
+   * Largest finite half float, scaled values stored as half float must stay
+   * below it
+   */
+  public static final float cHalfFloatMax = 65504f;
+
+  /**
+   * Define guarding the in-place kernels, which declare their image read_write
+   * and hence are built as OpenCL C 2.0 (see TaskBase)
+   */
+  public static final String cReadWriteImagesDefine = "READ_WRITE_IMAGES";
+
   private static boolean allowedDataType(ImageChannelDataType pDataType)
+  {
+    switch (pDataType)
+    {
+    case Float:
+    case HalfFloat:
+    case UnsignedInt16:
+    case UnsignedInt8:
+    case UnsignedNormalizedInt8:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * Returns true if images of the given data type are read and written as
+   * float in kernels (read_imagef/write_imagef), i.e. for float, half float and
+   * normalized integer images. Only those images can be sampled with linear
+   * interpolation.
+   * 
+   * @param pDataType
+   *          data type
+   * @return true if accessed as float
+   */
+  public static boolean isAccessedAsFloat(ImageChannelDataType pDataType)
   {
     return pDataType == ImageChannelDataType.Float
-           || pDataType == ImageChannelDataType.UnsignedInt16;
+           || pDataType == ImageChannelDataType.HalfFloat
+           || pDataType == ImageChannelDataType.UnsignedNormalizedInt8;
+  }
+
+  /**
+   * Returns true if all images are accessed as float in kernels
+   * 
+   * @param pImages
+   *          images
+   * @return true if all accessed as float
+   */
+  public static boolean allAccessedAsFloat(ClearCLImage... pImages)
+  {
+    if (pImages == null || pImages.length == 0)
+      return true;
+    return Stream.of(pImages)
+                 .allMatch(x -> isAccessedAsFloat(x.getChannelDataType()));
+  }
+
+  private static String getKernelType(ImageChannelDataType pDataType)
+  {
+    switch (pDataType)
+    {
+    case UnsignedInt16:
+      return "ushort";
+    case UnsignedInt8:
+      return "uchar";
+    default:
+      return "float";
+    }
+  }
+
+  /**
+   * Returns the largest value that can be written to images of the given data
+   * type, as OpenCL literal
+   */
+  private static String getMaxValue(ImageChannelDataType pDataType)
+  {
+    switch (pDataType)
+    {
+    case HalfFloat:
+      return cHalfFloatMax + "f";
+    case UnsignedInt16:
+      return "65535.0f";
+    case UnsignedInt8:
+      return "255.0f";
+    case UnsignedNormalizedInt8:
+      return "1.0f";
+    default:
+      return "MAXFLOAT";
+    }
   }
 
   private static boolean allowedDataType(ClearCLImage pImage)
@@ -76,19 +178,182 @@ public class TaskHelper
   {
     assert allowedDataType(pDTypeIn, pDTypeOut);
     Map<String, Object> lDefines = new HashMap<>();
-    lDefines.put("DTYPE_IN",
-                 pDTypeIn.isInteger() ? "ushort" : "float");
-    lDefines.put("DTYPE_OUT",
-                 pDTypeOut.isInteger() ? "ushort" : "float");
+    lDefines.put("DTYPE_IN", getKernelType(pDTypeIn));
+    lDefines.put("DTYPE_OUT", getKernelType(pDTypeOut));
+    lDefines.put("DTYPE_OUT_MAX", getMaxValue(pDTypeOut));
     lDefines.put("READ_IMAGE",
-                 pDTypeIn.isInteger() ? "read_imageui"
-                                      : "read_imagef");
+                 isAccessedAsFloat(pDTypeIn) ? "read_imagef"
+                                             : "read_imageui");
     lDefines.put("WRITE_IMAGE",
-                 pDTypeOut.isInteger() ? "write_imageui"
-                                       : "write_imagef");
+                 isAccessedAsFloat(pDTypeOut) ? "write_imagef"
+                                              : "write_imageui");
+    return lDefines;
+  }
+
+  /**
+   * Returns the defines for the in-place kernels, reading and writing the given
+   * image
+   * 
+   * @param pImage
+   *          image read and written in place
+   * @return defines
+   */
+  public static Map<String, Object> getInPlaceOpenCLDefines(ClearCLImage pImage)
+  {
+    Map<String, Object> lDefines = getOpenCLDefines(pImage, pImage);
+    lDefines.put(cReadWriteImagesDefine, null);
+    return lDefines;
+  }
+
+  /**
+   * Returns true if the device of the given context supports read_write
+   * images, i.e. OpenCL 2.0 or later. Binding the same image as read_only and
+   * write_only argument is undefined, so in-place execution requires it.
+   * 
+   * @param pContext
+   *          context, or null
+   * @return true if read_write images are supported
+   */
+  public static boolean supportsReadWriteImages(ClearCLContext pContext)
+  {
+    if (pContext == null || pContext.getDevice() == null)
+      return false;
+    return pContext.getDevice().getVersion() >= 2.0;
+  }
+
+  /**
+   * Returns the defines for the tiled Tenengrad kernels
+   * 
+   * @param pImageIn
+   *          input image
+   * @param pImageOut
+   *          output image
+   * @return defines
+   */
+  public static Map<String, Object> getTenengradTiledOpenCLDefines(ClearCLImage pImageIn,
+                                                                   ClearCLImage pImageOut)
+  {
+    return getTenengradTiledOpenCLDefines(pImageIn,
+                                          pImageOut,
+                                          cTenengradTileSizes);
+  }
+
+  /**
+   * Returns the defines for the tiled Tenengrad kernels with given tile sizes
+   * 
+   * @param pImageIn
+   *          input image
+   * @param pImageOut
+   *          output image
+   * @param pTileSizes
+   *          tile sizes, i.e. local sizes of the kernel
+   * @return defines
+   */
+  public static Map<String, Object> getTenengradTiledOpenCLDefines(ClearCLImage pImageIn,
+                                                                   ClearCLImage pImageOut,
+                                                                   long[] pTileSizes)
+  {
+    Map<String, Object> lDefines = getOpenCLDefines(pImageIn,
+                                                    pImageOut);
+    lDefines.put("TILE_X", pTileSizes[0]);
+    lDefines.put("TILE_Y", pTileSizes[1]);
+    lDefines.put("TILE_Z", pTileSizes[2]);
     return lDefines;
   }
 
+  /**
+   * Returns the tile sizes of the tiled Tenengrad kernels for a given number of
+   * images on the device of a given context (see
+   * getTenengradTileSizes(long,int)). The default tile sizes are returned if
+   * the device is unknown.
+   * 
+   * @param pContext
+   *          context
+   * @param pNumberOfImages
+   *          number of images tiled in local memory
+   * @return tile sizes, or null if no tile fits in local memory
+   */
+  public static long[] getTenengradTileSizes(ClearCLContext pContext,
+                                             int pNumberOfImages)
+  {
+    if (pContext == null || pContext.getDevice() == null)
+      return cTenengradTileSizes.clone();
+    return getTenengradTileSizes(pContext.getDevice()
+                                         .getLocalMemorySizeInBytes(),
+                                 pNumberOfImages);
+  }
+
+  /**
+   * Returns the tile sizes of the tiled Tenengrad kernels for a given number of
+   * images: the default tile is halved, largest dimension first, until one
+   * float tile with halo per image fits in the given local memory. Tiles of
+   * less than cMinTenengradTileVolume voxels do not pay for their halo, null
+   * is returned instead and the untiled kernel should be used.
+   * 
+   * @param pLocalMemorySizeInBytes
+   *          local memory size of the device
+   * @param pNumberOfImages
+   *          number of images tiled in local memory
+   * @return tile sizes, or null if no tile fits in local memory
+   */
+  public static long[] getTenengradTileSizes(long pLocalMemorySizeInBytes,
+                                             int pNumberOfImages)
+  {
+    long[] lTileSizes = cTenengradTileSizes.clone();
+    while (getTenengradLocalMemorySize(lTileSizes,
+                                       pNumberOfImages) > pLocalMemorySizeInBytes)
+    {
+      int lLargestAxis = 0;
+      for (int d = 1; d < 3; d++)
+        if (lTileSizes[d] > lTileSizes[lLargestAxis])
+          lLargestAxis = d;
+      lTileSizes[lLargestAxis] /= 2;
+      if (lTileSizes[0] * lTileSizes[1]
+          * lTileSizes[2] < cMinTenengradTileVolume)
+        return null;
+    }
+    return lTileSizes;
+  }
+
+  /**
+   * Returns the local memory used by the tiled Tenengrad kernels: one float
+   * tile with a one voxel halo per image
+   * 
+   * @param pTileSizes
+   *          tile sizes
+   * @param pNumberOfImages
+   *          number of images
+   * @return local memory size in bytes
+   */
+  public static long getTenengradLocalMemorySize(long[] pTileSizes,
+                                                 int pNumberOfImages)
+  {
+    return (long) Float.BYTES * pNumberOfImages
+           * (pTileSizes[0] + 2)
+           * (pTileSizes[1] + 2)
+           * (pTileSizes[2] + 2);
+  }
+
+  /**
+   * Rounds up global sizes to multiples of the given local sizes
+   * 
+   * @param pGlobalSizes
+   *          global sizes
+   * @param pLocalSizes
+   *          local sizes
+   * @return padded global sizes
+   */
+  public static long[] getPaddedGlobalSizes(long[] pGlobalSizes,
+                                            long[] pLocalSizes)
+  {
+    long[] lPaddedGlobalSizes = new long[pGlobalSizes.length];
+    for (int i = 0; i < pGlobalSizes.length; i++)
+      lPaddedGlobalSizes[i] = ((pGlobalSizes[i] + pLocalSizes[i] - 1)
+                               / pLocalSizes[i])
+                              * pLocalSizes[i];
+    return lPaddedGlobalSizes;
+  }
+
   public static Map<String, Object> getOpenCLDefines(ClearCLImage pImageIn,
                                                      ClearCLImage pImageOut)
   {
@@ -96,4 +361,101 @@ public class TaskHelper
                             pImageOut.getChannelDataType());
   }
 
+  /**
+   * Returns the halo depth of a task that samples its input through an affine
+   * transform: the largest displacement along z between a voxel of the whole
+   * stack and the point it is sampled from, plus one plane for the
+   * interpolation.
+   * 
+   * @param pDstToSrcMatrix
+   *          transform mapping voxel coordinates of the destination image to
+   *          voxel coordinates of the source image
+   * @param pStackDimensions
+   *          dimensions of the whole stack
+   * @return halo depth
+   */
+  public static int getTransformHaloDepth(Matrix4f pDstToSrcMatrix,
+                                          long[] pStackDimensions)
+  {
+    // the displacement is affine, its maximum is reached at a corner:
+    double lMaxDisplacement = 0;
+    for (int c = 0; c < 8; c++)
+    {
+      double x = (c & 1) == 0 ? 0 : pStackDimensions[0] - 1;
+      double y = (c & 2) == 0 ? 0 : pStackDimensions[1] - 1;
+      double z = (c & 4) == 0 ? 0 : pStackDimensions[2] - 1;
+      double lDisplacement = pDstToSrcMatrix.m20 * x
+                             + pDstToSrcMatrix.m21 * y
+                             + pDstToSrcMatrix.m22 * z
+                             + pDstToSrcMatrix.m23
+                             - z;
+      lMaxDisplacement = Math.max(lMaxDisplacement,
+                                  Math.abs(lDisplacement));
+    }
+    return (int) Math.ceil(lMaxDisplacement) + 1;
+  }
+
+  /**
+   * Returns the axis permutation of a transform that only flips and permutes
+   * the voxel axes, i.e. whose linear part is a signed permutation matrix and
+   * whose translation is integral, such that it maps voxels onto voxels.
+   * 
+   * @param pTransform
+   *          affine transform
+   * @return for each axis i, the axis j such that coordinate i of transformed
+   *         points only depends on coordinate j, or null if the transform is
+   *         not a flip or permutation
+   */
+  public static int[] getFlipAxisPermutation(Matrix4f pTransform)
+  {
+    final float lTolerance = 1e-4f;
+    int[] lAxisPermutation = new int[3];
+    boolean[] lUsedAxes = new boolean[3];
+    for (int i = 0; i < 3; i++)
+    {
+      lAxisPermutation[i] = -1;
+      for (int j = 0; j < 3; j++)
+      {
+        float lElement = Math.abs(pTransform.getElement(i, j));
+        if (Math.abs(lElement - 1) < lTolerance && !lUsedAxes[j]
+            && lAxisPermutation[i] < 0)
+        {
+          lAxisPermutation[i] = j;
+          lUsedAxes[j] = true;
+        }
+        else if (lElement > lTolerance)
+          return null;
+      }
+      float lTranslation = pTransform.getElement(i, 3);
+      if (lAxisPermutation[i] < 0
+          || Math.abs(lTranslation - Math.round(lTranslation)) > lTolerance)
+        return null;
+    }
+    return lAxisPermutation;
+  }
+
+  /**
+   * Converts an affine transform between voxel coordinates of the whole stack
+   * to voxel coordinates of a slab of the stack
+   * 
+   * @param pTransform
+   *          transform in voxel coordinates of the whole stack
+   * @param pSlabOffset
+   *          z coordinate of the first plane of the slab in the whole stack
+   * @return transform in voxel coordinates of the slab
+   */
+  public static Matrix4f getSlabTransform(Matrix4f pTransform,
+                                          long pSlabOffset)
+  {
+    if (pSlabOffset == 0)
+      return new Matrix4f(pTransform);
+    return AffineMatrix.multiply(AffineMatrix.translation(0,
+                                                          0,
+                                                          -pSlabOffset),
+                                 pTransform,
+                                 AffineMatrix.translation(0,
+                                                          0,
+                                                          pSlabOffset));
+  }
+
 }
@@ -1,7 +1,10 @@
 package fastfuse.tasks;
 
+import java.util.List;
 import java.util.Set;
 
+import javax.vecmath.Matrix4f;
+
 import fastfuse.FastFusionEngineInterface;
 
 /**
@@ -21,6 +24,128 @@ public interface TaskInterface
    */
   public boolean checkIfRequiredImagesAvailable(Set<String> pAvailableImagesSlotKeys);
 
+  /**
+   * Returns the slot keys of the images that this task requires
+   * 
+   * @return required slot keys
+   */
+  public Set<String> getRequiredImagesSlotKeys();
+
+  /**
+   * Returns the slot keys of the images that this task produces
+   * 
+   * @return produced slot keys
+   */
+  public List<String> getProducedImagesSlotKeys();
+
+  /**
+   * Returns true if this task does not do any actual computation (e.g. it only
+   * releases or reassigns images). Such tasks are executed as soon as possible.
+   * 
+   * @return true if task is instantaneous
+   */
+  public default boolean isInstantaneous()
+  {
+    return false;
+  }
+
+  /**
+   * Returns a description of the computation done by this task that includes
+   * all parameters but excludes the slot keys. Two tasks of the same class with
+   * the same signature produce identical images when given identical input
+   * images. Tasks that must not be merged (e.g. because they keep state between
+   * invocations) return null.
+   * 
+   * @return signature or null
+   */
+  public default String getSignature()
+  {
+    return null;
+  }
+
+  /**
+   * Returns the slot key of the input image that this task can overwrite with
+   * its output. The engine may then pass the input image as destination image
+   * if the input image is not needed anymore after this task, in which case
+   * the task must support that its source and destination images are the
+   * same, with kernels declaring that image read_write (see
+   * TaskHelper.getInPlaceOpenCLDefines): binding the same image as read_only
+   * and write_only argument is undefined. The engine only does this on devices
+   * supporting OpenCL 2.0. The destination image still has to be obtained with
+   * ensureImageAllocated(...), which only reuses the input image if data type
+   * and dimensions match.
+   * 
+   * @return slot key of input image or null if the task cannot run in place
+   */
+  public default String getInPlaceSourceSlotKey()
+  {
+    return null;
+  }
+
+  /**
+   * Returns true if this task reads the affine transforms attached to its
+   * required images (see FastFusionEngineInterface.setImageTransform) and
+   * samples them accordingly. Otherwise the engine transforms these images
+   * before the task is executed, unless the transform can be propagated (see
+   * getPropagatedImageTransform).
+   * 
+   * @return true if the task handles image transforms itself
+   */
+  public default boolean acceptsImageTransforms()
+  {
+    return false;
+  }
+
+  /**
+   * Returns the transform to attach to a produced image when this task is
+   * applied to untransformed images instead of images that all carry the same
+   * given transform. This is the case for tasks that commute with the
+   * transform, at least approximately (e.g. pointwise or local operations).
+   * 
+   * @param pProducedSlotKey
+   *          slot key of produced image
+   * @param pTransform
+   *          transform common to all required images
+   * @return transform of produced image, or null if the task does not commute
+   *         with the transform
+   */
+  public default Matrix4f getPropagatedImageTransform(String pProducedSlotKey,
+                                                      Matrix4f pTransform)
+  {
+    return null;
+  }
+
+  /**
+   * Returns the number of planes along z that this task reads on each side of
+   * the planes that it writes, which is the halo that slabs of the stack must
+   * include for this task to be executed slab by slab (see ZSlabExecutor).
+   * Tasks that read the whole stack (e.g. registration, statistics) or
+   * reorder its planes cannot be executed slab by slab and return -1.
+   * 
+   * @param pStackDimensions
+   *          dimensions of the whole stack
+   * @return halo depth, or -1 if the task cannot be executed slab by slab
+   */
+  public default int getHaloDepth(long[] pStackDimensions)
+  {
+    return -1;
+  }
+
+  /**
+   * Returns the number of consecutive planes of the required images that make
+   * up one plane of a given produced image, e.g. 2 when splitting two
+   * interleaved stacks or downsampling by 2 along z. Slabs are then aligned to
+   * multiples of this number.
+   * 
+   * @param pProducedSlotKey
+   *          slot key of produced image
+   * @return depth reduction factor
+   */
+  public default int getDepthReduction(String pProducedSlotKey)
+  {
+    return 1;
+  }
+
   /**
    * Enqueues the computation necessary to perform this task
    * 
@@ -33,4 +158,13 @@ public interface TaskInterface
   public boolean enqueue(FastFusionEngineInterface pFastFusionEngine,
                          boolean pWaitToFinish);
 
+  /**
+   * Releases the resources held by this task across executions (e.g. OpenCL
+   * buffers or threads). The task allocates them again if it is executed
+   * afterwards.
+   */
+  public default void close()
+  {
+  }
+
 }
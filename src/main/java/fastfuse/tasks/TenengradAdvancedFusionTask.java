@@ -1,22 +1,41 @@
 package fastfuse.tasks;
 
 import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
+import javax.vecmath.Matrix4f;
+
+import clearcl.ClearCLBuffer;
 import clearcl.ClearCLImage;
 import clearcl.ClearCLKernel;
 import clearcl.enums.ImageChannelDataType;
+import coremem.enums.NativeTypeEnum;
 import fastfuse.FastFusionEngineInterface;
+import fastfuse.FastFusionException;
+import fastfuse.registration.AffineMatrix;
 
 import org.apache.commons.lang3.tuple.MutablePair;
 
+/**
+ * Fuses stacks by weighted average, given precomputed (and possibly
+ * downsampled in XY) weights. Each input can be transformed by an affine
+ * transform, given for this task or attached to the input slots (e.g. by a
+ * registration task), in which case inputs and weights are sampled with
+ * trilinear interpolation and no transformed copy is computed.
+ *
+ * @author uschmidt, royer
+ */
 public class TenengradAdvancedFusionTask extends TaskBase
                                          implements TaskInterface
 {
   private final String[] mSrcImageKeys, mSrcWeightKeys;
   private final String mDstImageKey;
   private final ImageChannelDataType mDstImageDataType;
+  private final Matrix4f[] mImageTransforms;
+  private ClearCLBuffer mTransformMatricesBuffer;
 
   public TenengradAdvancedFusionTask(String pDstImageKey,
                                      ImageChannelDataType pDstImageDataType,
@@ -33,9 +52,68 @@ public class TenengradAdvancedFusionTask extends TaskBase
                               .mapToObj(i -> pSrcImageAndWeightKeys[i])
                               .toArray(String[]::new);
     mDstImageKey = pDstImageKey;
+    addProducedImages(pDstImageKey);
     mDstImageDataType = pDstImageDataType;
+    mImageTransforms = new Matrix4f[lNumImages];
+    String lGeneratedSource =
+                            KernelSourceGenerator.getTenengradFusionWithProvidedWeightsAffineSource(lNumImages);
+    if (lNumImages != 2 && lNumImages != 4)
+      lGeneratedSource =
+                       KernelSourceGenerator.getTenengradFusionWithProvidedWeightsSource(lNumImages)
+                         + lGeneratedSource;
     setupProgram(TenengradAdvancedFusionTask.class,
-                 "./kernels/fusion.cl");
+                 "./kernels/fusion.cl",
+                 lGeneratedSource);
+  }
+
+  /**
+   * Sets the affine transform of a given input, which maps voxel coordinates of
+   * the fused image to voxel coordinates of the input image. It is composed
+   * with the transform attached to the input slot, if any.
+   *
+   * @param pImageIndex
+   *          index of input image
+   * @param pTransform
+   *          transform, or null for no transform
+   */
+  public void setImageTransform(int pImageIndex, Matrix4f pTransform)
+  {
+    mImageTransforms[pImageIndex] = pTransform == null ? null
+                                                       : new Matrix4f(pTransform);
+  }
+
+  /**
+   * Transformed inputs are sampled with a linear sampler, which requires float
+   * images: transforms attached to integer inputs are materialized by the task
+   * itself before fusing.
+   */
+  @Override
+  public boolean acceptsImageTransforms()
+  {
+    return true;
+  }
+
+  @Override
+  public String getSignature()
+  {
+    for (Matrix4f lTransform : mImageTransforms)
+      if (lTransform != null)
+        return null;
+    return String.format("images=%d, dtype=%s",
+                         mSrcImageKeys.length,
+                         mDstImageDataType);
+  }
+
+  @Override
+  public int getHaloDepth(long[] pStackDimensions)
+  {
+    int lHaloDepth = 0;
+    for (Matrix4f lTransform : mImageTransforms)
+      if (lTransform != null)
+        lHaloDepth = Math.max(lHaloDepth,
+                              TaskHelper.getTransformHaloDepth(lTransform,
+                                                               pStackDimensions));
+    return lHaloDepth;
   }
 
   @Override
@@ -48,6 +126,21 @@ public class TenengradAdvancedFusionTask extends TaskBase
     lSrcImages = Stream.of(mSrcImageKeys)
                        .map(pFastFusionEngine::getImage)
                        .toArray(ClearCLImage[]::new);
+    if (!TaskHelper.allAccessedAsFloat(lSrcImages))
+    {
+      // integer images cannot be sampled through their slot transforms:
+      boolean lMaterialized = false;
+      for (String lKey : mSrcImageKeys)
+        if (pFastFusionEngine.getImageTransform(lKey) != null)
+        {
+          pFastFusionEngine.materializeImage(lKey);
+          lMaterialized = true;
+        }
+      if (lMaterialized)
+        lSrcImages = Stream.of(mSrcImageKeys)
+                           .map(pFastFusionEngine::getImage)
+                           .toArray(ClearCLImage[]::new);
+    }
     lSrcWeights = Stream.of(mSrcWeightKeys)
                         .map(pFastFusionEngine::getImage)
                         .toArray(ClearCLImage[]::new);
@@ -59,13 +152,19 @@ public class TenengradAdvancedFusionTask extends TaskBase
     // check data types
     assert TaskHelper.allSameAllowedDataType(lSrcImages);
     assert TaskHelper.allowedDataType(lDstImageDataType);
-    assert TaskHelper.allSameDataType(ImageChannelDataType.Float,
-                                      lSrcWeights);
-    // get and check dimensions
-    assert TaskHelper.allSameDimensions(lSrcImages);
-    assert TaskHelper.allSameDimensions(lSrcWeights);
-    long[] lImageDims = lSrcImages[0].getDimensions();
-    long[] lWeightDims = lSrcWeights[0].getDimensions();
+    assert TaskHelper.allAccessedAsFloat(lSrcWeights);
+    // get and check dimensions, as seen through the image transforms:
+    long[] lImageDims =
+                      pFastFusionEngine.getImageDimensions(mSrcImageKeys[0]);
+    long[] lWeightDims =
+                       pFastFusionEngine.getImageDimensions(mSrcWeightKeys[0]);
+    for (int i = 1; i < lNumImages; i++)
+      if (!Arrays.equals(lImageDims,
+                         pFastFusionEngine.getImageDimensions(mSrcImageKeys[i]))
+          || !Arrays.equals(lWeightDims,
+                            pFastFusionEngine.getImageDimensions(mSrcWeightKeys[i])))
+        throw new FastFusionException("Fusion task %s received images of different dimensions",
+                                      this);
     assert lImageDims[0] % lWeightDims[0] == 0
            && lImageDims[1] % lWeightDims[1] == 0;
     assert (lImageDims[0] / lWeightDims[0]) == (lImageDims[1]
@@ -76,14 +175,22 @@ public class TenengradAdvancedFusionTask extends TaskBase
     MutablePair<Boolean, ClearCLImage> lFlagAndDstImage =
                                                         pFastFusionEngine.ensureImageAllocated(mDstImageKey,
                                                                                                lDstImageDataType,
-                                                                                               lSrcImages[0].getDimensions());
+                                                                                               lImageDims);
     ClearCLImage lDstImage = lFlagAndDstImage.getRight();
 
+    // transforms of images and weights, null if none is transformed:
+    float[] lTransformMatrices = getTransformMatrices(pFastFusionEngine,
+                                                      lDimRatio);
+    if (lTransformMatrices != null
+        && !TaskHelper.allAccessedAsFloat(lSrcImages))
+      throw new FastFusionException("Fusion task %s can only apply its own transforms to float images",
+                                    this);
+
     try
     {
       String lKernelName =
-                         String.format("tenengrad_fusion_with_provided_weights_%d_images",
-                                       lNumImages);
+                         lTransformMatrices == null ? KernelSourceGenerator.getTenengradFusionWithProvidedWeightsKernelName(lNumImages)
+                                                    : KernelSourceGenerator.getTenengradFusionWithProvidedWeightsAffineKernelName(lNumImages);
       ClearCLKernel lKernel =
                             getKernel(lDstImage.getContext(),
                                       lKernelName,
@@ -92,6 +199,17 @@ public class TenengradAdvancedFusionTask extends TaskBase
       int i = 0;
       lKernel.setArgument(i++, lDstImage);
       lKernel.setArgument(i++, lDimRatio);
+      if (lTransformMatrices != null)
+      {
+        if (mTransformMatricesBuffer == null)
+          mTransformMatricesBuffer =
+                                   lDstImage.getContext()
+                                            .createBuffer(NativeTypeEnum.Float,
+                                                          lTransformMatrices.length);
+        mTransformMatricesBuffer.readFrom(FloatBuffer.wrap(lTransformMatrices),
+                                          true);
+        lKernel.setArgument(i++, mTransformMatricesBuffer);
+      }
       for (ClearCLImage lImage : lSrcImages)
         lKernel.setArgument(i++, lImage);
       for (ClearCLImage lWeight : lSrcWeights)
@@ -110,4 +228,76 @@ public class TenengradAdvancedFusionTask extends TaskBase
 
   }
 
+  /**
+   * Returns the first three rows of the transform matrices of the images,
+   * followed by those of the weights, or null if no image is transformed. The
+   * weight transforms are expressed in voxel coordinates of the weights, which
+   * are downsampled by a given factor in XY: weight voxel (i,j) covers the
+   * block of image voxels centred on (f*i+(f-1)/2, f*j+(f-1)/2).
+   */
+  private float[] getTransformMatrices(FastFusionEngineInterface pFastFusionEngine,
+                                       int pDimRatio)
+  {
+    int lNumImages = mSrcImageKeys.length;
+    Matrix4f[] lMatrices = new Matrix4f[2 * lNumImages];
+    boolean lTransformed = false;
+
+    float lBlockCentre = 0.5f * (pDimRatio - 1);
+    Matrix4f lWeightToImage =
+                            AffineMatrix.multiply(AffineMatrix.translation(lBlockCentre,
+                                                                           lBlockCentre,
+                                                                           0),
+                                                  AffineMatrix.scaling(pDimRatio,
+                                                                       pDimRatio,
+                                                                       1));
+    Matrix4f lImageToWeight = new Matrix4f();
+    lImageToWeight.invert(lWeightToImage);
+
+    for (int i = 0; i < lNumImages; i++)
+    {
+      Matrix4f lTaskTransform =
+                              mImageTransforms[i] == null ? AffineMatrix.identity()
+                                                          : TaskHelper.getSlabTransform(mImageTransforms[i],
+                                                                                        pFastFusionEngine.getSlabOffset(mSrcImageKeys[i]));
+      Matrix4f lImageTransform =
+                               pFastFusionEngine.getImageTransform(mSrcImageKeys[i]);
+      Matrix4f lWeightTransform =
+                                pFastFusionEngine.getImageTransform(mSrcWeightKeys[i]);
+      lTransformed |= mImageTransforms[i] != null
+                      || lImageTransform != null
+                      || lWeightTransform != null;
+
+      lMatrices[i] = AffineMatrix.multiply(lImageTransform == null ? AffineMatrix.identity()
+                                                                   : lImageTransform,
+                                           lTaskTransform);
+      lMatrices[lNumImages + i] =
+                                AffineMatrix.multiply(lWeightTransform == null ? AffineMatrix.identity()
+                                                                               : lWeightTransform,
+                                                      lImageToWeight,
+                                                      lTaskTransform,
+                                                      lWeightToImage);
+    }
+    if (!lTransformed)
+      return null;
+
+    float[] lTransformMatrices = new float[12 * lMatrices.length];
+    for (int m = 0; m < lMatrices.length; m++)
+      for (int r = 0; r < 3; r++)
+        for (int c = 0; c < 4; c++)
+          lTransformMatrices[12 * m + 4 * r + c] =
+                                                 lMatrices[m].getElement(r,
+                                                                         c);
+    return lTransformMatrices;
+  }
+
+  @Override
+  public void close()
+  {
+    if (mTransformMatricesBuffer != null)
+    {
+      mTransformMatricesBuffer.close();
+      mTransformMatricesBuffer = null;
+    }
+  }
+
 }
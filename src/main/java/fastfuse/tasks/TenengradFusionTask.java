@@ -11,7 +11,7 @@ import clearcl.enums.ImageChannelDataType;
 import org.apache.commons.lang3.tuple.MutablePair;
 
 /**
- * Fuses two stacks by weighted average, the weights are obtained by computing
+ * Fuses stacks by weighted average, the weights are obtained by computing
  * Tenengrad image quality metric
  *
  * @author royer, uschmidt
@@ -90,6 +90,21 @@ public class TenengradFusionTask extends FusionTaskBase
     return lTaskList;
   }
 
+  public static List<TaskInterface> apply(boolean pReleaseInputs,
+                                          String[] pInputImagesSlotKeys,
+                                          String pDestImageSlotKey,
+                                          ImageChannelDataType pDestinationImageDataType)
+  {
+    List<TaskInterface> lTaskList = new ArrayList<>();
+    lTaskList.add(new TenengradFusionTask(pInputImagesSlotKeys,
+                                          pDestImageSlotKey,
+                                          pDestinationImageDataType));
+    if (pReleaseInputs)
+      lTaskList.add(new MemoryReleaseTask(pDestImageSlotKey,
+                                          pInputImagesSlotKeys));
+    return lTaskList;
+  }
+
   /**
    * Instantiates a Tenengrad fusion task given the keys for two input images
    * and destination image
@@ -147,11 +162,41 @@ public class TenengradFusionTask extends FusionTaskBase
     mDestinationImageDataType = pDestinationImageDataType;
   }
 
+  /**
+   * Instantiates a Tenengrad fusion task given the keys for any number of input
+   * images and destination image. For other numbers of images than 2 or 4 the
+   * kernel is generated.
+   *
+   * @param pInputImagesSlotKeys
+   *          input images keys
+   * @param pDestImageSlotKey
+   *          destination image key
+   * @param pDestinationImageDataType
+   *          destination image channel data type
+   */
+  public TenengradFusionTask(String[] pInputImagesSlotKeys,
+                             String pDestImageSlotKey,
+                             ImageChannelDataType pDestinationImageDataType)
+  {
+    super(pInputImagesSlotKeys, pDestImageSlotKey);
+    int lNumberOfImages = pInputImagesSlotKeys.length;
+    setupProgram(TenengradFusionTask.class,
+                 "./kernels/fusion.cl",
+                 lNumberOfImages == 2 || lNumberOfImages == 4 ? null
+                                                              : KernelSourceGenerator.getTenengradFusionSource(lNumberOfImages)
+                                                                + KernelSourceGenerator.getTenengradFusionUntiledSource(lNumberOfImages));
+    mDestinationImageDataType = pDestinationImageDataType;
+  }
+
+  @Override
+  public int getHaloDepth(long[] pStackDimensions)
+  {
+    // 3x3x3 Sobel operator
+    return 1;
+  }
+
   @Override
-  public boolean fuse(ClearCLImage lImageA,
-                      ClearCLImage lImageB,
-                      ClearCLImage lImageC,
-                      ClearCLImage lImageD,
+  public boolean fuse(ClearCLImage[] pImages,
                       MutablePair<Boolean, ClearCLImage> pImageAndFlag,
                       boolean pWaitToFinish)
   {
@@ -161,46 +206,43 @@ public class TenengradFusionTask extends FusionTaskBase
 
     // check image data types
     assert TaskHelper.allowedDataType(lImageFused);
-    if (mInputImagesSlotKeys.length == 2)
-    {
-      assert TaskHelper.allSameAllowedDataType(lImageA, lImageB);
-      assert TaskHelper.allSameDimensions(lImageA,
-                                          lImageB,
-                                          lImageFused);
-    }
-    else
-    {
-      assert TaskHelper.allSameAllowedDataType(lImageA,
-                                               lImageB,
-                                               lImageC,
-                                               lImageD);
-      assert TaskHelper.allSameDimensions(lImageA,
-                                          lImageB,
-                                          lImageC,
-                                          lImageD,
-                                          lImageFused);
-    }
+    assert TaskHelper.allSameAllowedDataType(pImages);
+    assert TaskHelper.allSameDimensions(pImages);
+    assert TaskHelper.allSameDimensions(pImages[0], lImageFused);
+
+    // the tiles of all images must fit in local memory, otherwise the
+    // untiled kernel reads the neighbourhoods from the images:
+    long[] lTileSizes =
+                      TaskHelper.getTenengradTileSizes(lImageFused.getContext(),
+                                                       pImages.length);
 
     try
     {
-      String lKernelName = String.format("tenengrad_fusion_%d_images",
-                                         mInputImagesSlotKeys.length);
-      lKernel = getKernel(lImageFused.getContext(),
-                          lKernelName,
-                          TaskHelper.getOpenCLDefines(lImageA,
-                                                      lImageFused));
+      if (lTileSizes == null)
+        lKernel = getKernel(lImageFused.getContext(),
+                            KernelSourceGenerator.getTenengradFusionUntiledKernelName(pImages.length),
+                            TaskHelper.getOpenCLDefines(pImages[0],
+                                                        lImageFused));
+      else
+        lKernel = getKernel(lImageFused.getContext(),
+                            KernelSourceGenerator.getTenengradFusionKernelName(pImages.length),
+                            TaskHelper.getTenengradTiledOpenCLDefines(pImages[0],
+                                                                      lImageFused,
+                                                                      lTileSizes));
 
       // kernel arguments are given by name
-      lKernel.setArgument("src1", lImageA);
-      lKernel.setArgument("src2", lImageB);
-      if (mInputImagesSlotKeys.length == 4)
-      {
-        lKernel.setArgument("src3", lImageC);
-        lKernel.setArgument("src4", lImageD);
-      }
+      for (int i = 0; i < pImages.length; i++)
+        lKernel.setArgument("src" + (i + 1), pImages[i]);
       lKernel.setArgument("dst", lImageFused);
 
-      lKernel.setGlobalSizes(lImageFused);
+      if (lTileSizes == null)
+        lKernel.setGlobalSizes(lImageFused.getDimensions());
+      else
+      {
+        lKernel.setGlobalSizes(TaskHelper.getPaddedGlobalSizes(lImageFused.getDimensions(),
+                                                               lTileSizes));
+        lKernel.setLocalSizes(lTileSizes);
+      }
 
       runKernel(lKernel, pWaitToFinish);
       pImageAndFlag.setLeft(true);
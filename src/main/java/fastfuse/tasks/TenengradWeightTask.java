@@ -2,10 +2,13 @@ package fastfuse.tasks;
 
 import java.io.IOException;
 
+import javax.vecmath.Matrix4f;
+
 import clearcl.ClearCLImage;
 import clearcl.ClearCLKernel;
 import clearcl.enums.ImageChannelDataType;
 import fastfuse.FastFusionEngineInterface;
+import fastfuse.FastFusionException;
 
 import org.apache.commons.lang3.tuple.MutablePair;
 
@@ -13,14 +16,69 @@ public class TenengradWeightTask extends TaskBase
                                  implements TaskInterface
 {
 
+  /**
+   * Scale of weights stored as half float: squared Sobel magnitudes of 16 bit
+   * images would overflow otherwise, and the scale cancels out when the weights
+   * are normalized
+   */
+  public static final float cHalfFloatWeightScale = 0x1p-24f;
+
   private final String mSrcImageKey, mDstImageKey;
+  private final ImageChannelDataType mDstDataType;
 
   public TenengradWeightTask(String pSrcImageKey, String pDstImageKey)
+  {
+    this(pSrcImageKey, pDstImageKey, ImageChannelDataType.Float);
+  }
+
+  /**
+   * Instantiates a Tenengrad weight task
+   * 
+   * @param pSrcImageKey
+   *          source image key
+   * @param pDstImageKey
+   *          weight image key
+   * @param pDstDataType
+   *          weight data type, Float or HalfFloat (weights are then scaled by
+   *          cHalfFloatWeightScale)
+   */
+  public TenengradWeightTask(String pSrcImageKey,
+                             String pDstImageKey,
+                             ImageChannelDataType pDstDataType)
   {
     super(pSrcImageKey);
     setupProgram(TenengradWeightTask.class, "./kernels/fusion.cl");
+    if (pDstDataType != ImageChannelDataType.Float
+        && pDstDataType != ImageChannelDataType.HalfFloat)
+      throw new FastFusionException("Weights must be stored as Float or HalfFloat, got: %s",
+                                    pDstDataType);
     mSrcImageKey = pSrcImageKey;
     mDstImageKey = pDstImageKey;
+    mDstDataType = pDstDataType;
+    addProducedImages(pDstImageKey);
+  }
+
+  @Override
+  public String getSignature()
+  {
+    return String.format("dtype=%s", mDstDataType);
+  }
+
+  @Override
+  public Matrix4f getPropagatedImageTransform(String pProducedSlotKey,
+                                              Matrix4f pTransform)
+  {
+    // the Sobel gradient magnitude is invariant to flips and permutations of
+    // the voxel axes, but not exactly to other (interpolated) transforms:
+    return TaskHelper.getFlipAxisPermutation(pTransform) == null ? null
+                                                                  : pTransform;
+  }
+
+  @Override
+  public int getHaloDepth(long[] pStackDimensions)
+  {
+    // 3x3x3 Sobel operator
+    return 1;
   }
 
   @Override
@@ -33,7 +91,7 @@ public class TenengradWeightTask extends TaskBase
 
     MutablePair<Boolean, ClearCLImage> lFlagAndDstImage =
                                                         pFastFusionEngine.ensureImageAllocated(mDstImageKey,
-                                                                                               ImageChannelDataType.Float,
+                                                                                               mDstDataType,
                                                                                                lSrcImage.getDimensions());
     lDstImage = lFlagAndDstImage.getRight();
 
@@ -41,11 +99,16 @@ public class TenengradWeightTask extends TaskBase
     {
       ClearCLKernel lKernel;
       lKernel = getKernel(lSrcImage.getContext(),
-                          "tenengrad_weight_unnormalized",
-                          TaskHelper.getOpenCLDefines(lSrcImage,
-                                                      lDstImage));
-      lKernel.setGlobalSizes(lDstImage.getDimensions());
-      lKernel.setArguments(lDstImage, lSrcImage);
+                          "tenengrad_weight_unnormalized_tiled",
+                          TaskHelper.getTenengradTiledOpenCLDefines(lSrcImage,
+                                                                    lDstImage));
+      lKernel.setGlobalSizes(TaskHelper.getPaddedGlobalSizes(lDstImage.getDimensions(),
+                                                             TaskHelper.cTenengradTileSizes));
+      lKernel.setLocalSizes(TaskHelper.cTenengradTileSizes);
+      lKernel.setArguments(lDstImage,
+                           lSrcImage,
+                           mDstDataType == ImageChannelDataType.HalfFloat ? cHalfFloatWeightScale
+                                                                          : 1f);
       runKernel(lKernel, pWaitToFinish);
       lFlagAndDstImage.setLeft(true);
       return true;
@@ -13,7 +13,8 @@ import org.apache.commons.lang3.tuple.MutablePair;
 import simbryo.util.geom.GeometryUtils;
 
 /**
- * Fuses two stacks using the average method.
+ * Applies an affine transform to a stack. Float stacks are resampled with
+ * trilinear interpolation, integer stacks with nearest neighbor interpolation.
  *
  * @author royer
  */
@@ -25,8 +26,8 @@ public class TransformTask extends TaskBase implements TaskInterface
   private Matrix4f mTransformMatrix = GeometryUtils.getIdentity();
 
   /**
-   * Instantiates an average fusion task given the keys for two input images and
-   * destination image
+   * Instantiates a transform task given the keys for the input and destination
+   * images. The transform is the identity until set.
    * 
    * @param pInputImageSlotKey
    *          input image slot key
@@ -39,7 +40,45 @@ public class TransformTask extends TaskBase implements TaskInterface
     super(pInputImageSlotKey);
     mInputImageSlotKey = pInputImageSlotKey;
     mDestImageSlotKey = pDestImageSlotKey;
-    setupProgram(FusionTaskBase.class, "./kernels/transform.cl");
+    addProducedImages(pDestImageSlotKey);
+    setupProgram(TransformTask.class, "./kernels/transform.cl");
+  }
+
+  /**
+   * Sets the transform, which maps voxel coordinates of the input image to
+   * voxel coordinates of the destination image
+   *
+   * @param pTransformMatrix
+   *          transform matrix
+   */
+  public void setTransformMatrix(Matrix4f pTransformMatrix)
+  {
+    mTransformMatrix = new Matrix4f(pTransformMatrix);
+  }
+
+  /**
+   * Returns the transform
+   *
+   * @return transform matrix
+   */
+  public Matrix4f getTransformMatrix()
+  {
+    return new Matrix4f(mTransformMatrix);
+  }
+
+  @Override
+  public String getSignature()
+  {
+    return String.format("matrix=%s", mTransformMatrix);
+  }
+
+  @Override
+  public int getHaloDepth(long[] pStackDimensions)
+  {
+    Matrix4f lInverseTransformMatrix = new Matrix4f(mTransformMatrix);
+    lInverseTransformMatrix.invert();
+    return TaskHelper.getTransformHaloDepth(lInverseTransformMatrix,
+                                            pStackDimensions);
   }
 
   @Override
@@ -60,15 +99,48 @@ public class TransformTask extends TaskBase implements TaskInterface
                                                                                             lInputImage.getChannelDataType(),
                                                                                             lInputImage.getDimensions());
 
-    ClearCLImage lImageFused = lImageAndFlag.getValue();
+    Matrix4f lInverseTransformMatrix = new Matrix4f(mTransformMatrix);
+    lInverseTransformMatrix.invert();
+
+    if (!transform(lImageAndFlag.getValue(),
+                   lInputImage,
+                   TaskHelper.getSlabTransform(lInverseTransformMatrix,
+                                               pFastFusionEngine.getSlabOffset(mInputImageSlotKey)),
+                   pWaitToFinish))
+      return false;
+    lImageAndFlag.setLeft(true);
 
+    return true;
+  }
+
+  /**
+   * Resamples a source image into a destination image of the same data type
+   *
+   * @param pDestImage
+   *          destination image
+   * @param pSourceImage
+   *          source image
+   * @param pDestToSourceMatrix
+   *          transform mapping voxel coordinates of the destination image to
+   *          voxel coordinates of the source image
+   * @param pWaitToFinish
+   *          true -> waits to finish
+   * @return true for success, false otherwise.
+   */
+  public boolean transform(ClearCLImage pDestImage,
+                           ClearCLImage pSourceImage,
+                           Matrix4f pDestToSourceMatrix,
+                           boolean pWaitToFinish)
+  {
     ClearCLKernel lKernel = null;
 
     try
     {
-
-      lKernel = getKernel(lImageFused.getContext(), "transform");
-
+      lKernel = getKernel(pDestImage.getContext(),
+                          TaskHelper.isAccessedAsFloat(pSourceImage.getChannelDataType()) ? "transform_linear"
+                                                                                           : "transform_nearest",
+                          TaskHelper.getOpenCLDefines(pSourceImage,
+                                                      pDestImage));
     }
     catch (Exception e)
     {
@@ -76,26 +148,20 @@ public class TransformTask extends TaskBase implements TaskInterface
       return false;
     }
 
-    Matrix4f lInverseTransformMatrix = new Matrix4f(mTransformMatrix);
-
-    lInverseTransformMatrix.invert();
-
     mTransformMatrixBuffer =
-                           MatrixUtils.matrixToBuffer(lImageFused.getContext(),
+                           MatrixUtils.matrixToBuffer(pDestImage.getContext(),
                                                       mTransformMatrixBuffer,
-                                                      lInverseTransformMatrix);
+                                                      pDestToSourceMatrix);
 
-    lKernel.setArgument("imagein", lInputImage);
-    lKernel.setArgument("imagedest", lImageFused);
+    lKernel.setArgument("src", pSourceImage);
+    lKernel.setArgument("dst", pDestImage);
+    lKernel.setArgument("mat", mTransformMatrixBuffer);
 
-    lKernel.setGlobalSizes(lImageFused);
+    lKernel.setGlobalSizes(pDestImage);
 
-    // System.out.println("running kernel");
     runKernel(lKernel, pWaitToFinish);
-    lImageAndFlag.setLeft(true);
 
     return true;
-
   }
 
 }
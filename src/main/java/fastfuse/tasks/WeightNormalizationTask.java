@@ -0,0 +1,146 @@
+package fastfuse.tasks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import clearcl.ClearCLImage;
+import clearcl.ClearCLKernel;
+import clearcl.enums.ImageChannelDataType;
+import fastfuse.FastFusionEngineInterface;
+import fastfuse.FastFusionException;
+
+import org.apache.commons.lang3.tuple.MutablePair;
+
+/**
+ * Normalizes the fusion weights of several views such that they sum to one at
+ * each voxel. Normalized weights lie in [0, 1] whatever the range of the
+ * unnormalized weights, and can thus be stored as 8 bit normalized integers
+ * (UnsignedNormalizedInt8), e.g. for downsampled weight pyramids.
+ *
+ * @author royer
+ */
+public class WeightNormalizationTask extends TaskBase
+                                     implements TaskInterface
+{
+  private final String[] mSrcWeightKeys, mDstWeightKeys;
+  private final ImageChannelDataType mDstDataType;
+
+  public static List<TaskInterface> applyAndReleaseInputs(ImageChannelDataType pDstDataType,
+                                                          String[] pSrcWeightKeys,
+                                                          String[] pDstWeightKeys)
+  {
+    List<TaskInterface> lTaskList = new ArrayList<>();
+    WeightNormalizationTask lTask =
+                                  new WeightNormalizationTask(pSrcWeightKeys,
+                                                              pDstWeightKeys,
+                                                              pDstDataType);
+    lTaskList.add(lTask);
+    lTaskList.add(new MemoryReleaseTask(lTask.getProducedImagesSlotKeys(),
+                                        pSrcWeightKeys));
+    return lTaskList;
+  }
+
+  /**
+   * Instantiates a weight normalization task
+   *
+   * @param pSrcWeightKeys
+   *          keys of the unnormalized weights of all views
+   * @param pDstWeightKeys
+   *          keys of the normalized weights, in the same order
+   * @param pDstDataType
+   *          data type of the normalized weights, must be readable as float
+   *          (e.g. UnsignedNormalizedInt8 or HalfFloat)
+   */
+  public WeightNormalizationTask(String[] pSrcWeightKeys,
+                                 String[] pDstWeightKeys,
+                                 ImageChannelDataType pDstDataType)
+  {
+    super(pSrcWeightKeys);
+    if (pSrcWeightKeys.length != pDstWeightKeys.length)
+      throw new FastFusionException("Weight normalization needs as many destination keys as source keys, got: %s and %s",
+                                    Arrays.toString(pSrcWeightKeys),
+                                    Arrays.toString(pDstWeightKeys));
+    if (!TaskHelper.isAccessedAsFloat(pDstDataType))
+      throw new FastFusionException("Normalized weights cannot be stored as %s",
+                                    pDstDataType);
+    mSrcWeightKeys = pSrcWeightKeys.clone();
+    mDstWeightKeys = pDstWeightKeys.clone();
+    mDstDataType = pDstDataType;
+    addProducedImages(pDstWeightKeys);
+    setupProgram(WeightNormalizationTask.class,
+                 "./kernels/fusion.cl",
+                 KernelSourceGenerator.getWeightNormalizationSource(pSrcWeightKeys.length));
+  }
+
+  @Override
+  public String getSignature()
+  {
+    return String.format("dtype=%s", mDstDataType);
+  }
+
+  @Override
+  public int getHaloDepth(long[] pStackDimensions)
+  {
+    // pointwise operation
+    return 0;
+  }
+
+  @Override
+  public boolean enqueue(FastFusionEngineInterface pFastFusionEngine,
+                         boolean pWaitToFinish)
+  {
+    ClearCLImage[] lSrcWeights = Stream.of(mSrcWeightKeys)
+                                       .map(pFastFusionEngine::getImage)
+                                       .toArray(ClearCLImage[]::new);
+    for (ClearCLImage lSrcWeight : lSrcWeights)
+      if (lSrcWeight == null)
+        throw new FastFusionException("Weight normalization task %s received a null image",
+                                      this);
+    if (!TaskHelper.allSameDimensions(lSrcWeights))
+      throw new FastFusionException("Weight normalization task %s received images of different dimensions",
+                                    this);
+    assert TaskHelper.allSameAllowedDataType(lSrcWeights);
+    assert TaskHelper.allAccessedAsFloat(lSrcWeights);
+
+    ClearCLImage[] lDstWeights = new ClearCLImage[mDstWeightKeys.length];
+    ArrayList<MutablePair<Boolean, ClearCLImage>> lFlagAndDstWeights =
+                                                                     new ArrayList<>();
+    for (int i = 0; i < mDstWeightKeys.length; i++)
+    {
+      MutablePair<Boolean, ClearCLImage> lFlagAndDstWeight =
+                                                           pFastFusionEngine.ensureImageAllocated(mDstWeightKeys[i],
+                                                                                                  mDstDataType,
+                                                                                                  lSrcWeights[0].getDimensions());
+      lFlagAndDstWeights.add(lFlagAndDstWeight);
+      lDstWeights[i] = lFlagAndDstWeight.getRight();
+    }
+
+    try
+    {
+      ClearCLKernel lKernel =
+                            getKernel(lSrcWeights[0].getContext(),
+                                      KernelSourceGenerator.getWeightNormalizationKernelName(mSrcWeightKeys.length),
+                                      TaskHelper.getOpenCLDefines(lSrcWeights[0],
+                                                                  lDstWeights[0]));
+      int i = 0;
+      for (ClearCLImage lDstWeight : lDstWeights)
+        lKernel.setArgument(i++, lDstWeight);
+      for (ClearCLImage lSrcWeight : lSrcWeights)
+        lKernel.setArgument(i++, lSrcWeight);
+      lKernel.setGlobalSizes(lSrcWeights[0].getDimensions());
+      runKernel(lKernel, pWaitToFinish);
+      for (MutablePair<Boolean, ClearCLImage> lFlagAndDstWeight : lFlagAndDstWeights)
+        lFlagAndDstWeight.setLeft(true);
+      return true;
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+      return false;
+    }
+  }
+
+}
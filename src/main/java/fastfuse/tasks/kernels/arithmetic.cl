@@ -1,3 +1,9 @@
+// results are clamped to the largest value of the destination type, e.g. for
+// half float images
+#ifndef DTYPE_OUT_MAX
+#define DTYPE_OUT_MAX MAXFLOAT
+#endif
+
 __kernel void subtract_constant(write_only image3d_t dst, read_only image3d_t src, const float c, const float threshold) {
 
   const sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
@@ -8,7 +14,7 @@ __kernel void subtract_constant(write_only image3d_t dst, read_only image3d_t sr
   const float pix = (float) READ_IMAGE(src,sampler,coord).x;
   float out = pix - c;
   out = out < threshold ? threshold : out;
-  WRITE_IMAGE(dst,coord,(DTYPE_OUT)out);
+  WRITE_IMAGE(dst,coord,(DTYPE_OUT)fmin(out,DTYPE_OUT_MAX));
 }
 
 
@@ -23,5 +29,40 @@ __kernel void subtract_image(write_only image3d_t dst, read_only image3d_t src1,
   const float pix2 = (float) READ_IMAGE(src2,sampler,coord).x;
   float out = pix1 - pix2;
   out = out < threshold ? threshold : out;
-  WRITE_IMAGE(dst,coord,(DTYPE_OUT)out);
+  WRITE_IMAGE(dst,coord,(DTYPE_OUT)fmin(out,DTYPE_OUT_MAX));
 }
+
+
+// In place variants, the destination is the (first) source image, declared
+// read_write (OpenCL C 2.0, only built when READ_WRITE_IMAGES is defined).
+// Each voxel is read before being written by the same work item.
+
+#ifdef READ_WRITE_IMAGES
+
+__kernel void subtract_constant_inplace(read_write image3d_t image, const float c, const float threshold) {
+
+  const int i = get_global_id(0), j = get_global_id(1), k = get_global_id(2);
+  const int4 coord = (int4)(i,j,k,0);
+
+  const float pix = (float) READ_IMAGE(image,coord).x;
+  float out = pix - c;
+  out = out < threshold ? threshold : out;
+  WRITE_IMAGE(image,coord,(DTYPE_OUT)fmin(out,DTYPE_OUT_MAX));
+}
+
+
+__kernel void subtract_image_inplace(read_write image3d_t image, read_only image3d_t src2, const float threshold) {
+
+  const sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+  const int i = get_global_id(0), j = get_global_id(1), k = get_global_id(2);
+  const int4 coord = (int4)(i,j,k,0);
+
+  const float pix1 = (float) READ_IMAGE(image,coord).x;
+  const float pix2 = (float) READ_IMAGE(src2,sampler,coord).x;
+  float out = pix1 - pix2;
+  out = out < threshold ? threshold : out;
+  WRITE_IMAGE(image,coord,(DTYPE_OUT)fmin(out,DTYPE_OUT_MAX));
+}
+
+#endif
@@ -0,0 +1,105 @@
+// Background estimation and subtraction per slab of planes along z. The
+// histogram of each slab is accumulated by several work groups in local memory
+// and added to a global histogram per slab, from which the host computes a
+// percentile per slab. The background is then interpolated linearly along z
+// between slab centers and subtracted in a single pass. The local size of the
+// histogram kernel must be GROUP_SIZE along the first dimension.
+
+#ifndef GROUP_SIZE
+#define GROUP_SIZE 128
+#endif
+
+#ifndef NUM_BINS
+#define NUM_BINS 1024
+#endif
+
+#ifndef DTYPE_OUT_MAX
+#define DTYPE_OUT_MAX MAXFLOAT
+#endif
+
+__constant sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+
+__kernel void clear_histograms(__global uint* histograms) {
+  histograms[get_global_id(0)] = 0;
+}
+
+
+// global sizes: (GROUP_SIZE * groups per slab, number of slabs)
+// histograms: histogram of each slab, bin b covering values in
+// [vmin + b/bin_scale, vmin + (b+1)/bin_scale), the maximum falling in the last
+// bin
+__kernel void slab_histograms(__global uint* histograms, read_only image3d_t src,
+                              const int slab_depth, const float vmin, const float bin_scale) {
+
+  __local uint shist[NUM_BINS];
+
+  const int  lid   = get_local_id(0);
+  const int  slab  = get_global_id(1);
+  const long w     = get_image_width(src), h = get_image_height(src);
+  const int  z0    = slab*slab_depth;
+  const int  z1    = min(z0+slab_depth,(int)get_image_depth(src));
+  const long volume = w*h*(z1-z0);
+
+  for (int b = lid; b < NUM_BINS; b += GROUP_SIZE)
+    shist[b] = 0;
+  barrier(CLK_LOCAL_MEM_FENCE);
+
+  for (long t = get_global_id(0); t < volume; t += get_global_size(0)) {
+    const int4 coord = (int4)(t % w, (t / w) % h, z0 + t / (w*h), 0);
+    const float v = (float)READ_IMAGE(src,sampler,coord).x;
+    const int bin = clamp((int)((v-vmin)*bin_scale),0,NUM_BINS-1);
+    atomic_inc(&shist[bin]);
+  }
+  barrier(CLK_LOCAL_MEM_FENCE);
+
+  for (int b = lid; b < NUM_BINS; b += GROUP_SIZE)
+    if (shist[b] > 0)
+      atomic_add(&histograms[slab*NUM_BINS+b],shist[b]);
+}
+
+
+// background: background value of each slab, taken at the slab center
+__kernel void subtract_background(write_only image3d_t dst, read_only image3d_t src,
+                                  __global const float* background,
+                                  const int slab_depth, const int num_slabs, const float threshold) {
+
+  const int i = get_global_id(0), j = get_global_id(1), k = get_global_id(2);
+  const int4 coord = (int4)(i,j,k,0);
+
+  // position of the plane in units of slabs, relative to the first slab center
+  const float s  = (k + 0.5f)/slab_depth - 0.5f;
+  const int   s0 = clamp((int)floor(s),0,num_slabs-1);
+  const int   s1 = min(s0+1,num_slabs-1);
+  const float b  = mix(background[s0],background[s1],clamp(s-s0,0.0f,1.0f));
+
+  const float pix = (float) READ_IMAGE(src,sampler,coord).x;
+  float out = pix - b;
+  out = out < threshold ? threshold : out;
+  WRITE_IMAGE(dst,coord,(DTYPE_OUT)fmin(out,DTYPE_OUT_MAX));
+}
+
+
+// In place variant, the destination is the source image, declared read_write
+// (OpenCL C 2.0, only built when READ_WRITE_IMAGES is defined)
+#ifdef READ_WRITE_IMAGES
+
+__kernel void subtract_background_inplace(read_write image3d_t image,
+                                          __global const float* background,
+                                          const int slab_depth, const int num_slabs, const float threshold) {
+
+  const int i = get_global_id(0), j = get_global_id(1), k = get_global_id(2);
+  const int4 coord = (int4)(i,j,k,0);
+
+  const float s  = (k + 0.5f)/slab_depth - 0.5f;
+  const int   s0 = clamp((int)floor(s),0,num_slabs-1);
+  const int   s1 = min(s0+1,num_slabs-1);
+  const float b  = mix(background[s0],background[s1],clamp(s-s0,0.0f,1.0f));
+
+  const float pix = (float) READ_IMAGE(image,coord).x;
+  float out = pix - b;
+  out = out < threshold ? threshold : out;
+  WRITE_IMAGE(image,coord,(DTYPE_OUT)fmin(out,DTYPE_OUT_MAX));
+}
+
+#endif
@@ -1,37 +1,95 @@
 __constant sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
 
 
-__kernel void gaussian_blur_sep_image3d
+#ifndef BLOCK_SIZE
+#define BLOCK_SIZE 64
+#endif
+
+#ifndef MAX_RADIUS
+#define MAX_RADIUS 64
+#endif
+
+// results are clamped to the largest value of the destination type, e.g. for
+// half float images
+#ifndef DTYPE_OUT_MAX
+#define DTYPE_OUT_MAX MAXFLOAT
+#endif
+
+// Separable pass along one dimension. Gaussian weights are precomputed and
+// normalized on the host. Each work group loads a line segment of BLOCK_SIZE
+// voxels plus halos into local memory, the local size must be BLOCK_SIZE along
+// the blurred dimension and 1 along the others. The global size along the
+// blurred dimension is padded to a multiple of BLOCK_SIZE.
+__kernel void gaussian_blur_sep_tiled_image3d
 (
   write_only image3d_t dst, read_only image3d_t src,
-  const int dim, const int N, const float s
+  const int dim, const int radius, __constant float* weights
 )
 {
-  const int i = get_global_id(0), j = get_global_id(1), k = get_global_id(2);
-  const int4 coord = (int4)(i,j,k,0);
+  __local float tile[BLOCK_SIZE + 2*MAX_RADIUS];
+
+  const int4 coord = (int4)(get_global_id(0),get_global_id(1),get_global_id(2),0);
+  const int4 dir   = (int4)(dim==0,dim==1,dim==2,0);
+  const int  l     = get_local_id(dim);
+
+  // coordinate of the first voxel of the tile
+  const int4 start = coord - (l+radius)*dir;
+
+  for (int t = l; t < BLOCK_SIZE + 2*radius; t += BLOCK_SIZE)
+    tile[t] = (float)READ_IMAGE(src,sampler,start+t*dir).x;
+  barrier(CLK_LOCAL_MEM_FENCE);
+
+  if (coord.x >= get_image_width(dst) || coord.y >= get_image_height(dst) || coord.z >= get_image_depth(dst))
+    return;
+
+  float res = 0;
+  for (int v = -radius; v <= radius; v++)
+    res += weights[v+radius] * tile[l+radius+v];
+  WRITE_IMAGE(dst,coord,(DTYPE_OUT)fmin(res,DTYPE_OUT_MAX));
+}
+
+
+// Recursive Gaussian (Young - van Vliet) along one dimension, one work item per
+// line. The global size is given by the two other dimensions in increasing
+// order. The forward pass (backward == 0) and the backward pass (backward == 1)
+// must run as separate kernels since images cannot be read after being written
+// within a kernel. Borders are handled by assuming a constant extension of the
+// line, for which the filter is in its steady state.
+__kernel void gaussian_blur_iir_image3d
+(
+  write_only image3d_t dst, read_only image3d_t src,
+  const int dim, const int backward,
+  const float B, const float b1, const float b2, const float b3
+)
+{
+  const int4 size  = (int4)(get_image_width(src),get_image_height(src),get_image_depth(src),0);
   const int4 dir   = (int4)(dim==0,dim==1,dim==2,0);
+  const int  n     = dim==0 ? size.x : (dim==1 ? size.y : size.z);
+  const int  g0 = get_global_id(0), g1 = get_global_id(1);
+  const int4 line  = dim==0 ? (int4)(0,g0,g1,0) : (dim==1 ? (int4)(g0,0,g1,0) : (int4)(g0,g1,0,0));
 
-  // center
-  const int   c = (N-1)/2;
-  // normalization
-  const float n = -2*s*s;
+  const int first = backward ? n-1 : 0;
+  const int step  = backward ? -1 : 1;
 
-  float res = 0, hsum = 0;
-  for (int v = -c; v <= c; v++) {
-    const float h = exp((v*v)/n);
-    res += h * (float)READ_IMAGE(src,sampler,coord+v*dir).x;
-    hsum += h;
+  float w1 = (float)READ_IMAGE(src,sampler,line+first*dir).x;
+  float w2 = w1, w3 = w1;
+
+  for (int i = 0, p = first; i < n; i++, p += step) {
+    const float x = (float)READ_IMAGE(src,sampler,line+p*dir).x;
+    const float w = B*x + b1*w1 + b2*w2 + b3*w3;
+    WRITE_IMAGE(dst,line+p*dir,(DTYPE_OUT)fmin(w,DTYPE_OUT_MAX));
+    w3 = w2; w2 = w1; w1 = w;
   }
-  res /= hsum;
-  WRITE_IMAGE(dst,coord,(DTYPE_OUT)res);
 }
 
 
+// Weights are precomputed and normalized on the host for each dimension, the
+// 3D Gaussian being the product of the 1D Gaussians.
 __kernel void gaussian_blur_image3d
 (
   write_only image3d_t dst, read_only image3d_t src,
   const int Nx, const int Ny, const int Nz,
-  const float sx, const float sy, const float sz
+  __constant float* wx, __constant float* wy, __constant float* wz
 )
 {
   const int i = get_global_id(0), j = get_global_id(1), k = get_global_id(2);
@@ -39,31 +97,17 @@ __kernel void gaussian_blur_image3d
 
   // centers
   const int4   c = (int4)  ( (Nx-1)/2, (Ny-1)/2, (Nz-1)/2, 0 );
-  // normalizations
-  const float4 n = (float4)( -2*sx*sx, -2*sy*sy, -2*sz*sz, 0 );
 
-  float res = 0, hsum = 0;
+  float res = 0;
 
   for (int x = -c.x; x <= c.x; x++) {
-    const float wx = (x*x) / n.x;
     for (int y = -c.y; y <= c.y; y++) {
-      const float wy = (y*y) / n.y;
+      const float hxy = wx[x+c.x] * wy[y+c.y];
       for (int z = -c.z; z <= c.z; z++) {
-        const float wz = (z*z) / n.z;
-        const float h = exp(wx + wy + wz);
+        const float h = hxy * wz[z+c.z];
         res += h * (float)READ_IMAGE(src,sampler,coord+(int4)(x,y,z,0)).x;
-        hsum += h;
-        /*
-        if (i==0 && j==0 && k==0)
-          printf("h[%2d,%2d,%2d] = %.5f\n", x,y,z,h);
-        */
       }
     }
   }
-  /*
-  if (i==0 && j==0 && k==0)
-    printf("hsum = %.5f\n", hsum);
-  */
-  res /= hsum;
-  WRITE_IMAGE(dst,coord,(DTYPE_OUT)res);
-}
\ No newline at end of file
+  WRITE_IMAGE(dst,coord,(DTYPE_OUT)fmin(res,DTYPE_OUT_MAX));
+}
@@ -0,0 +1,110 @@
+// Lossless compression of integer images by delta coding and bit packing.
+// Voxels are taken in linear order (x fastest) and split into blocks of
+// BLOCK_LENGTH values. Each voxel is replaced by the zigzag coded difference
+// to the previous voxel (the first voxel to zero), and the values of each
+// block are packed with the number of bits of the largest one, least
+// significant bits first: a block of bit width b takes b*BLOCK_LENGTH/8 bytes.
+// Blocks are packed in three passes: bit widths of all blocks, offsets of the
+// blocks within chunks of CHUNK_LENGTH blocks (chunk offsets are summed on the
+// host), and packing. Must match the host decompressor (see CompressedImage).
+
+#define BLOCK_LENGTH 128
+#define CHUNK_LENGTH 256
+
+__constant sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+inline long image_volume(read_only image3d_t src) {
+  return (long)get_image_width(src)*get_image_height(src)*get_image_depth(src);
+}
+
+// value of the voxel of linear index t, zero before the first voxel
+inline int read_value(read_only image3d_t src, const long t) {
+  if (t < 0)
+    return 0;
+  const long w = get_image_width(src), h = get_image_height(src);
+  const int4 coord = (int4)(t % w, (t / w) % h, t / (w*h), 0);
+  return (int)READ_IMAGE(src,sampler,coord).x;
+}
+
+inline uint zigzag(const int d) {
+  return (uint)((d << 1) ^ (d >> 31));
+}
+
+
+// one work item per block
+__kernel void block_widths(__global uchar* widths, read_only image3d_t src) {
+
+  const long volume = image_volume(src);
+  const long begin  = get_global_id(0)*BLOCK_LENGTH;
+  const long end    = min(begin+BLOCK_LENGTH,volume);
+
+  // the largest value has the highest bit of all values
+  int  previous = read_value(src,begin-1);
+  uint bits     = 0;
+  for (long t = begin; t < end; t++) {
+    const int v = read_value(src,t);
+    bits |= zigzag(v-previous);
+    previous = v;
+  }
+  widths[get_global_id(0)] = bits == 0 ? 0 : 32 - clz(bits);
+}
+
+
+// one work item per chunk: byte offsets of the blocks within the chunk and
+// size of the chunk
+__kernel void chunk_offsets(__global uint* offsets,
+                            __global uint* chunk_sizes,
+                            __global const uchar* widths,
+                            const int num_blocks) {
+
+  const int begin = get_global_id(0)*CHUNK_LENGTH;
+  const int end   = min(begin+CHUNK_LENGTH,num_blocks);
+
+  uint offset = 0;
+  for (int b = begin; b < end; b++) {
+    offsets[b] = offset;
+    offset += widths[b]*(BLOCK_LENGTH/8);
+  }
+  chunk_sizes[get_global_id(0)] = offset;
+}
+
+
+// one work item per block of a segment of the packed data starting with block
+// first_block, chunk offsets are relative to the segment
+__kernel void pack_blocks(__global uchar* data,
+                          __global const uchar* widths,
+                          __global const uint* offsets,
+                          __global const ulong* chunk_offsets,
+                          read_only image3d_t src,
+                          const int first_block) {
+
+  const int  block = first_block + get_global_id(0);
+  const uint width = widths[block];
+  if (width == 0)
+    return;
+
+  const long volume = image_volume(src);
+  const long begin  = (long)block*BLOCK_LENGTH;
+  const long end    = min(begin+BLOCK_LENGTH,volume);
+  __global uchar* out = data + chunk_offsets[block/CHUNK_LENGTH] + offsets[block];
+
+  // at most 7 pending bits plus one value of at most 32 bits
+  int   previous = read_value(src,begin-1);
+  ulong pending  = 0;
+  uint  n        = 0;
+  for (long t = begin; t < begin+BLOCK_LENGTH; t++) {
+    uint z = 0;
+    if (t < end) {
+      const int v = read_value(src,t);
+      z = zigzag(v-previous);
+      previous = v;
+    }
+    pending |= ((ulong)z) << n;
+    n += width;
+    while (n >= 8) {
+      *out++ = (uchar)pending;
+      pending >>= 8;
+      n -= 8;
+    }
+  }
+}
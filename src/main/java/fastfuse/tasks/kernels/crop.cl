@@ -0,0 +1,38 @@
+// Foreground bounding box: each work item averages a block of FACTOR^3 voxels
+// (a voxel of a downsampled copy of the image that is never stored), and
+// extends the bounding box to the block if its mean is above the threshold.
+// bounds: begin x, y, z (inclusive) and end x, y, z (exclusive), initialized
+// on the host to an empty box.
+
+__constant sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+__kernel void foreground_bounds(__global int* bounds,
+                                read_only image3d_t src,
+                                const int factor,
+                                const float threshold) {
+
+  const int x0 = get_global_id(0)*factor;
+  const int y0 = get_global_id(1)*factor;
+  const int z0 = get_global_id(2)*factor;
+  const int x1 = min(x0+factor,(int)get_image_width(src));
+  const int y1 = min(y0+factor,(int)get_image_height(src));
+  const int z1 = min(z0+factor,(int)get_image_depth(src));
+
+  float sum = 0;
+  for (int z = z0; z < z1; z++)
+    for (int y = y0; y < y1; y++)
+      for (int x = x0; x < x1; x++)
+        sum += (float)READ_IMAGE(src,sampler,(int4)(x,y,z,0)).x;
+
+  if (sum <= threshold*((x1-x0)*(y1-y0)*(z1-z0)))
+    return;
+
+  // the bounds only grow, reading them first avoids most of the atomics on
+  // the same six values:
+  if (x0 < bounds[0]) atomic_min(&bounds[0],x0);
+  if (y0 < bounds[1]) atomic_min(&bounds[1],y0);
+  if (z0 < bounds[2]) atomic_min(&bounds[2],z0);
+  if (x1 > bounds[3]) atomic_max(&bounds[3],x1);
+  if (y1 > bounds[4]) atomic_max(&bounds[4],y1);
+  if (z1 > bounds[5]) atomic_max(&bounds[5],z1);
+}
@@ -91,3 +91,103 @@ __kernel void downsample_xy_by_half_median(write_only image3d_t dst, read_only i
 
   WRITE_IMAGE(dst,coord_out,(DTYPE_OUT)out);
 }
+
+
+// Downsampling pyramid computed in a single pass: each work item corresponds
+// to one voxel of the coarsest level and visits the source voxels of its block
+// once, level l voxels are downsampled by factor^l from the source.
+// Level 1 voxels are visited such that the voxels of each coarser level block
+// are visited consecutively, coarser levels are thus accumulated on the fly.
+// Level dimensions are floored, the work items cover the level 1 voxels that
+// are not part of a complete coarsest block, and voxels outside of a level are
+// not written. A voxel inside a level only covers voxels inside the finer
+// levels, so its accumulated value is never affected by the clamped reads.
+#define PYRAMID_MAX_LEVELS 4
+
+#define WRITE_IF_INSIDE(dst,coord,value) \
+  if (all(coord.xyz < get_image_dim(dst).xyz)) WRITE_IMAGE(dst,coord,(DTYPE_OUT)value);
+
+inline void write_pyramid_level(write_only image3d_t dst1, write_only image3d_t dst2,
+                                write_only image3d_t dst3, write_only image3d_t dst4,
+                                const int level, const int4 coord, const float value)
+{
+  switch (level) {
+    case 1: WRITE_IF_INSIDE(dst1,coord,value); break;
+    case 2: WRITE_IF_INSIDE(dst2,coord,value); break;
+    case 3: WRITE_IF_INSIDE(dst3,coord,value); break;
+    case 4: WRITE_IF_INSIDE(dst4,coord,value); break;
+  }
+}
+
+__kernel void downsample_pyramid(write_only image3d_t dst1, write_only image3d_t dst2,
+                                 write_only image3d_t dst3, write_only image3d_t dst4,
+                                 read_only image3d_t src,
+                                 const int fx, const int fy, const int fz,
+                                 const int levels, const int write_mask, const int average) {
+
+  const sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+  const int4 coarse = (int4)(get_global_id(0),get_global_id(1),get_global_id(2),0);
+  const int4 factor = (int4)(fx,fy,fz,1);
+  const int block = fx*fy*fz;
+
+  // number of level 1 voxels per coarsest voxel, per axis and in total:
+  int4 span = (int4)(1,1,1,1);
+  int count = 1;
+  for (int l = 1; l < levels; l++) {
+    span *= factor;
+    count *= block;
+  }
+
+  float sum[PYRAMID_MAX_LEVELS+1];
+  for (int l = 0; l <= levels; l++)
+    sum[l] = 0;
+
+  for (int t = 0; t < count; t++) {
+    // level 1 voxel: digits of t in base 'block', least significant first
+    int4 v = coarse*span;
+    int4 scale = (int4)(1,1,1,1);
+    int r = t;
+    for (int l = 1; l < levels; l++) {
+      const int d = r % block;
+      r /= block;
+      v.x += (d % fx)*scale.x;
+      v.y += ((d / fx) % fy)*scale.y;
+      v.z += (d / (fx*fy))*scale.z;
+      scale *= factor;
+    }
+
+    const int4 s = v*factor;
+    float value;
+    if (average) {
+      value = 0;
+      for (int dz = 0; dz < fz; dz++)
+        for (int dy = 0; dy < fy; dy++)
+          for (int dx = 0; dx < fx; dx++)
+            value += READ_IMAGE(src,sampler,(int4)(s.x+dx,s.y+dy,s.z+dz,0)).x;
+      value /= block;
+    }
+    else
+      value = READ_IMAGE(src,sampler,s).x;
+
+    if (write_mask & 1)
+      write_pyramid_level(dst1,dst2,dst3,dst4,1,v,value);
+
+    // coarser levels:
+    int period = 1;
+    int4 vl = v;
+    for (int l = 2; l <= levels; l++) {
+      period *= block;
+      vl /= factor;
+      if (average)
+        sum[l] += value;
+      else if (t % period == 0)
+        sum[l] = value;
+      if ((t+1) % period == 0) {
+        if (write_mask & (1 << (l-1)))
+          write_pyramid_level(dst1,dst2,dst3,dst4,l,vl,average ? sum[l]/period : sum[l]);
+        sum[l] = 0;
+      }
+    }
+  }
+}
@@ -46,13 +46,75 @@ __kernel void flip_f   (    __read_only   image3d_t  imagein,
   const int4 pos = (int4){flipx?(width-1-x):x,
                           flipy?(height-1-y):y,
                           flipz?(depth-1-z):z,0};
-                          
-  printf(" %d %d \n", x, pos.x);
+
 
   const float value = read_imagef(imagein, intsampler, pos).x;
 
   write_imagef (imageout, (int4){x,y,z,0}, (float4){value,0,0,0});
 }
 
+// In place flips: source and destination are the same image, declared
+// read_write (OpenCL C 2.0, only built when READ_WRITE_IMAGES is defined).
+// Each work item swaps a voxel with its mirror voxel, the global size is
+// halved along the slowest flipped axis. Voxels in the middle plane are
+// swapped only once by comparing linear indices, and voxels that are their
+// own mirror are skipped.
+
+#ifdef READ_WRITE_IMAGES
+
+inline long flip_linear_index(const int4 pos, const int width, const int height)
+{
+  return ((long)pos.z*height + pos.y)*width + pos.x;
+}
+
+__kernel void flip_inplace_ui  (    __read_write  image3d_t  image,
+                                   const          int        flipx,
+                                   const          int        flipy,
+                                   const          int        flipz
+                               )
+{
+  const int width  = get_image_width(image);
+  const int height = get_image_height(image);
+  const int depth  = get_image_depth(image);
+
+  const int4 pos = (int4){get_global_id(0),get_global_id(1),get_global_id(2),0};
+  const int4 mirror = (int4){flipx?(width-1-pos.x):pos.x,
+                             flipy?(height-1-pos.y):pos.y,
+                             flipz?(depth-1-pos.z):pos.z,0};
+
+  if (flip_linear_index(pos, width, height) >= flip_linear_index(mirror, width, height))
+    return;
+
+  const uint value  = read_imageui(image, pos).x;
+  const uint mirrorvalue = read_imageui(image, mirror).x;
+
+  write_imageui (image, pos,    (uint4){mirrorvalue,0,0,0});
+  write_imageui (image, mirror, (uint4){value,0,0,0});
+}
+
+__kernel void flip_inplace_f   (    __read_write  image3d_t  image,
+                                   const          int        flipx,
+                                   const          int        flipy,
+                                   const          int        flipz
+                               )
+{
+  const int width  = get_image_width(image);
+  const int height = get_image_height(image);
+  const int depth  = get_image_depth(image);
 
+  const int4 pos = (int4){get_global_id(0),get_global_id(1),get_global_id(2),0};
+  const int4 mirror = (int4){flipx?(width-1-pos.x):pos.x,
+                             flipy?(height-1-pos.y):pos.y,
+                             flipz?(depth-1-pos.z):pos.z,0};
+
+  if (flip_linear_index(pos, width, height) >= flip_linear_index(mirror, width, height))
+    return;
+
+  const float value  = read_imagef(image, pos).x;
+  const float mirrorvalue = read_imagef(image, mirror).x;
+
+  write_imagef (image, pos,    (float4){mirrorvalue,0,0,0});
+  write_imagef (image, mirror, (float4){value,0,0,0});
+}
 
+#endif
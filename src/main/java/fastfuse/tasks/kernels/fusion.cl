@@ -19,6 +19,143 @@ inline float sobel_magnitude_squared(read_only image3d_t src, const int i0, cons
 }
 
 
+// Tiled Tenengrad: each work group loads a tile of (TILE_X+2)*(TILE_Y+2)*(TILE_Z+2)
+// voxels of each view (tile plus one voxel halo) into local memory, and the
+// Sobel gradients are computed from there with the separable form of the
+// operator (derivative [-1 0 1] along one axis, smoothing [1 2 1] along the
+// others). The local size must be (TILE_X,TILE_Y,TILE_Z) and the global size
+// padded to a multiple of it.
+
+#ifndef TILE_X
+#define TILE_X 16
+#endif
+#ifndef TILE_Y
+#define TILE_Y 4
+#endif
+#ifndef TILE_Z
+#define TILE_Z 4
+#endif
+
+#define HALO_X (TILE_X+2)
+#define HALO_Y (TILE_Y+2)
+#define HALO_Z (TILE_Z+2)
+#define HALO_VOLUME (HALO_X*HALO_Y*HALO_Z)
+
+#define TILE_INDEX(x,y,z) ((x) + HALO_X*((y) + HALO_Y*(z)))
+
+#ifndef DTYPE_OUT_MAX
+#define DTYPE_OUT_MAX MAXFLOAT
+#endif
+
+inline void load_tile(__local float* tile, read_only image3d_t src) {
+  const int4 origin = (int4)(get_group_id(0)*TILE_X-1, get_group_id(1)*TILE_Y-1, get_group_id(2)*TILE_Z-1, 0);
+  const int lid = get_local_id(0) + TILE_X*(get_local_id(1) + TILE_Y*get_local_id(2));
+  for (int t = lid; t < HALO_VOLUME; t += TILE_X*TILE_Y*TILE_Z) {
+    const int x = t % HALO_X, y = (t / HALO_X) % HALO_Y, z = t / (HALO_X*HALO_Y);
+    tile[t] = (float)READ_IMAGE(src,sampler,origin+(int4)(x,y,z,0)).x;
+  }
+}
+
+inline float tile_sobel_magnitude_squared(__local const float* tile, const int x, const int y, const int z) {
+  // for each of the 3x3 (y,z) neighbours: derivative and smoothing along x
+  float dx[3][3], sx[3][3];
+  for (int k = 0; k < 3; ++k) for (int j = 0; j < 3; ++j) {
+    const float m = tile[TILE_INDEX(x-1,y+j-1,z+k-1)];
+    const float c = tile[TILE_INDEX(x  ,y+j-1,z+k-1)];
+    const float p = tile[TILE_INDEX(x+1,y+j-1,z+k-1)];
+    dx[k][j] = p - m;
+    sx[k][j] = m + 2*c + p;
+  }
+  float Gx = 0.0f, Gy = 0.0f, Gz = 0.0f;
+  for (int k = 0; k < 3; ++k) {
+    const float wk = (k==1) ? 2.0f : 1.0f;
+    Gx += wk * (dx[k][0] + 2*dx[k][1] + dx[k][2]);
+    Gy += wk * (sx[k][2] - sx[k][0]);
+  }
+  for (int j = 0; j < 3; ++j) {
+    const float wj = (j==1) ? 2.0f : 1.0f;
+    Gz += wj * (sx[2][j] - sx[0][j]);
+  }
+  return Gx*Gx + Gy*Gy + Gz*Gz;
+}
+
+inline bool inside_image(write_only image3d_t img, const int4 coord) {
+  return coord.x < get_image_width(img) && coord.y < get_image_height(img) && coord.z < get_image_depth(img);
+}
+
+
+__kernel void tenengrad_fusion_tiled_4_images(write_only image3d_t dst, read_only image3d_t src1, read_only image3d_t src2, read_only image3d_t src3, read_only image3d_t src4) {
+
+  __local float tile1[HALO_VOLUME], tile2[HALO_VOLUME], tile3[HALO_VOLUME], tile4[HALO_VOLUME];
+  load_tile(tile1,src1);
+  load_tile(tile2,src2);
+  load_tile(tile3,src3);
+  load_tile(tile4,src4);
+  barrier(CLK_LOCAL_MEM_FENCE);
+
+  const int4 coord = (int4)(get_global_id(0),get_global_id(1),get_global_id(2),0);
+  if (!inside_image(dst,coord))
+    return;
+
+  const int x = get_local_id(0)+1, y = get_local_id(1)+1, z = get_local_id(2)+1;
+  float w1 = tile_sobel_magnitude_squared(tile1,x,y,z);
+  float w2 = tile_sobel_magnitude_squared(tile2,x,y,z);
+  float w3 = tile_sobel_magnitude_squared(tile3,x,y,z);
+  float w4 = tile_sobel_magnitude_squared(tile4,x,y,z);
+
+  const float wsum = w1 + w2 + w3 + w4 + 1e-30f; // add small epsilon to avoid wsum = 0
+  w1 /= wsum;  w2 /= wsum;  w3 /= wsum;  w4 /= wsum;
+
+  const int c = TILE_INDEX(x,y,z);
+  const float res = w1*tile1[c] + w2*tile2[c] + w3*tile3[c] + w4*tile4[c];
+
+  WRITE_IMAGE(dst,coord,(DTYPE_OUT)res);
+}
+
+
+__kernel void tenengrad_fusion_tiled_2_images(write_only image3d_t dst, read_only image3d_t src1, read_only image3d_t src2) {
+
+  __local float tile1[HALO_VOLUME], tile2[HALO_VOLUME];
+  load_tile(tile1,src1);
+  load_tile(tile2,src2);
+  barrier(CLK_LOCAL_MEM_FENCE);
+
+  const int4 coord = (int4)(get_global_id(0),get_global_id(1),get_global_id(2),0);
+  if (!inside_image(dst,coord))
+    return;
+
+  const int x = get_local_id(0)+1, y = get_local_id(1)+1, z = get_local_id(2)+1;
+  float w1 = tile_sobel_magnitude_squared(tile1,x,y,z);
+  float w2 = tile_sobel_magnitude_squared(tile2,x,y,z);
+
+  const float wsum = w1 + w2 + 1e-30f; // add small epsilon to avoid wsum = 0
+  w1 /= wsum;  w2 /= wsum;
+
+  const int c = TILE_INDEX(x,y,z);
+  const float res = w1*tile1[c] + w2*tile2[c];
+
+  WRITE_IMAGE(dst,coord,(DTYPE_OUT)res);
+}
+
+
+// The weight is multiplied by scale and clamped to the largest value of the
+// destination type, such that it can be stored as half float: since the
+// weights of all views are scaled alike, their normalized values are unchanged.
+__kernel void tenengrad_weight_unnormalized_tiled(write_only image3d_t dst, read_only image3d_t src, const float scale) {
+
+  __local float tile[HALO_VOLUME];
+  load_tile(tile,src);
+  barrier(CLK_LOCAL_MEM_FENCE);
+
+  const int4 coord = (int4)(get_global_id(0),get_global_id(1),get_global_id(2),0);
+  if (!inside_image(dst,coord))
+    return;
+
+  const float w = tile_sobel_magnitude_squared(tile,get_local_id(0)+1,get_local_id(1)+1,get_local_id(2)+1);
+  WRITE_IMAGE(dst,coord,(DTYPE_OUT)fmin(scale*w,DTYPE_OUT_MAX));
+}
+
+
 __kernel void tenengrad_fusion_4_images(write_only image3d_t dst, read_only image3d_t src1, read_only image3d_t src2, read_only image3d_t src3, read_only image3d_t src4) {
 
   const int i = get_global_id(0), j = get_global_id(1), k = get_global_id(2);
@@ -0,0 +1,37 @@
+// Max or mean projections of a stack along one axis, optionally downsampled by
+// an integer factor in the projection plane. One work item computes one pixel
+// of the projection, the projected axis being traversed entirely.
+//
+// axis 2: XY projection, pixel (u,v) = (x,y)
+// axis 1: XZ projection, pixel (u,v) = (x,z)
+// axis 0: YZ projection, pixel (u,v) = (y,z)
+
+__constant sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+inline int4 projection_coord(const int axis, const int t, const int u, const int v) {
+  return axis == 2 ? (int4)(u,v,t,0) : axis == 1 ? (int4)(u,t,v,0) : (int4)(t,u,v,0);
+}
+
+__kernel void project(__global float* dst, read_only image3d_t src,
+                      const int axis, const int factor, const int mean) {
+
+  const int u = get_global_id(0), v = get_global_id(1);
+  const int width = get_global_size(0);
+
+  const int length = axis == 2 ? get_image_depth(src)
+                   : axis == 1 ? get_image_height(src)
+                   : get_image_width(src);
+
+  float acc = mean ? 0 : -MAXFLOAT;
+  for (int t = 0; t < length; t++) {
+    float block = mean ? 0 : -MAXFLOAT;
+    for (int b = 0; b < factor; b++)
+      for (int a = 0; a < factor; a++) {
+        const float val = (float)READ_IMAGE(src,sampler,projection_coord(axis,t,u*factor+a,v*factor+b)).x;
+        block = mean ? block + val : fmax(block,val);
+      }
+    acc = mean ? acc + block : fmax(acc,block);
+  }
+
+  dst[v*width+u] = mean ? acc/((float)length*factor*factor) : acc;
+}
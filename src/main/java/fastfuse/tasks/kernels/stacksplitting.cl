@@ -38,7 +38,7 @@ __kernel void convert_interleaved_to_stacks_5(read_only image3d_t src, write_onl
    WRITE_IMAGE(dst1,(int4)(i,j,k,0),(DTYPE_OUT)READ_IMAGE(src,sampler,(int4)(i,j,5*k+1,0)).x);
    WRITE_IMAGE(dst2,(int4)(i,j,k,0),(DTYPE_OUT)READ_IMAGE(src,sampler,(int4)(i,j,5*k+2,0)).x);
    WRITE_IMAGE(dst3,(int4)(i,j,k,0),(DTYPE_OUT)READ_IMAGE(src,sampler,(int4)(i,j,5*k+3,0)).x);
-   WRITE_IMAGE(dst4,(int4)(i,j,k,0),(DTYPE_OUT)READ_IMAGE(src,sampler,(int4)(i,j,5*k+3,0)).x);
+   WRITE_IMAGE(dst4,(int4)(i,j,k,0),(DTYPE_OUT)READ_IMAGE(src,sampler,(int4)(i,j,5*k+4,0)).x);
 
 }
 
@@ -54,6 +54,6 @@ __kernel void convert_interleaved_to_stacks_5_and_downsample_xy_by_half_nearest(
    WRITE_IMAGE(dst1,(int4)(i,j,k,0),(DTYPE_OUT)READ_IMAGE(src,sampler,(int4)(i2,j2,k2+1,0)).x);
    WRITE_IMAGE(dst2,(int4)(i,j,k,0),(DTYPE_OUT)READ_IMAGE(src,sampler,(int4)(i2,j2,k2+2,0)).x);
    WRITE_IMAGE(dst3,(int4)(i,j,k,0),(DTYPE_OUT)READ_IMAGE(src,sampler,(int4)(i2,j2,k2+3,0)).x);
-   WRITE_IMAGE(dst4,(int4)(i,j,k,0),(DTYPE_OUT)READ_IMAGE(src,sampler,(int4)(i2,j2,k2+3,0)).x);
+   WRITE_IMAGE(dst4,(int4)(i,j,k,0),(DTYPE_OUT)READ_IMAGE(src,sampler,(int4)(i2,j2,k2+4,0)).x);
 }
 
@@ -0,0 +1,129 @@
+// Image statistics in two passes over the voxels of an image. Each work item
+// visits the voxels with a stride of the global size, such that consecutive
+// work items read consecutive voxels along x, and each work group writes its
+// partial results, which are combined on the host. The coordinates of the
+// visited voxels are advanced by the stride with carries, without any division
+// per voxel. The local size must be GROUP_SIZE (a power of two).
+
+#ifndef GROUP_SIZE
+#define GROUP_SIZE 128
+#endif
+
+#ifndef NUM_BINS
+#define NUM_BINS 256
+#endif
+
+// number of values summed separately before being added to the total, which
+// bounds the rounding error of float sums over large images
+#define BLOCK_LENGTH 256
+
+__constant sampler_t sampler = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
+
+// coordinates of the voxel of linear index t
+inline int4 voxel_coord(read_only image3d_t src, const long t) {
+  const long w = get_image_width(src), h = get_image_height(src);
+  return (int4)(t % w, (t / w) % h, t / (w*h), 0);
+}
+
+// advances coordinates by a stride given as coordinates (see voxel_coord),
+// components of both are below width and height, such that there is at most
+// one carry per axis
+inline int4 advance_coord(int4 coord, const int4 stride, const int w, const int h) {
+  coord += stride;
+  if (coord.x >= w) { coord.x -= w; coord.y++; }
+  if (coord.y >= h) { coord.y -= h; coord.z++; }
+  return coord;
+}
+
+
+// partials: min, max and sum of each work group
+__kernel void statistics_min_max_sum(__global float* partials, read_only image3d_t src) {
+
+  __local float smin[GROUP_SIZE];
+  __local float smax[GROUP_SIZE];
+  __local float ssum[GROUP_SIZE];
+
+  const int  w = get_image_width(src), h = get_image_height(src), d = get_image_depth(src);
+  const int4 stride = voxel_coord(src,get_global_size(0));
+  const int  lid = get_local_id(0);
+
+  float vmin = MAXFLOAT, vmax = -MAXFLOAT, sum = 0, block = 0;
+  int n = 0;
+  for (int4 coord = voxel_coord(src,get_global_id(0)); coord.z < d; coord = advance_coord(coord,stride,w,h)) {
+    const float v = (float)READ_IMAGE(src,sampler,coord).x;
+    vmin = fmin(vmin,v);
+    vmax = fmax(vmax,v);
+    block += v;
+    if (++n == BLOCK_LENGTH) {
+      sum += block; block = 0; n = 0;
+    }
+  }
+  smin[lid] = vmin;
+  smax[lid] = vmax;
+  ssum[lid] = sum + block;
+  barrier(CLK_LOCAL_MEM_FENCE);
+
+  for (int offset = GROUP_SIZE/2; offset > 0; offset /= 2) {
+    if (lid < offset) {
+      smin[lid] = fmin(smin[lid],smin[lid+offset]);
+      smax[lid] = fmax(smax[lid],smax[lid+offset]);
+      ssum[lid] += ssum[lid+offset];
+    }
+    barrier(CLK_LOCAL_MEM_FENCE);
+  }
+
+  if (lid == 0) {
+    const int g = get_group_id(0);
+    partials[3*g]   = smin[0];
+    partials[3*g+1] = smax[0];
+    partials[3*g+2] = ssum[0];
+  }
+}
+
+
+// partials: sum of squared deviations from the mean of each work group
+// histograms: histogram of each work group, bin b covering values in
+// [vmin + b/bin_scale, vmin + (b+1)/bin_scale), the maximum falling in the last
+// bin
+__kernel void statistics_variance_histogram(__global float* partials, __global uint* histograms,
+                                            read_only image3d_t src,
+                                            const float mean, const float vmin, const float bin_scale) {
+
+  __local float svar[GROUP_SIZE];
+  __local uint  shist[NUM_BINS];
+
+  const int  w = get_image_width(src), h = get_image_height(src), d = get_image_depth(src);
+  const int4 stride = voxel_coord(src,get_global_size(0));
+  const int  lid = get_local_id(0);
+
+  for (int b = lid; b < NUM_BINS; b += GROUP_SIZE)
+    shist[b] = 0;
+  barrier(CLK_LOCAL_MEM_FENCE);
+
+  float sum = 0, block = 0;
+  int n = 0;
+  for (int4 coord = voxel_coord(src,get_global_id(0)); coord.z < d; coord = advance_coord(coord,stride,w,h)) {
+    const float v = (float)READ_IMAGE(src,sampler,coord).x;
+    const float dv = v - mean;
+    block += dv*dv;
+    if (++n == BLOCK_LENGTH) {
+      sum += block; block = 0; n = 0;
+    }
+    const int bin = clamp((int)((v-vmin)*bin_scale),0,NUM_BINS-1);
+    atomic_inc(&shist[bin]);
+  }
+  svar[lid] = sum + block;
+  barrier(CLK_LOCAL_MEM_FENCE);
+
+  for (int offset = GROUP_SIZE/2; offset > 0; offset /= 2) {
+    if (lid < offset)
+      svar[lid] += svar[lid+offset];
+    barrier(CLK_LOCAL_MEM_FENCE);
+  }
+
+  const int g = get_group_id(0);
+  if (lid == 0)
+    partials[g] = svar[0];
+  for (int b = lid; b < NUM_BINS; b += GROUP_SIZE)
+    histograms[g*NUM_BINS+b] = shist[b];
+}
@@ -1,25 +1,34 @@
 
-#include [OCLlib] "linear/matrix.cl"
-                                
-__kernel void transform(    __read_only    image3d_t  imagein,
-                           __constant     float*     matrix,
-                           __write_only   image3d_t  imagedest,
-                     )
+// Affine resampling: mat is a row-major 4x4 matrix that maps voxel coordinates
+// of the destination image to voxel coordinates of the source image. Voxels
+// mapped outside of the source image take the value of the closest edge voxel.
+
+inline float4 transform_coordinates(__constant float* mat, const int i, const int j, const int k)
 {
-  const sampler_t intsampler  = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_NONE | CLK_FILTER_LINEAR;
- 
-  const int x = get_global_id(0); 
-  const int y = get_global_id(1);
-  const int z = get_global_id(2);
-  
-  const int4 pos = (int4){x,y,z,0};
+  const float x = i*mat[0] + j*mat[1] + k*mat[2]  + mat[3];
+  const float y = i*mat[4] + j*mat[5] + k*mat[6]  + mat[7];
+  const float z = i*mat[8] + j*mat[9] + k*mat[10] + mat[11];
+  return (float4)(0.5f+x,0.5f+y,0.5f+z,0);
+}
 
-  const float16 matrix16  = matrix_load(0, matrix);
+// trilinear interpolation, requires a float source image:
+__kernel void transform_linear(write_only image3d_t dst, read_only image3d_t src, __constant float* mat)
+{
+  const sampler_t sampler_linear = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_LINEAR;
 
-  const ushort valuea = trans_read_imagui(imagein, intsampler, matrix16, pos).x;
+  const int i = get_global_id(0), j = get_global_id(1), k = get_global_id(2);
 
-  write_imageui (imagedest, pos, (uint4){(value,0,0,0});
+  const float value = read_imagef(src,sampler_linear,transform_coordinates(mat,i,j,k)).x;
+  WRITE_IMAGE(dst,(int4)(i,j,k,0),(DTYPE_OUT)value);
 }
 
+// nearest neighbor interpolation, for integer source images:
+__kernel void transform_nearest(write_only image3d_t dst, read_only image3d_t src, __constant float* mat)
+{
+  const sampler_t sampler_nearest = CLK_NORMALIZED_COORDS_FALSE | CLK_ADDRESS_CLAMP_TO_EDGE | CLK_FILTER_NEAREST;
 
+  const int i = get_global_id(0), j = get_global_id(1), k = get_global_id(2);
 
+  const DTYPE_IN value = READ_IMAGE(src,sampler_nearest,transform_coordinates(mat,i,j,k)).x;
+  WRITE_IMAGE(dst,(int4)(i,j,k,0),(DTYPE_OUT)value);
+}
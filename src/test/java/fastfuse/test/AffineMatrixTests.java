@@ -0,0 +1,108 @@
+package fastfuse.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import javax.vecmath.Matrix4f;
+import javax.vecmath.Point3f;
+
+import fastfuse.registration.AffineMatrix;
+import fastfuse.tasks.TaskHelper;
+
+import org.junit.Test;
+
+/**
+ * affine matrix tests
+ *
+ * @author royer
+ */
+public class AffineMatrixTests
+{
+
+  /**
+   * Tests that orientation matrices map voxels of the oriented image to the
+   * corresponding voxels of the source image
+   */
+  @Test
+  public void testOrientation()
+  {
+    long[] lSrcDimensions = new long[]
+    { 10, 20, 30 };
+
+    // oriented image is 30 x 10 x 20, with its X axis (source Z) flipped:
+    Matrix4f lMatrix = AffineMatrix.orientation(new int[]
+    { 2, 0, 1 }, new boolean[]
+    { true, false, false }, lSrcDimensions);
+
+    Point3f lPoint = new Point3f(0, 0, 0);
+    lMatrix.transform(lPoint);
+    assertEquals(new Point3f(0, 0, 29), lPoint);
+
+    lPoint = new Point3f(29, 9, 19);
+    lMatrix.transform(lPoint);
+    assertEquals(new Point3f(9, 19, 0), lPoint);
+
+    lPoint = new Point3f(3, 4, 5);
+    lMatrix.transform(lPoint);
+    assertEquals(new Point3f(4, 5, 26), lPoint);
+  }
+
+  /**
+   * Tests that only flips and permutations of the voxel axes are recognized as
+   * such
+   */
+  @Test
+  public void testFlipAxisPermutation()
+  {
+    long[] lSrcDimensions = new long[]
+    { 10, 20, 30 };
+    Matrix4f lOrientation = AffineMatrix.orientation(new int[]
+    { 2, 0, 1 }, new boolean[]
+    { true, false, true }, lSrcDimensions);
+    assertArrayEquals(new int[]
+    { 1, 2, 0 }, TaskHelper.getFlipAxisPermutation(lOrientation));
+
+    assertArrayEquals(new int[]
+    { 0, 1, 2 },
+                      TaskHelper.getFlipAxisPermutation(AffineMatrix.translation(1,
+                                                                                 -2,
+                                                                                 3)));
+    assertNull(TaskHelper.getFlipAxisPermutation(AffineMatrix.translation(0.5f,
+                                                                          0,
+                                                                          0)));
+    assertNull(TaskHelper.getFlipAxisPermutation(AffineMatrix.rotation(0,
+                                                                       0,
+                                                                       10)));
+    assertNull(TaskHelper.getFlipAxisPermutation(AffineMatrix.scaling(2,
+                                                                      1,
+                                                                      1)));
+  }
+
+  /**
+   * Tests the derivatives of the rotation matrix against central differences
+   */
+  @Test
+  public void testRotationDerivative()
+  {
+    float[] lAngles = new float[]
+    { 12, -35, 70 };
+    float lDelta = 0.01f;
+    for (int d = 0; d < 3; d++)
+    {
+      Matrix4f lDerivative = AffineMatrix.rotationDerivative(d, lAngles);
+      float[] lPlus = lAngles.clone(), lMinus = lAngles.clone();
+      lPlus[d] += lDelta;
+      lMinus[d] -= lDelta;
+      Matrix4f lDifference = AffineMatrix.rotation(lPlus);
+      lDifference.sub(AffineMatrix.rotation(lMinus));
+      lDifference.mul(1 / (2 * lDelta));
+      for (int r = 0; r < 4; r++)
+        for (int c = 0; c < 4; c++)
+          assertEquals(lDifference.getElement(r, c),
+                       lDerivative.getElement(r, c),
+                       1e-3);
+    }
+  }
+
+}
@@ -0,0 +1,89 @@
+package fastfuse.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import fastfuse.registration.BoundedLBFGSOptimizer;
+
+import org.junit.Test;
+
+/**
+ * Bounded L-BFGS optimizer tests
+ *
+ * @author uschmidt
+ */
+public class BoundedLBFGSOptimizerTests
+{
+
+  /**
+   * Tests that a badly scaled quadratic is minimized in few evaluations
+   */
+  @Test
+  public void testQuadratic()
+  {
+    double[] lScales = new double[]
+    { 1, 2, 5, 10, 50, 100 };
+    double[] lOptimum = new double[]
+    { 3, -2, 1, 0.5, -0.25, 4 };
+    BoundedLBFGSOptimizer lOptimizer = new BoundedLBFGSOptimizer(5,
+                                                                 1,
+                                                                 1e-10);
+    double[] x = lOptimizer.minimize((p, g) -> quadratic(p,
+                                                         g,
+                                                         lScales,
+                                                         lOptimum),
+                                     new double[6],
+                                     new double[]
+                                     { -10, -10, -10, -10, -10, -10 },
+                                     new double[]
+                                     { 10, 10, 10, 10, 10, 10 },
+                                     200);
+    assertArrayEquals(lOptimum, x, 1e-4);
+    assertTrue(lOptimizer.getEvaluations() < 100);
+  }
+
+  /**
+   * Tests that the optimum is projected onto the bounds, with the variables at
+   * the bounds fixed and the others still optimized
+   */
+  @Test
+  public void testActiveBounds()
+  {
+    double[] lScales = new double[]
+    { 1, 1, 4 };
+    double[] lOptimum = new double[]
+    { 5, -5, 0.5 };
+    BoundedLBFGSOptimizer lOptimizer = new BoundedLBFGSOptimizer(5,
+                                                                 1,
+                                                                 1e-10);
+    double[] x = lOptimizer.minimize((p, g) -> quadratic(p,
+                                                         g,
+                                                         lScales,
+                                                         lOptimum),
+                                     new double[]
+                                     { 0, 0, 0 },
+                                     new double[]
+                                     { -2, -2, -2 },
+                                     new double[]
+                                     { 2, 2, 2 },
+                                     200);
+    assertArrayEquals(new double[]
+    { 2, -2, 0.5 }, x, 1e-6);
+  }
+
+  private static double quadratic(double[] x,
+                                  double[] pGradient,
+                                  double[] pScales,
+                                  double[] pOptimum)
+  {
+    double lValue = 0;
+    for (int i = 0; i < x.length; i++)
+    {
+      double lDelta = x[i] - pOptimum[i];
+      lValue += 0.5 * pScales[i] * lDelta * lDelta;
+      pGradient[i] = pScales[i] * lDelta;
+    }
+    return lValue;
+  }
+
+}
@@ -0,0 +1,142 @@
+package fastfuse.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import fastfuse.tasks.CompressedImage;
+
+import org.junit.Test;
+
+/**
+ * Compressed image tests
+ *
+ * @author royer
+ */
+public class CompressedImageTests
+{
+
+  /**
+   * Tests that 16 bit images are restored exactly, including extreme
+   * differences and an incomplete last block
+   */
+  @Test
+  public void testRoundTrip16bit()
+  {
+    long[] lDimensions = new long[]
+    { 37, 11, 5 };
+    short[] lValues = new short[37 * 11 * 5];
+    Random lRandom = new Random(42);
+    int lValue = 1000;
+    for (int i = 0; i < lValues.length; i++)
+    {
+      lValue = Math.max(0,
+                        Math.min(65535,
+                                 lValue + lRandom.nextInt(41) - 20));
+      lValues[i] = (short) lValue;
+    }
+    lValues[300] = (short) 65535;
+    lValues[301] = 0;
+    lValues[302] = (short) 65535;
+    for (int i = 1000; i < 1300; i++)
+      lValues[i] = 7;
+
+    CompressedImage lCompressedImage =
+                                     CompressedImage.compress(lDimensions,
+                                                              ShortBuffer.wrap(lValues));
+    assertEquals(16, lCompressedImage.getBitWidths().length);
+    assertEquals(17, lCompressedImage.getBitWidths()[2]);
+
+    short[] lDecompressed = new short[lValues.length];
+    lCompressedImage.decompress(ShortBuffer.wrap(lDecompressed));
+    assertArrayEquals(lValues, lDecompressed);
+  }
+
+  /**
+   * Tests that 8 bit images are restored exactly
+   */
+  @Test
+  public void testRoundTrip8bit()
+  {
+    long[] lDimensions = new long[]
+    { 100, 10, 3 };
+    byte[] lValues = new byte[3000];
+    new Random(7).nextBytes(lValues);
+
+    CompressedImage lCompressedImage =
+                                     CompressedImage.compress(lDimensions,
+                                                              ByteBuffer.wrap(lValues));
+    byte[] lDecompressed = new byte[lValues.length];
+    lCompressedImage.decompress(ByteBuffer.wrap(lDecompressed));
+    assertArrayEquals(lValues, lDecompressed);
+  }
+
+  /**
+   * Tests that packed blocks split in several segments are decompressed as
+   * the concatenation of the segments
+   */
+  @Test
+  public void testSegments()
+  {
+    long[] lDimensions = new long[]
+    { 64, 16, 2 };
+    short[] lValues = new short[64 * 16 * 2];
+    Random lRandom = new Random(3);
+    for (int i = 0; i < lValues.length; i++)
+      lValues[i] = (short) lRandom.nextInt(1000);
+
+    CompressedImage lCompressedImage =
+                                     CompressedImage.compress(lDimensions,
+                                                              ShortBuffer.wrap(lValues));
+    assertEquals(1, lCompressedImage.getPackedSegments().length);
+
+    // split after the third block, blocks with no bits between segments:
+    byte[] lBitWidths = lCompressedImage.getBitWidths();
+    byte[] lPacked = lCompressedImage.getPackedSegments()[0];
+    int lSplit = (lBitWidths[0] + lBitWidths[1] + lBitWidths[2])
+                 * (CompressedImage.cBlockLength / 8);
+    CompressedImage lSegmentedImage =
+                                    new CompressedImage(lDimensions,
+                                                        lCompressedImage.getDataType(),
+                                                        lBitWidths,
+                                                        new byte[][]
+                                                        { Arrays.copyOf(lPacked,
+                                                                        lSplit),
+                                                          new byte[0],
+                                                          Arrays.copyOfRange(lPacked,
+                                                                             lSplit,
+                                                                             lPacked.length) });
+    assertEquals(lCompressedImage.getSizeInBytes(),
+                 lSegmentedImage.getSizeInBytes());
+
+    short[] lDecompressed = new short[lValues.length];
+    lSegmentedImage.decompress(ShortBuffer.wrap(lDecompressed));
+    assertArrayEquals(lValues, lDecompressed);
+  }
+
+  /**
+   * Tests that smooth images with little noise are compressed several times
+   */
+  @Test
+  public void testCompressionRatio()
+  {
+    long[] lDimensions = new long[]
+    { 128, 128, 4 };
+    short[] lValues = new short[128 * 128 * 4];
+    Random lRandom = new Random(1);
+    for (int i = 0; i < lValues.length; i++)
+      lValues[i] = (short) (100 + i / 512 + lRandom.nextInt(8));
+
+    CompressedImage lCompressedImage =
+                                     CompressedImage.compress(lDimensions,
+                                                              ShortBuffer.wrap(lValues));
+    // differences between -7 and 8 take 5 bits, i.e. ratio a bit above 3:
+    assertTrue(lCompressedImage.getCompressionRatio() > 3);
+  }
+
+}
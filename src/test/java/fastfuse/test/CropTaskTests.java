@@ -0,0 +1,83 @@
+package fastfuse.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertSame;
+
+import fastfuse.tasks.CropTask;
+
+import org.junit.Test;
+
+/**
+ * Crop task tests
+ *
+ * @author royer
+ */
+public class CropTaskTests
+{
+  private static final long[] cDimensions = new long[]
+  { 512, 256, 100 };
+
+  /**
+   * Tests that the bounding box is extended by the margin and clamped to the
+   * image
+   */
+  @Test
+  public void testMargin()
+  {
+    long[][] lBox = CropTask.getCropBox(new int[]
+    { 100, 5, 20, 200, 250, 80 }, cDimensions, 10, 1);
+    assertArrayEquals(new long[]
+    { 90, 0, 10 }, lBox[0]);
+    assertArrayEquals(new long[]
+    { 120, 256, 80 }, lBox[1]);
+  }
+
+  /**
+   * Tests that width and height are rounded up to multiples of the alignment,
+   * staying within the image
+   */
+  @Test
+  public void testAlignment()
+  {
+    long[][] lBox = CropTask.getCropBox(new int[]
+    { 100, 200, 20, 130, 250, 81 }, cDimensions, 0, 16);
+    // width 30 -> 32, height 50 -> 64 shifted back into the image, depth
+    // unchanged
+    assertArrayEquals(new long[]
+    { 99, 192, 20 }, lBox[0]);
+    assertArrayEquals(new long[]
+    { 32, 64, 61 }, lBox[1]);
+  }
+
+  /**
+   * Tests that the last box is reused only if it contains the current box
+   */
+  @Test
+  public void testReusedBox()
+  {
+    long[][] lLastBox = new long[][]
+    { { 80, 0, 10 }, { 160, 256, 80 } };
+    long[][] lInsideBox = new long[][]
+    { { 90, 10, 20 }, { 150, 200, 70 } };
+    long[][] lOutsideBox = new long[][]
+    { { 70, 10, 20 }, { 100, 200, 70 } };
+    assertSame(lLastBox,
+               CropTask.getReusedCropBox(lLastBox, lInsideBox));
+    assertSame(lOutsideBox,
+               CropTask.getReusedCropBox(lLastBox, lOutsideBox));
+  }
+
+  /**
+   * Tests that the whole image is kept if there is no foreground
+   */
+  @Test
+  public void testEmptyForeground()
+  {
+    long[][] lBox = CropTask.getCropBox(new int[]
+    { 512, 256, 100, 0, 0, 0 }, cDimensions, 10, 16);
+    assertArrayEquals(new long[]
+    { 0, 0, 0 }, lBox[0]);
+    assertArrayEquals(cDimensions, lBox[1]);
+  }
+
+}
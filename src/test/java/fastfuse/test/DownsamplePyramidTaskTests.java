@@ -0,0 +1,183 @@
+package fastfuse.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import javax.vecmath.Matrix4f;
+
+import fastfuse.FastFusionException;
+import fastfuse.registration.AffineMatrix;
+import fastfuse.tasks.DownsamplePyramidTask;
+import fastfuse.tasks.DownsamplePyramidTask.Type;
+
+import org.junit.Test;
+
+/**
+ * pyramid downsampling task tests
+ *
+ * @author royer
+ */
+public class DownsamplePyramidTaskTests
+{
+
+  /**
+   * Tests that level dimensions are divided by per-axis factors and floored at
+   * each level
+   */
+  @Test
+  public void testLevelDimensions()
+  {
+    long[] lSrcDimensions = new long[]
+    { 101, 50, 7 };
+    int[] lFactors = new int[]
+    { 2, 3, 1 };
+    assertArrayEquals(lSrcDimensions,
+                      DownsamplePyramidTask.getLevelDimensions(lSrcDimensions,
+                                                               lFactors,
+                                                               0));
+    assertArrayEquals(new long[]
+    { 50, 16, 7 },
+                      DownsamplePyramidTask.getLevelDimensions(lSrcDimensions,
+                                                               lFactors,
+                                                               1));
+    assertArrayEquals(new long[]
+    { 25, 5, 7 },
+                      DownsamplePyramidTask.getLevelDimensions(lSrcDimensions,
+                                                               lFactors,
+                                                               2));
+    assertArrayEquals(new long[]
+    { 3, 0, 7 },
+                      DownsamplePyramidTask.getLevelDimensions(lSrcDimensions,
+                                                               lFactors,
+                                                               5));
+  }
+
+  /**
+   * Tests that the depth of each level is reduced by the Z factor per level
+   */
+  @Test
+  public void testDepthReduction()
+  {
+    DownsamplePyramidTask lTask = new DownsamplePyramidTask("a",
+                                                            new String[]
+                                                            { "a1", null, "a3" },
+                                                            new int[]
+                                                            { 2, 2, 3 },
+                                                            Type.Average,
+                                                            null);
+    assertEquals(3, lTask.getDepthReduction("a1"));
+    assertEquals(27, lTask.getDepthReduction("a3"));
+    assertEquals(2, lTask.getProducedImagesSlotKeys().size());
+  }
+
+  /**
+   * Tests that averaged levels are aligned on the centres of the averaged
+   * blocks: a flip of the source is a flip of the level, and a translation by
+   * one block is a translation by one level voxel
+   */
+  @Test
+  public void testBlockCentreAlignment()
+  {
+    long[] lSrcDimensions = new long[]
+    { 64, 32, 8 };
+    int[] lFactors = new int[]
+    { 2, 4, 1 };
+    DownsamplePyramidTask lTask = new DownsamplePyramidTask("a",
+                                                            new String[]
+                                                            { "a1", "a2" },
+                                                            lFactors,
+                                                            Type.Average,
+                                                            null);
+
+    boolean[] lFlips = new boolean[]
+    { true, true, false };
+    int[] lAxes = new int[]
+    { 0, 1, 2 };
+    for (int l = 1; l <= 2; l++)
+    {
+      Matrix4f lLevelFlip =
+                          lTask.getPropagatedImageTransform("a" + l,
+                                                            AffineMatrix.orientation(lAxes,
+                                                                                     lFlips,
+                                                                                     lSrcDimensions));
+      Matrix4f lExpectedFlip =
+                             AffineMatrix.orientation(lAxes,
+                                                      lFlips,
+                                                      DownsamplePyramidTask.getLevelDimensions(lSrcDimensions,
+                                                                                               lFactors,
+                                                                                               l));
+      assertTrue(lExpectedFlip.epsilonEquals(lLevelFlip, 1e-5f));
+    }
+
+    Matrix4f lLevelTranslation =
+                               lTask.getPropagatedImageTransform("a2",
+                                                                 AffineMatrix.translation(4,
+                                                                                          16,
+                                                                                          1));
+    assertTrue(AffineMatrix.translation(1, 1, 1)
+                           .epsilonEquals(lLevelTranslation, 1e-5f));
+  }
+
+  /**
+   * Tests that sampled levels are aligned on the first voxel of each block
+   */
+  @Test
+  public void testNearestAlignment()
+  {
+    DownsamplePyramidTask lTask = new DownsamplePyramidTask("a",
+                                                            new String[]
+                                                            { "a1" },
+                                                            new int[]
+                                                            { 2, 1, 1 },
+                                                            Type.Nearest,
+                                                            null);
+    // x -> 63 - x in the source is x -> 31.5 - x in the level:
+    Matrix4f lLevelFlip =
+                        lTask.getPropagatedImageTransform("a1",
+                                                          AffineMatrix.orientation(new int[]
+                                                          { 0, 1, 2 }, new boolean[]
+                                                          { true, false, false }, new long[]
+                                                          { 64, 32, 8 }));
+    assertEquals(31.5f, lLevelFlip.getElement(0, 3), 1e-5f);
+    assertEquals(-1, lLevelFlip.getElement(0, 0), 1e-5f);
+  }
+
+  /**
+   * Tests that invalid factors and too many levels are rejected
+   */
+  @Test
+  public void testInvalidArguments()
+  {
+    try
+    {
+      new DownsamplePyramidTask("a", new String[]
+      { "a1" }, new int[]
+      { 2, 0, 2 }, Type.Average, null);
+      fail();
+    }
+    catch (FastFusionException e)
+    {
+    }
+    String[] lLevelImageKeys =
+                             new String[DownsamplePyramidTask.cMaxLevels
+                                        + 1];
+    for (int l = 0; l < lLevelImageKeys.length; l++)
+      lLevelImageKeys[l] = "a" + (l + 1);
+    try
+    {
+      new DownsamplePyramidTask("a",
+                                lLevelImageKeys,
+                                new int[]
+                                { 2, 2, 2 },
+                                Type.Average,
+                                null);
+      fail();
+    }
+    catch (FastFusionException e)
+    {
+    }
+  }
+
+}
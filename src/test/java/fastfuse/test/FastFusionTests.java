@@ -2,17 +2,48 @@ package fastfuse.test;
 
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assume.assumeNotNull;
+
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 import clearcl.ClearCL;
 import clearcl.ClearCLContext;
 import clearcl.ClearCLDevice;
+import clearcl.ClearCLImage;
 import clearcl.backend.ClearCLBackendInterface;
 import clearcl.backend.ClearCLBackends;
 import clearcl.enums.ImageChannelDataType;
 import coremem.offheap.OffHeapMemory;
 import fastfuse.FastFusionEngine;
+import fastfuse.FastFusionEngineInterface;
 import fastfuse.FastFusionMemoryPool;
+import fastfuse.registration.AffineMatrix;
 import fastfuse.tasks.AverageTask;
+import fastfuse.tasks.BackgroundSubtractionTask;
+import fastfuse.tasks.CompositeTasks;
+import fastfuse.tasks.CompressedImage;
+import fastfuse.tasks.FlipTask;
+import fastfuse.tasks.ImageStatistics;
+import fastfuse.tasks.ImageStatisticsTask;
+import fastfuse.tasks.NonnegativeSubtractionTask;
+import fastfuse.tasks.TaskBase;
+import fastfuse.tasks.TaskHelper;
+import fastfuse.tasks.TaskInterface;
+import fastfuse.tasks.TenengradAdvancedFusionTask;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
 
 /**
  * fast fusion tests
@@ -21,6 +52,55 @@ import fastfuse.tasks.AverageTask;
  */
 public class FastFusionTests
 {
+  private static ClearCL cClearCL;
+  private static ClearCLContext cContext;
+
+  /**
+   * Creates the context shared by the tests that run on a device, if any is
+   * available
+   */
+  @BeforeClass
+  public static void createContext()
+  {
+    try
+    {
+      cClearCL = new ClearCL(ClearCLBackends.getBestBackend());
+      ClearCLDevice lDevice = cClearCL.getFastestGPUDeviceForImages();
+      if (lDevice != null)
+      {
+        cContext = lDevice.createContext();
+        FastFusionMemoryPool.getInstance(cContext, 100000000);
+      }
+    }
+    catch (Throwable e)
+    {
+      cContext = null;
+    }
+  }
+
+  /**
+   * Releases the shared context
+   * 
+   * @throws Exception
+   *           NA
+   */
+  @AfterClass
+  public static void closeContext() throws Exception
+  {
+    if (cContext != null)
+      cContext.close();
+    if (cClearCL != null)
+      cClearCL.close();
+  }
+
+  /**
+   * Skips the tests when no device is available
+   */
+  @Before
+  public void assumeDevice()
+  {
+    assumeNotNull(cContext);
+  }
 
   /**
    * test
@@ -124,4 +204,490 @@ public class FastFusionTests
 
   }
 
+  /**
+   * Tests that a transform attached to an integer input of the advanced fusion
+   * is materialized instead of rejected
+   */
+  @Test
+  public void testAdvancedFusionOfTransformedIntegerImage()
+  {
+    int lWidth = 32, lHeight = 17, lDepth = 9;
+
+    FastFusionEngine lEngine = new FastFusionEngine(cContext);
+    lEngine.addTask(new TenengradAdvancedFusionTask("c",
+                                                    ImageChannelDataType.UnsignedInt16,
+                                                    "a",
+                                                    "b",
+                                                    "wa",
+                                                    "wb"));
+    passTestImages(lEngine, "a", lWidth, lHeight, lDepth);
+    lEngine.setImageTransform("a",
+                              AffineMatrix.orientation(new int[]
+                              { 0, 1, 2 }, new boolean[]
+                              { true, false, false }, new long[]
+                              { lWidth, lHeight, lDepth }));
+
+    assertTrue(lEngine.executeAllTasks() > 0);
+    assertFlippedAverage(lEngine.getImage("c"), lWidth, lHeight, lDepth);
+    lEngine.close();
+  }
+
+  /**
+   * Tests that a flipped view of an integer image, as produced by a flip task
+   * that does not materialize its output, can be fused
+   */
+  @Test
+  public void testAdvancedFusionOfFlippedIntegerView()
+  {
+    int lWidth = 32, lHeight = 17, lDepth = 9;
+
+    FastFusionEngine lEngine = new FastFusionEngine(cContext);
+    FlipTask lFlipTask = FlipTask.flipX("a", "af");
+    lFlipTask.setMaterializeFlippedImage(false);
+    lEngine.addTask(lFlipTask);
+    lEngine.addTask(new TenengradAdvancedFusionTask("c",
+                                                    ImageChannelDataType.UnsignedInt16,
+                                                    "af",
+                                                    "b",
+                                                    "wa",
+                                                    "wb"));
+    passTestImages(lEngine, "a", lWidth, lHeight, lDepth);
+
+    assertTrue(lEngine.executeAllTasks() > 0);
+    assertFlippedAverage(lEngine.getImage("c"), lWidth, lHeight, lDepth);
+    lEngine.close();
+  }
+
+  /**
+   * Tests background subtraction into another image
+   */
+  @Test
+  public void testBackgroundSubtraction()
+  {
+    testBackgroundSubtraction("s", "t");
+  }
+
+  /**
+   * Tests background subtraction in place, which uses a scratch copy of the
+   * image on devices without read_write images
+   */
+  @Test
+  public void testBackgroundSubtractionInPlace()
+  {
+    testBackgroundSubtraction("s", "s");
+  }
+
+  private void testBackgroundSubtraction(String pSrcKey, String pDstKey)
+  {
+    int lWidth = 64, lHeight = 64, lDepth = 8;
+
+    // each plane has a background of 10z and a signal of 1000 on one voxel in
+    // 16:
+    OffHeapMemory lData = OffHeapMemory.allocateShorts(lWidth * lHeight
+                                                       * lDepth);
+    for (int z = 0; z < lDepth; z++)
+      for (int y = 0; y < lHeight; y++)
+        for (int x = 0; x < lWidth; x++)
+          lData.setShortAligned(x + lWidth * (y + lHeight * z),
+                                (short) (x % 4 == 0 && y % 4 == 0 ? 1000
+                                                                  : 10 * z));
+
+    BackgroundSubtractionTask lTask =
+                                    new BackgroundSubtractionTask(pSrcKey,
+                                                                  pDstKey,
+                                                                  50,
+                                                                  1);
+    FastFusionEngine lEngine = new FastFusionEngine(cContext);
+    lEngine.addTask(lTask);
+    lEngine.passImage(pSrcKey,
+                      lData,
+                      ImageChannelDataType.UnsignedInt16,
+                      lWidth,
+                      lHeight,
+                      lDepth);
+    assertTrue(lEngine.executeAllTasks() > 0);
+
+    // the background is estimated within a histogram bin:
+    float lBinWidth = 1000f / 1024;
+    float[] lBackground = lTask.getLastBackground();
+    assertEquals(lDepth, lBackground.length);
+    for (int z = 0; z < lDepth; z++)
+      assertEquals(10 * z, lBackground[z], lBinWidth);
+
+    lEngine.getImage(pDstKey).writeTo(lData, true);
+    for (int z = 0; z < lDepth; z++)
+      for (int y = 0; y < lHeight; y++)
+        for (int x = 0; x < lWidth; x++)
+          assertEquals(x % 4 == 0 && y % 4 == 0 ? 1000 - 10 * z : 0,
+                       lData.getShortAligned(x + lWidth
+                                                * (y + lHeight * z)),
+                       1);
+    lData.free();
+    lEngine.close();
+  }
+
+  /**
+   * Tests that the device compression of an image spanning several chunks,
+   * with a partial last block, matches the compression on the host
+   */
+  @Test
+  public void testCompression()
+  {
+    // 131300 values: 1026 blocks of 128 values, the last one partial, in 5
+    // chunks of 256 blocks
+    int lWidth = 100, lHeight = 101, lDepth = 13;
+    long[] lDimensions = new long[]
+    { lWidth, lHeight, lDepth };
+
+    // flat, smooth and noisy regions give blocks of various bit widths:
+    short[] lValues = new short[lWidth * lHeight * lDepth];
+    Random lRandom = new Random(1);
+    for (int i = 0; i < lValues.length; i++)
+    {
+      int z = i / (lWidth * lHeight);
+      lValues[i] = (short) (z % 3 == 0 ? 100
+                                       : z % 3 == 1 ? i % 2000
+                                                    : lRandom.nextInt(65536));
+    }
+    OffHeapMemory lData = OffHeapMemory.allocateShorts(lValues.length);
+    for (int i = 0; i < lValues.length; i++)
+      lData.setShortAligned(i, lValues[i]);
+
+    List<CompressedImage> lCompressedImages = new ArrayList<>();
+    FastFusionEngine lEngine = new FastFusionEngine(cContext);
+    lEngine.addTasks(CompositeTasks.compressFinalImage("a",
+                                                       (k, c) -> lCompressedImages.add(c)));
+    lEngine.passImage("a",
+                      lData,
+                      ImageChannelDataType.UnsignedInt16,
+                      lWidth,
+                      lHeight,
+                      lDepth);
+    assertTrue(lEngine.executeAllTasks() > 0);
+    lEngine.waitFusionTasksToComplete();
+    lEngine.close();
+    lData.free();
+
+    assertEquals(1, lCompressedImages.size());
+    CompressedImage lCompressed = lCompressedImages.get(0);
+    CompressedImage lExpected =
+                              CompressedImage.compress(lDimensions,
+                                                       ShortBuffer.wrap(lValues));
+    assertArrayEquals(lExpected.getBitWidths(), lCompressed.getBitWidths());
+    byte[][] lExpectedSegments = lExpected.getPackedSegments();
+    byte[][] lSegments = lCompressed.getPackedSegments();
+    assertEquals(lExpectedSegments.length, lSegments.length);
+    for (int i = 0; i < lSegments.length; i++)
+      assertArrayEquals(lExpectedSegments[i], lSegments[i]);
+
+    short[] lDecompressed = new short[lValues.length];
+    lCompressed.decompress(ShortBuffer.wrap(lDecompressed));
+    assertArrayEquals(lValues, lDecompressed);
+  }
+
+  /**
+   * Tests min, max, mean, variance and histogram computed on the device, for
+   * dimensions that are not multiples of the global size
+   */
+  @Test
+  public void testImageStatistics()
+  {
+    int lWidth = 37, lHeight = 23, lDepth = 11;
+    int lVolume = lWidth * lHeight * lDepth;
+
+    // all values between 0 and 256, bins of width 4:
+    int lNumberOfBins = 64;
+    OffHeapMemory lData = OffHeapMemory.allocateShorts(lVolume);
+    double lSum = 0;
+    long[] lExpectedHistogram = new long[lNumberOfBins];
+    for (int i = 0; i < lVolume; i++)
+    {
+      int lValue = (i * 7) % 257;
+      lData.setShortAligned(i, (short) lValue);
+      lSum += lValue;
+      lExpectedHistogram[Math.min(lValue / 4, lNumberOfBins - 1)]++;
+    }
+    double lMean = lSum / lVolume, lSumOfSquares = 0;
+    for (int i = 0; i < lVolume; i++)
+      lSumOfSquares += Math.pow((i * 7) % 257 - lMean, 2);
+
+    ImageStatisticsTask lTask = new ImageStatisticsTask("a",
+                                                        lNumberOfBins);
+    FastFusionEngine lEngine = new FastFusionEngine(cContext);
+    lEngine.addTask(lTask);
+    lEngine.passImage("a",
+                      lData,
+                      ImageChannelDataType.UnsignedInt16,
+                      lWidth,
+                      lHeight,
+                      lDepth);
+    assertTrue(lEngine.executeAllTasks() > 0);
+    lEngine.close();
+    lData.free();
+
+    ImageStatistics lStatistics = lTask.getLastStatistics();
+    assertEquals(lVolume, lStatistics.getNumberOfVoxels());
+    assertEquals(0, lStatistics.getMin(), 0);
+    assertEquals(256, lStatistics.getMax(), 0);
+    assertEquals(lMean, lStatistics.getMean(), 1e-3);
+    assertEquals(lSumOfSquares / lVolume,
+                 lStatistics.getVariance(),
+                 1e-5 * lSumOfSquares / lVolume);
+    assertArrayEquals(lExpectedHistogram, lStatistics.getHistogram());
+  }
+
+  /**
+   * Tests that an image shared by several slots returns to the pool only when
+   * its last slot is removed, and that removing a slot twice is harmless
+   */
+  @Test
+  public void testSharedImageRelease()
+  {
+    OffHeapMemory lData = OffHeapMemory.allocateShorts(8 * 8 * 8);
+    FastFusionEngine lEngine = new FastFusionEngine(cContext);
+    lEngine.passImage("a",
+                      lData,
+                      ImageChannelDataType.UnsignedInt16,
+                      8,
+                      8,
+                      8);
+    lData.free();
+    ClearCLImage lImage = lEngine.getImage("a");
+    lEngine.assignImageToAnotherSlotKey("a", "b");
+    assertSame(lImage, lEngine.getImage("b"));
+
+    lEngine.removeImage("a");
+    lEngine.removeImage("a");
+    assertTrue(FastFusionMemoryPool.get().isInUse(lImage));
+    assertTrue(lEngine.isImageAvailable("b"));
+
+    lEngine.removeImage("b");
+    assertFalse(FastFusionMemoryPool.get().isInUse(lImage));
+    lEngine.close();
+  }
+
+  /**
+   * Tests that automatically released slots are removed as soon as their last
+   * consumer has been executed, while their shared image stays in use by the
+   * slots produced from it
+   */
+  @Test
+  public void testAutomaticReleaseOrder()
+  {
+    List<String> lExecutedTasks = new ArrayList<>();
+    OffHeapMemory lData = OffHeapMemory.allocateShorts(8 * 8 * 8);
+    FastFusionEngine lEngine = new FastFusionEngine(cContext);
+    lEngine.enableAutomaticRelease("c");
+    lEngine.addTask(new RecordingTask("a", "b", lExecutedTasks));
+    lEngine.addTask(new RecordingTask("b", "c", lExecutedTasks));
+    lEngine.passImage("a",
+                      lData,
+                      ImageChannelDataType.UnsignedInt16,
+                      8,
+                      8,
+                      8);
+    lData.free();
+    ClearCLImage lImage = lEngine.getImage("a");
+
+    assertEquals(1, lEngine.executeSeveralTasks(1));
+    assertFalse(lEngine.isImageAvailable("a"));
+    assertTrue(lEngine.isImageAvailable("b"));
+    assertTrue(FastFusionMemoryPool.get().isInUse(lImage));
+
+    assertEquals(1, lEngine.executeSeveralTasks(1));
+    assertEquals(Collections.singleton("c"),
+                 lEngine.getAvailableImagesSlotKeys());
+    assertSame(lImage, lEngine.getImage("c"));
+    assertTrue(FastFusionMemoryPool.get().isInUse(lImage));
+    lEngine.close();
+  }
+
+  /**
+   * Tests that an elementwise task overwrites its dying input only on devices
+   * supporting read_write images, and computes the same result either way
+   */
+  @Test
+  public void testInPlaceExecution()
+  {
+    int lWidth = 16, lHeight = 8, lDepth = 4;
+    int lVolume = lWidth * lHeight * lDepth;
+
+    OffHeapMemory lData = OffHeapMemory.allocateShorts(lVolume);
+    for (int i = 0; i < lVolume; i++)
+      lData.setShortAligned(i, (short) (i % 32));
+
+    FastFusionEngine lEngine = new FastFusionEngine(cContext);
+    lEngine.setInPlaceExecution(true);
+    lEngine.enableAutomaticRelease("b");
+    lEngine.addTask(new NonnegativeSubtractionTask("a", 10, "b"));
+    lEngine.passImage("a",
+                      lData,
+                      ImageChannelDataType.UnsignedInt16,
+                      lWidth,
+                      lHeight,
+                      lDepth);
+    ClearCLImage lSrcImage = lEngine.getImage("a");
+    assertTrue(lEngine.executeAllTasks() > 0);
+
+    ClearCLImage lDstImage = lEngine.getImage("b");
+    assertEquals(TaskHelper.supportsReadWriteImages(cContext),
+                 lDstImage == lSrcImage);
+    assertFalse(lEngine.isImageAvailable("a"));
+
+    lDstImage.writeTo(lData, true);
+    for (int i = 0; i < lVolume; i++)
+      assertEquals(Math.max(i % 32 - 10, 0), lData.getShortAligned(i));
+    lEngine.close();
+    lData.free();
+  }
+
+  /**
+   * Tests that the task heading the longest chain is executed first, whatever
+   * its position in the task list, and that the priorities are cached until the
+   * task list changes
+   */
+  @Test
+  public void testCriticalPathSelection()
+  {
+    int lWidth = 8, lHeight = 8, lDepth = 8;
+
+    List<String> lExecutedTasks = new ArrayList<>();
+    FastFusionEngine lEngine = new FastFusionEngine(cContext);
+    lEngine.addTask(new RecordingTask("a", "x", lExecutedTasks));
+    lEngine.addTask(new RecordingTask("a", "b", lExecutedTasks));
+    lEngine.addTask(new RecordingTask("b", "c", lExecutedTasks));
+
+    Map<TaskInterface, Double> lPriorities =
+                                           lEngine.getCriticalPathPriorities();
+    assertSame(lPriorities, lEngine.getCriticalPathPriorities());
+    lEngine.addTask(new RecordingTask("c", "d", lExecutedTasks));
+    assertNotSame(lPriorities, lEngine.getCriticalPathPriorities());
+
+    OffHeapMemory lData = OffHeapMemory.allocateShorts(lWidth * lHeight
+                                                       * lDepth);
+    lEngine.passImage("a",
+                      lData,
+                      ImageChannelDataType.UnsignedInt16,
+                      lWidth,
+                      lHeight,
+                      lDepth);
+    assertEquals(4, lEngine.executeAllTasks());
+    lEngine.close();
+    lData.free();
+
+    assertEquals(4, lExecutedTasks.size());
+    assertEquals("b", lExecutedTasks.get(0));
+    assertTrue(lExecutedTasks.indexOf("c") < lExecutedTasks.indexOf("d"));
+  }
+
+  /**
+   * Non-instantaneous task passing its source image to its destination slot
+   * and recording its destination key when executed
+   */
+  private static class RecordingTask extends TaskBase
+                                     implements TaskInterface
+  {
+    private final String mSrcImageKey, mDstImageKey;
+    private final List<String> mExecutedTasks;
+
+    public RecordingTask(String pSrcImageKey,
+                         String pDstImageKey,
+                         List<String> pExecutedTasks)
+    {
+      super(pSrcImageKey);
+      addProducedImages(pDstImageKey);
+      mSrcImageKey = pSrcImageKey;
+      mDstImageKey = pDstImageKey;
+      mExecutedTasks = pExecutedTasks;
+    }
+
+    @Override
+    public int getHaloDepth(long[] pStackDimensions)
+    {
+      return 0;
+    }
+
+    @Override
+    public boolean enqueue(FastFusionEngineInterface pFastFusionEngine,
+                           boolean pWaitToFinish)
+    {
+      pFastFusionEngine.assignImageToAnotherSlotKey(mSrcImageKey,
+                                                    mDstImageKey);
+      mExecutedTasks.add(mDstImageKey);
+      return true;
+    }
+  }
+
+  /**
+   * Passes the uint16 images a(x,y,z) = 2(x+y) under the given key and b(x,y,z)
+   * = 2z under key "b", and uniform weights under keys "wa" and "wb"
+   */
+  private static void passTestImages(FastFusionEngine pEngine,
+                                     String pKeyA,
+                                     int pWidth,
+                                     int pHeight,
+                                     int pDepth)
+  {
+    long lVolume = (long) pWidth * pHeight * pDepth;
+    OffHeapMemory lDataA = OffHeapMemory.allocateShorts(lVolume);
+    OffHeapMemory lDataB = OffHeapMemory.allocateShorts(lVolume);
+    OffHeapMemory lWeights = OffHeapMemory.allocateFloats(lVolume);
+    for (int z = 0; z < pDepth; z++)
+      for (int y = 0; y < pHeight; y++)
+        for (int x = 0; x < pWidth; x++)
+        {
+          long i = x + pWidth * (y + (long) pHeight * z);
+          lDataA.setShortAligned(i, (short) (2 * (x + y)));
+          lDataB.setShortAligned(i, (short) (2 * z));
+          lWeights.setFloatAligned(i, 1);
+        }
+    pEngine.passImage(pKeyA,
+                      lDataA,
+                      ImageChannelDataType.UnsignedInt16,
+                      pWidth,
+                      pHeight,
+                      pDepth);
+    pEngine.passImage("b",
+                      lDataB,
+                      ImageChannelDataType.UnsignedInt16,
+                      pWidth,
+                      pHeight,
+                      pDepth);
+    for (String lKey : new String[]
+    { "wa", "wb" })
+      pEngine.passImage(lKey,
+                        lWeights,
+                        ImageChannelDataType.Float,
+                        pWidth,
+                        pHeight,
+                        pDepth);
+    lDataA.free();
+    lDataB.free();
+    lWeights.free();
+  }
+
+  /**
+   * Checks that the given image is the average of image a flipped in X and
+   * image b, as passed by passTestImages
+   */
+  private static void assertFlippedAverage(ClearCLImage pImage,
+                                           int pWidth,
+                                           int pHeight,
+                                           int pDepth)
+  {
+    OffHeapMemory lData =
+                        OffHeapMemory.allocateShorts((long) pWidth
+                                                     * pHeight
+                                                     * pDepth);
+    pImage.writeTo(lData, true);
+    for (int z = 0; z < pDepth; z++)
+      for (int y = 0; y < pHeight; y++)
+        for (int x = 0; x < pWidth; x++)
+          assertEquals((pWidth - 1 - x) + y + z,
+                       lData.getShortAligned(x + pWidth
+                                                * (y + (long) pHeight
+                                                       * z)));
+    lData.free();
+  }
+
 }
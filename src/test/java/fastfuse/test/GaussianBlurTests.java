@@ -0,0 +1,175 @@
+package fastfuse.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import fastfuse.tasks.GaussianBlurTask;
+
+import org.junit.Test;
+
+/**
+ * Gaussian blur tests
+ *
+ * @author royer
+ */
+public class GaussianBlurTests
+{
+
+  /**
+   * Tests that the precomputed weights sum to one, are symmetric and decrease
+   * away from the centre
+   */
+  @Test
+  public void testWeights()
+  {
+    for (float lSigma : new float[]
+    { 0.5f, 1, 2.5f, 7 })
+      for (int lSize : new int[]
+      { 1, 3, 7, 2 * (int) Math.ceil(3.5 * lSigma) + 1 })
+      {
+        float[] lWeights = GaussianBlurTask.computeWeights(lSigma, lSize);
+        assertEquals(lSize, lWeights.length);
+
+        double lSum = 0;
+        for (float lWeight : lWeights)
+          lSum += lWeight;
+        assertEquals(1, lSum, 1e-6);
+
+        int lCenter = (lSize - 1) / 2;
+        for (int v = 1; v <= lCenter; v++)
+        {
+          assertEquals(lWeights[lCenter - v], lWeights[lCenter + v], 0);
+          assertTrue(lWeights[lCenter + v] < lWeights[lCenter + v - 1]);
+        }
+      }
+  }
+
+  /**
+   * Tests that the recursive filter approximates the Gaussian: it preserves
+   * constants and its impulse response is within 15% (L1) of the Gaussian
+   */
+  @Test
+  public void testRecursiveAccuracy()
+  {
+    for (float lSigma : new float[]
+    { 0.5f, 1, 2, 5, 10 })
+    {
+      int lRadius = (int) Math.ceil(20 * lSigma);
+      float[] lImpulseResponse = recursiveFilter(impulse(lRadius),
+                                                 lSigma);
+      float[] lGaussian = GaussianBlurTask.computeWeights(lSigma,
+                                                          2 * lRadius + 1);
+      double lSum = 0, lError = 0;
+      for (int i = 0; i < lImpulseResponse.length; i++)
+      {
+        lSum += lImpulseResponse[i];
+        lError += Math.abs(lImpulseResponse[i] - lGaussian[i]);
+      }
+      assertEquals(1, lSum, 1e-4);
+      assertTrue(lError < 0.15);
+
+      float[] lConstant = new float[11];
+      Arrays.fill(lConstant, 3);
+      for (float lValue : recursiveFilter(lConstant, lSigma))
+        assertEquals(3, lValue, 1e-4);
+    }
+  }
+
+  /**
+   * Tests that less than 1e-4 of the impulse response of the recursive filter
+   * lies beyond the halo, and that a slab with halo is filtered like the whole
+   * line within that tolerance
+   */
+  @Test
+  public void testRecursiveHaloDepth()
+  {
+    Random lRandom = new Random(1);
+    for (float lSigma : new float[]
+    { 0.5f, 1, 2, 5, 10, 20 })
+    {
+      GaussianBlurTask lTask =
+                             new GaussianBlurTask("a",
+                                                  "b",
+                                                  new float[]
+                                                  { 1, 1, lSigma },
+                                                  GaussianBlurTask.Mode.Recursive);
+      int lHaloDepth = lTask.getHaloDepth(new long[]
+      { 64, 64, 64 });
+
+      int lRadius = (int) Math.ceil(20 * lSigma);
+      float[] lImpulseResponse = recursiveFilter(impulse(lRadius),
+                                                 lSigma);
+      double lTail = 0;
+      for (int i = 0; i < lImpulseResponse.length; i++)
+        if (Math.abs(i - lRadius) > lHaloDepth)
+          lTail += Math.abs(lImpulseResponse[i]);
+      assertTrue(lTail < 1e-4);
+
+      // slab of 100 voxels in the middle of a line of random values in [0,1]:
+      int lLength = 100 + 4 * lHaloDepth, lStart = 2 * lHaloDepth;
+      float[] lLine = new float[lLength];
+      for (int i = 0; i < lLength; i++)
+        lLine[i] = lRandom.nextFloat();
+      float[] lFilteredLine = recursiveFilter(lLine, lSigma);
+      float[] lFilteredSlab =
+                            recursiveFilter(Arrays.copyOfRange(lLine,
+                                                               lStart - lHaloDepth,
+                                                               lStart + 100
+                                                                      + lHaloDepth),
+                                            lSigma);
+      for (int i = 0; i < 100; i++)
+        assertEquals(lFilteredLine[lStart + i],
+                     lFilteredSlab[lHaloDepth + i],
+                     1e-4);
+    }
+  }
+
+  private static float[] impulse(int pRadius)
+  {
+    float[] lImpulse = new float[2 * pRadius + 1];
+    lImpulse[pRadius] = 1;
+    return lImpulse;
+  }
+
+  /**
+   * Filters a line like the gaussian_blur_iir_image3d kernel (blur.cl): a
+   * forward and a backward pass, each starting in the steady state of the
+   * constant extension of the line
+   */
+  private static float[] recursiveFilter(float[] pLine, float pSigma)
+  {
+    float[] lCoefficients =
+                          GaussianBlurTask.computeRecursiveCoefficients(pSigma);
+    int n = pLine.length;
+    float[] lForward = new float[n], lBackward = new float[n];
+    float w1 = pLine[0], w2 = w1, w3 = w1;
+    for (int p = 0; p < n; p++)
+    {
+      float w = lCoefficients[0] * pLine[p]
+                + lCoefficients[1] * w1
+                + lCoefficients[2] * w2
+                + lCoefficients[3] * w3;
+      lForward[p] = w;
+      w3 = w2;
+      w2 = w1;
+      w1 = w;
+    }
+    w1 = w2 = w3 = lForward[n - 1];
+    for (int p = n - 1; p >= 0; p--)
+    {
+      float w = lCoefficients[0] * lForward[p]
+                + lCoefficients[1] * w1
+                + lCoefficients[2] * w2
+                + lCoefficients[3] * w3;
+      lBackward[p] = w;
+      w3 = w2;
+      w2 = w1;
+      w1 = w;
+    }
+    return lBackward;
+  }
+
+}
@@ -0,0 +1,42 @@
+package fastfuse.test;
+
+import static org.junit.Assert.assertEquals;
+
+import fastfuse.tasks.ImageStatistics;
+
+import org.junit.Test;
+
+/**
+ * image statistics tests
+ *
+ * @author royer
+ */
+public class ImageStatisticsTests
+{
+
+  /**
+   * Tests that percentiles are interpolated within histogram bins
+   */
+  @Test
+  public void testPercentiles()
+  {
+    // 100 voxels between 0 and 100, 4 bins of width 25:
+    ImageStatistics lStatistics = new ImageStatistics(100,
+                                                      0,
+                                                      100,
+                                                      30,
+                                                      400,
+                                                      new long[]
+                                                      { 50, 30, 0, 20 });
+
+    assertEquals(25, lStatistics.getBinWidth(), 1e-9);
+    assertEquals(20, lStatistics.getStandardDeviation(), 1e-9);
+    assertEquals(0, lStatistics.getPercentile(0), 1e-9);
+    assertEquals(12.5, lStatistics.getPercentile(25), 1e-9);
+    assertEquals(25, lStatistics.getPercentile(50), 1e-9);
+    assertEquals(50, lStatistics.getPercentile(80), 1e-9);
+    assertEquals(87.5, lStatistics.getPercentile(90), 1e-9);
+    assertEquals(100, lStatistics.getPercentile(100), 1e-9);
+  }
+
+}
@@ -0,0 +1,198 @@
+package fastfuse.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import fastfuse.FastFusionException;
+import fastfuse.tasks.DownsamplePyramidTask;
+import fastfuse.tasks.KernelSourceGenerator;
+import fastfuse.tasks.StackSplitTask;
+import fastfuse.tasks.TaskHelper;
+
+import org.junit.Test;
+
+/**
+ * kernel source generator tests
+ *
+ * @author royer
+ */
+public class KernelSourceGeneratorTests
+{
+
+  /**
+   * Tests that generated kernels take one argument per image and are cached
+   */
+  @Test
+  public void testTenengradFusionSource()
+  {
+    String lSource = KernelSourceGenerator.getTenengradFusionSource(3);
+
+    assertTrue(lSource.contains("__kernel void tenengrad_fusion_tiled_3_images(write_only image3d_t dst, read_only image3d_t src1, read_only image3d_t src2, read_only image3d_t src3)"));
+    assertTrue(lSource.contains("const float wsum = w1 + w2 + w3 + 1e-30f;"));
+    assertEquals(3, count(lSource, "load_tile("));
+    assertSame(lSource, KernelSourceGenerator.getTenengradFusionSource(3));
+  }
+
+  /**
+   * Tests that the generated untiled kernel reads the images directly
+   */
+  @Test
+  public void testTenengradFusionUntiledSource()
+  {
+    String lSource =
+                   KernelSourceGenerator.getTenengradFusionUntiledSource(5);
+
+    assertTrue(lSource.contains("__kernel void tenengrad_fusion_5_images(write_only image3d_t dst, read_only image3d_t src1,"));
+    assertEquals(5, count(lSource, "sobel_magnitude_squared(src"));
+    assertEquals(0, count(lSource, "__local"));
+  }
+
+  /**
+   * Tests that the Tenengrad tiles are shrunk until the tiles of all images fit
+   * in local memory, and that no tile is used below the smallest tile volume
+   */
+  @Test
+  public void testTenengradTileSizes()
+  {
+    // 32KB fit 12 default tiles of 18*6*6 floats:
+    assertArrayEquals(TaskHelper.cTenengradTileSizes,
+                      TaskHelper.getTenengradTileSizes(32768, 12));
+    long[] lTileSizes = TaskHelper.getTenengradTileSizes(32768, 13);
+    assertArrayEquals(new long[]
+    { 8, 4, 4 }, lTileSizes);
+    assertTrue(TaskHelper.getTenengradLocalMemorySize(lTileSizes,
+                                                      13) <= 32768);
+
+    for (int lNumberOfImages = 1; lNumberOfImages < 100; lNumberOfImages++)
+    {
+      lTileSizes = TaskHelper.getTenengradTileSizes(16384,
+                                                    lNumberOfImages);
+      if (lTileSizes != null)
+      {
+        assertTrue(TaskHelper.getTenengradLocalMemorySize(lTileSizes,
+                                                          lNumberOfImages) <= 16384);
+        assertTrue(lTileSizes[0] * lTileSizes[1]
+                   * lTileSizes[2] >= TaskHelper.cMinTenengradTileVolume);
+      }
+    }
+    assertNull(TaskHelper.getTenengradTileSizes(1024, 4));
+  }
+
+  /**
+   * Tests that generated stack splitting kernels read consecutive planes
+   */
+  @Test
+  public void testStackSplitSource()
+  {
+    String lSource = KernelSourceGenerator.getStackSplitSource(3, true);
+
+    assertTrue(lSource.contains("convert_interleaved_to_stacks_3_and_downsample_xy_by_half_nearest("));
+    assertTrue(lSource.contains("k2 = 3*k"));
+    assertEquals(3, count(lSource, "WRITE_IMAGE("));
+    assertTrue(lSource.contains("WRITE_IMAGE(dst2,(int4)(i,j,k,0),(DTYPE_OUT)READ_IMAGE(src,sampler,(int4)(i2,j2,k2+2,0)).x);"));
+  }
+
+  /**
+   * Tests that averaging and flipping are fused into the generated splitting
+   * kernel, and that hand-written kernels keep their names
+   */
+  @Test
+  public void testStackSplitWithAveragingAndFlips()
+  {
+    String lKernelName =
+                       KernelSourceGenerator.getStackSplitKernelName(2,
+                                                                     new int[]
+                                                                     { 2, 2, 1 },
+                                                                     DownsamplePyramidTask.Type.Average,
+                                                                     new boolean[][]
+                                                                     { { false, false, false },
+                                                                       { true, false, true } });
+    assertEquals("split_interleaved_to_stacks_2_2x2x1_average_flip05",
+                 lKernelName);
+
+    String lSource =
+                   KernelSourceGenerator.getStackSplitSource(2,
+                                                             new int[]
+                                                             { 2, 2, 1 },
+                                                             DownsamplePyramidTask.Type.Average,
+                                                             new boolean[][]
+                                                             { { false, false, false },
+                                                               { true, false, true } });
+    assertTrue(lSource.contains("READ_IMAGE(src,sampler,(int4)(i2+dx,j2+dy,k2+2*dz+1,0))"));
+    assertTrue(lSource.contains("WRITE_IMAGE(dst1,(int4)(w-i,j,d-k,0),(DTYPE_OUT)(sum/4+ROUNDING));"));
+
+    assertEquals("convert_interleaved_to_stacks_4_and_downsample_xy_by_half_nearest",
+                 KernelSourceGenerator.getStackSplitKernelName(4, true));
+  }
+
+  /**
+   * Tests that the flips of a stack splitting task are copied, that missing
+   * flips of a stack stand for no flips, and that flips along other than three
+   * axes are rejected
+   */
+  @Test
+  public void testStackSplitFlips()
+  {
+    boolean[][] lFlips = new boolean[][]
+    { null, { true, false, false } };
+    StackSplitTask lTask = new StackSplitTask("a",
+                                              new String[]
+                                              { "b", "c" },
+                                              new int[]
+                                              { 1, 1, 1 },
+                                              DownsamplePyramidTask.Type.Nearest,
+                                              lFlips,
+                                              null);
+    lFlips[1][2] = true;
+    assertEquals("kernel=split_interleaved_to_stacks_2_1x1x1_flip01, dtype=null",
+                 lTask.getSignature());
+    assertEquals(0, lTask.getHaloDepth(new long[]
+    { 10, 10, 10 }));
+
+    try
+    {
+      new StackSplitTask("a",
+                         new String[]
+                         { "b", "c" },
+                         new int[]
+                         { 1, 1, 1 },
+                         DownsamplePyramidTask.Type.Nearest,
+                         new boolean[][]
+                         { { true, false }, null },
+                         null);
+      fail();
+    }
+    catch (FastFusionException e)
+    {
+    }
+  }
+
+  /**
+   * Tests that generated weight normalization kernels divide each weight by
+   * the sum of all weights
+   */
+  @Test
+  public void testWeightNormalizationSource()
+  {
+    String lSource = KernelSourceGenerator.getWeightNormalizationSource(3);
+
+    assertTrue(lSource.contains("__kernel void normalize_weights_3_images(write_only image3d_t dst1, write_only image3d_t dst2, write_only image3d_t dst3, read_only image3d_t src1, read_only image3d_t src2, read_only image3d_t src3)"));
+    assertTrue(lSource.contains("const float wsum = w1 + w2 + w3 + 1e-30f;"));
+    assertTrue(lSource.contains("WRITE_IMAGE(dst3,coord,(DTYPE_OUT)(w3/wsum));"));
+  }
+
+  private static int count(String pString, String pPattern)
+  {
+    int lCount = 0;
+    for (int i = pString.indexOf(pPattern); i >= 0; i =
+                                                     pString.indexOf(pPattern,
+                                                                     i + 1))
+      lCount++;
+    return lCount;
+  }
+
+}
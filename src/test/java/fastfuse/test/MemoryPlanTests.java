@@ -0,0 +1,114 @@
+package fastfuse.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.ArrayList;
+
+import clearcl.enums.ImageChannelDataType;
+import fastfuse.graph.MemoryPlan;
+
+import org.junit.Test;
+
+/**
+ * memory plan tests
+ *
+ * @author royer
+ */
+public class MemoryPlanTests
+{
+
+  /**
+   * Tests that images with disjoint lifetimes share physical images
+   */
+  @Test
+  public void testLifetimeSharing()
+  {
+    long[] lDimensions = new long[]
+    { 16, 16, 8 };
+
+    ArrayList<MemoryPlan.Lifetime> lLifetimes = new ArrayList<>();
+    MemoryPlan.Lifetime lInput =
+                               new MemoryPlan.Lifetime("C0",
+                                                       ImageChannelDataType.UnsignedInt16,
+                                                       lDimensions,
+                                                       0);
+    MemoryPlan.Lifetime lBlurred =
+                                 new MemoryPlan.Lifetime("C0blur",
+                                                         ImageChannelDataType.Float,
+                                                         lDimensions,
+                                                         1);
+    MemoryPlan.Lifetime lSubtracted =
+                                    new MemoryPlan.Lifetime("C0sub",
+                                                            ImageChannelDataType.Float,
+                                                            lDimensions,
+                                                            3);
+    MemoryPlan.Lifetime lOutput =
+                                new MemoryPlan.Lifetime("fused",
+                                                        ImageChannelDataType.Float,
+                                                        lDimensions,
+                                                        5);
+    lInput.end(2);
+    lBlurred.end(4);
+    lSubtracted.end(6);
+    lLifetimes.add(lInput);
+    lLifetimes.add(lBlurred);
+    lLifetimes.add(lSubtracted);
+    lLifetimes.add(lOutput);
+
+    MemoryPlan lMemoryPlan = MemoryPlan.compute(lLifetimes);
+
+    assertEquals(3, lMemoryPlan.getNumberOfPhysicalImages());
+    assertEquals(lMemoryPlan.getPhysicalImageIndex("C0blur"),
+                 lMemoryPlan.getPhysicalImageIndex("fused"));
+    assertNotEquals(lMemoryPlan.getPhysicalImageIndex("C0blur"),
+                    lMemoryPlan.getPhysicalImageIndex("C0sub"));
+    assertNotEquals(lMemoryPlan.getPhysicalImageIndex("C0"),
+                    lMemoryPlan.getPhysicalImageIndex("C0sub"));
+    assertEquals(-1, lMemoryPlan.getPhysicalImageIndex("C1"));
+    assertEquals(16 * 16 * 8 * (2 + 4 + 4),
+                 lMemoryPlan.getFootprintInBytes());
+  }
+
+  /**
+   * Tests that a slot allocated twice keeps one physical image covering both
+   * lifetimes
+   */
+  @Test
+  public void testSlotAllocatedTwice()
+  {
+    long[] lDimensions = new long[]
+    { 16, 16, 8 };
+
+    ArrayList<MemoryPlan.Lifetime> lLifetimes = new ArrayList<>();
+    MemoryPlan.Lifetime lFirst =
+                               new MemoryPlan.Lifetime("tmp",
+                                                       ImageChannelDataType.Float,
+                                                       lDimensions,
+                                                       0);
+    MemoryPlan.Lifetime lOther =
+                               new MemoryPlan.Lifetime("other",
+                                                       ImageChannelDataType.Float,
+                                                       lDimensions,
+                                                       2);
+    MemoryPlan.Lifetime lSecond =
+                                new MemoryPlan.Lifetime("tmp",
+                                                        ImageChannelDataType.Float,
+                                                        lDimensions,
+                                                        4);
+    lFirst.end(1);
+    lOther.end(3);
+    lSecond.end(5);
+    lLifetimes.add(lFirst);
+    lLifetimes.add(lOther);
+    lLifetimes.add(lSecond);
+
+    MemoryPlan lMemoryPlan = MemoryPlan.compute(lLifetimes);
+
+    // "other" must not share the image of "tmp", which is live from 0 to 5:
+    assertEquals(2, lMemoryPlan.getNumberOfPhysicalImages());
+    assertNotEquals(lMemoryPlan.getPhysicalImageIndex("tmp"),
+                    lMemoryPlan.getPhysicalImageIndex("other"));
+  }
+
+}
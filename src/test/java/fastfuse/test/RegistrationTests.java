@@ -0,0 +1,84 @@
+package fastfuse.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import fastfuse.registration.Registration;
+
+import org.apache.commons.math3.analysis.MultivariateFunction;
+import org.apache.commons.math3.exception.TooManyEvaluationsException;
+import org.apache.commons.math3.optim.InitialGuess;
+import org.apache.commons.math3.optim.MaxEval;
+import org.apache.commons.math3.optim.SimpleBounds;
+import org.apache.commons.math3.optim.nonlinear.scalar.GoalType;
+import org.apache.commons.math3.optim.nonlinear.scalar.ObjectiveFunction;
+import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.BOBYQAOptimizer;
+import org.junit.Test;
+
+/**
+ * Registration tests (host side only)
+ *
+ * @author royer
+ */
+public class RegistrationTests
+{
+  private static final double[] cLowerBounds = new double[]
+  { -20, -20, -20, -10, -10, -10 };
+  private static final double[] cUpperBounds = new double[]
+  { 20, 20, 20, 10, 10, 10 };
+
+  /**
+   * Tests that the initial interpolation points scored in advance are the
+   * points first evaluated by BOBYQA, also close to and at the bounds
+   */
+  @Test
+  public void testInitialInterpolationPoints()
+  {
+    checkInitialInterpolationPoints(new double[]
+    { 0, 1.5, -3, 0.25, 2, -1 }, 10);
+    checkInitialInterpolationPoints(new double[]
+    { -20, 19, 15, -10, 9.5, 10 }, 2);
+    checkInitialInterpolationPoints(new double[]
+    { -12.5, 20, 0, 3, -9, 0 }, 4);
+  }
+
+  private void checkInitialInterpolationPoints(double[] pInitialGuess,
+                                               double pRadius)
+  {
+    List<double[]> lEvaluatedPoints = new ArrayList<>();
+    MultivariateFunction lFunction = x -> {
+      lEvaluatedPoints.add(x.clone());
+      double lSum = 0;
+      for (double v : x)
+        lSum += (v - 1) * (v - 1);
+      return lSum;
+    };
+    try
+    {
+      new BOBYQAOptimizer(13,
+                          pRadius,
+                          1e-8).optimize(new MaxEval(13),
+                                         new ObjectiveFunction(lFunction),
+                                         GoalType.MINIMIZE,
+                                         new SimpleBounds(cLowerBounds,
+                                                          cUpperBounds),
+                                         new InitialGuess(pInitialGuess));
+    }
+    catch (TooManyEvaluationsException e)
+    {
+    }
+
+    List<double[]> lPoints =
+                           Registration.getInitialInterpolationPoints(pInitialGuess,
+                                                                      pRadius,
+                                                                      cLowerBounds,
+                                                                      cUpperBounds);
+    assertEquals(13, lPoints.size());
+    for (int k = 0; k < lPoints.size(); k++)
+      assertArrayEquals(lEvaluatedPoints.get(k), lPoints.get(k), 0);
+  }
+
+}
@@ -0,0 +1,113 @@
+package fastfuse.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import fastfuse.graph.TaskGraph;
+import fastfuse.tasks.IdentityTask;
+import fastfuse.tasks.TaskInterface;
+
+import org.junit.Test;
+
+/**
+ * task graph tests
+ *
+ * @author royer
+ */
+public class TaskGraphTests
+{
+
+  /**
+   * Tests producers, consumers, successors and the topological order of a
+   * chain a -> b -> c -> d with a side branch a -> x, listed out of order
+   */
+  @Test
+  public void testTopologicalOrder()
+  {
+    TaskInterface lTaskB = new IdentityTask("a", "b");
+    TaskInterface lTaskC = new IdentityTask("b", "c");
+    TaskInterface lTaskD = new IdentityTask("c", "d");
+    TaskInterface lTaskX = new IdentityTask("a", "x");
+    TaskGraph lGraph = new TaskGraph(Arrays.asList(lTaskD,
+                                                   lTaskC,
+                                                   lTaskB,
+                                                   lTaskX));
+
+    assertTrue(lGraph.isExternalInput("a"));
+    assertFalse(lGraph.isExternalInput("b"));
+    assertEquals(Arrays.asList(lTaskB), lGraph.getProducers("b"));
+    assertEquals(Arrays.asList(lTaskB, lTaskX), lGraph.getConsumers("a"));
+    assertEquals(1, lGraph.getSuccessors(lTaskB).size());
+    assertTrue(lGraph.getSuccessors(lTaskB).contains(lTaskC));
+    assertTrue(lGraph.getPredecessors(lTaskD).contains(lTaskC));
+    assertTrue(lGraph.getSuccessors(lTaskX).isEmpty());
+
+    assertEquals(Arrays.asList(lTaskB, lTaskX, lTaskC, lTaskD),
+                 lGraph.getTopologicalOrder());
+  }
+
+  /**
+   * Tests that the critical path priority of a task is its cost plus the
+   * largest priority of its successors
+   */
+  @Test
+  public void testCriticalPathPriorities()
+  {
+    TaskInterface lTaskB = new IdentityTask("a", "b");
+    TaskInterface lTaskC = new IdentityTask("b", "c");
+    TaskInterface lTaskD = new IdentityTask("c", "d");
+    TaskInterface lTaskX = new IdentityTask("a", "x");
+    TaskInterface lTaskY = new IdentityTask("b", "y");
+    TaskGraph lGraph = new TaskGraph(Arrays.asList(lTaskX,
+                                                   lTaskB,
+                                                   lTaskC,
+                                                   lTaskD,
+                                                   lTaskY));
+
+    Map<TaskInterface, Double> lPriorities =
+                                           lGraph.computeCriticalPathPriorities(t -> 1);
+    assertEquals(3, lPriorities.get(lTaskB), 0);
+    assertEquals(2, lPriorities.get(lTaskC), 0);
+    assertEquals(1, lPriorities.get(lTaskD), 0);
+    assertEquals(1, lPriorities.get(lTaskX), 0);
+    assertEquals(1, lPriorities.get(lTaskY), 0);
+
+    // an expensive side branch becomes critical:
+    lPriorities =
+                lGraph.computeCriticalPathPriorities(t -> t == lTaskY ? 10
+                                                                      : 1);
+    assertEquals(11, lPriorities.get(lTaskB), 0);
+    assertEquals(2, lPriorities.get(lTaskC), 0);
+  }
+
+  /**
+   * Tests that tasks with cyclic dependencies get priorities and are ordered
+   * last
+   */
+  @Test
+  public void testCycle()
+  {
+    TaskInterface lTaskB = new IdentityTask("a", "b");
+    TaskInterface lTaskP = new IdentityTask("q", "p");
+    TaskInterface lTaskQ = new IdentityTask("p", "q");
+    TaskGraph lGraph = new TaskGraph(Arrays.asList(lTaskP,
+                                                   lTaskQ,
+                                                   lTaskB));
+
+    List<TaskInterface> lOrder = lGraph.getTopologicalOrder();
+    assertEquals(Arrays.asList(lTaskB, lTaskP, lTaskQ), lOrder);
+
+    Map<TaskInterface, Double> lPriorities =
+                                           lGraph.computeCriticalPathPriorities(t -> 1);
+    assertEquals(3, lPriorities.size());
+    assertEquals(1, lPriorities.get(lTaskB), 0);
+    assertTrue(lPriorities.get(lTaskP) >= 1);
+    assertTrue(lPriorities.get(lTaskQ) >= 1);
+  }
+
+}
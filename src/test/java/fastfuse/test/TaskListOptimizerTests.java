@@ -0,0 +1,161 @@
+package fastfuse.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import fastfuse.graph.TaskListOptimizer;
+import fastfuse.tasks.GaussianBlurTask;
+import fastfuse.tasks.IdentityTask;
+import fastfuse.tasks.MemoryReleaseTask;
+import fastfuse.tasks.NonnegativeSubtractionTask;
+import fastfuse.tasks.TaskInterface;
+
+import org.junit.Test;
+
+/**
+ * task list optimizer tests
+ *
+ * @author royer
+ */
+public class TaskListOptimizerTests
+{
+
+  /**
+   * Tests that duplicated computations are merged
+   */
+  @Test
+  public void testCommonSubexpressionElimination()
+  {
+    ArrayList<TaskInterface> lTasks = new ArrayList<>();
+    lTasks.add(new GaussianBlurTask("C0",
+                                    "C0blur",
+                                    new float[]
+                                    { 2, 2, 2 }));
+    lTasks.add(new GaussianBlurTask("C0",
+                                    "C0blurbis",
+                                    new float[]
+                                    { 2, 2, 2 }));
+    lTasks.add(new GaussianBlurTask("C0",
+                                    "C0blurwide",
+                                    new float[]
+                                    { 4, 4, 4 }));
+    lTasks.add(new NonnegativeSubtractionTask("C0blur",
+                                              "C0blurbis",
+                                              "diff"));
+    lTasks.add(new NonnegativeSubtractionTask("C0blurbis",
+                                              "C0blur",
+                                              "diffbis"));
+
+    List<TaskInterface> lOptimizedTasks =
+                                        TaskListOptimizer.optimize(lTasks,
+                                                                   new HashSet<>(Arrays.asList("diff",
+                                                                                               "diffbis",
+                                                                                               "C0blurwide")));
+
+    assertEquals(5, lOptimizedTasks.size());
+    assertTrue(lOptimizedTasks.contains(lTasks.get(0)));
+    assertFalse(lOptimizedTasks.contains(lTasks.get(1)));
+    assertTrue(lOptimizedTasks.contains(lTasks.get(2)));
+    assertTrue(lOptimizedTasks.contains(lTasks.get(3)));
+    assertFalse(lOptimizedTasks.contains(lTasks.get(4)));
+
+    int lNumberOfIdentityTasks = 0;
+    for (TaskInterface lTask : lOptimizedTasks)
+      if (lTask instanceof IdentityTask)
+        lNumberOfIdentityTasks++;
+    assertEquals(2, lNumberOfIdentityTasks);
+  }
+
+  /**
+   * Tests that releasing the image of a merged computation waits for the
+   * identity task passing it to the slot of the duplicate
+   */
+  @Test
+  public void testReleaseWaitsForIdentity()
+  {
+    ArrayList<TaskInterface> lTasks = new ArrayList<>();
+    lTasks.add(new GaussianBlurTask("C0",
+                                    "C0blur",
+                                    new float[]
+                                    { 2, 2, 2 }));
+    lTasks.add(new NonnegativeSubtractionTask("C0blur", 100, "C0sub"));
+    lTasks.add(new MemoryReleaseTask("C0sub", "C0blur"));
+    lTasks.add(new GaussianBlurTask("C0",
+                                    "C0blurbis",
+                                    new float[]
+                                    { 2, 2, 2 }));
+
+    List<TaskInterface> lOptimizedTasks =
+                                        TaskListOptimizer.optimize(lTasks,
+                                                                   new HashSet<>(Arrays.asList("C0sub",
+                                                                                               "C0blurbis")));
+
+    assertEquals(4, lOptimizedTasks.size());
+    MemoryReleaseTask lReleaseTask =
+                                   (MemoryReleaseTask) lOptimizedTasks.get(2);
+    assertEquals(new HashSet<>(Arrays.asList("C0sub", "C0blurbis")),
+                 lReleaseTask.getRequiredImagesSlotKeys());
+    assertEquals(Arrays.asList("C0blur"),
+                 lReleaseTask.getReleasedImagesSlotKeys());
+    assertTrue(lOptimizedTasks.get(3) instanceof IdentityTask);
+  }
+
+  /**
+   * Tests that tasks not contributing to the outputs are removed
+   */
+  @Test
+  public void testDeadTaskPruning()
+  {
+    ArrayList<TaskInterface> lTasks = new ArrayList<>();
+    lTasks.add(new GaussianBlurTask("C0",
+                                    "C0blur",
+                                    new float[]
+                                    { 2, 2, 2 }));
+    lTasks.add(new NonnegativeSubtractionTask("C0", 100, "C0sub"));
+    lTasks.add(new MemoryReleaseTask("C0blur", "C0"));
+    lTasks.add(new MemoryReleaseTask("C0sub", "C0sub"));
+
+    List<TaskInterface> lOptimizedTasks =
+                                        TaskListOptimizer.optimize(lTasks,
+                                                                   new HashSet<>(Arrays.asList("C0blur")));
+
+    assertEquals(2, lOptimizedTasks.size());
+    assertTrue(lOptimizedTasks.contains(lTasks.get(0)));
+    assertTrue(lOptimizedTasks.contains(lTasks.get(2)));
+  }
+
+  /**
+   * Tests that memory releases waiting for pruned images are rewired
+   */
+  @Test
+  public void testMemoryReleaseRewiring()
+  {
+    ArrayList<TaskInterface> lTasks = new ArrayList<>();
+    lTasks.add(new GaussianBlurTask("C0",
+                                    "C0blur",
+                                    new float[]
+                                    { 2, 2, 2 }));
+    lTasks.add(new NonnegativeSubtractionTask("C0", 100, "C0sub"));
+    lTasks.add(new MemoryReleaseTask(Arrays.asList("C0blur", "C0sub"),
+                                     "C0"));
+
+    List<TaskInterface> lOptimizedTasks =
+                                        TaskListOptimizer.optimize(lTasks,
+                                                                   new HashSet<>(Arrays.asList("C0blur")));
+
+    assertEquals(2, lOptimizedTasks.size());
+    MemoryReleaseTask lReleaseTask =
+                                   (MemoryReleaseTask) lOptimizedTasks.get(1);
+    assertEquals(new HashSet<>(Arrays.asList("C0blur")),
+                 lReleaseTask.getRequiredImagesSlotKeys());
+    assertEquals(Arrays.asList("C0"),
+                 lReleaseTask.getReleasedImagesSlotKeys());
+  }
+
+}
@@ -0,0 +1,169 @@
+package fastfuse.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import javax.vecmath.Matrix4f;
+import javax.vecmath.Point3f;
+
+import clearcl.ClearCLContext;
+import fastfuse.FastFusionEngine;
+import fastfuse.FastFusionException;
+import fastfuse.ZSlabExecutor;
+import fastfuse.registration.AffineMatrix;
+import fastfuse.tasks.GaussianBlurTask;
+import fastfuse.tasks.ImageStatisticsTask;
+import fastfuse.tasks.NonnegativeSubtractionTask;
+import fastfuse.tasks.StackSplitTask;
+import fastfuse.tasks.TaskHelper;
+import fastfuse.tasks.TenengradWeightTask;
+import fastfuse.tasks.TransformTask;
+
+import org.junit.Test;
+
+/**
+ * Z slab executor tests
+ *
+ * @author royer
+ */
+public class ZSlabExecutorTests
+{
+  private static final long[] cStackDimensions = new long[]
+  { 512, 512, 100 };
+
+  /**
+   * Tests that the halo is the largest sum of halo depths along a path of the
+   * task graph
+   */
+  @Test
+  public void testHaloDepth()
+  {
+    FastFusionEngine lEngine = new FastFusionEngine((ClearCLContext) null);
+    // kernel of size 15 along z: 7 planes
+    lEngine.addTask(new GaussianBlurTask("C0",
+                                         "C0blur",
+                                         new float[]
+                                         { 2, 2, 2 }));
+    // 1 plane
+    lEngine.addTask(new TenengradWeightTask("C0blur", "C0weight"));
+    // pointwise
+    lEngine.addTask(new NonnegativeSubtractionTask("C0",
+                                                   "C0blur",
+                                                   "C0diff"));
+    // translation along z: 4 planes plus one for the interpolation
+    TransformTask lTransformTask = new TransformTask("C0", "C0shifted");
+    lTransformTask.setTransformMatrix(AffineMatrix.translation(0,
+                                                               0,
+                                                               3.5f));
+    lEngine.addTask(lTransformTask);
+
+    ZSlabExecutor lExecutor = new ZSlabExecutor(lEngine, 16);
+    assertEquals(8, lExecutor.getHaloDepth(cStackDimensions));
+
+    lEngine.addTask(new GaussianBlurTask("C0shifted",
+                                         "C0shiftedblur",
+                                         new float[]
+                                         { 1, 1, 1 }));
+    // 5 planes for the translation, 3 for the blur (size 7)
+    assertEquals(8, lExecutor.getHaloDepth(cStackDimensions));
+    lEngine.addTask(new TenengradWeightTask("C0shiftedblur",
+                                            "C0shiftedweight"));
+    assertEquals(9, lExecutor.getHaloDepth(cStackDimensions));
+  }
+
+  /**
+   * Tests that halos of tasks applied to split stacks are counted in planes of
+   * the interleaved stack
+   */
+  @Test
+  public void testSplitStackHaloDepth()
+  {
+    FastFusionEngine lEngine = new FastFusionEngine((ClearCLContext) null);
+    lEngine.addTask(new StackSplitTask("C0interleaved", new String[]
+    { "C0L0", "C0L1" }));
+    lEngine.addTask(new TenengradWeightTask("C0L0", "C0L0weight"));
+    // kernel of size 7 along z: 3 planes of the split stack
+    lEngine.addTask(new GaussianBlurTask("C0L1",
+                                         "C0L1blur",
+                                         new float[]
+                                         { 1, 1, 1 }));
+
+    ZSlabExecutor lExecutor = new ZSlabExecutor(lEngine, 16);
+    assertEquals(6, lExecutor.getHaloDepth(cStackDimensions));
+  }
+
+  /**
+   * Tests that the halo of the recursive blur leaves out less than 1e-4 of the
+   * Gaussian response along z
+   */
+  @Test
+  public void testRecursiveBlurHaloDepth()
+  {
+    for (float lSigma : new float[]
+    { 0.7f, 1, 2.5f, 6 })
+    {
+      GaussianBlurTask lTask =
+                             new GaussianBlurTask("C0",
+                                                  "C0blur",
+                                                  new float[]
+                                                  { 1, 1, lSigma },
+                                                  null,
+                                                  GaussianBlurTask.Mode.Recursive,
+                                                  null);
+      int lHaloDepth = lTask.getHaloDepth(cStackDimensions);
+      double lTruncated = 0, lTotal = 0;
+      for (int z = -1000; z <= 1000; z++)
+      {
+        double lWeight = Math.exp(-z * z / (2.0 * lSigma * lSigma));
+        lTotal += lWeight;
+        if (Math.abs(z) > lHaloDepth)
+          lTruncated += lWeight;
+      }
+      assertTrue(lTruncated / lTotal < 1e-4);
+    }
+  }
+
+  /**
+   * Tests that tasks reading the whole stack are rejected
+   */
+  @Test(expected = FastFusionException.class)
+  public void testWholeStackTask()
+  {
+    FastFusionEngine lEngine = new FastFusionEngine((ClearCLContext) null);
+    lEngine.addTask(new GaussianBlurTask("C0",
+                                         "C0blur",
+                                         new float[]
+                                         { 2, 2, 2 }));
+    lEngine.addTask(new ImageStatisticsTask("C0blur"));
+    new ZSlabExecutor(lEngine, 16).getHaloDepth(cStackDimensions);
+  }
+
+  /**
+   * Tests the halo of rotations, and that the slab transform leaves the
+   * sampled points unchanged
+   */
+  @Test
+  public void testTransformHalo()
+  {
+    // rotation by 10 degrees around y: the displacement along z is largest at
+    // the corner (511, *, 99)
+    Matrix4f lRotation = AffineMatrix.rotation(0, 10, 0);
+    double lAngle = Math.toRadians(10);
+    double lExpected = Math.max(Math.abs(-Math.sin(lAngle) * 511
+                                         + (Math.cos(lAngle) - 1) * 99),
+                                Math.abs(Math.sin(lAngle) * 511));
+    int lHaloDepth = TaskHelper.getTransformHaloDepth(lRotation,
+                                                      cStackDimensions);
+    assertEquals((int) Math.ceil(lExpected) + 1, lHaloDepth);
+
+    Matrix4f lSlabRotation = TaskHelper.getSlabTransform(lRotation, 40);
+    Point3f lPoint = new Point3f(100, 200, 50);
+    Point3f lSlabPoint = new Point3f(100, 200, 50 - 40);
+    lRotation.transform(lPoint);
+    lSlabRotation.transform(lSlabPoint);
+    assertEquals(lPoint.x, lSlabPoint.x, 1e-3);
+    assertEquals(lPoint.y, lSlabPoint.y, 1e-3);
+    assertEquals(lPoint.z - 40, lSlabPoint.z, 1e-3);
+  }
+
+}